@@ -19,6 +19,11 @@ package com.streamreduce.queue;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
 import com.streamreduce.util.JSONUtils;
 import com.streamreduce.util.PropertiesOverrideLoader;
 import com.streamreduce.util.SqsQueueNameFormatter;
@@ -33,9 +38,14 @@ import org.apache.camel.impl.DefaultCamelContext;
 import org.apache.camel.util.jndi.JndiContext;
 import org.apache.log4j.Logger;
 
+import javax.jms.Connection;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
@@ -45,11 +55,18 @@ public final class CamelFacade {
     }
 
     static private final Logger LOGGER = Logger.getLogger(CamelFacade.class);
-    static private ProducerTemplate producerTemplate;
+    //SQS limits for a single SendMessageBatch call
+    static private final int SQS_MAX_BATCH_ENTRIES = 10;
+    static private final int SQS_MAX_BATCH_BYTES = 64 * 1024;
+    static private volatile ProducerTemplate producerTemplate;
     static private String brokerType;
+    static private InsightMessagePublisher insightMessagePublisher;
 
 
-    private static void startCamelContextAndSetProducerTemplate() {
+    private static synchronized void startCamelContextAndSetProducerTemplate() {
+        if (producerTemplate != null) {
+            return;
+        }
         try {
             Properties messageBrokerProperties = PropertiesOverrideLoader.loadProperties("messagebroker.properties");
             final String eventsToInsightsQueueName = messageBrokerProperties.getProperty("eventMapsToInsightsQueueName");
@@ -65,7 +82,8 @@ public final class CamelFacade {
 
             CamelContext camelContext = new DefaultCamelContext(jndiContext);
 
-            final String amqEndpoint = setupAmqComponentAndEndpoint(camelContext, messageBrokerProperties,
+            final PooledConnectionFactory pooledConnectionFactory = setupAmqConnectionFactory(messageBrokerProperties);
+            final String amqEndpoint = setupAmqComponentAndEndpoint(camelContext, pooledConnectionFactory,
                     eventsToInsightsQueueName);
             final String fileEndpoint = setupFileComponent(eventsToInsightsQueueName); //For local dev
 
@@ -85,7 +103,43 @@ public final class CamelFacade {
             });
 
             camelContext.start();
-            producerTemplate = camelContext.createProducerTemplate();
+            ProducerTemplate template = camelContext.createProducerTemplate();
+
+            InsightMessagePublisher.BatchSender batchSender = null;
+            if (Boolean.valueOf(messageBrokerProperties.getProperty("insight.publisher.async"))) {
+                if ("sqs".equals(brokerType)) {
+                    batchSender = new SqsBatchSender(sqsClientAndEndPointPair.amazonSQSClient,
+                            SqsQueueNameFormatter.formatSqsQueueName(eventsToInsightsQueueName, environment));
+                } else if ("amq".equals(brokerType)) {
+                    batchSender = new AmqBatchSender(pooledConnectionFactory, eventsToInsightsQueueName);
+                } else if ("file".equals(brokerType)) {
+                    batchSender = new ProducerTemplateBatchSender(template);
+                }
+            }
+            //unknown broker types are reported by sendInsightMessage
+            if (batchSender != null) {
+                insightMessagePublisher = new InsightMessagePublisher(batchSender,
+                        Integer.parseInt(messageBrokerProperties.getProperty("insight.publisher.queue.capacity")),
+                        Integer.parseInt(messageBrokerProperties.getProperty("insight.publisher.batch.size")),
+                        Long.parseLong(messageBrokerProperties.getProperty("insight.publisher.offer.timeout.ms")));
+                final long shutdownTimeout =
+                        Long.parseLong(messageBrokerProperties.getProperty("insight.publisher.shutdown.timeout.ms"));
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!insightMessagePublisher.shutdown(shutdownTimeout)) {
+                                LOGGER.error(insightMessagePublisher.pending() + " insight messages were not sent " +
+                                        "before shutdown");
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }));
+            }
+
+            producerTemplate = template;
             LOGGER.info("Camel (Insight Message Producer) started successfully");
         } catch (Exception e) {
             LOGGER.error("Error starting the Camel context: " + e.getMessage(), e);
@@ -114,7 +168,7 @@ public final class CamelFacade {
         return new SQSClientAndEndPointPair(sqsClient,endpoint);
     }
 
-    private static String setupAmqComponentAndEndpoint(CamelContext camelContext, Properties messageBrokerProperties, String eventsToInsightsQueueName) {
+    private static PooledConnectionFactory setupAmqConnectionFactory(Properties messageBrokerProperties) {
         String brokerUrl = messageBrokerProperties.getProperty("activemq.broker.url");
         ActiveMQConnectionFactory activeMQConnectionFactory = new ActiveMQConnectionFactory(brokerUrl);
         PooledConnectionFactory pooledConnectionFactory = new PooledConnectionFactory(activeMQConnectionFactory);
@@ -122,7 +176,10 @@ public final class CamelFacade {
         pooledConnectionFactory.setMaxConnections(8);
         pooledConnectionFactory.setMaximumActive(500);
         pooledConnectionFactory.setIdleTimeout(0); //No timeout for connections in the pool
+        return pooledConnectionFactory;
+    }
 
+    private static String setupAmqComponentAndEndpoint(CamelContext camelContext, PooledConnectionFactory pooledConnectionFactory, String eventsToInsightsQueueName) {
         ActiveMQComponent activeMQComponent = ActiveMQComponent.activeMQComponent();
         activeMQComponent.setUsePooledConnection(true);
         activeMQComponent.setConnectionFactory(pooledConnectionFactory);
@@ -131,6 +188,32 @@ public final class CamelFacade {
         return "amq:queue:" + eventsToInsightsQueueName + "?jmsMessageType=Text";
     }
 
+    /**
+     * Queues an insight message to be sent in the background, batched with the other insights queued meanwhile.  The
+     * message is sanitized right away, so the map can be reused once this returns.  When asynchronous publishing is
+     * disabled (insight.publisher.async) the message is sent synchronously instead.
+     *
+     * @param eventMap the insight
+     * @return false if the publisher's queue is full, the caller should then send the message with
+     *         {@link #sendInsightMessage} (slowing down to the broker's pace) or drop it
+     */
+    public static boolean publishInsightMessage(Map<String, Object> eventMap) {
+        if (producerTemplate == null) {
+            startCamelContextAndSetProducerTemplate();
+        }
+        if (insightMessagePublisher == null) {
+            sendInsightMessage(eventMap);
+            return true;
+        }
+
+        try {
+            return insightMessagePublisher.publish(JSONUtils.sanitizeMapForJson(eventMap));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     public static void sendInsightMessage(Map<String, Object> eventMap) {
         if (producerTemplate == null) {
             startCamelContextAndSetProducerTemplate();
@@ -153,6 +236,107 @@ public final class CamelFacade {
         }
     }
 
+    /**
+     * Sends each batch with as few SendMessageBatch calls as the SQS entry count and size limits allow.
+     */
+    private static class SqsBatchSender implements InsightMessagePublisher.BatchSender {
+        private final AmazonSQSClient amazonSQSClient;
+        private final String queueName;
+        private String queueUrl;
+
+        SqsBatchSender(AmazonSQSClient amazonSQSClient, String queueName) {
+            this.amazonSQSClient = amazonSQSClient;
+            this.queueName = queueName;
+        }
+
+        @Override
+        public void send(List<Map<String, Object>> eventMaps) throws Exception {
+            if (queueUrl == null) {
+                //the queue is created by the Camel endpoint when the context starts
+                queueUrl = amazonSQSClient.getQueueUrl(new GetQueueUrlRequest(queueName)).getQueueUrl();
+            }
+
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+            int bytes = 0;
+            for (Map<String, Object> eventMap : eventMaps) {
+                String body = JSONObject.fromObject(eventMap).toString();
+                int size = body.getBytes("UTF-8").length;
+
+                if (entries.size() == SQS_MAX_BATCH_ENTRIES || (!entries.isEmpty() && bytes + size > SQS_MAX_BATCH_BYTES)) {
+                    sendBatch(entries);
+                    entries.clear();
+                    bytes = 0;
+                }
+                entries.add(new SendMessageBatchRequestEntry(Integer.toString(entries.size()), body));
+                bytes += size;
+            }
+            if (!entries.isEmpty()) {
+                sendBatch(entries);
+            }
+        }
+
+        private void sendBatch(List<SendMessageBatchRequestEntry> entries) {
+            SendMessageBatchResult result = amazonSQSClient.sendMessageBatch(new SendMessageBatchRequest(queueUrl,
+                    entries));
+
+            for (BatchResultErrorEntry failed : result.getFailed()) {
+                LOGGER.error("Insight message not sent to SQS (" + failed.getCode() + "): " + failed.getMessage() +
+                        ": " + entries.get(Integer.parseInt(failed.getId())).getMessageBody());
+            }
+            LOGGER.debug((entries.size() - result.getFailed().size()) + " insight messages sent to SQS");
+        }
+    }
+
+    /**
+     * Sends each batch in a single JMS transaction.
+     */
+    private static class AmqBatchSender implements InsightMessagePublisher.BatchSender {
+        private final PooledConnectionFactory pooledConnectionFactory;
+        private final String queueName;
+
+        AmqBatchSender(PooledConnectionFactory pooledConnectionFactory, String queueName) {
+            this.pooledConnectionFactory = pooledConnectionFactory;
+            this.queueName = queueName;
+        }
+
+        @Override
+        public void send(List<Map<String, Object>> eventMaps) throws Exception {
+            Connection connection = pooledConnectionFactory.createConnection();
+            try {
+                Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+                MessageProducer producer = session.createProducer(session.createQueue(queueName));
+
+                for (Map<String, Object> eventMap : eventMaps) {
+                    producer.send(session.createTextMessage(JSONObject.fromObject(eventMap).toString()));
+                }
+                session.commit();
+                LOGGER.debug(eventMaps.size() + " insight messages sent to AMQ");
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the messages of each batch one by one through the Camel route, used for the file broker whose consumer
+     * expects one message per file.
+     */
+    private static class ProducerTemplateBatchSender implements InsightMessagePublisher.BatchSender {
+        private final ProducerTemplate template;
+
+        ProducerTemplateBatchSender(ProducerTemplate template) {
+            this.template = template;
+        }
+
+        @Override
+        public void send(List<Map<String, Object>> eventMaps) throws Exception {
+            for (Map<String, Object> eventMap : eventMaps) {
+                template.sendBody("direct:sendEventToTempDir", JSONObject.fromObject(eventMap).toString());
+            }
+            LOGGER.debug(eventMaps.size() + " insight messages sent to Temp Directory");
+        }
+    }
+
     private static class SQSClientAndEndPointPair {
         final AmazonSQSClient amazonSQSClient;
         final String endpoint;
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.queue;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes insight messages from a background thread so the caller never waits on the broker.  Insights are put on
+ * a bounded queue and the sender thread drains whatever has accumulated, up to the maximum batch size, into a single
+ * {@link BatchSender#send} call: one insight at a time when the traffic is light, full batches during a burst.
+ * <p/>
+ * When the queue stays full for longer than the offer timeout {@link #publish} returns false, letting the caller
+ * decide what to do with the insight (the bolts send it synchronously, which throttles them to the broker's pace).
+ * Publish latency (queued to sent), batch sizes, queue depth, rejected and failed insights are reported through the
+ * metrics registry.
+ */
+public class InsightMessagePublisher {
+
+    private static final Logger logger = Logger.getLogger(InsightMessagePublisher.class);
+    private static final Timer PUBLISH_TIMER = Metrics.newTimer(InsightMessagePublisher.class, "publish-latency",
+                                                                TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    private static final Timer SEND_TIMER = Metrics.newTimer(InsightMessagePublisher.class, "send-latency",
+                                                             TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    private static final Histogram BATCH_SIZE = Metrics.newHistogram(InsightMessagePublisher.class, "batch-size",
+                                                                     false);
+    private static final Counter QUEUED = Metrics.newCounter(InsightMessagePublisher.class, "queued");
+    private static final Meter REJECTED = Metrics.newMeter(InsightMessagePublisher.class, "rejected", "insights",
+                                                           TimeUnit.SECONDS);
+    private static final Meter FAILED = Metrics.newMeter(InsightMessagePublisher.class, "failed", "insights",
+                                                         TimeUnit.SECONDS);
+    // how often an idle sender thread checks for shutdown, it's never interrupted so a send in progress isn't broken
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final BatchSender sender;
+    private final BlockingQueue<PendingInsight> queue;
+    private final int maxBatchSize;
+    private final long offerTimeoutMillis;
+    private final Thread senderThread;
+    private volatile boolean running = true;
+
+    /**
+     * Sends a batch of insight messages to the broker.
+     */
+    public interface BatchSender {
+
+        /**
+         * Sends the insights, in order.
+         *
+         * @param eventMaps the insights, already sanitized for JSON
+         * @throws Exception if the batch could not be sent
+         */
+        void send(List<Map<String, Object>> eventMaps) throws Exception;
+
+    }
+
+    /**
+     * Constructor.  The sender thread is started right away.
+     *
+     * @param sender             sends the batches
+     * @param capacity           the number of insights that can be queued
+     * @param maxBatchSize       the maximum number of insights passed to a single send
+     * @param offerTimeoutMillis how long {@link #publish} waits for room in a full queue (ms)
+     */
+    public InsightMessagePublisher(BatchSender sender, int capacity, int maxBatchSize, long offerTimeoutMillis) {
+        this.sender = sender;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "insight-publisher");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+    }
+
+    /**
+     * Queues an insight for sending.
+     *
+     * @param eventMap the insight, already sanitized for JSON and not modified afterwards
+     * @return false if the queue stayed full for the whole offer timeout, in which case the insight was not queued
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public boolean publish(Map<String, Object> eventMap) throws InterruptedException {
+        if (running && queue.offer(new PendingInsight(eventMap), offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            QUEUED.inc();
+            return true;
+        }
+        REJECTED.mark();
+        return false;
+    }
+
+    /**
+     * Returns the number of queued insights.
+     *
+     * @return the number of queued insights
+     */
+    public int pending() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting insights and waits for the queued ones to be sent.
+     *
+     * @param timeoutMillis how long to wait for the queue to drain (ms)
+     * @return true if every queued insight was sent
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        running = false;
+        senderThread.join(timeoutMillis);
+        return queue.isEmpty() && !senderThread.isAlive();
+    }
+
+    private void drain() {
+        List<PendingInsight> batch = new ArrayList<>(maxBatchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingInsight first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                }
+            } catch (InterruptedException e) {
+                logger.error("Insight publisher interrupted, " + queue.size() + " insight messages not sent");
+                return;
+            }
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            if (!batch.isEmpty()) {
+                send(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<PendingInsight> batch) {
+        List<Map<String, Object>> eventMaps = new ArrayList<>(batch.size());
+
+        for (PendingInsight insight : batch) {
+            eventMaps.add(insight.eventMap);
+        }
+        QUEUED.dec(batch.size());
+        BATCH_SIZE.update(batch.size());
+
+        long start = System.nanoTime();
+        try {
+            sender.send(eventMaps);
+        } catch (Exception e) {
+            // same as a failed synchronous send always was, the insights are lost
+            logger.error("Unable to send " + batch.size() + " insight messages: " + e.getMessage(), e);
+            FAILED.mark(batch.size());
+            return;
+        }
+
+        long now = System.nanoTime();
+        SEND_TIMER.update(now - start, TimeUnit.NANOSECONDS);
+        for (PendingInsight insight : batch) {
+            PUBLISH_TIMER.update(now - insight.queuedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static class PendingInsight {
+
+        private final Map<String, Object> eventMap;
+        private final long queuedAt = System.nanoTime();
+
+        private PendingInsight(Map<String, Object> eventMap) {
+            this.eventMap = eventMap;
+        }
+
+    }
+
+}
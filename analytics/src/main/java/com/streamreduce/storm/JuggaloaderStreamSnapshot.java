@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.Map;
+
+/**
+ * A stream's identity along with a copy of its {@link JuggaloaderStreamState}, used to checkpoint and restore the
+ * state held by a {@link JuggaloaderStreamStateStore}.  A null state means the stream was removed.
+ */
+public class JuggaloaderStreamSnapshot {
+
+    private final String accountId;
+    private final String metricName;
+    private final Map<String, String> metricCriteria;
+    private final JuggaloaderStreamState state;
+
+    public JuggaloaderStreamSnapshot(String accountId, String metricName, Map<String, String> metricCriteria,
+                                     JuggaloaderStreamState state) {
+        this.accountId = accountId;
+        this.metricName = metricName;
+        this.metricCriteria = metricCriteria;
+        this.state = state;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public Map<String, String> getMetricCriteria() {
+        return metricCriteria;
+    }
+
+    public JuggaloaderStreamState getState() {
+        return state;
+    }
+
+    public boolean isRemoved() {
+        return state == null;
+    }
+
+}
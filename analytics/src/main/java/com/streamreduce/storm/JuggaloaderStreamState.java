@@ -27,8 +27,39 @@ public class JuggaloaderStreamState {
     public float max; // the largest sample seen so far
     public long tsLastEmitted; // the last time a sample was emitted by this bolt (worker)
     public byte anomalyReset;
+    public float[] detectorState; // the anomaly detector's state for the stream, null until the detector needs it
+    public QuantileSketch sketch; // the samples since the last emitted one, null until a sample is sketched
 
     public JuggaloaderStreamState(float y, long ts) {
+        reset(y, ts);
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other the state to copy
+     */
+    public JuggaloaderStreamState(JuggaloaderStreamState other) {
+        this.n = other.n;
+        this.ylast = other.ylast;
+        this.tslast = other.tslast;
+        this.yAvgLast = other.yAvgLast;
+        this.yStdDevLast = other.yStdDevLast;
+        this.min = other.min;
+        this.max = other.max;
+        this.tsLastEmitted = other.tsLastEmitted;
+        this.anomalyReset = other.anomalyReset;
+        this.detectorState = other.detectorState != null ? other.detectorState.clone() : null;
+        this.sketch = other.sketch != null ? new QuantileSketch(other.sketch) : null;
+    }
+
+    /**
+     * (Re)initializes the state from the first sample of a stream.
+     *
+     * @param y  the first sample
+     * @param ts the timestamp of the first sample
+     */
+    public void reset(float y, long ts) {
         this.ylast = (float) 0.0;
         this.n = 1;
         this.tslast = ts - (long) 1;
@@ -38,6 +69,8 @@ public class JuggaloaderStreamState {
         this.max = y;
         this.tsLastEmitted = 0;
         this.anomalyReset = 0;
+        this.detectorState = null;
+        this.sketch = null;
     }
 
     @Override
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.streamreduce.storm.utils.MetricsUtils;
+import org.apache.log4j.Logger;
+import org.bson.BSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checkpoints the {@link JuggaloaderStreamStateStore} of a time-base bolt task to MongoDB and restores it when the
+ * task is prepared again, so a restarted topology doesn't have to relearn every stream's mean and standard deviation
+ * (and re-suppress anomalies for the first W samples).
+ * <p/>
+ * Checkpoints are incremental: only the streams changed since the previous checkpoint are written.  Each stream is
+ * stored with the partition it belongs to under the (metricAccount, metricName) fields grouping used by the topology,
+ * so a task restores only its own streams when the number of tasks hasn't changed, and filters the streams of its
+ * granularity when it has.
+ */
+public class JuggaloaderStreamStateCheckpointer {
+
+    private static final Logger logger = Logger.getLogger(JuggaloaderStreamStateCheckpointer.class);
+
+    private final MongoClient mongoClient;
+    private final long periodMillis;
+    private final int partition;
+    private final int numPartitions;
+    private final long intervalMillis;
+    private long lastCheckpoint;
+    // the writes drained from the store but not yet acknowledged by MongoDB, retried by the next checkpoint
+    private final Set<String> pendingRemovedIds = new LinkedHashSet<>();
+    private final Map<String, BasicDBObject> pendingStreamStates = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param mongoClient    the client used to read and write checkpoints
+     * @param periodMillis   the granularity of the time-base bolt
+     * @param partition      the index of the task within the time-base bolt
+     * @param numPartitions  the number of tasks of the time-base bolt
+     * @param intervalMillis the minimum time in between checkpoints
+     */
+    public JuggaloaderStreamStateCheckpointer(MongoClient mongoClient, long periodMillis, int partition,
+                                              int numPartitions, long intervalMillis) {
+        this.mongoClient = mongoClient;
+        this.periodMillis = periodMillis;
+        this.partition = partition;
+        this.numPartitions = numPartitions;
+        this.intervalMillis = intervalMillis;
+        this.lastCheckpoint = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the partition a stream is routed to by a fields grouping on (metricAccount, metricName), mirroring
+     * Storm's own <code>list.hashCode() mod numTasks</code>.
+     *
+     * @param accountId     the metric account
+     * @param metricName    the metric name
+     * @param numPartitions the number of tasks
+     * @return the partition
+     */
+    public static int partitionFor(String accountId, String metricName, int numPartitions) {
+        int hash = Arrays.asList(accountId, metricName).hashCode();
+        return ((hash % numPartitions) + numPartitions) % numPartitions;
+    }
+
+    /**
+     * Restores this task's checkpointed streams into the store.
+     *
+     * @param store the store to restore into
+     * @return the number of streams restored
+     */
+    public int restore(JuggaloaderStreamStateStore store) {
+        long start = System.currentTimeMillis();
+        List<BasicDBObject> streamStates = mongoClient.getStreamStates(periodMillis, partition, numPartitions);
+        List<BasicDBObject> relocated = new ArrayList<>();
+        boolean layoutChanged = streamStates.isEmpty();
+
+        if (layoutChanged) {
+            // The task layout may have changed since the last checkpoint, look at every stream of this granularity
+            streamStates = mongoClient.getStreamStates(periodMillis, null, numPartitions);
+        }
+
+        int restored = 0;
+        for (BasicDBObject streamState : streamStates) {
+            JuggaloaderStreamSnapshot snapshot = fromDBObject(streamState);
+            if (partitionFor(snapshot.getAccountId(), snapshot.getMetricName(), numPartitions) == partition) {
+                store.restore(snapshot);
+                restored++;
+                if (layoutChanged) {
+                    relocated.add(toDBObject(streamState.getString("_id"), snapshot));
+                }
+            }
+        }
+
+        // Rewrite streams found under a different task layout so the next restore finds them by partition
+        if (!relocated.isEmpty()) {
+            mongoClient.saveStreamStates(relocated);
+        }
+
+        logger.info("JuggaloaderTimeBase(" + periodMillis + ") partition " + partition + "/" + numPartitions +
+                            " restored " + restored + " streams in " + (System.currentTimeMillis() - start) + "ms");
+        return restored;
+    }
+
+    /**
+     * Checkpoints the store if the checkpoint interval has elapsed.
+     *
+     * @param store the store to checkpoint
+     * @param now   the current time
+     */
+    public void maybeCheckpoint(JuggaloaderStreamStateStore store, long now) {
+        if (now - lastCheckpoint >= intervalMillis) {
+            checkpoint(store);
+        }
+    }
+
+    /**
+     * Writes the streams changed since the last checkpoint and removes the streams deleted since then.  The writes
+     * of a checkpoint that fails are kept and retried by the next one.
+     *
+     * @param store the store to checkpoint
+     */
+    public void checkpoint(JuggaloaderStreamStateStore store) {
+        long start = System.currentTimeMillis();
+        List<String> removedIds;
+        List<BasicDBObject> streamStates;
+
+        lastCheckpoint = start;
+
+        try {
+            if (store.drainCleared()) {
+                // The changes drained below all happened after the clear
+                pendingStreamStates.clear();
+                for (BasicDBObject streamState : mongoClient.getStreamStates(periodMillis, null, numPartitions)) {
+                    if (partitionFor(streamState.getString("accountId"), streamState.getString("metricName"),
+                                     numPartitions) == partition) {
+                        pendingRemovedIds.add(streamState.getString("_id"));
+                    }
+                }
+            }
+
+            for (JuggaloaderStreamSnapshot snapshot : store.drainChanges()) {
+                String id = idFor(snapshot);
+                if (snapshot.isRemoved()) {
+                    pendingStreamStates.remove(id);
+                    pendingRemovedIds.add(id);
+                } else {
+                    // Removals are written first, a stream removed then recreated is saved again
+                    pendingStreamStates.put(id, toDBObject(id, snapshot));
+                }
+            }
+
+            removedIds = new ArrayList<>(pendingRemovedIds);
+            streamStates = new ArrayList<>(pendingStreamStates.values());
+            mongoClient.removeStreamStates(removedIds);
+            pendingRemovedIds.clear();
+            mongoClient.saveStreamStates(streamStates);
+            pendingStreamStates.clear();
+        } catch (Exception e) {
+            logger.error("JuggaloaderTimeBase(" + periodMillis + ") partition " + partition +
+                                 " failed to checkpoint " + pendingStreamStates.size() + " streams, retrying at " +
+                                 "the next checkpoint: " + e.getMessage(), e);
+            return;
+        }
+
+        logger.debug("JuggaloaderTimeBase(" + periodMillis + ") partition " + partition + " checkpointed " +
+                             streamStates.size() + " streams and removed " + removedIds.size() + " in " +
+                             (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private String idFor(JuggaloaderStreamSnapshot snapshot) {
+        return periodMillis + ":" + snapshot.getAccountId() + ":" +
+                MetricsUtils.createUniqueMetricName(snapshot.getMetricName(), snapshot.getMetricCriteria());
+    }
+
+    private BasicDBObject toDBObject(String id, JuggaloaderStreamSnapshot snapshot) {
+        JuggaloaderStreamState state = snapshot.getState();
+        BasicDBList detectorState = null;
+
+        if (state.detectorState != null) {
+            detectorState = new BasicDBList();
+            for (float value : state.detectorState) {
+                detectorState.add(value);
+            }
+        }
+
+        return new BasicDBObject("_id", id)
+                .append("period", periodMillis)
+                .append("partition", partition)
+                .append("numPartitions", numPartitions)
+                .append("accountId", snapshot.getAccountId())
+                .append("metricName", snapshot.getMetricName())
+                .append("metricCriteria", new BasicDBObject(snapshot.getMetricCriteria()))
+                .append("n", state.n)
+                .append("ylast", state.ylast)
+                .append("tslast", state.tslast)
+                .append("yAvgLast", state.yAvgLast)
+                .append("yStdDevLast", state.yStdDevLast)
+                .append("min", state.min)
+                .append("max", state.max)
+                .append("tsLastEmitted", state.tsLastEmitted)
+                .append("anomalyReset", (int) state.anomalyReset)
+                .append("detectorState", detectorState)
+                .append("sketch", state.sketch != null ? state.sketch.toBytes() : null);
+    }
+
+    private JuggaloaderStreamSnapshot fromDBObject(BasicDBObject streamState) {
+        Map<String, String> metricCriteria = new LinkedHashMap<>();
+        BSONObject criteria = (BSONObject) streamState.get("metricCriteria");
+
+        if (criteria != null) {
+            for (String key : criteria.keySet()) {
+                metricCriteria.put(key, String.valueOf(criteria.get(key)));
+            }
+        }
+
+        JuggaloaderStreamState state = new JuggaloaderStreamState(0.0f, 0);
+
+        state.n = streamState.getInt("n");
+        state.ylast = (float) streamState.getDouble("ylast");
+        state.tslast = streamState.getLong("tslast");
+        state.yAvgLast = (float) streamState.getDouble("yAvgLast");
+        state.yStdDevLast = (float) streamState.getDouble("yStdDevLast");
+        state.min = (float) streamState.getDouble("min");
+        state.max = (float) streamState.getDouble("max");
+        state.tsLastEmitted = streamState.getLong("tsLastEmitted");
+        state.anomalyReset = (byte) streamState.getInt("anomalyReset");
+
+        List<?> detectorState = (List<?>) streamState.get("detectorState");
+        if (detectorState != null) {
+            state.detectorState = new float[detectorState.size()];
+            for (int i = 0; i < state.detectorState.length; i++) {
+                state.detectorState[i] = ((Number) detectorState.get(i)).floatValue();
+            }
+        }
+
+        byte[] sketch = (byte[]) streamState.get("sketch");
+        if (sketch != null) {
+            state.sketch = QuantileSketch.fromBytes(sketch);
+        }
+
+        return new JuggaloaderStreamSnapshot(streamState.getString("accountId"), streamState.getString("metricName"),
+                                             metricCriteria, state);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage for the {@link JuggaloaderStreamState} of every stream seen by a time-base bolt.  A stream is identified by
+ * its account, metric name and metric criteria.
+ * <p/>
+ * Implementations are free to hand out a reusable {@link JuggaloaderStreamState} view from {@link #get} and
+ * {@link #create}, so callers must treat the returned state as valid only until the next call on the store and must
+ * call {@link #update(JuggaloaderStreamState)} once they are done mutating it.
+ */
+public interface JuggaloaderStreamStateStore {
+
+    /**
+     * Returns the state for the stream or null if the stream has not been seen yet.
+     *
+     * @param accountId      the metric account
+     * @param metricName     the metric name
+     * @param metricCriteria the metric criteria
+     * @return the stream state or null
+     */
+    JuggaloaderStreamState get(String accountId, String metricName, Map<String, String> metricCriteria);
+
+    /**
+     * Creates (or replaces) the state for the stream, initialized from its first sample.
+     *
+     * @param accountId      the metric account
+     * @param metricName     the metric name
+     * @param metricCriteria the metric criteria
+     * @param y              the first sample
+     * @param ts             the timestamp of the first sample
+     * @return the new stream state
+     */
+    JuggaloaderStreamState create(String accountId, String metricName, Map<String, String> metricCriteria,
+                                  float y, long ts);
+
+    /**
+     * Writes back the state last returned by {@link #get} or {@link #create}.
+     *
+     * @param state the mutated stream state
+     */
+    void update(JuggaloaderStreamState state);
+
+    /**
+     * Removes the state for the stream, if present.
+     *
+     * @param accountId      the metric account
+     * @param metricName     the metric name
+     * @param metricCriteria the metric criteria
+     */
+    void remove(String accountId, String metricName, Map<String, String> metricCriteria);
+
+    /**
+     * Removes the state for all streams.
+     */
+    void clear();
+
+    /**
+     * Returns the number of streams with state.
+     *
+     * @return the number of streams
+     */
+    int size();
+
+    /**
+     * Puts previously checkpointed state for a stream into the store without tracking it as a change.
+     *
+     * @param snapshot the checkpointed stream
+     */
+    void restore(JuggaloaderStreamSnapshot snapshot);
+
+    /**
+     * Returns a snapshot of every stream created, updated or removed since the last call and resets the change
+     * tracking.  Removed streams are returned with a null state.
+     *
+     * @return the changed streams
+     */
+    List<JuggaloaderStreamSnapshot> drainChanges();
+
+    /**
+     * Returns whether {@link #clear()} was called since the last call and resets the flag.  Changes returned by
+     * {@link #drainChanges()} all happened after the clear.
+     *
+     * @return true if the store was cleared
+     */
+    boolean drainCleared();
+
+}
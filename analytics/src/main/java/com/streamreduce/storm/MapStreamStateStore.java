@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link JuggaloaderStreamStateStore} backed by a plain {@link Map} of {@link JuggaloaderStreamState} objects keyed by
+ * <code>accountId + metricName + metricCriteria.toString()</code>.  This is the original Juggaloader behavior.
+ */
+public class MapStreamStateStore implements JuggaloaderStreamStateStore {
+
+    private final Map<String, JuggaloaderStreamState> states;
+    private final Map<String, JuggaloaderStreamSnapshot> changes = new HashMap<>();
+    private boolean cleared;
+
+    // The stream last returned by get() or create(), remembered so update() can track it as changed
+    private String lastKey;
+    private String lastAccountId;
+    private String lastMetricName;
+    private Map<String, String> lastMetricCriteria;
+
+    public MapStreamStateStore() {
+        this(new HashMap<String, JuggaloaderStreamState>());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param states the map to store the stream states in
+     */
+    public MapStreamStateStore(Map<String, JuggaloaderStreamState> states) {
+        this.states = states;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JuggaloaderStreamState get(String accountId, String metricName, Map<String, String> metricCriteria) {
+        String key = key(accountId, metricName, metricCriteria);
+        JuggaloaderStreamState state = states.get(key);
+
+        if (state != null) {
+            remember(key, accountId, metricName, metricCriteria);
+        }
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JuggaloaderStreamState create(String accountId, String metricName, Map<String, String> metricCriteria,
+                                         float y, long ts) {
+        String key = key(accountId, metricName, metricCriteria);
+        JuggaloaderStreamState state = new JuggaloaderStreamState(y, ts);
+
+        states.put(key, state);
+        remember(key, accountId, metricName, metricCriteria);
+        return state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void update(JuggaloaderStreamState state) {
+        // states are live objects in the map so there is nothing to write back, just track the change
+        if (lastKey != null && states.get(lastKey) == state) {
+            JuggaloaderStreamSnapshot change = changes.get(lastKey);
+            if (change == null || change.isRemoved()) {
+                changes.put(lastKey, new JuggaloaderStreamSnapshot(lastAccountId, lastMetricName,
+                                                                   new LinkedHashMap<>(lastMetricCriteria), state));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(String accountId, String metricName, Map<String, String> metricCriteria) {
+        String key = key(accountId, metricName, metricCriteria);
+
+        if (states.remove(key) != null) {
+            changes.put(key, new JuggaloaderStreamSnapshot(accountId, metricName,
+                                                           new LinkedHashMap<>(metricCriteria), null));
+        }
+        if (key.equals(lastKey)) {
+            lastKey = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        states.clear();
+        changes.clear();
+        cleared = true;
+        lastKey = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return states.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void restore(JuggaloaderStreamSnapshot snapshot) {
+        states.put(key(snapshot.getAccountId(), snapshot.getMetricName(), snapshot.getMetricCriteria()),
+                   new JuggaloaderStreamState(snapshot.getState()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<JuggaloaderStreamSnapshot> drainChanges() {
+        List<JuggaloaderStreamSnapshot> drained = new ArrayList<>(changes.size());
+
+        for (JuggaloaderStreamSnapshot change : changes.values()) {
+            drained.add(change.isRemoved() ? change : new JuggaloaderStreamSnapshot(
+                    change.getAccountId(), change.getMetricName(), change.getMetricCriteria(),
+                    new JuggaloaderStreamState(change.getState())));
+        }
+        changes.clear();
+        return drained;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean drainCleared() {
+        boolean wasCleared = cleared;
+        cleared = false;
+        return wasCleared;
+    }
+
+    private void remember(String key, String accountId, String metricName, Map<String, String> metricCriteria) {
+        lastKey = key;
+        lastAccountId = accountId;
+        lastMetricName = metricName;
+        lastMetricCriteria = metricCriteria;
+    }
+
+    private static String key(String accountId, String metricName, Map<String, String> metricCriteria) {
+        return accountId + metricName + metricCriteria.toString();
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * The criteria of a metric as carried in Juggaloader tuples.  Keys and values are interned, so the criteria of the
+ * many tuples of a stream share their strings, and the map is serialized between workers by
+ * {@link com.streamreduce.storm.serialization.MetricCriteriaMapSerializer}, which writes the well-known
+ * {@link com.streamreduce.analytics.MetricCriteria} keys as a single byte.
+ * <p/>
+ * It is a {@link LinkedHashMap} so consumers that expect a plain (Hash)Map of criteria keep working.
+ */
+public class MetricCriteriaMap extends LinkedHashMap<String, String> {
+
+    private static final long serialVersionUID = -6195346384542164329L;
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    public MetricCriteriaMap() {
+        super();
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param criteria the criteria to copy, keys are converted with toString()
+     */
+    public MetricCriteriaMap(Map<?, String> criteria) {
+        super(Math.max(16, (int) (criteria.size() / 0.75f) + 1));
+        for (Map.Entry<?, String> entry : criteria.entrySet()) {
+            put(entry.getKey().toString(), entry.getValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String put(String key, String value) {
+        return super.put(intern(key), intern(value));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putAll(Map<? extends String, ? extends String> criteria) {
+        for (Map.Entry<? extends String, ? extends String> entry : criteria.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static String intern(String value) {
+        return value != null ? INTERNER.intern(value) : null;
+    }
+
+}
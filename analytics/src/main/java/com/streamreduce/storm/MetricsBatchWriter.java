@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.WriteConcern;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Timer;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers metrics grouped by their account-specific collection and writes each group at once, one upsert per time
+ * bucket instead of one write per metric, see {@link MongoClient#writeMetrics}.  Callers add metrics and
+ * {@link #flush()} when {@link #add} reports the batch is full or when their own flush interval elapses.
+ * <p/>
+ * Flush latency and batch sizes are reported through the metrics registry.
+ * <p/>
+ * A collection prefix redirects the metrics to shadow collections, as a backfill does to build the metrics of a
+ * time range aside before merging them in, see {@link MongoClient#mergeShadowMetricCollections}.
+ */
+public class MetricsBatchWriter {
+
+    private static final Logger logger = Logger.getLogger(MetricsBatchWriter.class);
+    private static final Timer FLUSH_TIMER = Metrics.newTimer(MetricsBatchWriter.class, "flush-latency",
+                                                              TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    private static final Histogram BATCH_SIZE = Metrics.newHistogram(MetricsBatchWriter.class, "batch-size", false);
+    private static final Histogram COLLECTION_BATCH_SIZE = Metrics.newHistogram(MetricsBatchWriter.class,
+                                                                                "collection-batch-size", false);
+
+    private final MongoClient mongoClient;
+    private final int maxBatchSize;
+    private final WriteConcern writeConcern;
+    private final String collectionPrefix;
+    private final Map<String, List<BasicDBObject>> pending = new LinkedHashMap<>();
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param mongoClient  the client used to write the metrics
+     * @param maxBatchSize the number of buffered metrics at which the batch is full
+     * @param writeConcern the write concern to upsert with
+     */
+    public MetricsBatchWriter(MongoClient mongoClient, int maxBatchSize, WriteConcern writeConcern) {
+        this(mongoClient, maxBatchSize, writeConcern, "");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param mongoClient      the client used to write the metrics
+     * @param maxBatchSize     the number of buffered metrics at which the batch is full
+     * @param writeConcern     the write concern to upsert with
+     * @param collectionPrefix the prefix of the collections written to, empty for the live collections
+     */
+    public MetricsBatchWriter(MongoClient mongoClient, int maxBatchSize, WriteConcern writeConcern,
+                              String collectionPrefix) {
+        this.mongoClient = mongoClient;
+        this.maxBatchSize = maxBatchSize;
+        this.writeConcern = writeConcern;
+        this.collectionPrefix = collectionPrefix;
+    }
+
+    /**
+     * Buffers a metric for the given account.
+     *
+     * @param metricAccount the metric account
+     * @param metric        the metric, see {@link MongoClient#createMetric}
+     * @return true if the batch is full and should be flushed
+     */
+    public boolean add(String metricAccount, BasicDBObject metric) {
+        String collectionName = getCollectionName(metricAccount);
+        List<BasicDBObject> metrics = pending.get(collectionName);
+
+        if (metrics == null) {
+            metrics = new ArrayList<>();
+            pending.put(collectionName, metrics);
+        }
+        metrics.add(metric);
+        size++;
+
+        return size >= maxBatchSize;
+    }
+
+    /**
+     * Returns the name of the collection the metrics of an account are written to.
+     *
+     * @param metricAccount the metric account
+     * @return the collection name, {@link MongoClient#getMetricCollectionName(String)} behind the collection prefix
+     */
+    public String getCollectionName(String metricAccount) {
+        return collectionPrefix + MongoClient.getMetricCollectionName(metricAccount);
+    }
+
+    /**
+     * Returns the number of buffered metrics.
+     *
+     * @return the number of buffered metrics
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Writes all buffered metrics, collection by collection.  A collection whose write fails is logged and its
+     * metrics are dropped, same as a failed single insert always was.
+     *
+     * @return the metrics written, keyed by the collection they were written to
+     */
+    public Map<String, List<BasicDBObject>> flush() {
+        if (size == 0) {
+            return new LinkedHashMap<>();
+        }
+
+        long start = System.nanoTime();
+        Map<String, List<BasicDBObject>> written = new LinkedHashMap<>();
+
+        for (Map.Entry<String, List<BasicDBObject>> entry : pending.entrySet()) {
+            String collectionName = entry.getKey();
+            List<BasicDBObject> metrics = entry.getValue();
+
+            try {
+                mongoClient.writeMetrics(collectionName, metrics, writeConcern);
+                written.put(collectionName, metrics);
+            } catch (Exception e) {
+                logger.error("Unable to write " + metrics.size() + " metrics to " + collectionName + ": " +
+                                     e.getMessage(), e);
+            }
+            COLLECTION_BATCH_SIZE.update(metrics.size());
+        }
+
+        FLUSH_TIMER.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        BATCH_SIZE.update(size);
+
+        pending.clear();
+        size = 0;
+
+        return written;
+    }
+
+}
@@ -19,13 +19,16 @@ package com.streamreduce.storm;
 import com.mongodb.*;
 import com.streamreduce.Constants;
 import com.streamreduce.core.metric.SobaMetric;
+import com.streamreduce.util.MetricBucketUtils;
 import com.streamreduce.util.PropertiesOverrideLoader;
 import org.apache.log4j.Logger;
 import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
 import org.bson.types.ObjectId;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -41,6 +44,8 @@ public class MongoClient {
     public static final String BUSINESSDB_CONFIG_ID = "business";
     public static final String MESSAGEDB_CONFIG_ID = "message";
     public static final Logger logger = Logger.getLogger(MongoClient.class);
+    public static final String STREAM_STATE_COLLECTION_NAME = "juggaloaderStreamState";
+    public static final String BACKFILL_PROGRESS_COLLECTION_NAME = "backfillProgress";
 
     private final Map<String, DB> dbMap = new HashMap<>();
     private String host;
@@ -167,6 +172,40 @@ public class MongoClient {
     }
 
 
+    /**
+     * Returns the distinct account ids of the events in the event stream within a time range.
+     *
+     * @param from  the timestamp (inclusive) of the first event
+     * @param until the timestamp (exclusive) of the last event
+     * @return the account ids, a null element if some events have no account
+     */
+    public List<Object> getEventAccountIds(long from, long until) {
+        DB connectionsDb = getDB("nodeablemsgdb");
+        BasicDBObject query = new BasicDBObject("timestamp", new BasicDBObject("$gte", from).append("$lt", until));
+
+        return new ArrayList<Object>(connectionsDb.getCollection("eventStream").distinct("accountId", query));
+    }
+
+    /**
+     * Returns a cursor over the events of the given accounts within a time range, in timestamp order.  Unlike
+     * {@link #getEvents(Date, Date)} the events are not read into memory, the cursor fetches them in batches.
+     *
+     * @param from       the timestamp (inclusive) of the first event
+     * @param until      the timestamp (exclusive) of the last event
+     * @param accountIds the account ids of the events
+     * @param batchSize  the number of events fetched per round trip
+     * @return the cursor, to be closed by the caller
+     */
+    public DBCursor getEvents(long from, long until, List<Object> accountIds, int batchSize) {
+        DB connectionsDb = getDB("nodeablemsgdb");
+        BasicDBObject query = new BasicDBObject("timestamp", new BasicDBObject("$gte", from).append("$lt", until))
+                .append("accountId", new BasicDBObject("$in", accountIds));
+
+        return connectionsDb.getCollection("eventStream").find(query)
+                            .sort(new BasicDBObject("timestamp", 1))
+                            .batchSize(batchSize);
+    }
+
     /**
      * Returns the event with the given id.
      *
@@ -252,15 +291,100 @@ public class MongoClient {
         DBCollection eventCollection = connectionsDb.getCollection("spoutLastProcessedDate");
         BasicDBObject query = new BasicDBObject();
         query.put("spoutName", spoutName);
-        BasicDBObject update = new BasicDBObject();
-        update.put("spoutName", spoutName);
-        update.put("lastProcessedEventDate", lastProcessedEventDate);
+        // $set so the resume token written by updateResumeToken is kept
+        BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("lastProcessedEventDate",
+                                                                           lastProcessedEventDate));
         eventCollection.findAndModify(query, null, null, false, update, false, true);
     }
 
     /**
-     * Takes the information passed in and creates a {@link BasicDBObject} and writes it to the appropriate
-     * account-specific inbox.
+     * Reads the oplog resume token of a tailing spout.
+     *
+     * @param spoutName name of the spout
+     * @return the oplog timestamp of the last event the spout emitted or null if there is none
+     */
+    public BSONTimestamp readResumeToken(String spoutName) {
+        DB connectionsDb = getDB("nodeablemsgdb");
+        DBCollection eventCollection = connectionsDb.getCollection("spoutLastProcessedDate");
+        DBObject obj = eventCollection.findOne(new BasicDBObject("spoutName", spoutName));
+
+        return obj != null ? (BSONTimestamp) obj.get("resumeToken") : null;
+    }
+
+    /**
+     * Updates the oplog resume token of a tailing spout.
+     *
+     * @param spoutName   name of the spout
+     * @param resumeToken the oplog timestamp of the last event the spout emitted
+     */
+    public void updateResumeToken(String spoutName, BSONTimestamp resumeToken) {
+        DB connectionsDb = getDB("nodeablemsgdb");
+        DBCollection eventCollection = connectionsDb.getCollection("spoutLastProcessedDate");
+
+        eventCollection.update(new BasicDBObject("spoutName", spoutName),
+                               new BasicDBObject("$set", new BasicDBObject("resumeToken", resumeToken)), true, false);
+    }
+
+    /**
+     * Returns a tailable cursor over the oplog entries of events inserted into the event stream after the given
+     * oplog timestamp.  The cursor blocks for a while waiting for new entries instead of ending, and requires the
+     * database to run as a replica set.
+     *
+     * @param since the oplog timestamp (exclusive) to tail from
+     * @return the cursor, each entry holds the inserted event under "o" and its oplog timestamp under "ts"
+     */
+    public DBCursor tailEvents(BSONTimestamp since) {
+        DB localDb = getDB("local");
+        BasicDBObject query = new BasicDBObject("ts", new BasicDBObject("$gt", since))
+                .append("ns", "nodeablemsgdb.eventStream")
+                .append("op", "i");
+
+        return localDb.getCollection("oplog.rs").find(query)
+                      .addOption(Bytes.QUERYOPTION_TAILABLE)
+                      .addOption(Bytes.QUERYOPTION_AWAITDATA)
+                      .addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+    }
+
+    /**
+     * Returns the oplog timestamp of the most recent write to the database.
+     *
+     * @return the timestamp or null if the oplog is empty
+     */
+    public BSONTimestamp getLatestOplogTimestamp() {
+        DB localDb = getDB("local");
+        DBCursor cursor = localDb.getCollection("oplog.rs").find()
+                                 .sort(new BasicDBObject("$natural", -1))
+                                 .limit(1);
+
+        try {
+            return cursor.hasNext() ? (BSONTimestamp) cursor.next().get("ts") : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the oplog timestamp of the oldest write still in the oplog, tailing from an earlier timestamp would
+     * silently skip the writes the oplog has since rolled over.
+     *
+     * @return the timestamp or null if the oplog is empty
+     */
+    public BSONTimestamp getOldestOplogTimestamp() {
+        DB localDb = getDB("local");
+        DBCursor cursor = localDb.getCollection("oplog.rs").find()
+                                 .sort(new BasicDBObject("$natural", 1))
+                                 .limit(1);
+
+        try {
+            return cursor.hasNext() ? (BSONTimestamp) cursor.next().get("ts") : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Takes the information passed in and creates a {@link BasicDBObject} and writes it to its bucket in the
+     * appropriate account-specific inbox, see {@link #writeMetrics(String, List, WriteConcern)}.
      *
      * @param metricAccount     the metric account
      * @param metricName        the metric name
@@ -274,6 +398,8 @@ public class MongoClient {
      * @param metricDIFF        the metric diff
      * @param metricMIN         the metric minimum value seen
      * @param metricMAX         the metric maximum value seen
+     * @param metricIsAnomaly   whether the metric is an anomaly
+     * @param metricQuantiles   the quantiles of the metric's period by field name (p50 etc.), or null
      * @return Map containing a single entry where the key is the collection the metric was created and the value
      *         being the newly created {@link BasicDBObject}
      */
@@ -281,10 +407,252 @@ public class MongoClient {
                                                   Long metricTimestamp, Float metricValue, Long metricGranularity,
                                                   Map<String, String> metricCriteria,
                                                   Float metricAVGY, Float metricSTDDEV, Float metricDIFF,
-                                                  Float metricMIN, Float metricMAX, Boolean metricIsAnomaly) {
+                                                  Float metricMIN, Float metricMAX, Boolean metricIsAnomaly,
+                                                  Map<String, Float> metricQuantiles) {
         DB metricsDB = getDB("nodeablemsgdb");
-        String collectionName = Constants.METRIC_COLLECTION_PREFIX + metricAccount;
+        String collectionName = getMetricCollectionName(metricAccount);
         DBCollection metricsCollection = metricsDB.getCollection(collectionName);
+        BasicDBObject metric = createMetric(metricName, metricType, metricTimestamp, metricValue, metricGranularity,
+                                           metricCriteria, metricAVGY, metricSTDDEV, metricDIFF, metricMIN,
+                                           metricMAX, metricIsAnomaly, metricQuantiles);
+
+        writeMetrics(collectionName, Collections.singletonList(metric), metricsCollection.getWriteConcern());
+
+        Map<String, BasicDBObject> result = new HashMap<>();
+
+        result.put(collectionName, metric);
+
+        return result;
+    }
+
+    /**
+     * Writes a batch of metrics to a single account-specific collection, pushing them into the time buckets of their
+     * streams with one upsert per bucket, see {@link MetricBucketUtils}.  Each metric's <code>_id</code> is set to the
+     * id of the bucket it was written to.  A failed upsert leaves the buckets upserted before it written.
+     *
+     * @param collectionName the collection to write to, see {@link #getMetricCollectionName(String)}
+     * @param metrics        the metrics, see {@link #createMetric}
+     * @param writeConcern   the write concern to upsert with
+     */
+    public void writeMetrics(String collectionName, List<BasicDBObject> metrics, WriteConcern writeConcern) {
+        if (metrics.isEmpty()) {
+            return;
+        }
+
+        DB metricsDB = getDB("nodeablemsgdb");
+        DBCollection metricsCollection = metricsDB.getCollection(collectionName);
+
+        // the driver remembers the indexes it ensured, so this only reaches the server once per collection
+        metricsCollection.ensureIndex(MetricBucketUtils.getBucketIndex());
+        for (Map.Entry<String, DBObject> bucketUpdate : MetricBucketUtils.createBucketUpdates(metrics).entrySet()) {
+            metricsCollection.update(new BasicDBObject("_id", bucketUpdate.getKey()), bucketUpdate.getValue(), true,
+                                     false, writeConcern);
+        }
+        for (BasicDBObject metric : metrics) {
+            metric.put("_id", MetricBucketUtils.getBucketId(metric));
+        }
+    }
+
+    /**
+     * Records the progress of a backfill partition, see {@link com.streamreduce.storm.spouts.BackfillEventSpout}.
+     *
+     * @param runId         the backfill run id
+     * @param partition     the partition (task index)
+     * @param numPartitions the number of partitions
+     * @param from          the timestamp (inclusive) of the first event of the run
+     * @param until         the timestamp (exclusive) of the last event of the run
+     * @param lastTimestamp the timestamp of the last event emitted, -1 if none
+     * @param emitted       the number of events emitted
+     * @param failed        the number of events whose tuple tree failed or timed out
+     * @param done          whether every event of the partition was emitted and acked or failed
+     */
+    public void updateBackfillProgress(String runId, int partition, int numPartitions, long from, long until,
+                                       long lastTimestamp, long emitted, long failed, boolean done) {
+        DB connectionsDb = getDB("nodeablemsgdb");
+        DBCollection progressCollection = connectionsDb.getCollection(BACKFILL_PROGRESS_COLLECTION_NAME);
+        BasicDBObject progress = new BasicDBObject("_id", runId + "_" + partition)
+                .append("runId", runId)
+                .append("partition", partition)
+                .append("numPartitions", numPartitions)
+                .append("from", from)
+                .append("until", until)
+                .append("lastTimestamp", lastTimestamp)
+                .append("emitted", emitted)
+                .append("failed", failed)
+                .append("done", done);
+
+        progressCollection.update(new BasicDBObject("_id", progress.get("_id")), progress, true, false);
+    }
+
+    /**
+     * Returns the progress of each partition of a backfill run that reported any.
+     *
+     * @param runId the backfill run id
+     * @return the progress documents, see {@link #updateBackfillProgress}
+     */
+    public List<BasicDBObject> getBackfillProgress(String runId) {
+        DB connectionsDb = getDB("nodeablemsgdb");
+        DBCollection progressCollection = connectionsDb.getCollection(BACKFILL_PROGRESS_COLLECTION_NAME);
+
+        return asList(progressCollection.find(new BasicDBObject("runId", runId)));
+    }
+
+    /**
+     * Returns the names of the shadow metric collections written with the given prefix, see
+     * {@link MetricsBatchWriter#getCollectionName(String)}.
+     *
+     * @param collectionPrefix the prefix of the shadow collections
+     * @return the collection names
+     */
+    public List<String> getShadowMetricCollectionNames(String collectionPrefix) {
+        DB metricsDB = getDB("nodeablemsgdb");
+        List<String> names = new ArrayList<>();
+
+        for (String name : metricsDB.getCollectionNames()) {
+            if (name.startsWith(collectionPrefix + Constants.METRIC_COLLECTION_PREFIX)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Merges the shadow metric collections written with the given prefix into the live ones over the backfilled time
+     * range only.  The backfill starts from empty stream states, so it doesn't emit the first sample of a coarse
+     * stream and emits none at all for a period it didn't cover whole: the live samples of a stream are only
+     * replaced between the first and the last sample the backfill wrote for it, and only within the buckets it
+     * wrote, the other live buckets and samples are kept.  Each live bucket is replaced in a single update,
+     * conditional on its sample count so that samples pushed into it meanwhile are merged again rather than lost,
+     * and the shadow buckets without a live bucket are upserted.  The shadow collection of an account is dropped
+     * once merged, so a merge that failed part way can be rerun.  Accounts are merged one at a time, not all at once.
+     *
+     * @param collectionPrefix the prefix of the shadow collections
+     * @param from             the timestamp (inclusive) of the first backfilled event
+     * @param until            the timestamp (exclusive) of the last backfilled event
+     * @return the names of the live collections merged into
+     */
+    public List<String> mergeShadowMetricCollections(String collectionPrefix, long from, long until) {
+        DB metricsDB = getDB("nodeablemsgdb");
+        List<String> merged = new ArrayList<>();
+
+        for (String shadowName : getShadowMetricCollectionNames(collectionPrefix)) {
+            String liveName = shadowName.substring(collectionPrefix.length());
+            DBCollection shadowCollection = metricsDB.getCollection(shadowName);
+            DBCollection liveCollection = metricsDB.getCollection(liveName);
+            Map<String, long[]> sampleSpans = MetricBucketUtils.getSampleSpans(shadowCollection.find(), from,
+                                                                               until - 1);
+
+            // Samples written before buckets are replaced by the buckets of the shadow collection
+            DBCursor legacySamples = liveCollection.find(
+                    new BasicDBObject(MetricBucketUtils.SAMPLES, new BasicDBObject("$exists", false))
+                            .append(MetricBucketUtils.METRIC_TIMESTAMP,
+                                    new BasicDBObject("$gte", from).append("$lt", until)));
+            while (legacySamples.hasNext()) {
+                DBObject sample = legacySamples.next();
+                long[] span = sampleSpans.get(MetricBucketUtils.getStreamId(sample));
+                long ts = ((Number) sample.get(MetricBucketUtils.METRIC_TIMESTAMP)).longValue();
+
+                if (span != null && ts >= span[0] && ts <= span[1]) {
+                    liveCollection.remove(new BasicDBObject("_id", sample.get("_id")), WriteConcern.SAFE);
+                }
+            }
+
+            DBCursor shadowBuckets = shadowCollection.find();
+            while (shadowBuckets.hasNext()) {
+                DBObject shadowBucket = shadowBuckets.next();
+                List<DBObject> shadowSamples = MetricBucketUtils.unpackBucket(shadowBucket, from, until - 1);
+
+                if (!shadowSamples.isEmpty()) {
+                    long[] span = sampleSpans.get(MetricBucketUtils.getStreamId(shadowBucket));
+
+                    mergeShadowBucket(liveCollection, liveName, (String) shadowBucket.get("_id"), shadowSamples,
+                                      span[0], span[1]);
+                }
+            }
+
+            shadowCollection.drop();
+            merged.add(liveName);
+            logger.info("Merged " + shadowName + " into " + liveName + " from " + from + " until " + until);
+        }
+        return merged;
+    }
+
+    /**
+     * Replaces the samples of a live bucket between the first and the last sample the backfill wrote for its stream
+     * by those of its shadow bucket, or upserts the shadow samples if there is no live bucket.
+     *
+     * @param liveCollection the live collection
+     * @param liveName       the name of the live collection
+     * @param bucketId       the bucket id
+     * @param shadowSamples  the samples of the shadow bucket
+     * @param firstSample    the timestamp of the first sample the backfill wrote for the stream
+     * @param lastSample     the timestamp of the last sample the backfill wrote for the stream
+     */
+    private void mergeShadowBucket(DBCollection liveCollection, String liveName, String bucketId,
+                                   List<DBObject> shadowSamples, long firstSample, long lastSample) {
+        while (true) {
+            DBObject liveBucket = liveCollection.findOne(new BasicDBObject("_id", bucketId));
+
+            if (liveBucket == null) {
+                List<BasicDBObject> newSamples = new ArrayList<>();
+
+                for (DBObject sample : shadowSamples) {
+                    newSamples.add((BasicDBObject) sample);
+                }
+                writeMetrics(liveName, newSamples, WriteConcern.SAFE);
+                return;
+            }
+
+            List<DBObject> samples = MetricBucketUtils.replaceSamples(liveBucket, shadowSamples, firstSample,
+                                                                      lastSample);
+            BasicDBObject unchanged = new BasicDBObject("_id", bucketId)
+                    .append(MetricBucketUtils.SAMPLE_COUNT, liveBucket.get(MetricBucketUtils.SAMPLE_COUNT));
+            WriteResult result = liveCollection.update(unchanged, MetricBucketUtils.createBucket(samples), false,
+                                                       false, WriteConcern.SAFE);
+
+            if (result.getN() > 0) {
+                return;
+            }
+            // samples were pushed into the bucket since it was read, merge them too
+        }
+    }
+
+    /**
+     * Drops the shadow metric collections written with the given prefix, to rerun a failed backfill.
+     *
+     * @param collectionPrefix the prefix of the shadow collections
+     */
+    public void dropShadowMetricCollections(String collectionPrefix) {
+        DB metricsDB = getDB("nodeablemsgdb");
+
+        for (String shadowName : getShadowMetricCollectionNames(collectionPrefix)) {
+            metricsDB.getCollection(shadowName).drop();
+        }
+    }
+
+    /**
+     * Returns the name of the collection the metrics of an account are written to.
+     *
+     * @param metricAccount the metric account
+     * @return the collection name
+     */
+    public static String getMetricCollectionName(String metricAccount) {
+        return Constants.METRIC_COLLECTION_PREFIX + metricAccount;
+    }
+
+    /**
+     * Creates the {@link BasicDBObject} representation of a metric written by
+     * {@link #writeMetric(String, String, String, Long, Float, Long, Map, Float, Float, Float, Float, Float, Boolean,
+     * Map)}.  The quantiles, if any, are kept in a <code>metricQuantiles</code> sub-document.
+     *
+     * @return the metric
+     */
+    public static BasicDBObject createMetric(String metricName, String metricType, Long metricTimestamp,
+                                             Float metricValue, Long metricGranularity,
+                                             Map<String, String> metricCriteria,
+                                             Float metricAVGY, Float metricSTDDEV, Float metricDIFF,
+                                             Float metricMIN, Float metricMAX, Boolean metricIsAnomaly,
+                                             Map<String, Float> metricQuantiles) {
         BasicDBObject metric = new BasicDBObject();
 
         metric.put("metricName", metricName);
@@ -299,14 +667,11 @@ public class MongoClient {
         metric.put("metricMIN", metricMIN);
         metric.put("metricMAX", metricMAX);
         metric.put("metricIsAnomaly", metricIsAnomaly);
+        if (metricQuantiles != null && !metricQuantiles.isEmpty()) {
+            metric.put("metricQuantiles", new BasicDBObject(metricQuantiles));
+        }
 
-        metricsCollection.insert(metric);
-
-        Map<String, BasicDBObject> result = new HashMap<>();
-
-        result.put(collectionName, metric);
-
-        return result;
+        return metric;
     }
 
     /**
@@ -350,7 +715,7 @@ public class MongoClient {
     }
 
     /**
-     * Returns the metrics for a given account.
+     * Returns the metrics for a given account, unpacked from their buckets.
      *
      * @param metricAccount the metric account
      * @return the metrics
@@ -359,8 +724,18 @@ public class MongoClient {
         DB metricsDB = getDB("nodeablemsgdb");
         String collectionName = Constants.METRIC_COLLECTION_PREFIX + metricAccount;
         DBCollection metricsCollection = metricsDB.getCollection(collectionName);
+        List<BasicDBObject> metrics = new ArrayList<>();
 
-        return asList(metricsCollection.find());
+        for (BasicDBObject document : asList(metricsCollection.find())) {
+            if (MetricBucketUtils.isBucket(document)) {
+                for (DBObject metric : MetricBucketUtils.unpackBucket(document, null, null)) {
+                    metrics.add((BasicDBObject) metric);
+                }
+            } else {
+                metrics.add(document);
+            }
+        }
+        return metrics;
     }
 
     /**
@@ -381,16 +756,81 @@ public class MongoClient {
         query.put("metricName", metricName);
         query.put("metricGranularity", metricGranularity);
 
+        BasicDBObject bucketQuery = new BasicDBObject(query);
+        MetricBucketUtils.addBucketRange(bucketQuery, null, null);
+        List<DBObject> latest = MetricBucketUtils.getLatestSamples(
+                metricsCollection.find(bucketQuery).sort(new BasicDBObject(MetricBucketUtils.BUCKET_END, -1)),
+                null, null, 2);
+
+        // metrics written before buckets
+        query.put("metricTimestamp", new BasicDBObject("$exists", true));
+        latest.addAll(metricsCollection.find(query).sort(new BasicDBObject("metricTimestamp", -1)).limit(2).toArray());
+        MetricBucketUtils.sortLatestFirst(latest);
+
         List<Map<String, Object>> list = new ArrayList<>();
-        DBCursor cursor = metricsCollection.find(query).sort(new BasicDBObject("metricTimestamp", -1)).limit(2);
-        while (cursor.hasNext()) {
-            DBObject obj = cursor.next();
+        for (DBObject obj : latest.subList(0, Math.min(2, latest.size()))) {
             mapMongoToPlainJavaTypes(obj);
             list.add(obj.toMap());
         }
         return list;
     }
 
+    /**
+     * Returns the checkpointed Juggaloader stream states for a time-base bolt's granularity.  When a partition is
+     * given, only the states checkpointed by the task owning that partition (with the same number of partitions)
+     * are returned.
+     *
+     * @param periodMillis  the granularity of the time-base bolt
+     * @param partition     the partition (task index) to return states for, or null for all partitions
+     * @param numPartitions the number of partitions (tasks) the states were checkpointed with
+     * @return the checkpointed stream states
+     */
+    public List<BasicDBObject> getStreamStates(long periodMillis, Integer partition, int numPartitions) {
+        DB metricsDB = getDB("nodeablemsgdb");
+        DBCollection streamStateCollection = metricsDB.getCollection(STREAM_STATE_COLLECTION_NAME);
+        BasicDBObject query = new BasicDBObject("period", periodMillis);
+
+        streamStateCollection.ensureIndex(new BasicDBObject("period", 1)
+                                                  .append("numPartitions", 1)
+                                                  .append("partition", 1));
+        if (partition != null) {
+            query.put("numPartitions", numPartitions);
+            query.put("partition", partition);
+        }
+
+        return asList(streamStateCollection.find(query));
+    }
+
+    /**
+     * Writes checkpointed Juggaloader stream states, replacing any previous checkpoint with the same _id.
+     *
+     * @param streamStates the stream states to write
+     */
+    public void saveStreamStates(List<BasicDBObject> streamStates) {
+        DB metricsDB = getDB("nodeablemsgdb");
+        DBCollection streamStateCollection = metricsDB.getCollection(STREAM_STATE_COLLECTION_NAME);
+
+        for (BasicDBObject streamState : streamStates) {
+            streamStateCollection.update(new BasicDBObject("_id", streamState.get("_id")), streamState, true, false);
+        }
+    }
+
+    /**
+     * Removes checkpointed Juggaloader stream states.
+     *
+     * @param ids the _ids of the stream states to remove
+     */
+    public void removeStreamStates(List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        DB metricsDB = getDB("nodeablemsgdb");
+        DBCollection streamStateCollection = metricsDB.getCollection(STREAM_STATE_COLLECTION_NAME);
+
+        streamStateCollection.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+    }
+
     /**
      * Simple helper to create a list of {@link BasicDBObject} from a {@link DBCursor}.
      *
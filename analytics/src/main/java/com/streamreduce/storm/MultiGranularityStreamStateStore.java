@@ -0,0 +1,323 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the {@link JuggaloaderStreamState} of every granularity of a stream in a single record, so a bolt processing
+ * all granularities looks a stream up once per sample instead of once per granularity.
+ * <p/>
+ * Granularities are addressed by level (0 being the finest).  {@link #level(int)} returns a
+ * {@link JuggaloaderStreamStateStore} view of one granularity, used for checkpointing and for the debug metric types
+ * handled by {@link com.streamreduce.storm.bolts.JuggaloaderTimeBase}.
+ */
+public class MultiGranularityStreamStateStore {
+
+    private final Map<String, Stream> streams = new HashMap<>();
+    private final LevelStore[] levels;
+
+    /**
+     * Constructor.
+     *
+     * @param numLevels the number of granularities
+     */
+    public MultiGranularityStreamStateStore(int numLevels) {
+        levels = new LevelStore[numLevels];
+        for (int level = 0; level < numLevels; level++) {
+            levels[level] = new LevelStore(level);
+        }
+    }
+
+    /**
+     * Returns the record of the stream, creating an empty one if the stream has not been seen yet.
+     *
+     * @param accountId      the metric account
+     * @param metricName     the metric name
+     * @param metricCriteria the metric criteria
+     * @return the stream
+     */
+    public Stream getStream(String accountId, String metricName, Map<String, String> metricCriteria) {
+        String key = key(accountId, metricName, metricCriteria);
+        Stream stream = streams.get(key);
+
+        if (stream == null) {
+            stream = new Stream(key, accountId, metricName, metricCriteria, levels.length);
+            streams.put(key, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the state of the stream at a granularity.
+     *
+     * @param stream the stream
+     * @param level  the granularity
+     * @return the state or null if the stream has no state at that granularity yet
+     */
+    public JuggaloaderStreamState get(Stream stream, int level) {
+        return stream.states[level];
+    }
+
+    /**
+     * Creates (or replaces) the state of the stream at a granularity, initialized from its first sample.
+     *
+     * @param stream the stream
+     * @param level  the granularity
+     * @param y      the first sample
+     * @param ts     the timestamp of the first sample
+     * @return the new state
+     */
+    public JuggaloaderStreamState create(Stream stream, int level, float y, long ts) {
+        JuggaloaderStreamState state = new JuggaloaderStreamState(y, ts);
+
+        set(stream, level, state);
+        return state;
+    }
+
+    /**
+     * Tracks the state of the stream at a granularity as changed, for checkpointing.
+     *
+     * @param stream the stream
+     * @param level  the granularity
+     */
+    public void update(Stream stream, int level) {
+        if (stream.states[level] != null) {
+            levels[level].changed(stream);
+        }
+    }
+
+    /**
+     * Returns the number of streams with state at any granularity.
+     *
+     * @return the number of streams
+     */
+    public int size() {
+        return streams.size();
+    }
+
+    /**
+     * Returns a store view of a single granularity.
+     *
+     * @param level the granularity
+     * @return the store of that granularity
+     */
+    public JuggaloaderStreamStateStore level(int level) {
+        return levels[level];
+    }
+
+    private void set(Stream stream, int level, JuggaloaderStreamState state) {
+        if (stream.states[level] == null && state != null) {
+            levels[level].size++;
+        } else if (stream.states[level] != null && state == null) {
+            levels[level].size--;
+        }
+        stream.states[level] = state;
+    }
+
+    private void removeIfEmpty(Stream stream) {
+        if (isEmpty(stream)) {
+            streams.remove(stream.key);
+        }
+    }
+
+    private static boolean isEmpty(Stream stream) {
+        for (JuggaloaderStreamState state : stream.states) {
+            if (state != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String key(String accountId, String metricName, Map<String, String> metricCriteria) {
+        return accountId + metricName + metricCriteria.toString();
+    }
+
+    /**
+     * The states of a stream at every granularity.
+     */
+    public static class Stream {
+
+        private final String key;
+        private final String accountId;
+        private final String metricName;
+        private final Map<String, String> metricCriteria;
+        private final JuggaloaderStreamState[] states;
+
+        private Stream(String key, String accountId, String metricName, Map<String, String> metricCriteria,
+                       int numLevels) {
+            this.key = key;
+            this.accountId = accountId;
+            this.metricName = metricName;
+            this.metricCriteria = metricCriteria;
+            this.states = new JuggaloaderStreamState[numLevels];
+        }
+
+    }
+
+    /**
+     * {@link JuggaloaderStreamStateStore} view of one granularity of the streams.
+     */
+    private class LevelStore implements JuggaloaderStreamStateStore {
+
+        private final int level;
+        private final Map<String, JuggaloaderStreamSnapshot> changes = new HashMap<>();
+        private int size;
+        private boolean cleared;
+
+        // The stream last returned by get() or create(), remembered so update() can track it as changed
+        private Stream last;
+
+        private LevelStore(int level) {
+            this.level = level;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public JuggaloaderStreamState get(String accountId, String metricName, Map<String, String> metricCriteria) {
+            Stream stream = streams.get(key(accountId, metricName, metricCriteria));
+
+            if (stream == null || stream.states[level] == null) {
+                return null;
+            }
+            last = stream;
+            return stream.states[level];
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public JuggaloaderStreamState create(String accountId, String metricName, Map<String, String> metricCriteria,
+                                             float y, long ts) {
+            last = getStream(accountId, metricName, metricCriteria);
+            return MultiGranularityStreamStateStore.this.create(last, level, y, ts);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void update(JuggaloaderStreamState state) {
+            if (last != null && last.states[level] == state) {
+                changed(last);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void remove(String accountId, String metricName, Map<String, String> metricCriteria) {
+            Stream stream = streams.get(key(accountId, metricName, metricCriteria));
+
+            if (stream != null && stream.states[level] != null) {
+                set(stream, level, null);
+                changes.put(stream.key, new JuggaloaderStreamSnapshot(accountId, metricName,
+                                                                      new LinkedHashMap<>(metricCriteria), null));
+                removeIfEmpty(stream);
+            }
+            if (stream == last) {
+                last = null;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            for (Iterator<Stream> iterator = streams.values().iterator(); iterator.hasNext(); ) {
+                Stream stream = iterator.next();
+
+                stream.states[level] = null;
+                if (isEmpty(stream)) {
+                    iterator.remove();
+                }
+            }
+            size = 0;
+            changes.clear();
+            cleared = true;
+            last = null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void restore(JuggaloaderStreamSnapshot snapshot) {
+            Stream stream = getStream(snapshot.getAccountId(), snapshot.getMetricName(),
+                                      snapshot.getMetricCriteria());
+
+            set(stream, level, new JuggaloaderStreamState(snapshot.getState()));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public List<JuggaloaderStreamSnapshot> drainChanges() {
+            List<JuggaloaderStreamSnapshot> drained = new ArrayList<>(changes.size());
+
+            for (JuggaloaderStreamSnapshot change : changes.values()) {
+                drained.add(change.isRemoved() ? change : new JuggaloaderStreamSnapshot(
+                        change.getAccountId(), change.getMetricName(), change.getMetricCriteria(),
+                        new JuggaloaderStreamState(change.getState())));
+            }
+            changes.clear();
+            return drained;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean drainCleared() {
+            boolean wasCleared = cleared;
+            cleared = false;
+            return wasCleared;
+        }
+
+        private void changed(Stream stream) {
+            JuggaloaderStreamSnapshot change = changes.get(stream.key);
+
+            if (change == null || change.isRemoved() || change.getState() != stream.states[level]) {
+                changes.put(stream.key, new JuggaloaderStreamSnapshot(stream.accountId, stream.metricName,
+                                                                      new LinkedHashMap<>(stream.metricCriteria),
+                                                                      stream.states[level]));
+            }
+        }
+
+    }
+
+}
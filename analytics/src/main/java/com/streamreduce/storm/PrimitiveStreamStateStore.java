@@ -0,0 +1,434 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link JuggaloaderStreamStateStore} that interns each stream (account, metric name and criteria) to an integer id
+ * and keeps the state of all streams in parallel primitive arrays indexed by that id.
+ * <p/>
+ * Looking up a stream does not build a key string or allocate: the tuple's values are hashed in place and compared
+ * against the interned keys.  Criteria are compared by content, so two criteria maps holding the same entries in a
+ * different order are the same stream.  {@link #get} and {@link #create} return a single reusable
+ * {@link JuggaloaderStreamState} view that is written back to the arrays by {@link #update}.
+ * <p/>
+ * This class is not thread safe, which is fine since each bolt executor owns its own store.
+ */
+public class PrimitiveStreamStateStore implements JuggaloaderStreamStateStore {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    // Interned stream keys (open addressing with linear probing) and the id of each key
+    private StreamKey[] keys;
+    private int[] keyIds;
+    private int keyMask;
+
+    // The interned key of each stream id, and the ids changed since the last checkpoint
+    private StreamKey[] idKeys;
+    private long[] changed;
+    private List<JuggaloaderStreamSnapshot> removed = new ArrayList<>();
+    private boolean cleared;
+
+    // Stream state, one slot per stream id
+    private int[] n;
+    private float[] ylast;
+    private long[] tslast;
+    private float[] yAvgLast;
+    private float[] yStdDevLast;
+    private float[] min;
+    private float[] max;
+    private long[] tsLastEmitted;
+    private byte[] anomalyReset;
+    private float[][] detectorState;
+    private QuantileSketch[] sketch;
+
+    // Ids released by remove() and ready to be reused
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+    private int size;
+
+    private final StreamKey probe = new StreamKey();
+    private final JuggaloaderStreamState view = new JuggaloaderStreamState(0.0f, 0);
+    private int viewId = -1;
+
+    public PrimitiveStreamStateStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity the number of streams to size the store for up front
+     */
+    public PrimitiveStreamStateStore(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+
+        keys = new StreamKey[capacity * 2];
+        keyIds = new int[capacity * 2];
+        keyMask = keys.length - 1;
+        freeIds = new int[16];
+        allocateSlots(capacity);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JuggaloaderStreamState get(String accountId, String metricName, Map<String, String> metricCriteria) {
+        probe.set(accountId, metricName, metricCriteria);
+        int index = indexOf(probe);
+
+        if (index < 0) {
+            return null;
+        }
+
+        load(keyIds[index]);
+        return view;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JuggaloaderStreamState create(String accountId, String metricName, Map<String, String> metricCriteria,
+                                         float y, long ts) {
+        probe.set(accountId, metricName, metricCriteria);
+        int index = indexOf(probe);
+        int id;
+
+        if (index >= 0) {
+            id = keyIds[index];
+        } else {
+            id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            if (id >= n.length) {
+                allocateSlots(n.length * 2);
+            }
+            StreamKey key = probe.copy();
+            intern(key, id);
+            idKeys[id] = key;
+            size++;
+        }
+
+        viewId = id;
+        view.reset(y, ts);
+        store(id);
+        markChanged(id);
+        return view;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void update(JuggaloaderStreamState state) {
+        if (state != view || viewId < 0) {
+            throw new IllegalStateException("Only the state last returned by get() or create() can be updated.");
+        }
+        store(viewId);
+        markChanged(viewId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(String accountId, String metricName, Map<String, String> metricCriteria) {
+        probe.set(accountId, metricName, metricCriteria);
+        int index = indexOf(probe);
+
+        if (index < 0) {
+            return;
+        }
+
+        int id = keyIds[index];
+        StreamKey key = keys[index];
+
+        deleteAt(index);
+        idKeys[id] = null;
+        detectorState[id] = null;
+        sketch[id] = null;
+        changed[id >>> 6] &= ~(1L << id);
+        removed.add(new JuggaloaderStreamSnapshot(key.accountId, key.metricName, key.metricCriteria, null));
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+
+        if (viewId == id) {
+            viewId = -1;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(idKeys, null);
+        Arrays.fill(detectorState, null);
+        Arrays.fill(sketch, null);
+        Arrays.fill(changed, 0L);
+        removed.clear();
+        cleared = true;
+        freeCount = 0;
+        nextId = 0;
+        size = 0;
+        viewId = -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void restore(JuggaloaderStreamSnapshot snapshot) {
+        JuggaloaderStreamState state = snapshot.getState();
+        JuggaloaderStreamState created = create(snapshot.getAccountId(), snapshot.getMetricName(),
+                                                snapshot.getMetricCriteria(), 0.0f, 0);
+
+        created.n = state.n;
+        created.ylast = state.ylast;
+        created.tslast = state.tslast;
+        created.yAvgLast = state.yAvgLast;
+        created.yStdDevLast = state.yStdDevLast;
+        created.min = state.min;
+        created.max = state.max;
+        created.tsLastEmitted = state.tsLastEmitted;
+        created.anomalyReset = state.anomalyReset;
+        created.detectorState = state.detectorState != null ? state.detectorState.clone() : null;
+        created.sketch = state.sketch != null ? new QuantileSketch(state.sketch) : null;
+        store(viewId);
+        changed[viewId >>> 6] &= ~(1L << viewId);
+        viewId = -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<JuggaloaderStreamSnapshot> drainChanges() {
+        List<JuggaloaderStreamSnapshot> drained = new ArrayList<>(removed);
+
+        for (int word = 0; word < changed.length; word++) {
+            long bits = changed[word];
+            while (bits != 0) {
+                int id = (word << 6) + Long.numberOfTrailingZeros(bits);
+                StreamKey key = idKeys[id];
+
+                load(id);
+                drained.add(new JuggaloaderStreamSnapshot(key.accountId, key.metricName, key.metricCriteria,
+                                                          new JuggaloaderStreamState(view)));
+                bits &= bits - 1;
+            }
+            changed[word] = 0L;
+        }
+        viewId = -1;
+        removed.clear();
+        return drained;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean drainCleared() {
+        boolean wasCleared = cleared;
+        cleared = false;
+        return wasCleared;
+    }
+
+    private void markChanged(int id) {
+        changed[id >>> 6] |= 1L << id;
+    }
+
+    private void load(int id) {
+        viewId = id;
+        view.n = n[id];
+        view.ylast = ylast[id];
+        view.tslast = tslast[id];
+        view.yAvgLast = yAvgLast[id];
+        view.yStdDevLast = yStdDevLast[id];
+        view.min = min[id];
+        view.max = max[id];
+        view.tsLastEmitted = tsLastEmitted[id];
+        view.anomalyReset = anomalyReset[id];
+        view.detectorState = detectorState[id];
+        view.sketch = sketch[id];
+    }
+
+    private void store(int id) {
+        n[id] = view.n;
+        ylast[id] = view.ylast;
+        tslast[id] = view.tslast;
+        yAvgLast[id] = view.yAvgLast;
+        yStdDevLast[id] = view.yStdDevLast;
+        min[id] = view.min;
+        max[id] = view.max;
+        tsLastEmitted[id] = view.tsLastEmitted;
+        anomalyReset[id] = view.anomalyReset;
+        detectorState[id] = view.detectorState;
+        sketch[id] = view.sketch;
+    }
+
+    private void allocateSlots(int capacity) {
+        n = n == null ? new int[capacity] : Arrays.copyOf(n, capacity);
+        ylast = ylast == null ? new float[capacity] : Arrays.copyOf(ylast, capacity);
+        tslast = tslast == null ? new long[capacity] : Arrays.copyOf(tslast, capacity);
+        yAvgLast = yAvgLast == null ? new float[capacity] : Arrays.copyOf(yAvgLast, capacity);
+        yStdDevLast = yStdDevLast == null ? new float[capacity] : Arrays.copyOf(yStdDevLast, capacity);
+        min = min == null ? new float[capacity] : Arrays.copyOf(min, capacity);
+        max = max == null ? new float[capacity] : Arrays.copyOf(max, capacity);
+        tsLastEmitted = tsLastEmitted == null ? new long[capacity] : Arrays.copyOf(tsLastEmitted, capacity);
+        anomalyReset = anomalyReset == null ? new byte[capacity] : Arrays.copyOf(anomalyReset, capacity);
+        detectorState = detectorState == null ? new float[capacity][] : Arrays.copyOf(detectorState, capacity);
+        sketch = sketch == null ? new QuantileSketch[capacity] : Arrays.copyOf(sketch, capacity);
+        idKeys = idKeys == null ? new StreamKey[capacity] : Arrays.copyOf(idKeys, capacity);
+        changed = changed == null ? new long[(capacity + 63) >>> 6] : Arrays.copyOf(changed, (capacity + 63) >>> 6);
+    }
+
+    private int indexOf(StreamKey key) {
+        int i = key.hash & keyMask;
+
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+            i = (i + 1) & keyMask;
+        }
+        return -1;
+    }
+
+    private void intern(StreamKey key, int id) {
+        // keep the key table at most half full
+        if ((size + 1) * 2 > keys.length) {
+            StreamKey[] oldKeys = keys;
+            int[] oldIds = keyIds;
+
+            keys = new StreamKey[oldKeys.length * 2];
+            keyIds = new int[oldKeys.length * 2];
+            keyMask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], oldIds[i]);
+                }
+            }
+        }
+        insert(key, id);
+    }
+
+    private void insert(StreamKey key, int id) {
+        int i = key.hash & keyMask;
+
+        while (keys[i] != null) {
+            i = (i + 1) & keyMask;
+        }
+        keys[i] = key;
+        keyIds[i] = id;
+    }
+
+    private void deleteAt(int i) {
+        keys[i] = null;
+
+        // Shift back any following keys whose probe sequence passed through the freed index
+        int j = i;
+        while (true) {
+            j = (j + 1) & keyMask;
+            StreamKey key = keys[j];
+            if (key == null) {
+                return;
+            }
+            int home = key.hash & keyMask;
+            if ((j > i && (home <= i || home > j)) || (j < i && home <= i && home > j)) {
+                keys[i] = key;
+                keyIds[i] = keyIds[j];
+                keys[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * Identity of a stream.  The probe instance is mutable so lookups don't allocate, interned copies own a sorted
+     * copy of the criteria so later changes to the tuple's map can't corrupt the table.
+     */
+    static final class StreamKey {
+
+        String accountId;
+        String metricName;
+        Map<String, String> metricCriteria;
+        int hash;
+
+        void set(String accountId, String metricName, Map<String, String> metricCriteria) {
+            this.accountId = accountId;
+            this.metricName = metricName;
+            this.metricCriteria = metricCriteria;
+
+            int h = accountId != null ? accountId.hashCode() : 0;
+            h = 31 * h + (metricName != null ? metricName.hashCode() : 0);
+            h = 31 * h + (metricCriteria != null ? metricCriteria.hashCode() : 0);
+            this.hash = h ^ (h >>> 16);
+        }
+
+        StreamKey copy() {
+            StreamKey copy = new StreamKey();
+
+            copy.accountId = accountId;
+            copy.metricName = metricName;
+            copy.metricCriteria = metricCriteria != null ? new TreeMap<>(metricCriteria) : null;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StreamKey)) {
+                return false;
+            }
+            StreamKey other = (StreamKey) o;
+            return hash == other.hash &&
+                    (accountId != null ? accountId.equals(other.accountId) : other.accountId == null) &&
+                    (metricName != null ? metricName.equals(other.metricName) : other.metricName == null) &&
+                    (metricCriteria != null ? metricCriteria.equals(other.metricCriteria) :
+                            other.metricCriteria == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+}
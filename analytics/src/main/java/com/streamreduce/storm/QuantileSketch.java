@@ -0,0 +1,393 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable streaming quantile sketch in the style of KLL (Karnin, Lang and Liberty, "Optimal Quantile Approximation
+ * in Streams").  Samples are kept in a stack of levels where an item of level <code>h</code> stands for
+ * <code>2^h</code> samples: when a level fills up it is sorted and every other item is promoted to the level above,
+ * so the sketch holds about <code>3k</code> items whatever the number of samples and the rank error is in the order
+ * of <code>1/k</code>.  Below <code>k</code> samples the sketch is exact.
+ * <p/>
+ * Merging two sketches concatenates their levels and compacts the result, so the sketch of an hour merged from the
+ * sketches of its minutes is as accurate as one fed every sample of the hour.  Which half of a level is promoted
+ * alternates rather than being random, so the same samples always give the same sketch.
+ * <p/>
+ * Not thread safe.
+ */
+public class QuantileSketch {
+
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+    private static final int MIN_LEVEL_CAPACITY = 8;
+
+    private final int k;
+    private float[][] levels;
+    private int[] sizes;
+    private int[] capacities;
+    private int numLevels;
+    private long n;
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+    private int compactions; // its parity picks the half of a level that is promoted
+
+    /**
+     * Constructor.
+     *
+     * @param k the capacity of the top level, the accuracy parameter
+     */
+    public QuantileSketch(int k) {
+        if (k < MIN_LEVEL_CAPACITY) {
+            throw new IllegalArgumentException("k must be at least " + MIN_LEVEL_CAPACITY + ", was " + k);
+        }
+        this.k = k;
+        this.levels = new float[1][];
+        this.sizes = new int[1];
+        this.numLevels = 1;
+        this.capacities = computeCapacities();
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other the sketch to copy
+     */
+    public QuantileSketch(QuantileSketch other) {
+        this.k = other.k;
+        this.levels = new float[other.numLevels][];
+        for (int h = 0; h < other.numLevels; h++) {
+            this.levels[h] = other.levels[h] != null ? Arrays.copyOf(other.levels[h], other.sizes[h]) : null;
+        }
+        this.sizes = Arrays.copyOf(other.sizes, other.numLevels);
+        this.capacities = other.capacities.clone();
+        this.numLevels = other.numLevels;
+        this.n = other.n;
+        this.min = other.min;
+        this.max = other.max;
+        this.compactions = other.compactions;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param y the sample
+     */
+    public void add(float y) {
+        n++;
+        min = Math.min(min, y);
+        max = Math.max(max, y);
+        append(0, y);
+        if (sizes[0] >= capacities[0]) {
+            compress();
+        }
+    }
+
+    /**
+     * Merges the samples of another sketch into this one, the other sketch is left untouched.
+     *
+     * @param other the sketch to merge
+     */
+    public void merge(QuantileSketch other) {
+        if (other.n == 0) {
+            return;
+        }
+        n += other.n;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        while (numLevels < other.numLevels) {
+            addLevel();
+        }
+        for (int h = 0; h < other.numLevels; h++) {
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.levels[h][i]);
+            }
+        }
+        compress();
+    }
+
+    /**
+     * Returns the estimated quantiles of the samples.
+     *
+     * @param fractions the quantiles to estimate, each in [0, 1], in any order
+     * @return the estimate of each quantile, in the same order, or null if the sketch is empty
+     */
+    public float[] getQuantiles(double[] fractions) {
+        if (n == 0) {
+            return null;
+        }
+
+        // merge the sorted levels into one sorted array of items and cumulative weights
+        int total = 0;
+        float[][] sorted = new float[numLevels][];
+        for (int h = 0; h < numLevels; h++) {
+            sorted[h] = levels[h] != null ? Arrays.copyOf(levels[h], sizes[h]) : new float[0];
+            Arrays.sort(sorted[h]);
+            total += sizes[h];
+        }
+
+        float[] items = new float[total];
+        long[] cumulativeWeights = new long[total];
+        int[] positions = new int[numLevels];
+        long cumulativeWeight = 0;
+        for (int i = 0; i < total; i++) {
+            int next = -1;
+            for (int h = 0; h < numLevels; h++) {
+                if (positions[h] < sorted[h].length &&
+                        (next < 0 || sorted[h][positions[h]] < sorted[next][positions[next]])) {
+                    next = h;
+                }
+            }
+            items[i] = sorted[next][positions[next]++];
+            cumulativeWeight += 1L << next;
+            cumulativeWeights[i] = cumulativeWeight;
+        }
+
+        float[] quantiles = new float[fractions.length];
+        for (int q = 0; q < fractions.length; q++) {
+            if (fractions[q] <= 0) {
+                quantiles[q] = min;
+            } else if (fractions[q] >= 1) {
+                quantiles[q] = max;
+            } else {
+                // the first item whose cumulative weight reaches the rank
+                long rank = (long) Math.ceil(fractions[q] * n);
+                int index = Arrays.binarySearch(cumulativeWeights, rank);
+                quantiles[q] = items[index >= 0 ? index : Math.min(-index - 1, total - 1)];
+            }
+        }
+        return quantiles;
+    }
+
+    /**
+     * Returns the number of samples the sketch summarizes.
+     *
+     * @return the number of samples
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * Returns whether the sketch has no samples.
+     *
+     * @return true if no sample was added or merged
+     */
+    public boolean isEmpty() {
+        return n == 0;
+    }
+
+    /**
+     * Returns the smallest sample.
+     *
+     * @return the smallest sample, positive infinity if the sketch is empty
+     */
+    public float getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the largest sample.
+     *
+     * @return the largest sample, negative infinity if the sketch is empty
+     */
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the number of items retained, a measure of the sketch's size.
+     *
+     * @return the number of items
+     */
+    public int getRetainedItems() {
+        int retained = 0;
+        for (int h = 0; h < numLevels; h++) {
+            retained += sizes[h];
+        }
+        return retained;
+    }
+
+    /**
+     * Encodes the sketch, see {@link #fromBytes(byte[])}.
+     *
+     * @return the encoded sketch
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 4 * numLevels + 4 * getRetainedItems());
+
+        buffer.putInt(k).putLong(n).putFloat(min).putFloat(max).putInt(compactions).putInt(numLevels);
+        for (int h = 0; h < numLevels; h++) {
+            buffer.putInt(sizes[h]);
+            for (int i = 0; i < sizes[h]; i++) {
+                buffer.putFloat(levels[h][i]);
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Decodes a sketch encoded by {@link #toBytes()}.
+     *
+     * @param bytes the encoded sketch
+     * @return the sketch
+     */
+    public static QuantileSketch fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        QuantileSketch sketch = new QuantileSketch(buffer.getInt());
+
+        sketch.n = buffer.getLong();
+        sketch.min = buffer.getFloat();
+        sketch.max = buffer.getFloat();
+        sketch.compactions = buffer.getInt();
+
+        int numLevels = buffer.getInt();
+        while (sketch.numLevels < numLevels) {
+            sketch.addLevel();
+        }
+        for (int h = 0; h < numLevels; h++) {
+            int size = buffer.getInt();
+            for (int i = 0; i < size; i++) {
+                sketch.append(h, buffer.getFloat());
+            }
+        }
+        return sketch;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof QuantileSketch)) {
+            return false;
+        }
+
+        QuantileSketch that = (QuantileSketch) o;
+
+        if (k != that.k || n != that.n || compactions != that.compactions || numLevels != that.numLevels ||
+                Float.compare(min, that.min) != 0 || Float.compare(max, that.max) != 0) {
+            return false;
+        }
+        for (int h = 0; h < numLevels; h++) {
+            if (sizes[h] != that.sizes[h]) {
+                return false;
+            }
+            for (int i = 0; i < sizes[h]; i++) {
+                if (Float.compare(levels[h][i], that.levels[h][i]) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int result = k;
+        result = 31 * result + (int) (n ^ (n >>> 32));
+        result = 31 * result + Float.floatToIntBits(min);
+        result = 31 * result + Float.floatToIntBits(max);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch: k: " + k +
+                ", n: " + n +
+                ", min: " + min +
+                ", max: " + max +
+                ", levels: " + numLevels +
+                ", retained: " + getRetainedItems();
+    }
+
+    private void append(int h, float y) {
+        float[] items = levels[h];
+
+        if (items == null) {
+            items = new float[MIN_LEVEL_CAPACITY];
+            levels[h] = items;
+        } else if (sizes[h] == items.length) {
+            items = Arrays.copyOf(items, Math.max(MIN_LEVEL_CAPACITY, items.length * 2));
+            levels[h] = items;
+        }
+        items[sizes[h]++] = y;
+    }
+
+    private void addLevel() {
+        if (numLevels == levels.length) {
+            levels = Arrays.copyOf(levels, numLevels * 2);
+            sizes = Arrays.copyOf(sizes, numLevels * 2);
+        }
+        numLevels++;
+        capacities = computeCapacities();
+    }
+
+    private int[] computeCapacities() {
+        int[] computed = new int[numLevels];
+
+        // the top level holds k items, each level below two thirds of the one above
+        for (int h = 0; h < numLevels; h++) {
+            computed[h] = Math.max(MIN_LEVEL_CAPACITY,
+                                   (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, numLevels - 1 - h)));
+        }
+        return computed;
+    }
+
+    private void compress() {
+        // compacting a level can add a level on top, which lowers the capacity of the ones below
+        boolean compacted = true;
+        while (compacted) {
+            compacted = false;
+            for (int h = 0; h < numLevels; h++) {
+                if (sizes[h] >= capacities[h]) {
+                    compact(h);
+                    compacted = true;
+                }
+            }
+        }
+    }
+
+    private void compact(int h) {
+        if (h + 1 == numLevels) {
+            addLevel();
+        }
+
+        float[] items = levels[h];
+        int size = sizes[h];
+        // with an odd number of items the largest one stays behind, so the total weight stays exact
+        int promoted = size & ~1;
+        int offset = compactions++ & 1;
+
+        Arrays.sort(items, 0, size);
+        for (int i = offset; i < promoted; i += 2) {
+            append(h + 1, items[i]);
+        }
+        if (promoted < size) {
+            items[0] = items[size - 1];
+        }
+        sizes[h] = size - promoted;
+    }
+
+}
@@ -19,7 +19,9 @@ package com.streamreduce.storm;
 import com.streamreduce.storm.topology.JuggaloaderTopology;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -30,6 +32,8 @@ import backtype.storm.LocalCluster;
 import backtype.storm.StormSubmitter;
 import backtype.storm.generated.AlreadyAliveException;
 import backtype.storm.generated.InvalidTopologyException;
+import com.mongodb.BasicDBObject;
+import com.yammer.metrics.reporting.ConsoleReporter;
 import org.apache.log4j.Logger;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
@@ -38,26 +42,31 @@ import org.mortbay.jetty.handler.AbstractHandler;
 public class RunStorm {
 
     private static final String TOPOLOGY_NAME = "juggaloader";
+    private static final String BACKFILL_TOPOLOGY_NAME = "juggaloader-backfill";
     private static final String CLUSTER_PRODUCTION = "production";
     private static final String CLUSTER_LOCAL = "local";
+    private static final String CLUSTER_BENCHMARK = "benchmark";
+    private static final String CLUSTER_BACKFILL = "backfill";
+    private static final String SWAP_BACKFILL = "swap";
     private static Logger logger = Logger.getLogger(RunStorm.class);
 
     public static void main(String[] args) {
 
         if (args == null || args.length < 1) {
-            throw new RuntimeException("You need to specify a cluster mode: local | production ");
+            throw new RuntimeException("You need to specify a cluster mode: local | production | benchmark | " +
+                                               "backfill | swap [topology properties file]");
         }
 
         String mode = args[0];
 
-        if (!(mode.equals(CLUSTER_LOCAL) || mode.equals(CLUSTER_PRODUCTION))) {
+        if (!(mode.equals(CLUSTER_LOCAL) || mode.equals(CLUSTER_PRODUCTION) || mode.equals(CLUSTER_BENCHMARK) ||
+                mode.equals(CLUSTER_BACKFILL) || mode.equals(SWAP_BACKFILL))) {
             throw new RuntimeException("Unknown cluster type of " + mode);
         }
 
-        JuggaloaderTopology juggaloaderTopology = new JuggaloaderTopology();
-        Config config = new Config();
-        config.registerSerialization(LinkedHashMap.class);
-        config.setFallBackOnJavaSerialization(false);
+        Properties topologyProps = JuggaloaderTopology.loadProperties(args.length > 1 ? args[1] : null);
+        JuggaloaderTopology juggaloaderTopology = new JuggaloaderTopology(topologyProps);
+        Config config = juggaloaderTopology.createConfig();
 
         if (mode.equals(CLUSTER_LOCAL)) {
             config.setDebug(true);
@@ -66,8 +75,20 @@ public class RunStorm {
             logger.info("Start Storm Local Cluster");
         }
 
+        if (mode.equals(CLUSTER_BENCHMARK)) {
+            runBenchmark(juggaloaderTopology, config,
+                         Long.parseLong(topologyProps.getProperty("juggaloader.benchmark.duration", "300")));
+        }
+
+        if (mode.equals(CLUSTER_BACKFILL)) {
+            runBackfill(juggaloaderTopology, topologyProps);
+        }
+
+        if (mode.equals(SWAP_BACKFILL)) {
+            mergeBackfill(getRequiredProperty(topologyProps, "juggaloader.backfill.run"));
+        }
+
         if (mode.equals(CLUSTER_PRODUCTION)) {
-            config.setNumAckers(5);
             try {
                 StormSubmitter.submitTopology(TOPOLOGY_NAME, config, juggaloaderTopology.createJuggaloaderTopology());
             } catch (AlreadyAliveException | InvalidTopologyException e) {
@@ -77,6 +98,162 @@ public class RunStorm {
         }
     }
 
+    /**
+     * Runs the topology in a local cluster for the given duration, reporting the metrics registry (batch sizes,
+     * flush latencies, cache hit rates...) every 30 seconds and once more before the cluster is shut down.
+     *
+     * @param juggaloaderTopology the topology
+     * @param config              the topology configuration
+     * @param durationSeconds     how long to run the topology for
+     */
+    private static void runBenchmark(JuggaloaderTopology juggaloaderTopology, Config config, long durationSeconds) {
+        ConsoleReporter reporter = new ConsoleReporter(System.out);
+        LocalCluster cluster = new LocalCluster();
+        long start = System.currentTimeMillis();
+
+        logger.info("Start Storm Benchmark Cluster for " + durationSeconds + "s with granularities " +
+                            juggaloaderTopology.getGranularities());
+        cluster.submitTopology(TOPOLOGY_NAME, config, juggaloaderTopology.createJuggaloaderTopology());
+        reporter.start(30, TimeUnit.SECONDS);
+
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        cluster.killTopology(TOPOLOGY_NAME);
+        reporter.shutdown();
+        reporter.run();
+        cluster.shutdown();
+        logger.info("Stopped Storm Benchmark Cluster after " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Runs the backfill topology over <code>juggaloader.backfill.from</code> to <code>juggaloader.backfill.until</code>
+     * in a local cluster until every partition is done, then merges the shadow collections into the live ones if
+     * <code>juggaloader.backfill.swap</code> is set, see {@link #mergeBackfill(String)}.  The backfill topology runs
+     * in reliable mode, so a partition is done once the metrics of each of its events were written or the event
+     * failed.  A backfill with failed events is incomplete: its shadow collections are dropped rather than merged and
+     * the backfill must be rerun under another run id.
+     *
+     * @param juggaloaderTopology the topology
+     * @param topologyProps       the topology properties
+     */
+    private static void runBackfill(JuggaloaderTopology juggaloaderTopology, Properties topologyProps) {
+        long from = Long.parseLong(getRequiredProperty(topologyProps, "juggaloader.backfill.from"));
+        long until = Long.parseLong(getRequiredProperty(topologyProps, "juggaloader.backfill.until"));
+        String runId = topologyProps.getProperty("juggaloader.backfill.run", "").trim();
+        int partitions = Integer.parseInt(getRequiredProperty(topologyProps, "juggaloader.backfill.partitions"));
+        boolean swap = Boolean.parseBoolean(topologyProps.getProperty("juggaloader.backfill.swap", "false").trim());
+        MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
+
+        if (runId.isEmpty()) {
+            runId = String.valueOf(System.currentTimeMillis());
+        } else if (!mongoClient.getBackfillProgress(runId).isEmpty()) {
+            throw new RuntimeException("Backfill run " + runId + " already ran, use another juggaloader.backfill.run");
+        }
+
+        String collectionPrefix = JuggaloaderTopology.getBackfillCollectionPrefix(runId);
+        LocalCluster cluster = new LocalCluster();
+        long start = System.currentTimeMillis();
+
+        logger.info("Start Storm Backfill Cluster for run " + runId + " from " + from + " until " + until + " with " +
+                            partitions + " partitions");
+        cluster.submitTopology(BACKFILL_TOPOLOGY_NAME, juggaloaderTopology.createBackfillConfig(),
+                               juggaloaderTopology.createBackfillTopology(from, until, runId));
+
+        long failed = 0;
+        int done = 0;
+        while (done < partitions) {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            List<BasicDBObject> progress = mongoClient.getBackfillProgress(runId);
+            long emitted = 0;
+            failed = 0;
+            done = 0;
+            for (BasicDBObject partition : progress) {
+                emitted += partition.getLong("emitted");
+                failed += partition.getLong("failed");
+                done += partition.getBoolean("done") ? 1 : 0;
+            }
+            logger.info("Backfill " + runId + ": " + done + "/" + partitions + " partitions done, " + emitted +
+                                " events emitted, " + failed + " failed");
+        }
+
+        // Once every partition is done no tuple is in flight: the metrics of the acked events were all written
+        cluster.killTopology(BACKFILL_TOPOLOGY_NAME);
+        cluster.shutdown();
+        logger.info("Stopped Storm Backfill Cluster after " + (System.currentTimeMillis() - start) + "ms");
+
+        if (done < partitions || failed > 0) {
+            logger.error("Backfill " + runId + " is incomplete, dropping its shadow collections");
+            mongoClient.dropShadowMetricCollections(collectionPrefix);
+        } else if (swap) {
+            mergeBackfill(runId);
+        } else {
+            logger.info("Backfill " + runId + " written to the " + collectionPrefix + "* collections, merge them in " +
+                                "with RunStorm swap and juggaloader.backfill.run=" + runId);
+        }
+    }
+
+    /**
+     * Merges the shadow collections of a backfill run into the live metric collections over the time range of the
+     * run, see {@link MongoClient#mergeShadowMetricCollections(String, long, long)}.  A run with a partition that
+     * isn't done or with failed events is refused, its shadow collections lack the metrics of some events.
+     *
+     * @param runId the backfill run id
+     */
+    private static void mergeBackfill(String runId) {
+        MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
+        List<BasicDBObject> progress = mongoClient.getBackfillProgress(runId);
+
+        if (!isBackfillComplete(progress)) {
+            throw new RuntimeException("Backfill " + runId + " is incomplete, rerun it under another " +
+                                               "juggaloader.backfill.run");
+        }
+
+        long from = progress.get(0).getLong("from");
+        long until = progress.get(0).getLong("until");
+        List<String> merged = mongoClient.mergeShadowMetricCollections(
+                JuggaloaderTopology.getBackfillCollectionPrefix(runId), from, until);
+
+        logger.info("Merged the " + merged.size() + " metric collections of backfill " + runId + " from " + from +
+                            " until " + until);
+    }
+
+    /**
+     * Returns whether every partition of a backfill run is done without failed events.
+     *
+     * @param progress the progress of the partitions, see {@link MongoClient#getBackfillProgress(String)}
+     * @return true if the run is complete
+     */
+    static boolean isBackfillComplete(List<BasicDBObject> progress) {
+        if (progress.isEmpty() || progress.size() < progress.get(0).getInt("numPartitions")) {
+            return false;
+        }
+        for (BasicDBObject partition : progress) {
+            if (!partition.getBoolean("done") || partition.getLong("failed") > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getRequiredProperty(Properties topologyProps, String key) {
+        String value = topologyProps.getProperty(key, "").trim();
+
+        if (value.isEmpty()) {
+            throw new RuntimeException("You need to set " + key);
+        }
+        return value;
+    }
+
     @SuppressWarnings("unused") //Presently not used because we may be running inside of an external jetty instance.
     public static void startEmbeddedHttpServer() {
         try {
@@ -17,14 +17,17 @@
 package com.streamreduce.storm.bolts;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import backtype.storm.Config;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
@@ -39,6 +42,7 @@ import com.streamreduce.analytics.MetricName;
 import com.streamreduce.analytics.MetricCriteria;
 import com.streamreduce.core.event.EventId;
 import com.streamreduce.core.metric.MetricModeType;
+import com.streamreduce.storm.MetricCriteriaMap;
 import com.streamreduce.storm.MongoClient;
 import com.streamreduce.storm.utils.MetricsUtils;
 import org.apache.log4j.Logger;
@@ -52,8 +56,26 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
     private static final Logger LOGGER = Logger.getLogger(AbstractMetricsBolt.class);
     private static final String GLOBAL_ACCOUNT_ID = "global";
 
+    /**
+     * The Storm configuration key overriding <code>juggaloader.metrics.combine.window</code> for a topology.
+     */
+    public static final String COMBINE_WINDOW_CONFIG = "juggaloader.metrics.combine.window";
+
+    static final long COMBINE_WINDOW =
+            Long.parseLong(JuggaloaderTimeBase.topologyProps.getString("juggaloader.metrics.combine.window"));
+    static final int COMBINE_MAX_KEYS =
+            Integer.parseInt(JuggaloaderTimeBase.topologyProps.getString("juggaloader.metrics.combine.maxkeys"));
+    static final int HASHTAG_CACHE_SIZE =
+            Integer.parseInt(JuggaloaderTimeBase.topologyProps.getString("juggaloader.metrics.hashtag.cache.size"));
+
     protected static final Map<MetricCriteria, String> EMPTY_CRITERIA = Collections.emptyMap();
 
+    private transient MetricCombiner combiner;
+    // In reliable mode, the input tuples whose deltas may still be held by the combiner (acked once it's drained)
+    private transient List<Tuple> deferredTuples;
+    private transient Tuple executingTuple;
+    private transient HashtagCache hashtagCache;
+
     /**
      * Handler for customized event handling (above and beyond the built-in handling).
      *
@@ -84,11 +106,61 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
         ));
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prepare(Map stormConfiguration, TopologyContext topologyContext, OutputCollector outputCollector) {
+        super.prepare(stormConfiguration, topologyContext, outputCollector);
+
+        long combineWindow = COMBINE_WINDOW;
+
+        if (stormConfiguration != null && stormConfiguration.get(COMBINE_WINDOW_CONFIG) != null) {
+            combineWindow = Long.parseLong(stormConfiguration.get(COMBINE_WINDOW_CONFIG).toString());
+        }
+        combiner = combineWindow > 0 ? new MetricCombiner(combineWindow, COMBINE_MAX_KEYS) : null;
+        deferredTuples = new ArrayList<>();
+        hashtagCache = new HashtagCache(getClass(), HASHTAG_CACHE_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        if (COMBINE_WINDOW <= 0) {
+            return null;
+        }
+
+        // Tick often enough that combined deltas are emitted even when no more events arrive
+        Map<String, Object> componentConfiguration = new HashMap<>();
+        componentConfiguration.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, (int)Math.max(1, COMBINE_WINDOW / 1000));
+        return componentConfiguration;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cleanup() {
+        flushCombinedMetrics(true);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void realExecute(Tuple tuple) {
+        if (isTickTuple(tuple)) {
+            flushCombinedMetrics(true);
+            return;
+        }
+
+        executingTuple = tuple;
+        if (isReliable() && combiner != null) {
+            deferredTuples.add(deferAck());
+        }
+
         Map<String, Object> event = (Map<String, Object>) tuple.getValue(0);
 
         String id = event.get("_id") != null ? event.get("_id").toString() : null;
@@ -107,6 +179,11 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
 
         // Send down stream to allow for deeper level metrics
         handleEvent(id, timestamp, eventId, accountId, userId, targetId, metadata);
+
+        if (combiner != null && combiner.isDue(System.currentTimeMillis())) {
+            flushCombinedMetrics(true);
+        }
+        executingTuple = null;
     }
 
     /**
@@ -382,7 +459,8 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
                 for (Values metric : metrics) {
                     MetricName metricName = MetricName.valueOf(metric.get(1).toString());
                     Values metricWithHashtag = (Values)metric.clone();
-                    Map<String, String> criteria = (Map<String, String>)metric.get(3);
+                    // Copy the criteria since the metric itself may already be emitted or held by the combiner
+                    Map<String, String> criteria = new MetricCriteriaMap((Map<String, String>)metric.get(3));
                     String theHashtag = hashtagChange.getKey();
 
                     if (criteria.keySet().contains(MetricCriteria.CONNECTION_ID.toString())) {
@@ -468,6 +546,10 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
                 (Set<String>)metadata.get(hashtagsKey) :
                 Collections.EMPTY_SET;
 
+        Integer targetVersion = metadata.get("targetVersion") != null ?
+                (Integer)metadata.get("targetVersion") :
+                0;
+
         if (!Float.isNaN(eventValue)) {
             if (Math.abs(eventValue) == 1.0f) {
                 // If the event value is 1.0 or -1.0 (CREATE/DELETE), just process as all added/deleted
@@ -476,17 +558,7 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
                 }
             } else if (eventValue == 0.0f) {
                 // If the event value is 0.0 (UPDATE), figure out the added/deleted hashtags and process as such
-                Integer targetVersion = metadata.get("targetVersion") != null ?
-                        (Integer)metadata.get("targetVersion") :
-                        0;
-                Map<String, Object> previousEvent =
-                        MESSAGE_DB_MONGO_CLIENT.getEventForTargetAndVersion(targetId, --targetVersion);
-                Map<String, Object> previousMetadata = previousEvent != null && previousEvent.get("metadata") != null ?
-                        (Map<String, Object>) previousEvent.get("metadata") :
-                        Collections.<String, Object> emptyMap();
-                Set<String> previousHashtags = previousMetadata.get(hashtagsKey) != null ?
-                        (Set<String>) previousMetadata.get(hashtagsKey) :
-                        Collections.EMPTY_SET;
+                Set<String> previousHashtags = getPreviousHashtags(targetId, targetVersion - 1, hashtagsKey);
                 Set<String> differences = Sets.symmetricDifference(hashtags, previousHashtags);
 
                 for (String hashtag : differences) {
@@ -501,9 +573,48 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
             }
         }
 
+        // Remember this version's hashtags so the target's next UPDATE can be diffed without a lookup
+        if (hashtagCache != null && targetId != null) {
+            if (eventValue == -1.0f) {
+                hashtagCache.remove(targetId);
+            } else {
+                hashtagCache.put(targetId, targetVersion, hashtags);
+            }
+        }
+
         return hashtagChanges;
     }
 
+    /**
+     * Returns the hashtags of a previous version of the target, from the {@link HashtagCache} when this bolt saw that
+     * version itself and from the event stream otherwise.
+     *
+     * @param targetId the event's target id
+     * @param targetVersion the previous version of the target
+     * @param hashtagsKey the metadata key containing the event's hashtags
+     *
+     * @return the hashtags, empty if the previous version cannot be found
+     */
+    private Set<String> getPreviousHashtags(String targetId, int targetVersion, String hashtagsKey) {
+        Set<String> previousHashtags = hashtagCache != null && targetId != null ?
+                hashtagCache.get(targetId, targetVersion) :
+                null;
+
+        if (previousHashtags != null) {
+            return previousHashtags;
+        }
+
+        Map<String, Object> previousEvent =
+                MESSAGE_DB_MONGO_CLIENT.getEventForTargetAndVersion(targetId, targetVersion);
+        Map<String, Object> previousMetadata = previousEvent != null && previousEvent.get("metadata") != null ?
+                (Map<String, Object>) previousEvent.get("metadata") :
+                Collections.<String, Object> emptyMap();
+
+        return previousMetadata.get(hashtagsKey) != null ?
+                (Set<String>) previousMetadata.get(hashtagsKey) :
+                Collections.EMPTY_SET;
+    }
+
     /**
      * (USED FOR BUILT-IN METRICS ONLY) Returns a {@link com.streamreduce.core.metric.MetricName} based on the event id and
      * target type.
@@ -641,12 +752,82 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
     }
 
     /**
-     * Emits the metric.
+     * Emits the metric.  Delta metrics are handed to the {@link MetricCombiner}, when enabled, and emitted summed per
+     * counter once the combine window elapses or the combiner is full.
      *
      * @param values the metric
      */
     private void emitMetric(Values values) {
-        outputCollector.emit(values);
+        if (combiner == null) {
+            emit(values);
+        } else if (MetricCombiner.isCombinable(values)) {
+            if (combiner.add(values, isReliable() ? executingTuple : null, System.currentTimeMillis())) {
+                flushCombinedMetrics(false);
+            }
+        } else {
+            // Keep ordering with any deltas pending for the same counter
+            Values pending = combiner.remove(values);
+
+            if (pending != null) {
+                Collection<Tuple> anchors = combiner.removeAnchors(pending);
+
+                try {
+                    emit(anchors, pending);
+                } catch (RuntimeException e) {
+                    failDeferredTuples();
+                    throw e;
+                }
+            }
+            emit(values);
+        }
+    }
+
+    /**
+     * Emits all metrics held by the {@link MetricCombiner}, anchored to the tuples they came from, and in reliable
+     * mode acks those tuples.  Should an emit fail, the tuples are failed instead so the spout replays the deltas
+     * which were not emitted.
+     *
+     * @param ackExecuting whether the tuple being executed, if any, is done contributing to the combiner and can be
+     *                     acked as well
+     */
+    private void flushCombinedMetrics(boolean ackExecuting) {
+        if (combiner == null) {
+            return;
+        }
+
+        try {
+            for (Values metric : combiner.drain()) {
+                emit(combiner.removeAnchors(metric), metric);
+            }
+        } catch (RuntimeException e) {
+            combiner.clear();
+            failDeferredTuples();
+            throw e;
+        }
+
+        if (!deferredTuples.isEmpty()) {
+            boolean keepExecuting = !ackExecuting && deferredTuples.contains(executingTuple);
+
+            for (Tuple tuple : deferredTuples) {
+                if (tuple != executingTuple || ackExecuting) {
+                    outputCollector.ack(tuple);
+                }
+            }
+            deferredTuples.clear();
+            if (keepExecuting) {
+                deferredTuples.add(executingTuple);
+            }
+        }
+    }
+
+    /**
+     * Fails the tuples whose deltas may have been lost with the metrics held by the {@link MetricCombiner}.
+     */
+    private void failDeferredTuples() {
+        for (Tuple tuple : deferredTuples) {
+            fail(tuple);
+        }
+        deferredTuples.clear();
     }
 
     /**
@@ -664,11 +845,7 @@ public abstract class AbstractMetricsBolt extends NodeableUnreliableBolt {
     private Values createMetric(String accountId, MetricName metricName, Map<MetricCriteria, String> metricCriteria,
                                 MetricModeType metricMode, Long timestamp, Float metricValue) {
         // Convert the map keys to string to avoid serialization/deserialization issues in Storm
-        Map<String, String> massagedCriteria = new LinkedHashMap<>();
-
-        for (Map.Entry<MetricCriteria, String> mapEntry : metricCriteria.entrySet()) {
-            massagedCriteria.put(mapEntry.getKey().toString(), mapEntry.getValue());
-        }
+        Map<String, String> massagedCriteria = new MetricCriteriaMap(metricCriteria);
 
         // All built-in metrics will be deltas, since they are counts that increment/decrement based on the event
         return new Values(accountId, metricName.toString(), metricMode, massagedCriteria,
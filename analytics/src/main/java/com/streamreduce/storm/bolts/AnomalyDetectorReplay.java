@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.tuple.Values;
+import com.streamreduce.Constants;
+import com.streamreduce.core.metric.MetricModeType;
+import com.streamreduce.storm.JuggaloaderStreamState;
+import com.streamreduce.storm.detectors.AnomalyDetector;
+import com.streamreduce.storm.detectors.AnomalyDetectors;
+import org.apache.log4j.Logger;
+
+/**
+ * Replays a recorded metric file through the time-base calculation once per {@link AnomalyDetector} and reports each
+ * detector's CPU cost and hit rate, to pick the detector for a metric before configuring it with
+ * <code>juggaloader.detector.metric.&lt;metric name&gt;</code>.
+ * <p/>
+ * The file holds one sample per line, in time order:
+ * <pre>
+ * &lt;metric name&gt;,&lt;timestamp&gt;,&lt;value&gt;[,&lt;CRITERION&gt;=&lt;value&gt;;...[,&lt;label&gt;]]
+ * </pre>
+ * Samples with the same metric name and criteria form a stream.  A label of 1 marks a known anomaly, when labels are
+ * present precision and recall are reported too.  Anomalies are subject to the metric whitelist, as in the topology.
+ * <p/>
+ * Run with <code>java ... AnomalyDetectorReplay &lt;file&gt; [detector...]</code>, all detectors by default.
+ */
+public class AnomalyDetectorReplay {
+
+    private static final Logger logger = Logger.getLogger(AnomalyDetectorReplay.class);
+
+    private final List<String> metricNames = new ArrayList<>();
+    private final List<Map<String, String>> criteria = new ArrayList<>();
+    private final List<String> streamKeys = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+    private final List<Float> values = new ArrayList<>();
+    private final List<Boolean> labels = new ArrayList<>();
+    private boolean labelled;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            logger.error("Usage: AnomalyDetectorReplay <file> [detector...]");
+            System.exit(1);
+        }
+
+        AnomalyDetectorReplay replay = new AnomalyDetectorReplay();
+        replay.load(args[0]);
+
+        List<String> names = args.length > 1 ? Arrays.asList(args).subList(1, args.length) :
+                Arrays.asList(AnomalyDetectors.NAMES);
+        for (String name : names) {
+            replay.run(AnomalyDetectors.create(name, JuggaloaderTimeBase.topologyProps));
+        }
+    }
+
+    private void load(String path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split(",", -1);
+                Map<String, String> sampleCriteria = new LinkedHashMap<>();
+
+                if (fields.length > 3) {
+                    for (String criterion : fields[3].split(";")) {
+                        int equals = criterion.indexOf('=');
+                        if (equals > 0) {
+                            sampleCriteria.put(criterion.substring(0, equals), criterion.substring(equals + 1));
+                        }
+                    }
+                }
+                labelled |= fields.length > 4;
+
+                metricNames.add(fields[0]);
+                criteria.add(sampleCriteria);
+                streamKeys.add(fields[0] + sampleCriteria);
+                timestamps.add(Long.parseLong(fields[1]));
+                values.add(Float.parseFloat(fields[2]));
+                labels.add(fields.length > 4 && "1".equals(fields[4].trim()));
+            }
+        }
+    }
+
+    private void run(AnomalyDetector detector) {
+        // a first pass to warm up the JIT, then the timed one
+        replay(detector);
+
+        long start = System.nanoTime();
+        boolean[] anomalies = replay(detector);
+        long elapsed = System.nanoTime() - start;
+
+        int detected = 0;
+        int labelledAnomalies = 0;
+        int truePositives = 0;
+        for (int i = 0; i < anomalies.length; i++) {
+            detected += anomalies[i] ? 1 : 0;
+            labelledAnomalies += labels.get(i) ? 1 : 0;
+            truePositives += anomalies[i] && labels.get(i) ? 1 : 0;
+        }
+
+        StringBuilder report = new StringBuilder(String.format(
+                "%-14s %8d samples, %6.0f ns/sample, %6d anomalies (%.3f%%)", detector.getName(), anomalies.length,
+                (double) elapsed / Math.max(1, anomalies.length), detected,
+                100.0 * detected / Math.max(1, anomalies.length)));
+        if (labelled) {
+            report.append(String.format(", precision %.3f, recall %.3f (%d labelled)",
+                                        (double) truePositives / Math.max(1, detected),
+                                        (double) truePositives / Math.max(1, labelledAnomalies),
+                                        labelledAnomalies));
+        }
+        logger.info(report);
+    }
+
+    private boolean[] replay(AnomalyDetector detector) {
+        Map<String, JuggaloaderStreamState> states = new HashMap<>();
+        Map<String, Object> metaData = new HashMap<>();
+        boolean[] anomalies = new boolean[values.size()];
+
+        for (int i = 0; i < anomalies.length; i++) {
+            long ts = timestamps.get(i);
+            float y = values.get(i);
+            JuggaloaderStreamState state = states.get(streamKeys.get(i));
+
+            if (state == null) {
+                state = new JuggaloaderStreamState(y, ts);
+                states.put(streamKeys.get(i), state);
+            }
+
+            Values emitted = JuggaloaderTimeBase.update(state, detector, Constants.PERIOD_MINUTE, "replay",
+                                                        metricNames.get(i), MetricModeType.ABSOLUTE.toString(), ts,
+                                                        y, null, metaData, criteria.get(i));
+            anomalies[i] = emitted != null && (Boolean) emitted.get(13);
+        }
+        return anomalies;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Bounded, least recently used cache of the last hashtags seen per event target, used by {@link AbstractMetricsBolt}
+ * to diff the hashtags of an UPDATE event against the previous version of its target without going to the event
+ * stream.  The cache is fed by the events the bolt processes itself, which is why the metrics bolts are fields
+ * grouped on targetId.
+ */
+public class HashtagCache {
+
+    private final Map<String, CachedHashtags> entries;
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * Constructor.
+     *
+     * @param owner   the class the hit/miss counters are registered for
+     * @param maxSize the maximum number of targets to remember
+     */
+    public HashtagCache(Class<?> owner, final int maxSize) {
+        this.entries = new LinkedHashMap<String, CachedHashtags>(16, 0.75f, true) {
+            private static final long serialVersionUID = 2457918123471395061L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedHashtags> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.hits = Metrics.newCounter(owner, "hashtag-cache-hits");
+        this.misses = Metrics.newCounter(owner, "hashtag-cache-misses");
+    }
+
+    /**
+     * Returns the hashtags of the target at the given version, counting a hit or a miss.
+     *
+     * @param targetId the target id
+     * @param version  the target version
+     * @return the hashtags or null if the target isn't cached at that version
+     */
+    public Set<String> get(String targetId, int version) {
+        CachedHashtags entry = entries.get(targetId);
+
+        if (entry != null && entry.version == version) {
+            hits.inc();
+            return entry.hashtags;
+        }
+        misses.inc();
+        return null;
+    }
+
+    /**
+     * Remembers the hashtags of the target at the given version.
+     *
+     * @param targetId the target id
+     * @param version  the target version
+     * @param hashtags the hashtags
+     */
+    public void put(String targetId, int version, Set<String> hashtags) {
+        entries.put(targetId, new CachedHashtags(version, new HashSet<>(hashtags)));
+    }
+
+    /**
+     * Forgets the target.
+     *
+     * @param targetId the target id
+     */
+    public void remove(String targetId) {
+        entries.remove(targetId);
+    }
+
+    /**
+     * Returns the number of targets cached.
+     *
+     * @return the number of targets cached
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static class CachedHashtags {
+        private final int version;
+        private final Set<String> hashtags;
+
+        private CachedHashtags(int version, Set<String> hashtags) {
+            this.version = version;
+            this.hashtags = hashtags;
+        }
+    }
+
+}
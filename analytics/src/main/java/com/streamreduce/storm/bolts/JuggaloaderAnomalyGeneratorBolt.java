@@ -73,7 +73,10 @@ public class JuggaloaderAnomalyGeneratorBolt extends NodeableUnreliableBolt {
     }
 
     private void produce(Map<String, Object> map) {
-        CamelFacade.sendInsightMessage(map);
+        if (!CamelFacade.publishInsightMessage(map)) {
+            // the publisher is backed up, wait for the broker rather than drop the insight
+            CamelFacade.sendInsightMessage(map);
+        }
     }
 
     /**
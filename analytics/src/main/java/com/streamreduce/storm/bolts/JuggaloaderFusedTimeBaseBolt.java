@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.Map;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import com.streamreduce.core.metric.MetricModeType;
+import com.streamreduce.storm.JuggaloaderStreamState;
+import com.streamreduce.storm.JuggaloaderStreamStateCheckpointer;
+import com.streamreduce.storm.MongoClient;
+import com.streamreduce.storm.MultiGranularityStreamStateStore;
+import com.streamreduce.storm.QuantileSketch;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs every granularity of the Juggaloader in one bolt, in place of a chain of {@link JuggaloaderTimeBaseBolt}s.
+ * A sample is parsed, whitelisted and looked up once, then cascaded through the granularities in process: what a
+ * granularity emits is fed to the next one exactly as the chained bolt would receive it (anomalies excepted, those
+ * are filtered by the next bolt in the chain), so the output is the same as the chain's.
+ * <p/>
+ * The output of each granularity is emitted to a stream named after it, with the {@link JuggaloaderTimeBaseBolt}
+ * fields.  Stream states are checkpointed per granularity under the same documents as the chained bolts, so
+ * switching layouts keeps the learned state.
+ */
+public class JuggaloaderFusedTimeBaseBolt extends NodeableUnreliableBolt {
+
+    private static final long serialVersionUID = -3387720584135307658L;
+    private static final MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
+    private static Logger logger = Logger.getLogger(JuggaloaderFusedTimeBaseBolt.class);
+    private static final int SKETCH_FIELD = JuggaloaderTimeBaseBolt.OUTPUT_FIELDS.fieldIndex("sketch");
+
+    private final String[] granularities;
+    private final long[] periods;
+    private boolean checkpointEnabled = JuggaloaderTimeBase.CHECKPOINT_ENABLED;
+    private transient MultiGranularityStreamStateStore states;
+    private transient JuggaloaderStreamStateCheckpointer[] checkpointers;
+
+    /**
+     * Constructor.
+     *
+     * @param granularities the names of the granularities, from finest to coarsest, also the output stream ids
+     * @param periods       the period of each granularity (ms)
+     */
+    public JuggaloaderFusedTimeBaseBolt(String[] granularities, long[] periods) {
+        if (granularities.length != periods.length || granularities.length == 0) {
+            throw new IllegalArgumentException("Expected one period for each of at least one granularity");
+        }
+        this.granularities = granularities.clone();
+        this.periods = periods.clone();
+    }
+
+    /**
+     * Enables or disables restoring and checkpointing the stream states, <code>juggaloader.checkpoint.enabled</code>
+     * by default.  The backfill topology disables it so it neither starts from nor overwrites the live states.
+     *
+     * @param checkpointEnabled whether the stream states are checkpointed
+     */
+    public void setCheckpointEnabled(boolean checkpointEnabled) {
+        this.checkpointEnabled = checkpointEnabled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prepare(Map stormConfiguration, TopologyContext topologyContext, OutputCollector outputCollector) {
+        super.prepare(stormConfiguration, topologyContext, outputCollector);
+        states = new MultiGranularityStreamStateStore(periods.length);
+
+        if (checkpointEnabled) {
+            int numTasks = topologyContext.getComponentTasks(topologyContext.getThisComponentId()).size();
+
+            checkpointers = new JuggaloaderStreamStateCheckpointer[periods.length];
+            for (int level = 0; level < periods.length; level++) {
+                checkpointers[level] = new JuggaloaderStreamStateCheckpointer(mongoClient, periods[level],
+                                                                              topologyContext.getThisTaskIndex(),
+                                                                              numTasks,
+                                                                              JuggaloaderTimeBase.CHECKPOINT_INTERVAL);
+                try {
+                    checkpointers[level].restore(states.level(level));
+                } catch (Exception e) {
+                    logger.error("Unable to restore stream states for JuggaloaderFusedTimeBaseBolt(" +
+                                         periods[level] + "): " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void realExecute(Tuple tuple) {
+        try {
+            String accountId = tuple.getStringByField("metricAccount");
+            String metricName = tuple.getStringByField("metricName");
+            String mtype = tuple.getStringByField("metricType");
+            long ts = tuple.getLongByField("metricTimestamp");
+            float y = tuple.getFloatByField("metricValue");
+            Map<String, Object> metaData = (Map<String, Object>) tuple.getValueByField("metaData");
+            Map<String, String> metricCriteria = (Map<String, String>) tuple.getValueByField("metricCriteria");
+
+            if (!JuggaloaderTimeBase.accepts(tuple, metricName, metricCriteria)) {
+                return;
+            }
+
+            Values values;
+            MultiGranularityStreamStateStore.Stream stream;
+
+            if (mtype.startsWith("debug.")) {
+                // Debug commands only reach the finest granularity, the chained bolts emit them as regular samples
+                values = JuggaloaderTimeBase.process(states.level(0), periods[0], accountId, metricName, mtype, ts,
+                                                     y, null, metaData, metricCriteria);
+                stream = states.getStream(accountId, metricName, metricCriteria);
+            } else {
+                stream = states.getStream(accountId, metricName, metricCriteria);
+                values = process(stream, 0, accountId, metricName, mtype, ts, y, null, metaData, metricCriteria);
+            }
+
+            int level = 0;
+            while (values != null) {
+                emit(granularities[level], values); // anchored in reliable mode
+
+                level++;
+                // the next bolt in the chain would drop anomalies
+                if (level == periods.length || (Boolean) values.get(13)) {
+                    break;
+                }
+                values = process(stream, level, accountId, metricName, MetricModeType.ABSOLUTE.toString(),
+                                 (Long) values.get(3), (Float) values.get(4), (QuantileSketch) values.get(SKETCH_FIELD),
+                                 metaData, metricCriteria);
+            }
+
+            if (checkpointers != null) {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < checkpointers.length; i++) {
+                    checkpointers[i].maybeCheckpoint(states.level(i), now);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unknown exception type in JuggaloaderFusedTimeBaseBolt " + e.getMessage(), e);
+            fail(tuple);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cleanup() {
+        if (checkpointers != null) {
+            for (int level = 0; level < checkpointers.length; level++) {
+                checkpointers[level].checkpoint(states.level(level));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        for (String granularity : granularities) {
+            declarer.declareStream(granularity, JuggaloaderTimeBaseBolt.OUTPUT_FIELDS);
+        }
+    }
+
+    private Values process(MultiGranularityStreamStateStore.Stream stream, int level, String accountId,
+                           String metricName, String mtype, long ts, float y, QuantileSketch samples,
+                           Map<String, Object> metaData, Map<String, String> metricCriteria) {
+        JuggaloaderStreamState state = states.get(stream, level);
+
+        // initialize the stream state variables if they aren't already there
+        if (state == null) {
+            state = states.create(stream, level, y, ts);
+        }
+
+        Values values = JuggaloaderTimeBase.update(state, periods[level], accountId, metricName, mtype, ts, y,
+                                                   samples, metaData, metricCriteria);
+        states.update(stream, level);
+        return values;
+    }
+
+}
@@ -17,11 +17,15 @@
 package com.streamreduce.storm.bolts;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import backtype.storm.Config;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Tuple;
 import com.streamreduce.Constants;
@@ -42,8 +46,11 @@ import org.apache.log4j.Logger;
  * also get passed on.
  *
  * Otherwise they are bucketted by accountId + targetConnectionId and type (whether
- * it's a status or summary). checkBuckets() decide when to flush them in which
- * case it aggregates the tuples in the bucket and passes them to be "message'ed".
+ * it's a status or summary). A bucket is flushed as soon as it's full, or once it
+ * expires, in which case it aggregates the tuples in the bucket and passes them to
+ * be "message'ed". Buckets all live for the same time so they expire in the order
+ * they were created: only the oldest ones need to be checked, on each tuple and
+ * on tick tuples so buckets also expire when no tuples arrive.
  */
 public class JuggaloaderMessageGeneratorBolt extends NodeableUnreliableBolt {
 
@@ -51,7 +58,17 @@ public class JuggaloaderMessageGeneratorBolt extends NodeableUnreliableBolt {
     private static final long serialVersionUID = 476003176010598454L;
     private int count = 0;
 
-    private Map<String, Object> buckets = new ConcurrentHashMap<>();
+    // Tick often enough that buckets don't outlive their MAX_TIME by much
+    private static final int TICK_FREQ_SECS = 10;
+    private static final Comparator<Map<String, Object>> BY_STDDEV_DESCENDING = new Comparator<Map<String, Object>>() {
+        @Override
+        public int compare(Map<String, Object> row1, Map<String, Object> row2) {
+            return Float.compare((Float) row2.get("stddev"), (Float) row1.get("stddev"));
+        }
+    };
+
+    // in creation order, which is also expiry order
+    private LinkedHashMap<String, MessageAggregationBucket> buckets = new LinkedHashMap<>();
     private Map<String, Long> accountState = new ConcurrentHashMap<>();
 
     private Map<String, Object> aggregate(Map<String, Object> metric, MessageAggregationBucket bucket) {
@@ -59,8 +76,9 @@ public class JuggaloaderMessageGeneratorBolt extends NodeableUnreliableBolt {
 
         float total = 0.0f;
         float diff = 0.0f;
-        for (Object object : bucket) {
-            Map<String, Object> item = (Map<String, Object>) object;
+        // latest first so that the stable sort below keeps items with the same stddev latest first, as they always were
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Map<String, Object> item = (Map<String, Object>) bucket.get(i);
             Map<String, Object> row = new HashMap<>();
             row.put("metricCriteria", item.get("metricCriteria"));
             row.put("name", item.get("name")); // ie, CONNECTION_ACTIVITY
@@ -81,14 +99,10 @@ public class JuggaloaderMessageGeneratorBolt extends NodeableUnreliableBolt {
             total += (Float) item.get("value");
             diff += (Float) item.get("diff");
 
-            // insertion sort by stddev value
-            int idx = 0;
-            while (idx < items.size() && ((Float) (items.get(idx)).get("stddev") > (Float) row.get("stddev"))) {
-                idx += 1;
-            }
-            items.add(idx, row);
-            // items.add(row);
+            items.add(row);
         }
+        // sorted by stddev value, highest first
+        Collections.sort(items, BY_STDDEV_DESCENDING);
         metric.put("created", bucket.getCreated());
         metric.put("items", items);
         metric.put("diff", diff); // across all the items
@@ -96,40 +110,63 @@ public class JuggaloaderMessageGeneratorBolt extends NodeableUnreliableBolt {
         return metric;
     }
 
-    private void checkBuckets() {
-        Set<String> keys = buckets.keySet();
-        for (String key : keys) {
-            MessageAggregationBucket bucket = (MessageAggregationBucket) buckets.get(key);
-            if (bucket.isReady()) {
-                /*
-                 * The first item in the bucket will be the metric used as the
-                 * aggregated one. This has to be done here so no large ugly
-                 * blob of redundant metadata is persisted to mongodb.
-                 */
-                Map<String, Object> first = (Map<String, Object>) bucket.get(0);
-                produce(aggregate(first, bucket));
-                buckets.remove(key);
+    private void flushExpiredBuckets(long now) {
+        Iterator<MessageAggregationBucket> oldest = buckets.values().iterator();
+        while (oldest.hasNext()) {
+            MessageAggregationBucket bucket = oldest.next();
+            if (!bucket.isExpired(now)) {
+                break;
             }
+            oldest.remove();
+            flush(bucket);
         }
     }
 
+    private void flush(MessageAggregationBucket bucket) {
+        /*
+         * The first item in the bucket will be the metric used as the
+         * aggregated one. This has to be done here so no large ugly
+         * blob of redundant metadata is persisted to mongodb.
+         */
+        Map<String, Object> first = (Map<String, Object>) bucket.get(0);
+        produce(aggregate(first, bucket));
+    }
+
     private void bucketItem(String account, Map<String, Object> item) {
         if (item.get("targetConnectionId") != null) {
             String key = account + item.get("type") + item.get("targetConnectionId");
-            MessageAggregationBucket bucket = (MessageAggregationBucket) buckets.get(key);
+            MessageAggregationBucket bucket = buckets.get(key);
             if (bucket == null) {
                 bucket = new MessageAggregationBucket(account);
                 buckets.put(key, bucket);
             }
             bucket.add(item);
+            if (bucket.isFull()) {
+                buckets.remove(key);
+                flush(bucket);
+            }
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        Map<String, Object> componentConfiguration = new HashMap<>();
+        componentConfiguration.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, TICK_FREQ_SECS);
+        return componentConfiguration;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void realExecute(Tuple tuple) {
+        if (isTickTuple(tuple)) {
+            flushExpiredBuckets(System.currentTimeMillis());
+            return;
+        }
 
         try {
             this.count += 1;
@@ -201,7 +238,7 @@ public class JuggaloaderMessageGeneratorBolt extends NodeableUnreliableBolt {
 
             // checked each time execute() is called, even if
             // no new tuple was bucketed
-            checkBuckets();
+            flushExpiredBuckets(now);
 
         } catch (Exception e) {
             logger.error("Unknown exception type in JuggaloaderMessageGeneratorBolt " + e.getMessage(), e);
@@ -218,7 +255,10 @@ public class JuggaloaderMessageGeneratorBolt extends NodeableUnreliableBolt {
             map.put("granularity", Constants.PERIOD_HOUR);
         }
         logger.info("JuggaloaderMessageGeneratorBolt produce insight: " + mType);
-        CamelFacade.sendInsightMessage(map);
+        if (!CamelFacade.publishInsightMessage(map)) {
+            // the publisher is backed up, wait for the broker rather than drop the insight
+            CamelFacade.sendInsightMessage(map);
+        }
     }
 
     /**
@@ -22,9 +22,17 @@ import backtype.storm.tuple.Values;
 import com.streamreduce.Constants;
 import com.streamreduce.core.metric.MetricModeType;
 import com.streamreduce.storm.JuggaloaderStreamState;
+import com.streamreduce.storm.JuggaloaderStreamStateStore;
+import com.streamreduce.storm.MapStreamStateStore;
 import com.streamreduce.storm.MongoClient;
+import com.streamreduce.storm.PrimitiveStreamStateStore;
+import com.streamreduce.storm.QuantileSketch;
+import com.streamreduce.storm.detectors.AnomalyDetector;
+import com.streamreduce.storm.detectors.AnomalyDetectors;
 import org.apache.log4j.Logger;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,17 +46,121 @@ public class JuggaloaderTimeBase {
     static final int W = Integer.parseInt(topologyProps.getString("juggaloader.window"));
     static final float alpha = Float.parseFloat(topologyProps.getString("juggaloader.alpha"));
     static final float beta = Float.parseFloat(topologyProps.getString("juggaloader.beta"));
-    static final float A = Float.parseFloat(topologyProps.getString("juggaloader.a"));
     static final int SNOOZE = Integer.parseInt(topologyProps.getString("juggaloader.snooze"));
-    static final float STDDEVMIN = Float.parseFloat(topologyProps.getString("juggaloader.stddevmin"));
 
-    public static Values process(Tuple tuple, Map<String, JuggaloaderStreamState> states, long periodMillis, MongoClient mongoClient) {
+    static final String STATE_STORE = topologyProps.getString("juggaloader.state.store");
+    static final boolean CHECKPOINT_ENABLED = Boolean.parseBoolean(topologyProps.getString("juggaloader.checkpoint.enabled"));
+    static final long CHECKPOINT_INTERVAL = Long.parseLong(topologyProps.getString("juggaloader.checkpoint.interval"));
 
-        try {
+    static final int SKETCH_K = Integer.parseInt(topologyProps.getString("juggaloader.sketch.k"));
+    static final double[] QUANTILES = parseQuantiles(topologyProps.getString("juggaloader.sketch.quantiles"));
+
+    static final String DETECTOR_PREFIX = "juggaloader.detector.metric.";
+    static final AnomalyDetector DEFAULT_DETECTOR =
+            AnomalyDetectors.create(topologyProps.getString("juggaloader.detector.default").trim(), topologyProps);
+    // the detectors configured for specific metric names, read once so that lookups don't allocate
+    private static final Map<String, AnomalyDetector> metricDetectors = new HashMap<>();
+
+    static {
+        Map<String, AnomalyDetector> detectors = new HashMap<>();
+
+        detectors.put(DEFAULT_DETECTOR.getName(), DEFAULT_DETECTOR);
+        for (String key : topologyProps.keySet()) {
+            if (key.startsWith(DETECTOR_PREFIX)) {
+                String name = topologyProps.getString(key).trim();
+                AnomalyDetector detector = detectors.get(name);
+
+                if (detector == null) {
+                    detector = AnomalyDetectors.create(name, topologyProps);
+                    detectors.put(name, detector);
+                }
+                metricDetectors.put(key.substring(DETECTOR_PREFIX.length()), detector);
+            }
+        }
+    }
+
+    /**
+     * Returns the anomaly detector for the metric: the one configured by
+     * <b>juggaloader.detector.metric.&lt;metric name&gt;</b> or else by <b>juggaloader.detector.default</b>.
+     *
+     * @param metricName the metric name
+     * @return the detector
+     */
+    static AnomalyDetector detectorFor(String metricName) {
+        AnomalyDetector detector = metricDetectors.get(metricName);
+        return detector != null ? detector : DEFAULT_DETECTOR;
+    }
+
+    /**
+     * Parses a comma separated list of quantiles, each in [0, 1].
+     *
+     * @param quantiles the list, possibly empty
+     * @return the quantiles
+     */
+    static double[] parseQuantiles(String quantiles) {
+        List<Double> parsed = new ArrayList<>();
+
+        for (String quantile : quantiles.split(",")) {
+            quantile = quantile.trim();
+            if (quantile.isEmpty()) {
+                continue;
+            }
+
+            double value = Double.parseDouble(quantile);
+            if (value < 0 || value > 1) {
+                throw new IllegalArgumentException("Quantile " + quantile + " isn't in [0, 1]");
+            }
+            parsed.add(value);
+        }
+
+        double[] result = new double[parsed.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = parsed.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names of the output fields holding the {@link #QUANTILES}: <code>p</code> followed by the
+     * percentile, with an underscore for a decimal point, as in <code>p50</code>, <code>p99</code> or
+     * <code>p99_9</code>.
+     *
+     * @return the field names
+     */
+    static List<String> quantileFields() {
+        List<String> fields = new ArrayList<>(QUANTILES.length);
+
+        for (double quantile : QUANTILES) {
+            String percentile = BigDecimal.valueOf(quantile).movePointRight(2).stripTrailingZeros().toPlainString();
+            fields.add("p" + percentile.replace('.', '_'));
+        }
+        return fields;
+    }
+
+    /**
+     * Creates the {@link JuggaloaderStreamStateStore} implementation configured by <b>juggaloader.state.store</b>:
+     * <code>map</code> for the original map of state objects or <code>primitive</code> for interned stream ids and
+     * primitive arrays.
+     *
+     * @return the state store
+     */
+    public static JuggaloaderStreamStateStore createStateStore() {
+        if ("primitive".equals(STATE_STORE)) {
+            return new PrimitiveStreamStateStore();
+        }
+        if (!"map".equals(STATE_STORE)) {
+            logger.warn("Unknown juggaloader.state.store of " + STATE_STORE + ", using map");
+        }
+        return new MapStreamStateStore();
+    }
 
-            float diff, avgy, sValue, stddev;
+    public static Values process(Tuple tuple, Map<String, JuggaloaderStreamState> states, long periodMillis, MongoClient mongoClient) {
+        return process(tuple, new MapStreamStateStore(states), periodMillis, mongoClient);
+    }
+
+    public static Values process(Tuple tuple, JuggaloaderStreamStateStore states, long periodMillis, MongoClient mongoClient) {
 
-            boolean anomaly = false; // whether this sample is detected to be an anomaly
+        try {
             String accountId = tuple.getStringByField("metricAccount");
             String metricName = tuple.getStringByField("metricName");
             String mtype = tuple.getStringByField("metricType");
@@ -56,170 +168,251 @@ public class JuggaloaderTimeBase {
             float y = tuple.getFloatByField("metricValue");
             Map<String, Object> metaData = (Map<String, Object>) tuple.getValueByField("metaData");
             Map<String, String> metricCriteria = (Map<String, String>)tuple.getValueByField("metricCriteria");
-            String key = accountId + metricName + metricCriteria.toString();
 
-            // for now, filter out things we dont display, no sense storing them
-            if (! MetricsWhitelist.whitelist(metricName, (HashMap<String, String>) metricCriteria)) {
+            if (!accepts(tuple, metricName, metricCriteria)) {
                 return null;
             }
 
-            // TODO in storm 0.8.0 the backtype.storm.tuple.Tuple became an interface that doesn't
-            // support .get() .containsKey() etc.. so had to cast to a TupleImpl to test for the
-            // "anomaly" field's existence below
+            // the samples the value stands for when it comes from a previous granularity
+            QuantileSketch samples = ((TupleImpl) tuple).containsKey("sketch") ?
+                    (QuantileSketch) tuple.getValueByField("sketch") : null;
 
-            // filter out incoming anomalies from upstream time-bolts
-            if(((TupleImpl)tuple).containsKey("anomaly") && tuple.getBooleanByField("anomaly")) {
-                return null;
-            }
+            return process(states, periodMillis, accountId, metricName, mtype, ts, y, samples, metaData,
+                           metricCriteria);
+        } catch (Exception e) {
+            logger.error("Unknown exception type in JuggaloaderTimeBase " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a time-base bolt processes the tuple at all: metrics that aren't displayed and anomalies
+     * emitted by an upstream time-base bolt are dropped.
+     *
+     * @param tuple          the tuple
+     * @param metricName     the tuple's metric name
+     * @param metricCriteria the tuple's metric criteria
+     * @return true if the tuple should be processed
+     */
+    static boolean accepts(Tuple tuple, String metricName, Map<String, String> metricCriteria) {
+        // for now, filter out things we dont display, no sense storing them
+        if (! MetricsWhitelist.whitelist(metricName, (HashMap<String, String>) metricCriteria)) {
+            return false;
+        }
+
+        // TODO in storm 0.8.0 the backtype.storm.tuple.Tuple became an interface that doesn't
+        // support .get() .containsKey() etc.. so had to cast to a TupleImpl to test for the
+        // "anomaly" field's existence below
+
+        // filter out incoming anomalies from upstream time-bolts
+        return !(((TupleImpl)tuple).containsKey("anomaly") && tuple.getBooleanByField("anomaly"));
+    }
+
+    /**
+     * Processes an accepted sample, including the debug metric types, against the stream's state in the store.
+     *
+     * @param samples the samples summarized by the sample, see {@link #update}
+     * @return the values to emit or null
+     */
+    static Values process(JuggaloaderStreamStateStore states, long periodMillis, String accountId, String metricName,
+                          String mtype, long ts, float y, QuantileSketch samples, Map<String, Object> metaData,
+                          Map<String, String> metricCriteria) {
 
-            // a metricType "clear" will remove all state for the stream
-            // specified by metricName (for the metricAccount)
-            if(mtype.equals("debug.clear")) {
-                states.remove(key);
+        // a metricType "clear" will remove all state for the stream
+        // specified by metricName (for the metricAccount)
+        if(mtype.equals("debug.clear")) {
+            states.remove(accountId, metricName, metricCriteria);
+        }
+        if(mtype.equals("debug.clearall")) {
+            states.clear();
+        }
+        if(mtype.equals("debug.numstates")) {
+            logger.error("JuggaloaderTimeBase(" + periodMillis + "), numstates: " + states.size());
+        }
+
+        JuggaloaderStreamState state = states.get(accountId, metricName, metricCriteria);
+
+        if(mtype.equals("debug.state")) {
+            logger.error("JuggaloaderTimeBase(" + periodMillis + "), states: " + state);
+        }
+
+
+        // initialize the stream state variables if they aren't already there
+        if (state == null) {
+            state = states.create(accountId, metricName, metricCriteria, y, ts);
+        }
+
+        if(mtype.equals("debug.set")) {
+            String name = (String) metaData.get("name");
+            float value = Float.parseFloat((String)metaData.get("value"));
+            logger.error("JuggaloaderTimeBase(" + periodMillis + "), setting: " + name + " = " + value);
+            if("mean".equals(name)) {
+                state.yAvgLast = value;
+            }
+            if("stddev".equals(name)) {
+                state.yStdDevLast = value;
+            }
+            if("min".equals(name)) {
+                state.min = value;
             }
-            if(mtype.equals("debug.clearall")) {
-                states.clear();
+            if("max".equals(name)) {
+                state.max= value;
             }
-            if(mtype.equals("debug.numstates")) {
-                logger.error("JuggaloaderTimeBase(" + periodMillis + "), numstates: " + states.size());
+            if("n".equals(name)) {
+                state.n = (int)value;
             }
+        }
 
-            JuggaloaderStreamState state = states.get(key);
+        Values retValue = update(state, periodMillis, accountId, metricName, mtype, ts, y, samples, metaData,
+                                 metricCriteria);
+        states.update(state);
+        return retValue;
+    }
 
-            if(mtype.equals("debug.state")) {
-                logger.error("JuggaloaderTimeBase(" + periodMillis + "), states: " + state);
-            }
+    /**
+     * Applies a sample to the stream's state, the Juggaloader calculation proper, with the metric's anomaly detector.
+     *
+     * @param samples the sketch of the samples the sample stands for when it was emitted by a finer granularity, or
+     *                null for a raw sample
+     * @return the values to emit, or null if this sample isn't emitted at the state's granularity
+     */
+    static Values update(JuggaloaderStreamState state, long periodMillis, String accountId, String metricName,
+                         String mtype, long ts, float y, QuantileSketch samples, Map<String, Object> metaData,
+                         Map<String, String> metricCriteria) {
+        return update(state, detectorFor(metricName), periodMillis, accountId, metricName, mtype, ts, y, samples,
+                      metaData, metricCriteria);
+    }
 
+    /**
+     * Applies a sample to the stream's state with the given anomaly detector.
+     * <p/>
+     * Unless this is the finest granularity (a period of 0) the samples of the current period are sketched: raw
+     * samples are added to the stream's sketch, the sketches emitted by a finer granularity are merged into it, so the
+     * quantiles of coarse granularities cover every sample rather than the ones emitted by the finer granularity.  The
+     * emitted values end with the {@link #QUANTILES} of the period and, unless it's an anomaly (those are dropped by
+     * the next granularity), the period's sketch, after which the stream starts a new one.
+     *
+     * @param samples the sketch of the samples the sample stands for when it was emitted by a finer granularity, or
+     *                null for a raw sample
+     * @return the values to emit, or null if this sample isn't emitted at the state's granularity
+     */
+    static Values update(JuggaloaderStreamState state, AnomalyDetector detector, long periodMillis, String accountId,
+                         String metricName, String mtype, long ts, float y, QuantileSketch samples,
+                         Map<String, Object> metaData, Map<String, String> metricCriteria) {
 
-            // initialize the stream state variables if they aren't already there
-//System.out.println("vasil: state null: " + (state == null));
-            if (state == null) {
-                if (false && mongoClient != null) { // TODO
-                    List<Map<String, Object>> snapShots = mongoClient.getLastTwoTuples(accountId, metricName, periodMillis);
-//System.out.println("vasil: snapShots null: " + (snapShots == null));
-                    if (snapShots != null && snapShots.size() == 2) {
-//System.out.println("vasil: snapShots 2");
-                        //state = new JuggaloaderStreamState(snapShots.get(0), snapShots.get(1));
-                        states.put(key, state);
-                        if (tuple.getLongByField("metricTimestamp") <= Long.parseLong((String)snapShots.get(0).get("metricTimestamp"))) {
-                            return null;
-                        }
-                    }
-                    else {
-//System.out.println("vasil: snapShots length not 2");
-                    }
-                }
-                if (state == null) {
-//System.out.println("vasil: state clean init");
-                    state = new JuggaloaderStreamState(y, ts);
-                    states.put(key, state);
-                }
-            }
+        float diff, avgy, sValue, stddev;
 
-            if(mtype.equals("debug.set")) {
-                String name = (String) metaData.get("name");
-                float value = Float.parseFloat((String)metaData.get("value"));
-                logger.error("JuggaloaderTimeBase(" + periodMillis + "), setting: " + name + " = " + value);
-                if("mean".equals(name)) {
-                    state.yAvgLast = value;
-                }
-                if("stddev".equals(name)) {
-                    state.yStdDevLast = value;
-                }
-                if("min".equals(name)) {
-                    state.min = value;
-                }
-                if("max".equals(name)) {
-                    state.max= value;
-                }
-                if("n".equals(name)) {
-                    state.n = (int)value;
-                }
-            }
+        boolean anomaly = false; // whether this sample is detected to be an anomaly
 
-            // If this sample is a diff, fix y to be the
-            // absolute value by applying the diff to ylast.
-            if (mtype.equals(MetricModeType.DELTA.toString())) {
-                y = state.ylast + y;
-            }
+        // If this sample is a diff, fix y to be the
+        // absolute value by applying the diff to ylast.
+        if (mtype.equals(MetricModeType.DELTA.toString())) {
+            y = state.ylast + y;
+        }
 
-            diff = y - state.ylast;
+        diff = y - state.ylast;
 
-            // calculate decaying windowed average
-            avgy = (
-                (JuggaloaderTimeBase.alpha * state.yAvgLast)
-                + (
-                    (
-                        (JuggaloaderTimeBase.beta * y) - (JuggaloaderTimeBase.alpha * state.yAvgLast)
-                    )
-                    / Math.min(JuggaloaderTimeBase.W, state.n)
+        // calculate decaying windowed average
+        avgy = (
+            (JuggaloaderTimeBase.alpha * state.yAvgLast)
+            + (
+                (
+                    (JuggaloaderTimeBase.beta * y) - (JuggaloaderTimeBase.alpha * state.yAvgLast)
                 )
-            );
-
-            // calculate decaying windowed standard deviation
-            // note state.yStdDevLast is actually the last value of sValue
-            sValue = (
-                (JuggaloaderTimeBase.alpha * state.yStdDevLast)
-                + (JuggaloaderTimeBase.beta * (y - state.yAvgLast) * (y - avgy))
-            );
-            stddev = (float) Math.sqrt(Math.abs(sValue / Math.min(state.n, JuggaloaderTimeBase.W)));
-
-            // Check if this sample is considered an anomaly
-            // Make sure this stream has seen W samples already
-            // And don't report anything for a few samples after a previous anomaly
-            anomaly = false;
-            if (state.n > JuggaloaderTimeBase.W &&
-                    periodMillis > 0 &&
-                    MetricsWhitelist.whiteListedForAnomalies(metricName, metricCriteria) &&
-                    state.anomalyReset == 0 &&
-                    stddev > JuggaloaderTimeBase.STDDEVMIN &&
-                    Math.abs(JuggaloaderTimeBase.A * stddev) < Math.abs(y - avgy)) {
-
-                anomaly = true;
-                state.anomalyReset = (byte)JuggaloaderTimeBase.SNOOZE; // don't report more anomalies for next 3 samples
+                / Math.min(JuggaloaderTimeBase.W, state.n)
+            )
+        );
+
+        // calculate decaying windowed standard deviation
+        // note state.yStdDevLast is actually the last value of sValue
+        sValue = (
+            (JuggaloaderTimeBase.alpha * state.yStdDevLast)
+            + (JuggaloaderTimeBase.beta * (y - state.yAvgLast) * (y - avgy))
+        );
+        stddev = (float) Math.sqrt(Math.abs(sValue / Math.min(state.n, JuggaloaderTimeBase.W)));
+
+        // The detector learns from every sample, its state is allocated once per stream
+        int stateSize = detector.getStateSize();
+        if (stateSize == 0) {
+            state.detectorState = null;
+        } else if (state.detectorState == null || state.detectorState.length != stateSize) {
+            state.detectorState = new float[stateSize];
+        }
+        boolean outlier = detector.isOutlier(state, y, ts, avgy, stddev);
+
+        // Check if this sample is considered an anomaly
+        // Make sure this stream has seen W samples already
+        // And don't report anything for a few samples after a previous anomaly
+        anomaly = false;
+        if (outlier &&
+                state.n > JuggaloaderTimeBase.W &&
+                periodMillis > 0 &&
+                MetricsWhitelist.whiteListedForAnomalies(metricName, metricCriteria) &&
+                state.anomalyReset == 0) {
+
+            anomaly = true;
+            state.anomalyReset = (byte)JuggaloaderTimeBase.SNOOZE; // don't report more anomalies for next 3 samples
+        }
+
+        state.yAvgLast = avgy;
+        state.yStdDevLast = sValue;
+        state.anomalyReset = (byte) Math.max(0, state.anomalyReset - 1); // decrement the snooze timer on the anomaly
+        state.n = state.n + 1; // update running tally of the # of samples
+
+        // update the stream state variables
+        state.ylast = y;
+        state.tslast = ts;
+        state.min = Math.min(y, state.min);
+        state.max = Math.max(y, state.max);
+
+        if (periodMillis > 0 && QUANTILES.length > 0) {
+            if (state.sketch == null) {
+                state.sketch = new QuantileSketch(SKETCH_K);
+            }
+            if (samples != null) {
+                state.sketch.merge(samples);
+            } else {
+                state.sketch.add(y);
             }
+        }
 
-            state.yAvgLast = avgy;
-            state.yStdDevLast = sValue;
-            state.anomalyReset = (byte) Math.max(0, state.anomalyReset - 1); // decrement the snooze timer on the anomaly
-            state.n = state.n + 1; // update running tally of the # of samples
-
-            // update the stream state variables
-            state.ylast = y;
-            state.tslast = ts;
-            state.min = Math.min(y, state.min);
-            state.max = Math.max(y, state.max);
-
-            // Only emit a value if enough time has elapsed since the
-            // last emitted sample based on this bolt's period.
-            Values retValue = null;
-            if (anomaly || ((ts - state.tsLastEmitted) >= periodMillis)) {
-                if(state.tsLastEmitted > 0 || periodMillis < Constants.PERIOD_HOUR) {
-                    retValue = new Values(
-                            accountId,
-                            metricName,
-                            MetricModeType.ABSOLUTE.toString(),
-                            ts,
-                            y,
-                            metricCriteria,
-                            metaData,
-                            periodMillis,
-                            avgy,
-                            stddev,
-                            diff,
-                            state.min,
-                            state.max,
-                            anomaly
-                        );
-                }
+        // Only emit a value if enough time has elapsed since the
+        // last emitted sample based on this bolt's period.
+        Values retValue = null;
+        if (anomaly || ((ts - state.tsLastEmitted) >= periodMillis)) {
+            QuantileSketch period = state.sketch;
+
+            if(state.tsLastEmitted > 0 || periodMillis < Constants.PERIOD_HOUR) {
                 if (!anomaly) {
-                    state.tsLastEmitted = ts;
+                    state.sketch = null; // handed over to the next granularity
                 }
+                retValue = new Values(
+                        accountId,
+                        metricName,
+                        MetricModeType.ABSOLUTE.toString(),
+                        ts,
+                        y,
+                        metricCriteria,
+                        metaData,
+                        periodMillis,
+                        avgy,
+                        stddev,
+                        diff,
+                        state.min,
+                        state.max,
+                        anomaly
+                    );
+
+                float[] quantiles = period != null ? period.getQuantiles(QUANTILES) : null;
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    retValue.add(quantiles != null ? quantiles[i] : null);
+                }
+                retValue.add(anomaly ? null : period);
+            }
+            if (!anomaly) {
+                state.tsLastEmitted = ts;
             }
-            return retValue;
-        } catch (Exception e) {
-            logger.error("Unknown exception type in JuggaloaderTimeBase " + e.getMessage(), e);
         }
-        return null;
+        return retValue;
     }
 }
@@ -17,12 +17,17 @@
 package com.streamreduce.storm.bolts;
 
 import com.streamreduce.Constants;
-import com.streamreduce.storm.JuggaloaderStreamState;
+import com.streamreduce.storm.JuggaloaderStreamStateCheckpointer;
+import com.streamreduce.storm.JuggaloaderStreamStateStore;
 import com.streamreduce.storm.MongoClient;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
@@ -35,8 +40,12 @@ public class JuggaloaderTimeBaseBolt extends NodeableUnreliableBolt {
     private static final MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
     private static Logger logger = Logger.getLogger(JuggaloaderTimeBaseBolt.class);
 
+    static final Fields OUTPUT_FIELDS = createOutputFields();
+
     private long periodMillis = Constants.PERIOD_MINUTE;
-    private Map<String, JuggaloaderStreamState> states = new HashMap<>();
+    private boolean checkpointEnabled = JuggaloaderTimeBase.CHECKPOINT_ENABLED;
+    private transient JuggaloaderStreamStateStore states;
+    private transient JuggaloaderStreamStateCheckpointer checkpointer;
 
     public JuggaloaderTimeBaseBolt(int period) {
         this.setPeriodMillis((long) period);
@@ -46,12 +55,45 @@ public class JuggaloaderTimeBaseBolt extends NodeableUnreliableBolt {
         this.setPeriodMillis(periodMillis);
     }
 
+    private static Fields createOutputFields() {
+        List<String> fields = new ArrayList<>(Arrays.asList(
+            "metricAccount", // The account the metric's value should be credited/stored in
+            "metricName", // The metric's name
+            "metricType", // The metric's type
+            "metricTimestamp", // The metric's timestamp
+            "metricValue", // The metric's value
+            "metricCriteria", // key/value pairs used for querying and uniquing of the metric entry
+            "metaData", // Metadata used downstream for generating nodebellys
+            "granularity", // the granularity of time this sample represents (in ms)
+            "avgy", // mean
+            "stddev", // standard deviation
+            "diff", // diff from last value (maintained for both ABSOLUTE and DELTA types)
+            "min", // minimum seen so far       F
+            "max", // maximum seen so far
+            "anomaly" // is this sample considered an anomaly
+        ));
+
+        fields.addAll(JuggaloaderTimeBase.quantileFields()); // the configured quantiles of the period, p50 etc.
+        fields.add("sketch"); // the sketch of the period's samples, merged by the next granularity
+        return new Fields(fields);
+    }
+
     public void setPeriodMillis(long periodMillis) {
         this.periodMillis = periodMillis;
     }
 
-    public void resetStreamState(String name) {
-        states.remove(name);
+    /**
+     * Enables or disables restoring and checkpointing the stream states, <code>juggaloader.checkpoint.enabled</code>
+     * by default.  The backfill topology disables it so it neither starts from nor overwrites the live states.
+     *
+     * @param checkpointEnabled whether the stream states are checkpointed
+     */
+    public void setCheckpointEnabled(boolean checkpointEnabled) {
+        this.checkpointEnabled = checkpointEnabled;
+    }
+
+    public void resetStreamState(String accountId, String metricName, Map<String, String> metricCriteria) {
+        states.remove(accountId, metricName, metricCriteria);
     }
 
     public void resetAllStreams() {
@@ -72,6 +114,28 @@ public class JuggaloaderTimeBaseBolt extends NodeableUnreliableBolt {
         return true;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prepare(Map stormConfiguration, TopologyContext topologyContext, OutputCollector outputCollector) {
+        super.prepare(stormConfiguration, topologyContext, outputCollector);
+        states = JuggaloaderTimeBase.createStateStore();
+
+        if (checkpointEnabled) {
+            int numTasks = topologyContext.getComponentTasks(topologyContext.getThisComponentId()).size();
+            checkpointer = new JuggaloaderStreamStateCheckpointer(mongoClient, periodMillis,
+                                                                  topologyContext.getThisTaskIndex(), numTasks,
+                                                                  JuggaloaderTimeBase.CHECKPOINT_INTERVAL);
+            try {
+                checkpointer.restore(states);
+            } catch (Exception e) {
+                logger.error("Unable to restore stream states for JuggaloaderTimeBaseBolt(" + periodMillis + "): " +
+                                     e.getMessage(), e);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -80,11 +144,24 @@ public class JuggaloaderTimeBaseBolt extends NodeableUnreliableBolt {
         try {
             Values values = JuggaloaderTimeBase.process(tuple, states, periodMillis, mongoClient);
             if (values != null) {
-                outputCollector.emit(values); // we are not anchoring this, do we care?
+                emit(values); // anchored in reliable mode
+            }
+            if (checkpointer != null) {
+                checkpointer.maybeCheckpoint(states, System.currentTimeMillis());
             }
         } catch (Exception e) {
             logger.error("Unknown exception type in JuggaloaderTimeBaseBolt " + e.getMessage(), e);
-            //outputCollector.fail(tuple);
+            fail(tuple);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cleanup() {
+        if (checkpointer != null) {
+            checkpointer.checkpoint(states);
         }
     }
 
@@ -93,22 +170,7 @@ public class JuggaloaderTimeBaseBolt extends NodeableUnreliableBolt {
      */
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-        declarer.declare(new Fields(
-                "metricAccount", // The account the metric's value should be credited/stored in
-                "metricName", // The metric's name
-                "metricType", // The metric's type
-                "metricTimestamp", // The metric's timestamp
-                "metricValue", // The metric's value
-                "metricCriteria", // key/value pairs used for querying and uniquing of the metric entry
-                "metaData", // Metadata used downstream for generating nodebellys
-                "granularity", // the granularity of time this sample represents (in ms)
-                "avgy", // mean
-                "stddev", // standard deviation
-                "diff", // diff from last value (maintained for both ABSOLUTE and DELTA types)
-                "min", // minimum seen so far       F
-                "max", // maximum seen so far
-                "anomaly" // is this sample considered an anomaly
-        ));
+        declarer.declare(OUTPUT_FIELDS);
     }
 
 }
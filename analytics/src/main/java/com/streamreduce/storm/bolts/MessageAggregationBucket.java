@@ -19,10 +19,14 @@ package com.streamreduce.storm.bolts;
 import java.util.ArrayList;
 import com.streamreduce.Constants;
 
+/**
+ * Items of a message being aggregated, ready to be sent once it holds {@link #MAX_LENGTH} items or is older than
+ * {@link #MAX_TIME}.
+ */
 public class MessageAggregationBucket extends ArrayList<Object> {
     private static final long serialVersionUID = -7354216107723004515L;
-    private static final int MAX_LENGTH = 40; // TODO
-    private static final long MAX_TIME = Constants.PERIOD_MINUTE * 5;
+    static final int MAX_LENGTH = 40; // TODO
+    static final long MAX_TIME = Constants.PERIOD_MINUTE * 5;
     private long created;
     String account;
     
@@ -44,6 +48,14 @@ public class MessageAggregationBucket extends ArrayList<Object> {
     }
     
     public boolean isReady() {
-        return ( size() >= MAX_LENGTH || ((System.currentTimeMillis() - created) > MAX_TIME));
+        return isFull() || isExpired(System.currentTimeMillis());
+    }
+
+    public boolean isFull() {
+        return size() >= MAX_LENGTH;
+    }
+
+    public boolean isExpired(long now) {
+        return (now - created) > MAX_TIME;
     }
-}
\ No newline at end of file
+}
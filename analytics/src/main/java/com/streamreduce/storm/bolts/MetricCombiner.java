@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import com.streamreduce.core.metric.MetricModeType;
+
+/**
+ * Pre-aggregates {@link MetricModeType#DELTA} metrics created by {@link AbstractMetricsBolt} before they are emitted.
+ * Deltas for the same (metricAccount, metricId) are summed into a single metric carrying the latest timestamp, so a
+ * burst of events touching the same counters turns into one tuple per counter instead of one per event.
+ * <p/>
+ * The combiner is exact at flush time: the sum of the emitted deltas for a counter always equals the sum of the
+ * deltas added for it.  At most <code>maxKeys</code> counters are held, the combiner reports it is full at that
+ * point and must be drained.
+ * <p/>
+ * In reliable mode the input tuples each delta came from are kept as the anchors of the combined metric.
+ */
+public class MetricCombiner {
+
+    private final long windowMillis;
+    private final int maxKeys;
+    private final Map<String, Values> pending = new LinkedHashMap<>();
+    private final Map<String, List<Tuple>> anchors = new LinkedHashMap<>();
+    private long windowStart;
+
+    /**
+     * Constructor.
+     *
+     * @param windowMillis how long deltas are combined for before the combiner is due to be drained
+     * @param maxKeys      the number of counters at which the combiner is full
+     */
+    public MetricCombiner(long windowMillis, int maxKeys) {
+        this.windowMillis = windowMillis;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Returns whether the metric can be combined, only deltas can.
+     *
+     * @param metric the metric
+     * @return true if the metric is a delta
+     */
+    public static boolean isCombinable(Values metric) {
+        return metric.get(2) == MetricModeType.DELTA;
+    }
+
+    /**
+     * Adds a delta metric, summing it into any pending metric for the same account and metric id.
+     *
+     * @param metric the metric, as created by {@link AbstractMetricsBolt}
+     * @param now    the current time
+     * @return true if the combiner is full and should be drained
+     */
+    public boolean add(Values metric, long now) {
+        return add(metric, null, now);
+    }
+
+    /**
+     * Adds a delta metric, summing it into any pending metric for the same account and metric id, and remembers the
+     * tuple it came from as an anchor of the combined metric.
+     *
+     * @param metric the metric, as created by {@link AbstractMetricsBolt}
+     * @param anchor the tuple the metric came from, or null
+     * @param now    the current time
+     * @return true if the combiner is full and should be drained
+     */
+    public boolean add(Values metric, Tuple anchor, long now) {
+        String key = key(metric);
+        Values combined = pending.get(key);
+
+        if (pending.isEmpty()) {
+            windowStart = now;
+        }
+
+        if (combined == null) {
+            // copied since the combined metric is updated in place
+            pending.put(key, (Values)metric.clone());
+            anchors.remove(key);
+        } else {
+            Long timestamp = (Long)metric.get(4);
+
+            if (timestamp != null && (combined.get(4) == null || timestamp > (Long)combined.get(4))) {
+                combined.set(4, timestamp);
+            }
+            combined.set(5, (Float)combined.get(5) + (Float)metric.get(5));
+        }
+
+        if (anchor != null) {
+            List<Tuple> metricAnchors = anchors.get(key);
+
+            if (metricAnchors == null) {
+                metricAnchors = new ArrayList<>();
+                anchors.put(key, metricAnchors);
+            }
+            // The same tuple usually contributes several deltas in a row, only anchor to it once
+            if (metricAnchors.isEmpty() || metricAnchors.get(metricAnchors.size() - 1) != anchor) {
+                metricAnchors.add(anchor);
+            }
+        }
+
+        return pending.size() >= maxKeys;
+    }
+
+    /**
+     * Removes and returns the pending metric with the same account and metric id as the one passed in, if any.  Used
+     * to keep ordering when a non-delta metric for a pending counter is emitted.
+     *
+     * @param metric the metric
+     * @return the pending metric or null
+     */
+    public Values remove(Values metric) {
+        return pending.remove(key(metric));
+    }
+
+    /**
+     * Removes and returns the anchors of a metric returned by {@link #remove(Values)} or {@link #drain()}.
+     *
+     * @param metric the metric
+     * @return the tuples the metric's deltas came from, empty if none were given
+     */
+    public Collection<Tuple> removeAnchors(Values metric) {
+        List<Tuple> metricAnchors = anchors.remove(key(metric));
+
+        return metricAnchors != null ? metricAnchors : Collections.<Tuple>emptyList();
+    }
+
+    /**
+     * Returns whether the combine window has elapsed for the pending metrics.
+     *
+     * @param now the current time
+     * @return true if there are pending metrics older than the window
+     */
+    public boolean isDue(long now) {
+        return !pending.isEmpty() && now - windowStart >= windowMillis;
+    }
+
+    /**
+     * Returns the number of pending metrics.
+     *
+     * @return the number of pending metrics
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Removes and returns all pending metrics, in the order their counters were first seen.
+     *
+     * @return the pending metrics
+     */
+    public List<Values> drain() {
+        List<Values> drained = new ArrayList<>(pending.values());
+
+        pending.clear();
+        return drained;
+    }
+
+    /**
+     * Drops all pending metrics and their anchors.
+     */
+    public void clear() {
+        pending.clear();
+        anchors.clear();
+    }
+
+    private static String key(Values metric) {
+        return metric.get(0) + ":" + metric.get(6);
+    }
+
+}
@@ -16,63 +16,61 @@
 
 package com.streamreduce.storm.bolts;
 
-import com.streamreduce.analytics.MetricCriteria;
-import com.streamreduce.analytics.MetricName;
-
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
 
+/**
+ * Decides which metrics are kept (and which generate anomalies) from the rules in
+ * <code>juggaloader-whitelist.rules</code>, see {@link MetricsWhitelistRules} for their format.
+ * <p/>
+ * Verdicts are cached per stream (metric name and criteria), so after a stream's first sample both checks are a
+ * single lookup.  When <code>juggaloader.whitelist.rules</code> points to a rules file instead of the bundled one, the
+ * file is checked for changes every <code>juggaloader.whitelist.reload.interval</code> and reloaded without a
+ * redeploy, dropping the cached verdicts.  Rules that fail to load are logged and the previous rules are kept.
+ */
 public class MetricsWhitelist {
 
-    public static boolean whitelist(String metricName, Map<String, String> criteria) {
-        // allow projecthosting stuff
-        if ("projecthosting".equals(criteria.get(MetricCriteria.PROVIDER_TYPE.toString()))) {
-            return !criteria.containsKey(MetricCriteria.HASHTAG.toString()); // mute the ones generated for each hashtag
-        }
-        if ("googleanalytics".equals(criteria.get(MetricCriteria.PROVIDER_ID.toString()))) {
-            return true;
+    private static final Logger logger = Logger.getLogger(MetricsWhitelist.class);
+
+    static final String RULES_RESOURCE = "/juggaloader-whitelist.rules";
+    static final String RULES_PATH = JuggaloaderTimeBase.topologyProps.getString("juggaloader.whitelist.rules").trim();
+    static final long RELOAD_INTERVAL =
+            Long.parseLong(JuggaloaderTimeBase.topologyProps.getString("juggaloader.whitelist.reload.interval"));
+    static final int CACHE_SIZE =
+            Integer.parseInt(JuggaloaderTimeBase.topologyProps.getString("juggaloader.whitelist.cache.size"));
+
+    private static final byte WHITELISTED = 1;
+    private static final byte ANOMALIES = 2;
+
+    private static final ConcurrentMap<StreamKey, Byte> verdicts = new ConcurrentHashMap<>();
+    private static volatile MetricsWhitelistRules rules;
+    private static volatile long rulesLastModified;
+    private static volatile long nextReloadCheck;
+
+    static {
+        if (!RULES_PATH.isEmpty()) {
+            reloadIfModified();
         }
-        // allow IMG activity counts
-        if (metricName.equals(MetricName.CONNECTION_ACTIVITY_COUNT.toString()) && "gateway".equals(criteria.get(MetricCriteria.PROVIDER_TYPE.toString())))
-            return !criteria.containsKey(MetricCriteria.HASHTAG.toString()); // mute the ones generated for each hashtag
-        // allow IMG metric values
-        if (metricName.equals(MetricName.CONNECTION_RESOURCE_USAGE.toString()) && criteria.containsKey(MetricCriteria.RESOURCE_ID.toString()))
-            return true;
-
-        if (metricName.equals(MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString())) {
-            // Pingdom events
-            if ("time".equals(criteria.get(MetricCriteria.METRIC_ID.toString()))) {
-                return true;
-            }
-            // allow it if it's a cloudwatch average
-            else if ("average".equals(criteria.get(MetricCriteria.METRIC_ID.toString()))) {
-                return true;
-            }
-            // Nagios hosts or services
-            else if ("hosts".equals(criteria.get(MetricCriteria.RESOURCE_ID.toString())) ||
-                    "services".equals(criteria.get(MetricCriteria.RESOURCE_ID.toString()))) {
-                return true;
-            }
-            // Appcelerator Proof of concept. Ask @NJH if you can remove this.
-            else if (criteria.get(MetricCriteria.RESOURCE_ID.toString()).contains("cloud.") ||
-                    criteria.get(MetricCriteria.RESOURCE_ID.toString()).contains("ti.")) {
-                return true;
+        if (rules == null) {
+            try (InputStream in = MetricsWhitelist.class.getResourceAsStream(RULES_RESOURCE)) {
+                setRules(MetricsWhitelistRules.parse(new InputStreamReader(in, "UTF-8")));
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to load the bundled metric whitelist rules: " + e.getMessage(), e);
             }
         }
+    }
 
-        // reject .minimums and .maximums
-        if (isMinOrMax(criteria))
-            return false;
-        if (metricName.equals(MetricName.CONNECTION_ACTIVITY_COUNT.toString()) && criteria.containsKey(MetricCriteria.OBJECT_ID.toString()))
-            return true;
-        if (metricName.equals(MetricName.INVENTORY_ITEM_COUNT.toString()) && criteria.containsKey(MetricCriteria.OBJECT_ID.toString()))
-            return true;
-        if (metricName.equals(MetricName.USER_COUNT.toString()))
-            return true;
-        if (metricName.startsWith(MetricName.TEST_STREAM.toString()))
-            return true;
-        if (metricName.equals(MetricName.MESSAGE_COUNT.toString()))
-            return true;
-        return false;
+    public static boolean whitelist(String metricName, Map<String, String> criteria) {
+        return (verdict(metricName, criteria) & WHITELISTED) != 0;
     }
 
     /**
@@ -83,22 +81,102 @@ public class MetricsWhitelist {
      *
      */
     public static boolean whiteListedForAnomalies(String metricName, Map<String, String> criteria) {
-        // hack to quiet square waves that make many anomalies
-        if (isMinOrMax(criteria))
-            return false;
-        if (criteria.containsKey(MetricCriteria.RESOURCE_ID.toString()) && "CPUUtilization".endsWith(criteria.get(MetricCriteria.RESOURCE_ID.toString()))) {
-            return false;
+        return (verdict(metricName, criteria) & ANOMALIES) != 0;
+    }
+
+    /**
+     * Replaces the rules and drops the cached verdicts.
+     *
+     * @param newRules the compiled rules
+     */
+    static void setRules(MetricsWhitelistRules newRules) {
+        rules = newRules;
+        verdicts.clear();
+    }
+
+    private static byte verdict(String metricName, Map<String, String> criteria) {
+        if (!RULES_PATH.isEmpty() && System.currentTimeMillis() >= nextReloadCheck) {
+            reloadIfModified();
+        }
+
+        Byte verdict = verdicts.get(new StreamKey(metricName, criteria));
+
+        if (verdict == null) {
+            MetricsWhitelistRules current = rules;
+            byte computed = 0;
+
+            if (current.whitelist(metricName, criteria)) {
+                computed |= WHITELISTED;
+            }
+            if (current.whiteListedForAnomalies(metricName, criteria)) {
+                computed |= ANOMALIES;
+            }
+            verdict = computed;
+
+            // crude bound, streams are few compared to samples so the cache refills quickly
+            if (verdicts.size() >= CACHE_SIZE) {
+                verdicts.clear();
+            }
+            // the key keeps its own copy of the criteria since tuples' criteria maps aren't ours
+            verdicts.put(new StreamKey(metricName, new HashMap<>(criteria)), verdict);
         }
-        return whitelist(metricName, criteria);
+        return verdict;
     }
 
-    private static boolean isMinOrMax(Map<String, String> criteria) {
-        if (criteria.containsKey(MetricCriteria.METRIC_ID.toString())) {
-            if ("maximum".equals(criteria.get(MetricCriteria.METRIC_ID.toString())))
-                return true;
-            if ("minimum".equals(criteria.get(MetricCriteria.METRIC_ID.toString())))
+    private static synchronized void reloadIfModified() {
+        nextReloadCheck = System.currentTimeMillis() + RELOAD_INTERVAL;
+
+        File file = new File(RULES_PATH);
+        long lastModified = file.lastModified();
+
+        if (lastModified == 0 || lastModified == rulesLastModified) {
+            if (lastModified == 0) {
+                logger.error("Metric whitelist rules " + RULES_PATH + " not found, keeping the current rules");
+            }
+            return;
+        }
+
+        try (InputStream in = new FileInputStream(file)) {
+            setRules(MetricsWhitelistRules.parse(new InputStreamReader(in, "UTF-8")));
+            rulesLastModified = lastModified;
+            logger.info("Loaded metric whitelist rules from " + RULES_PATH);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Unable to load metric whitelist rules from " + RULES_PATH + ", keeping the current rules: " +
+                                 e.getMessage(), e);
+            // don't retry a broken file until it changes again
+            rulesLastModified = lastModified;
+        }
+    }
+
+    private static class StreamKey {
+
+        private final String metricName;
+        private final Map<String, String> criteria;
+        private final int hash;
+
+        private StreamKey(String metricName, Map<String, String> criteria) {
+            this.metricName = metricName;
+            this.criteria = criteria;
+            this.hash = 31 * metricName.hashCode() + criteria.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
                 return true;
+            }
+            if (!(o instanceof StreamKey)) {
+                return false;
+            }
+            StreamKey other = (StreamKey) o;
+            return hash == other.hash && metricName.equals(other.metricName) && criteria.equals(other.criteria);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
         }
-        return false;
+
     }
+
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.streamreduce.analytics.MetricCriteria;
+
+/**
+ * Compiled whitelist and anomaly rules for {@link MetricsWhitelist}.  Rules are read one per line:
+ * <pre>
+ * &lt;whitelist|anomalies&gt; &lt;accept|reject&gt; [&lt;condition&gt; [and &lt;condition&gt;]...]
+ * </pre>
+ * where a condition is one of <code>name equals|startsWith &lt;value&gt;</code>,
+ * <code>&lt;CRITERION&gt; present|absent</code> or
+ * <code>&lt;CRITERION&gt; equals|startsWith|contains|suffixOf &lt;value&gt;</code>, <code>CRITERION</code> being a
+ * {@link MetricCriteria} name.  Blank lines and lines starting with <code>#</code> are ignored.
+ * <p/>
+ * The first rule of a set whose conditions all hold decides.  A metric no whitelist rule matches is rejected, a metric
+ * no anomalies rule matches gets its whitelist verdict.  Rules are compiled into per metric name rule lists, so a
+ * verdict only evaluates the rules that can apply to the metric's name.
+ */
+public class MetricsWhitelistRules {
+
+    private final RuleSet whitelist;
+    private final RuleSet anomalies;
+
+    private MetricsWhitelistRules(List<Rule> whitelistRules, List<Rule> anomalyRules) {
+        this.whitelist = new RuleSet(whitelistRules);
+        this.anomalies = new RuleSet(anomalyRules);
+    }
+
+    /**
+     * Parses and compiles rules.
+     *
+     * @param reader the rules
+     * @return the compiled rules
+     * @throws IOException              if the rules can't be read
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public static MetricsWhitelistRules parse(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<Rule> whitelistRules = new ArrayList<>();
+        List<Rule> anomalyRules = new ArrayList<>();
+        int lineNumber = 0;
+        String line;
+
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                List<String> tokens = new ArrayList<>(Arrays.asList(line.split("\\s+")));
+                String set = tokens.remove(0);
+                Rule rule = parseRule(tokens);
+
+                if ("whitelist".equals(set)) {
+                    whitelistRules.add(rule);
+                } else if ("anomalies".equals(set)) {
+                    anomalyRules.add(rule);
+                } else {
+                    throw new IllegalArgumentException("unknown rule set '" + set + "'");
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid whitelist rule on line " + lineNumber + " (" + line +
+                                                           "): " + e.getMessage(), e);
+            }
+        }
+
+        return new MetricsWhitelistRules(whitelistRules, anomalyRules);
+    }
+
+    /**
+     * Returns whether the metric is whitelisted.
+     *
+     * @param metricName the metric name
+     * @param criteria   the metric criteria
+     * @return true if the metric is whitelisted
+     */
+    public boolean whitelist(String metricName, Map<String, String> criteria) {
+        Boolean verdict = whitelist.evaluate(metricName, criteria);
+        return verdict != null && verdict;
+    }
+
+    /**
+     * Returns whether anomalies are generated for the metric.
+     *
+     * @param metricName the metric name
+     * @param criteria   the metric criteria
+     * @return true if anomalies are generated for the metric
+     */
+    public boolean whiteListedForAnomalies(String metricName, Map<String, String> criteria) {
+        Boolean verdict = anomalies.evaluate(metricName, criteria);
+        return verdict != null ? verdict : whitelist(metricName, criteria);
+    }
+
+    private static Rule parseRule(List<String> tokens) {
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("missing accept or reject");
+        }
+
+        String verdict = tokens.remove(0);
+        if (!"accept".equals(verdict) && !"reject".equals(verdict)) {
+            throw new IllegalArgumentException("expected accept or reject but got '" + verdict + "'");
+        }
+
+        Rule rule = new Rule("accept".equals(verdict));
+        while (!tokens.isEmpty()) {
+            if (tokens.size() < 2) {
+                throw new IllegalArgumentException("incomplete condition " + tokens);
+            }
+
+            String subject = tokens.remove(0);
+            String operator = tokens.remove(0);
+
+            if ("name".equals(subject)) {
+                String value = takeValue(tokens, operator);
+                if ("equals".equals(operator)) {
+                    if (rule.nameEquals != null) {
+                        throw new IllegalArgumentException("more than one name equals condition");
+                    }
+                    rule.nameEquals = value;
+                } else if ("startsWith".equals(operator)) {
+                    rule.conditions.add(new Condition(null, Operator.STARTS_WITH, value));
+                } else {
+                    throw new IllegalArgumentException("unknown name operator '" + operator + "'");
+                }
+            } else {
+                // fails on criteria typos rather than silently never matching
+                String criterion = MetricCriteria.valueOf(subject).toString();
+                Operator op = Operator.fromName(operator);
+                rule.conditions.add(new Condition(criterion, op, op.hasValue ? takeValue(tokens, operator) : null));
+            }
+
+            if (!tokens.isEmpty() && !"and".equals(tokens.remove(0))) {
+                throw new IllegalArgumentException("conditions must be separated by 'and'");
+            }
+        }
+        return rule;
+    }
+
+    private static String takeValue(List<String> tokens, String operator) {
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("missing value for " + operator);
+        }
+        return tokens.remove(0);
+    }
+
+    private enum Operator {
+        PRESENT("present", false),
+        ABSENT("absent", false),
+        EQUALS("equals", true),
+        STARTS_WITH("startsWith", true),
+        CONTAINS("contains", true),
+        SUFFIX_OF("suffixOf", true);
+
+        private final String name;
+        private final boolean hasValue;
+
+        Operator(String name, boolean hasValue) {
+            this.name = name;
+            this.hasValue = hasValue;
+        }
+
+        static Operator fromName(String name) {
+            for (Operator operator : values()) {
+                if (operator.name.equals(name)) {
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException("unknown criterion operator '" + name + "'");
+        }
+    }
+
+    private static class Condition {
+
+        private final String criterion; // null for the metric name
+        private final Operator operator;
+        private final String value;
+
+        private Condition(String criterion, Operator operator, String value) {
+            this.criterion = criterion;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        private boolean holds(String metricName, Map<String, String> criteria) {
+            String subject = criterion == null ? metricName : criteria.get(criterion);
+
+            switch (operator) {
+                case PRESENT:
+                    return criteria.containsKey(criterion);
+                case ABSENT:
+                    return !criteria.containsKey(criterion);
+                case EQUALS:
+                    return value.equals(subject);
+                case STARTS_WITH:
+                    return subject != null && subject.startsWith(value);
+                case CONTAINS:
+                    return subject != null && subject.contains(value);
+                case SUFFIX_OF:
+                    return subject != null && value.endsWith(subject);
+                default:
+                    return false;
+            }
+        }
+
+    }
+
+    private static class Rule {
+
+        private final boolean accept;
+        private final List<Condition> conditions = new ArrayList<>();
+        private String nameEquals;
+
+        private Rule(boolean accept) {
+            this.accept = accept;
+        }
+
+        private boolean matches(String metricName, Map<String, String> criteria) {
+            for (Condition condition : conditions) {
+                if (!condition.holds(metricName, criteria)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * Rules of a set, dispatched on the metric name: each metric name a rule tests for equality gets the ordered list
+     * of the rules that can apply to it, every other name gets the rules that don't test the name for equality.
+     */
+    private static class RuleSet {
+
+        private final Map<String, Rule[]> byName = new HashMap<>();
+        private final Rule[] anyName;
+
+        private RuleSet(List<Rule> rules) {
+            List<Rule> unnamed = new ArrayList<>();
+
+            for (Rule rule : rules) {
+                if (rule.nameEquals == null) {
+                    unnamed.add(rule);
+                }
+            }
+            anyName = unnamed.toArray(new Rule[unnamed.size()]);
+
+            for (Rule rule : rules) {
+                if (rule.nameEquals != null && !byName.containsKey(rule.nameEquals)) {
+                    List<Rule> named = new ArrayList<>();
+                    for (Rule candidate : rules) {
+                        if (candidate.nameEquals == null || candidate.nameEquals.equals(rule.nameEquals)) {
+                            named.add(candidate);
+                        }
+                    }
+                    byName.put(rule.nameEquals, named.toArray(new Rule[named.size()]));
+                }
+            }
+        }
+
+        /**
+         * Returns the verdict of the first matching rule or null if none matches.
+         */
+        private Boolean evaluate(String metricName, Map<String, String> criteria) {
+            Rule[] rules = byName.get(metricName);
+
+            for (Rule rule : rules != null ? rules : anyName) {
+                if (rule.matches(metricName, criteria)) {
+                    return rule.accept;
+                }
+            }
+            return null;
+        }
+
+    }
+
+}
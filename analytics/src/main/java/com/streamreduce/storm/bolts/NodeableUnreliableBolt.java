@@ -16,31 +16,60 @@
 
 package com.streamreduce.storm.bolts;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.base.BaseRichBolt;
 import backtype.storm.tuple.Tuple;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
 import org.apache.log4j.Logger;
 
 /**
  * Unreliable Storm bolt that will automatically ack.
+ * <p/>
+ * With <code>juggaloader.reliable=true</code> the bolt runs in reliable mode instead: tuples are acked only once
+ * {@link #realExecute(backtype.storm.tuple.Tuple)} returns, failed when it throws, and everything emitted through
+ * {@link #emit(java.util.List)} is anchored to the tuple being executed, so the spout replays events whose tuple
+ * tree didn't complete.  A topology can turn reliable mode on for its bolts alone by setting
+ * {@link #RELIABLE_CONFIG} in its Storm configuration.
  */
 public abstract class NodeableUnreliableBolt extends BaseRichBolt {
 
     private static final long serialVersionUID = -1905452255590790074L;
     private static final Logger LOGGER = Logger.getLogger(NodeableUnreliableBolt.class);
 
+    /**
+     * The Storm configuration key overriding <code>juggaloader.reliable</code> for a topology.
+     */
+    public static final String RELIABLE_CONFIG = "juggaloader.reliable";
+
+    static final boolean RELIABLE =
+            Boolean.parseBoolean(JuggaloaderTimeBase.topologyProps.getString("juggaloader.reliable"));
+
     protected Map stormConfiguration;
     protected OutputCollector outputCollector;
     protected TopologyContext topologyContext;
 
+    private transient boolean reliable;
+    private transient Tuple currentTuple;
+    private transient boolean currentTupleHandled;
+    private transient boolean currentTupleFailed;
+    private transient Counter failedTuples;
+
     @Override
     public void prepare(Map stormConfiguration, TopologyContext topologyContext, OutputCollector outputCollector) {
         this.stormConfiguration = stormConfiguration;
         this.topologyContext = topologyContext;
         this.outputCollector = outputCollector;
+        this.reliable = RELIABLE;
+        if (stormConfiguration != null && stormConfiguration.get(RELIABLE_CONFIG) != null) {
+            this.reliable = Boolean.parseBoolean(stormConfiguration.get(RELIABLE_CONFIG).toString());
+        }
+        this.failedTuples = Metrics.newCounter(getClass(), "failed-tuples");
     }
 
     /**
@@ -48,13 +77,123 @@ public abstract class NodeableUnreliableBolt extends BaseRichBolt {
      */
     @Override
     public void execute(Tuple tuple) {
-        outputCollector.ack(tuple);
+        if (!reliable) {
+            outputCollector.ack(tuple);
+            try {
+                realExecute(tuple);
+            } catch (Exception e) {
+                LOGGER.error("Unexpected exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        currentTuple = tuple;
+        currentTupleHandled = false;
+        currentTupleFailed = false;
         try {
             realExecute(tuple);
+            if (!currentTupleHandled) {
+                outputCollector.ack(tuple);
+            }
         } catch (Exception e) {
-            LOGGER.error("Unexpected exception: " + e.getMessage());
-            e.printStackTrace();
+            LOGGER.error("Unexpected exception: " + e.getMessage(), e);
+            fail(tuple);
+        } finally {
+            currentTuple = null;
+        }
+    }
+
+    /**
+     * Returns whether the bolt runs in reliable mode.
+     *
+     * @return true if tuples are anchored and acked once processed
+     */
+    protected boolean isReliable() {
+        return reliable;
+    }
+
+    /**
+     * Returns whether the tuple is a tick tuple, sent by Storm at the frequency set in the component configuration.
+     *
+     * @param tuple the tuple
+     * @return true if the tuple is a tick tuple
+     */
+    protected static boolean isTickTuple(Tuple tuple) {
+        return backtype.storm.Constants.SYSTEM_COMPONENT_ID.equals(tuple.getSourceComponent()) &&
+                backtype.storm.Constants.SYSTEM_TICK_STREAM_ID.equals(tuple.getSourceStreamId());
+    }
+
+    /**
+     * Emits the values, anchored to the tuple being executed in reliable mode.
+     *
+     * @param values the values to emit
+     */
+    protected void emit(List<Object> values) {
+        if (reliable && currentTuple != null) {
+            outputCollector.emit(currentTuple, values);
+        } else {
+            outputCollector.emit(values);
+        }
+    }
+
+    /**
+     * Emits the values to the given stream, anchored to the tuple being executed in reliable mode.
+     *
+     * @param streamId the stream to emit to
+     * @param values   the values to emit
+     */
+    protected void emit(String streamId, List<Object> values) {
+        if (reliable && currentTuple != null) {
+            outputCollector.emit(streamId, currentTuple, values);
+        } else {
+            outputCollector.emit(streamId, values);
+        }
+    }
+
+    /**
+     * Emits the values anchored to the given tuples in reliable mode, used when values combine several input tuples.
+     *
+     * @param anchors the tuples the values derive from
+     * @param values  the values to emit
+     */
+    protected void emit(Collection<Tuple> anchors, List<Object> values) {
+        if (reliable && !anchors.isEmpty()) {
+            outputCollector.emit(anchors, values);
+        } else {
+            outputCollector.emit(values);
+        }
+    }
+
+    /**
+     * In reliable mode, takes over acking the tuple being executed: it will not be acked when
+     * {@link #realExecute(backtype.storm.tuple.Tuple)} returns and the bolt must ack or fail it itself later.
+     *
+     * @return the tuple being executed
+     */
+    protected Tuple deferAck() {
+        currentTupleHandled = true;
+        return currentTuple;
+    }
+
+    /**
+     * Fails the tuple so the spout replays it, in reliable mode only.
+     *
+     * @param tuple the tuple to fail
+     */
+    protected void fail(Tuple tuple) {
+        if (!reliable) {
+            return;
+        }
+        if (tuple == currentTuple) {
+            if (currentTupleFailed) {
+                return;
+            }
+            currentTupleHandled = true;
+            currentTupleFailed = true;
         }
+        failedTuples.inc();
+        outputCollector.fail(tuple);
     }
 
     /**
@@ -16,30 +16,112 @@
 
 package com.streamreduce.storm.bolts;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import backtype.storm.Config;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.Values;
 import com.mongodb.BasicDBObject;
+import com.mongodb.WriteConcern;
+import com.streamreduce.storm.MetricsBatchWriter;
 import com.streamreduce.storm.MongoClient;
 import org.apache.log4j.Logger;
 
 /**
  * Extension of {@link backtype.storm.topology.base.BaseRichBolt} that will take output output from the Juggaloader and
  * writes to the appropriate datastore.
+ * <p/>
+ * Metrics are buffered per account collection and pushed into the time buckets of their streams, flushed whenever
+ * the batch is full or a tick tuple arrives, see {@link MetricsBatchWriter}.  Constructed with a collection prefix,
+ * the bolt writes to shadow collections instead of the live ones, as the backfill topology does.
+ * <p/>
+ * In reliable mode tuples are acked once their metrics are written, with at least the SAFE write concern, and
+ * failed when the write fails.
  */
 public class PersistMetricsBolt extends NodeableUnreliableBolt {
 
     private static Logger logger = Logger.getLogger(PersistMetricsBolt.class);
     private static MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
 
+    static final int BATCH_SIZE =
+            Integer.parseInt(JuggaloaderTimeBase.topologyProps.getString("juggaloader.persist.batch.size"));
+    static final int FLUSH_INTERVAL_SECS =
+            Integer.parseInt(JuggaloaderTimeBase.topologyProps.getString("juggaloader.persist.flush.interval"));
+    static final String WRITE_CONCERN = JuggaloaderTimeBase.topologyProps.getString("juggaloader.persist.write.concern");
+    static final List<String> QUANTILE_FIELDS = JuggaloaderTimeBase.quantileFields();
+
+    private final String collectionPrefix;
+
+    private transient MetricsBatchWriter batchWriter;
+    // In reliable mode, the tuples of the buffered metrics per collection, acked or failed once written
+    private transient Map<String, List<Tuple>> pendingTuples;
+
+    /**
+     * Constructor writing to the live metric collections.
+     */
+    public PersistMetricsBolt() {
+        this("");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param collectionPrefix the prefix of the metric collections written to, empty for the live collections
+     */
+    public PersistMetricsBolt(String collectionPrefix) {
+        this.collectionPrefix = collectionPrefix;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prepare(Map stormConfiguration, TopologyContext topologyContext, OutputCollector outputCollector) {
+        super.prepare(stormConfiguration, topologyContext, outputCollector);
+
+        WriteConcern writeConcern = WriteConcern.valueOf(WRITE_CONCERN);
+
+        if (writeConcern == null) {
+            logger.warn("Unknown juggaloader.persist.write.concern of " + WRITE_CONCERN + ", using NORMAL");
+            writeConcern = WriteConcern.NORMAL;
+        }
+        // Tuples are acked once their metrics are written, which an unacknowledged write can't tell
+        if (isReliable() && !writeConcern.callGetLastError()) {
+            logger.warn("juggaloader.persist.write.concern of " + WRITE_CONCERN + " doesn't acknowledge writes, " +
+                                "using SAFE in reliable mode");
+            writeConcern = WriteConcern.SAFE;
+        }
+        batchWriter = new MetricsBatchWriter(mongoClient, BATCH_SIZE, writeConcern, collectionPrefix);
+        pendingTuples = new HashMap<>();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        Map<String, Object> componentConfiguration = new HashMap<>();
+        componentConfiguration.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, FLUSH_INTERVAL_SECS);
+        return componentConfiguration;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void realExecute(Tuple tuple) {
+        if (isTickTuple(tuple)) {
+            flush();
+            return;
+        }
+
         String metricAccount = tuple.getStringByField("metricAccount");
         String metricName = tuple.getStringByField("metricName");
         String metricType = tuple.getStringByField("metricType");
@@ -53,15 +135,69 @@ public class PersistMetricsBolt extends NodeableUnreliableBolt {
         Float metricMIN = tuple.getFloatByField("min");
         Float metricMax = tuple.getFloatByField("max");
         Boolean metricIsAnomaly = tuple.getBooleanByField("anomaly");
-        Map<String, BasicDBObject> result = mongoClient.writeMetric(metricAccount, metricName, metricType,
-                                                                    metricTimestamp, metricValue, metricGranularity,
-                                                                    metricCriteria, metricAVGY,
-                                                                    metricSTDDEV, metricDIFF, metricMIN, metricMax,
-                                                                    metricIsAnomaly);
+        Map<String, Float> metricQuantiles = new HashMap<>();
+
+        for (String field : QUANTILE_FIELDS) {
+            Float quantile = tuple.getFloatByField(field);
+            if (quantile != null) {
+                metricQuantiles.put(field, quantile);
+            }
+        }
+
+        BasicDBObject metric = MongoClient.createMetric(metricName, metricType, metricTimestamp, metricValue,
+                                                        metricGranularity, metricCriteria, metricAVGY,
+                                                        metricSTDDEV, metricDIFF, metricMIN, metricMax,
+                                                        metricIsAnomaly, metricQuantiles);
+
+        if (isReliable()) {
+            String collectionName = batchWriter.getCollectionName(metricAccount);
+            List<Tuple> tuples = pendingTuples.get(collectionName);
+
+            if (tuples == null) {
+                tuples = new ArrayList<>();
+                pendingTuples.put(collectionName, tuples);
+            }
+            tuples.add(deferAck());
+        }
+
+        if (batchWriter.add(metricAccount, metric)) {
+            flush();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cleanup() {
+        flush();
+    }
+
+    /**
+     * Writes the buffered metrics and emits the bucket id and collection of each one written.  In reliable mode the
+     * tuples of the metrics written are acked and those of collections that failed to be written are failed.
+     */
+    private void flush() {
+        Map<String, List<BasicDBObject>> written = batchWriter.flush();
+
+        for (Map.Entry<String, List<BasicDBObject>> entry : written.entrySet()) {
+            for (BasicDBObject metric : entry.getValue()) {
+                outputCollector.emit(new Values(metric.get("_id"), entry.getKey()));
+            }
+        }
 
-        Map.Entry<String, BasicDBObject> resultEntry = result.entrySet().iterator().next();
+        for (Map.Entry<String, List<Tuple>> entry : pendingTuples.entrySet()) {
+            boolean wasWritten = written.containsKey(entry.getKey());
 
-        outputCollector.emit(new Values(resultEntry.getValue().get("_id"), resultEntry.getKey()));
+            for (Tuple tuple : entry.getValue()) {
+                if (wasWritten) {
+                    outputCollector.ack(tuple);
+                } else {
+                    fail(tuple);
+                }
+            }
+        }
+        pendingTuples.clear();
     }
 
     /**
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.detectors;
+
+import com.streamreduce.storm.JuggaloaderStreamState;
+
+/**
+ * Decides whether a sample of a stream is an outlier.  Detectors are shared by every stream they are configured for
+ * and keep no state of their own: whatever a detector learns about a stream lives in the stream's
+ * {@link JuggaloaderStreamState#detectorState}, sized by {@link #getStateSize()}, so it is checkpointed and restored
+ * with the rest of the stream state.  Detectors must not allocate per sample.
+ * <p/>
+ * The time-base bolts only report an outlier as an anomaly once the stream has seen its first window of samples, when
+ * the metric is whitelisted for anomalies and outside the snooze that follows a previous anomaly, so detectors don't
+ * need to handle those cases.
+ */
+public interface AnomalyDetector {
+
+    /**
+     * Returns the detector's name, as used in the <code>juggaloader.detector.*</code> properties.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Returns the number of floats of state the detector keeps per stream.
+     *
+     * @return the state size, 0 if the detector only uses the decaying mean and standard deviation
+     */
+    int getStateSize();
+
+    /**
+     * Learns a sample and returns whether it is an outlier.  Called for every sample of the stream, after the
+     * decaying mean and standard deviation are computed for it and before the stream state is updated with it.
+     *
+     * @param state  the stream state, its <code>detectorState</code> holding {@link #getStateSize()} floats, all 0 for
+     *               a new stream
+     * @param y      the sample
+     * @param ts     the sample's timestamp
+     * @param avgy   the decaying mean, including the sample
+     * @param stddev the decaying standard deviation, including the sample
+     * @return true if the sample is an outlier
+     */
+    boolean isOutlier(JuggaloaderStreamState state, float y, long ts, float avgy, float stddev);
+
+}
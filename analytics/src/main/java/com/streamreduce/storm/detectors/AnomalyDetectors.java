@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.detectors;
+
+import java.util.ResourceBundle;
+
+/**
+ * Creates the {@link AnomalyDetector}s by name, configured by the <code>juggaloader.detector.*</code> properties of
+ * the topology.
+ */
+public final class AnomalyDetectors {
+
+    /**
+     * The names of the available detectors.
+     */
+    public static final String[] NAMES = {
+            ZScoreDetector.NAME, SeasonalEwmaDetector.NAME, HoltWintersDetector.NAME, MedianMadDetector.NAME
+    };
+
+    private AnomalyDetectors() {
+    }
+
+    /**
+     * Creates a detector.
+     *
+     * @param name  the detector's name, one of {@link #NAMES}
+     * @param props the topology properties
+     * @return the detector
+     * @throws IllegalArgumentException if there is no detector by that name
+     */
+    public static AnomalyDetector create(String name, ResourceBundle props) {
+        float stddevMin = getFloat(props, "juggaloader.stddevmin");
+
+        switch (name) {
+            case ZScoreDetector.NAME:
+                return new ZScoreDetector(getFloat(props, "juggaloader.a"), stddevMin);
+            case SeasonalEwmaDetector.NAME:
+                return new SeasonalEwmaDetector(getInt(props, "juggaloader.detector.seasonal-ewma.buckets"),
+                                                getLong(props, "juggaloader.detector.seasonal-ewma.bucket.millis"),
+                                                getFloat(props, "juggaloader.detector.seasonal-ewma.alpha"),
+                                                getFloat(props, "juggaloader.detector.seasonal-ewma.a"),
+                                                getInt(props, "juggaloader.detector.seasonal-ewma.minsamples"),
+                                                stddevMin);
+            case HoltWintersDetector.NAME:
+                return new HoltWintersDetector(getInt(props, "juggaloader.detector.holt-winters.slots"),
+                                               getLong(props, "juggaloader.detector.holt-winters.slot.millis"),
+                                               getFloat(props, "juggaloader.detector.holt-winters.alpha"),
+                                               getFloat(props, "juggaloader.detector.holt-winters.beta"),
+                                               getFloat(props, "juggaloader.detector.holt-winters.gamma"),
+                                               getFloat(props, "juggaloader.detector.holt-winters.a"),
+                                               getInt(props, "juggaloader.detector.holt-winters.warmup"),
+                                               stddevMin);
+            case MedianMadDetector.NAME:
+                return new MedianMadDetector(getFloat(props, "juggaloader.detector.median-mad.rate"),
+                                             getFloat(props, "juggaloader.detector.median-mad.a"),
+                                             getInt(props, "juggaloader.detector.median-mad.warmup"),
+                                             stddevMin);
+            default:
+                throw new IllegalArgumentException("Unknown anomaly detector '" + name + "'");
+        }
+    }
+
+    private static float getFloat(ResourceBundle props, String key) {
+        return Float.parseFloat(props.getString(key).trim());
+    }
+
+    private static int getInt(ResourceBundle props, String key) {
+        return Integer.parseInt(props.getString(key).trim());
+    }
+
+    private static long getLong(ResourceBundle props, String key) {
+        return Long.parseLong(props.getString(key).trim());
+    }
+
+}
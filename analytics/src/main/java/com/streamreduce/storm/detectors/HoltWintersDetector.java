@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.detectors;
+
+import com.streamreduce.storm.JuggaloaderStreamState;
+
+/**
+ * Additive Holt-Winters forecasting with Brutlag's confidence bands: the stream is modelled as a level, a trend and a
+ * seasonal component per slot of the season (by default the hours of a day), along with the smoothed absolute
+ * forecast error of each slot.  A sample is an outlier when its forecast error is more than <code>a</code> times its
+ * slot's smoothed error, once the stream has been seen for the warm up slots.
+ * <p/>
+ * Samples don't arrive at a fixed rate, so the season is divided by time rather than by sample count, and the trend
+ * and smoothing factors are per slot: each sample is weighed by the share of a slot elapsed since the previous one, so
+ * the model behaves the same whether a slot holds one sample or sixty.  Outliers are clipped to the edge of the
+ * confidence band before they are learned.  During the first season each slot's seasonal component and error are
+ * learned from scratch instead of being smoothed from zero, as the classic initialisation from the first season does.
+ * <p/>
+ * State: level, trend, number of slots elapsed (capped at the warm up or a season), the seasonal component of each
+ * slot then the smoothed error of each slot.
+ */
+public class HoltWintersDetector implements AnomalyDetector {
+
+    public static final String NAME = "holt-winters";
+
+    private static final int LEVEL = 0;
+    private static final int TREND = 1;
+    private static final int ELAPSED = 2;
+    private static final int SEASONAL = 3;
+
+    private final int slots;
+    private final long slotMillis;
+    private final float alpha;
+    private final float beta;
+    private final float gamma;
+    private final float a;
+    private final int warmup;
+    private final float stddevMin;
+
+    /**
+     * Constructor.
+     *
+     * @param slots      the number of slots in a season
+     * @param slotMillis the time covered by a slot (ms)
+     * @param alpha      the level smoothing factor per slot, in (0, 1)
+     * @param beta       the trend smoothing factor per slot, in (0, 1)
+     * @param gamma      the seasonal and error smoothing factor per slot, in (0, 1)
+     * @param a          the number of smoothed errors past which a forecast error is an outlier
+     * @param warmup     the number of slots the stream must have been seen for before outliers are detected
+     * @param stddevMin  the smoothed error under which no sample is an outlier
+     */
+    public HoltWintersDetector(int slots, long slotMillis, float alpha, float beta, float gamma, float a, int warmup,
+                               float stddevMin) {
+        this.slots = slots;
+        this.slotMillis = slotMillis;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.gamma = gamma;
+        this.a = a;
+        this.warmup = warmup;
+        this.stddevMin = stddevMin;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getStateSize() {
+        return SEASONAL + slots * 2;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOutlier(JuggaloaderStreamState state, float y, long ts, float avgy, float stddev) {
+        float[] s = state.detectorState;
+        int seasonal = SEASONAL + (int) ((ts / slotMillis) % slots);
+        int error = seasonal + slots;
+
+        if (s[ELAPSED] == 0) {
+            s[LEVEL] = y;
+            s[ELAPSED] = Float.MIN_NORMAL;
+            return false;
+        }
+
+        // the smoothing factors and the trend are per slot, a sample only weighs the share of a slot since the last one
+        float share = Math.min(1.0f, (float) (ts - state.tslast) / slotMillis);
+        float level = s[LEVEL];
+        float forecast = level + share * s[TREND] + s[seasonal];
+        float forecastError = y - forecast;
+        boolean outlier = s[ELAPSED] >= warmup && s[error] > stddevMin && Math.abs(forecastError) > a * s[error];
+
+        if (outlier) {
+            // learn from the edge of the band rather than from the outlier, so one spike doesn't throw the level off
+            forecastError = Math.signum(forecastError) * a * s[error];
+            y = forecast + forecastError;
+        }
+
+        float alphaShare = alpha * share;
+        float betaShare = beta * share;
+        // bootstrap the season: during the first one each slot starts from what it sees rather than from zero
+        float gammaShare = s[ELAPSED] < slots ? share : gamma * share;
+
+        s[LEVEL] = alphaShare * (y - s[seasonal]) + (1 - alphaShare) * (level + share * s[TREND]);
+        // the level moved by (s[LEVEL] - level) / share per slot, weighed by betaShare
+        s[TREND] = beta * (s[LEVEL] - level) + (1 - betaShare) * s[TREND];
+        s[seasonal] = gammaShare * (y - s[LEVEL]) + (1 - gammaShare) * s[seasonal];
+        s[error] = gammaShare * Math.abs(forecastError) + (1 - gammaShare) * s[error];
+        s[ELAPSED] = Math.min(s[ELAPSED] + share, Math.max(warmup, slots));
+        return outlier;
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.detectors;
+
+import com.streamreduce.storm.JuggaloaderStreamState;
+
+/**
+ * Robust detector based on the median and the median absolute deviation (MAD), which unlike the mean and standard
+ * deviation aren't dragged along by the outliers themselves.  Both are tracked in constant space with frugal streaming
+ * estimators: the median estimate moves towards each sample by a step proportional to the MAD estimate, and the MAD
+ * estimate grows or shrinks by a constant factor depending on whether the sample's absolute deviation is above or below
+ * it.  A sample is an outlier when it is further than <code>a</code> scaled MADs (an estimate of the standard deviation
+ * for normally distributed samples) from the median, once the stream has seen the warm up samples.
+ * <p/>
+ * State: median, MAD, number of samples (capped at the warm up).
+ */
+public class MedianMadDetector implements AnomalyDetector {
+
+    public static final String NAME = "median-mad";
+
+    // MAD to standard deviation for normally distributed samples
+    private static final float MAD_SCALE = 1.4826f;
+
+    private final float rate;
+    private final float a;
+    private final int warmup;
+    private final float stddevMin;
+
+    /**
+     * Constructor.
+     *
+     * @param rate      how fast the estimates adapt, in (0, 1)
+     * @param a         the number of scaled MADs from the median past which a sample is an outlier
+     * @param warmup    the number of samples the stream must have seen before outliers are detected
+     * @param stddevMin the scaled MAD under which no sample is an outlier
+     */
+    public MedianMadDetector(float rate, float a, int warmup, float stddevMin) {
+        this.rate = rate;
+        this.a = a;
+        this.warmup = warmup;
+        this.stddevMin = stddevMin;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getStateSize() {
+        return 3;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOutlier(JuggaloaderStreamState state, float y, long ts, float avgy, float stddev) {
+        float[] s = state.detectorState;
+
+        if (s[2] == 0) {
+            s[0] = y;
+            s[2] = 1;
+            return false;
+        }
+
+        float median = s[0];
+        float mad = s[1];
+        float deviation = Math.abs(y - median);
+        float scaledMad = MAD_SCALE * mad;
+        boolean outlier = s[2] >= warmup && scaledMad > stddevMin && deviation > a * scaledMad;
+
+        if (mad == 0) {
+            // no spread seen yet, start from the first deviation
+            mad = deviation;
+        } else {
+            mad *= deviation > mad ? 1 + rate : 1 - rate;
+        }
+
+        float step = rate * mad;
+        if (y > median) {
+            median = Math.min(median + step, y);
+        } else if (y < median) {
+            median = Math.max(median - step, y);
+        }
+
+        s[0] = median;
+        s[1] = mad;
+        s[2] = Math.min(s[2] + 1, warmup);
+        return outlier;
+    }
+
+}
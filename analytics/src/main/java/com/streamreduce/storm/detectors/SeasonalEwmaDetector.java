@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.detectors;
+
+import com.streamreduce.storm.JuggaloaderStreamState;
+
+/**
+ * Keeps an exponentially weighted mean and variance per seasonal bucket (by default the hour of the day) so that a
+ * value that is normal at one time of day but not at another is caught.  A sample is an outlier when it is further
+ * than <code>a</code> standard deviations from its bucket's mean, once the bucket has seen enough samples.
+ * <p/>
+ * State, per bucket: mean, variance, number of samples (capped at the minimum).
+ */
+public class SeasonalEwmaDetector implements AnomalyDetector {
+
+    public static final String NAME = "seasonal-ewma";
+
+    private final int buckets;
+    private final long bucketMillis;
+    private final float alpha;
+    private final float a;
+    private final int minSamples;
+    private final float stddevMin;
+
+    /**
+     * Constructor.
+     *
+     * @param buckets      the number of buckets in a season
+     * @param bucketMillis the time covered by a bucket (ms)
+     * @param alpha        the weight of a new sample in its bucket's mean and variance, in (0, 1)
+     * @param a            the number of standard deviations from the bucket's mean past which a sample is an outlier
+     * @param minSamples   the number of samples a bucket must have seen before it detects outliers
+     * @param stddevMin    the standard deviation under which no sample is an outlier
+     */
+    public SeasonalEwmaDetector(int buckets, long bucketMillis, float alpha, float a, int minSamples,
+                                float stddevMin) {
+        this.buckets = buckets;
+        this.bucketMillis = bucketMillis;
+        this.alpha = alpha;
+        this.a = a;
+        this.minSamples = minSamples;
+        this.stddevMin = stddevMin;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getStateSize() {
+        return buckets * 3;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOutlier(JuggaloaderStreamState state, float y, long ts, float avgy, float stddev) {
+        float[] s = state.detectorState;
+        int b = (int) ((ts / bucketMillis) % buckets) * 3;
+
+        if (s[b + 2] == 0) {
+            s[b] = y;
+            s[b + 2] = 1;
+            return false;
+        }
+
+        float diff = y - s[b];
+        float bucketStdDev = (float) Math.sqrt(s[b + 1]);
+        boolean outlier = s[b + 2] >= minSamples && bucketStdDev > stddevMin && Math.abs(diff) > a * bucketStdDev;
+
+        // incremental exponentially weighted mean and variance
+        float increment = alpha * diff;
+        s[b] += increment;
+        s[b + 1] = (1 - alpha) * (s[b + 1] + diff * increment);
+        s[b + 2] = Math.min(s[b + 2] + 1, minSamples);
+        return outlier;
+    }
+
+}
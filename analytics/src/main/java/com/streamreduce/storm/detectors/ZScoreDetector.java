@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.detectors;
+
+import com.streamreduce.storm.JuggaloaderStreamState;
+
+/**
+ * The original Juggaloader detector: a sample is an outlier when it is further than <code>a</code> decaying standard
+ * deviations from the decaying mean.
+ */
+public class ZScoreDetector implements AnomalyDetector {
+
+    public static final String NAME = "zscore";
+
+    private final float a;
+    private final float stddevMin;
+
+    /**
+     * Constructor.
+     *
+     * @param a         the number of standard deviations from the mean past which a sample is an outlier
+     * @param stddevMin the standard deviation under which no sample is an outlier
+     */
+    public ZScoreDetector(float a, float stddevMin) {
+        this.a = a;
+        this.stddevMin = stddevMin;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getStateSize() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOutlier(JuggaloaderStreamState state, float y, long ts, float avgy, float stddev) {
+        return stddev > stddevMin && Math.abs(a * stddev) < Math.abs(y - avgy);
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.serialization;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.streamreduce.analytics.MetricCriteria;
+import com.streamreduce.storm.MetricCriteriaMap;
+
+/**
+ * Kryo serializer for {@link MetricCriteriaMap}.  Each entry is written as a varint key code followed by the value:
+ * code <code>n &gt; 0</code> stands for the {@link MetricCriteria} with ordinal <code>n - 1</code>, code 0 is followed by
+ * the key itself.  Every worker of a topology runs the same jar, so the ordinals agree on both ends.
+ */
+public class MetricCriteriaMapSerializer extends Serializer<MetricCriteriaMap> {
+
+    private static final MetricCriteria[] KNOWN_KEYS = MetricCriteria.values();
+    private static final Map<String, Integer> KEY_CODES = new HashMap<>();
+
+    static {
+        for (MetricCriteria criteria : KNOWN_KEYS) {
+            KEY_CODES.put(criteria.toString(), criteria.ordinal() + 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(Kryo kryo, Output output, MetricCriteriaMap criteria) {
+        output.writeInt(criteria.size(), true);
+        for (Map.Entry<String, String> entry : criteria.entrySet()) {
+            Integer code = KEY_CODES.get(entry.getKey());
+
+            if (code != null) {
+                output.writeInt(code, true);
+            } else {
+                output.writeInt(0, true);
+                output.writeString(entry.getKey());
+            }
+            output.writeString(entry.getValue());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MetricCriteriaMap read(Kryo kryo, Input input, Class<MetricCriteriaMap> type) {
+        MetricCriteriaMap criteria = new MetricCriteriaMap();
+        int size = input.readInt(true);
+
+        for (int i = 0; i < size; i++) {
+            int code = input.readInt(true);
+            String key = code > 0 ? KNOWN_KEYS[code - 1].toString() : input.readString();
+
+            criteria.put(key, input.readString());
+        }
+        return criteria;
+    }
+
+}
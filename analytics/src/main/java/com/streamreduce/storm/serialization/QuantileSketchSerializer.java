@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.streamreduce.storm.QuantileSketch;
+
+/**
+ * Kryo serializer for {@link QuantileSketch}, written as the length of its {@link QuantileSketch#toBytes()} encoding
+ * followed by the encoding itself.
+ */
+public class QuantileSketchSerializer extends Serializer<QuantileSketch> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(Kryo kryo, Output output, QuantileSketch sketch) {
+        byte[] bytes = sketch.toBytes();
+
+        output.writeInt(bytes.length, true);
+        output.writeBytes(bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public QuantileSketch read(Kryo kryo, Input input, Class<QuantileSketch> type) {
+        return QuantileSketch.fromBytes(input.readBytes(input.readInt(true)));
+    }
+
+}
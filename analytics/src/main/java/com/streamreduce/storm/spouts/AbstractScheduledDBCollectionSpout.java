@@ -26,11 +26,14 @@ import java.util.concurrent.LinkedBlockingQueue;
 import backtype.storm.spout.SpoutOutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.base.BaseRichSpout;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
 
 /**
  * Extension of {@link backtype.storm.topology.base.BaseRichSpout} that will
  * populate a {@link Queue} from a database collection, exhaust it completely,
- * wait a period of time and then repopulate.
+ * wait a period of time and then repopulate.  Entries whose tuples fail are fetched again by id and
+ * replayed with the next population.
  */
 public abstract class AbstractScheduledDBCollectionSpout extends BaseRichSpout {
 
@@ -40,6 +43,7 @@ public abstract class AbstractScheduledDBCollectionSpout extends BaseRichSpout {
     private Queue<String> failedQueue = null;
     private long sleepStart;
     private SpoutOutputCollector collector;
+    private transient Counter replays;
 
     /**
      * Constructor.
@@ -108,9 +112,29 @@ public abstract class AbstractScheduledDBCollectionSpout extends BaseRichSpout {
         if (failedQueue == null) {
             failedQueue = new LinkedBlockingQueue<>();
         }
+        if (replays == null) {
+            replays = Metrics.newCounter(getClass(), "replayed-entries");
+        }
+        replays.inc();
         failedQueue.add(msgId.toString());
     }
 
+    /**
+     * Removes the next failed entry from the replay queue and fetches it, for spouts that emit outside of the
+     * scheduled queue populations.
+     *
+     * @return the failed entry or null if there is none (or it no longer exists)
+     */
+    protected BasicDBObject nextFailedEntry() {
+        while (failedQueue != null && !failedQueue.isEmpty()) {
+            BasicDBObject entry = getDBEntry(failedQueue.remove());
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
     /**
      * Builds the {@link Queue} and adds all entries from {@link #getDBEntries()}.
      */
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.spouts;
+
+import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichSpout;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.streamreduce.storm.MongoClient;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+/**
+ * Spout of the backfill topology that emits the events of a time range of the event stream once, in timestamp order,
+ * to the same streams as {@link EventSpout}.
+ * <p/>
+ * Each task reads a partition of the accounts, those whose id hashes to its task index, so the events of an account
+ * are emitted in order by a single task and the tasks read the event stream in parallel.  Events are read through a
+ * cursor and emitted with message ids, so <code>topology.max.spout.pending</code> bounds the events in flight whatever
+ * the length of the range.  Events whose tuple tree fails or times out are not replayed, as that would emit them out
+ * of order, but counted.
+ * <p/>
+ * Each task reports its progress under the run id, see {@link MongoClient#getBackfillProgress(String)}, and is done
+ * once every event of its partition was acked or failed.
+ */
+public class BackfillEventSpout extends BaseRichSpout {
+
+    private static Logger logger = Logger.getLogger(BackfillEventSpout.class);
+    private static final long serialVersionUID = 2204761349823617512L;
+
+    // Not final like all others due to BackfillEventSpoutTest needing to set mock/set the MongoClient
+    private static MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
+
+    private static final ResourceBundle topologyProps = ResourceBundle.getBundle("juggaloader-topology");
+    private static final long PROGRESS_INTERVAL =
+            Long.parseLong(topologyProps.getString("juggaloader.backfill.progress.interval"));
+
+    private final long from;
+    private final long until;
+    private final String runId;
+    private final int batchSize;
+
+    private transient SpoutOutputCollector collector;
+    private transient DBCursor cursor;
+    private transient int partition;
+    private transient int numPartitions;
+    private transient long emitted;
+    private transient long pending;
+    private transient long failed;
+    private transient long lastTimestamp;
+    private transient long lastProgress;
+    private transient boolean done;
+
+    /**
+     * Constructor.
+     *
+     * @param from      the timestamp (inclusive) of the first event
+     * @param until     the timestamp (exclusive) of the last event
+     * @param runId     the backfill run id, progress is reported under it
+     * @param batchSize the number of events fetched per round trip
+     */
+    public BackfillEventSpout(long from, long until, String runId, int batchSize) {
+        this.from = from;
+        this.until = until;
+        this.runId = runId;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void open(Map map, TopologyContext topologyContext, SpoutOutputCollector spoutOutputCollector) {
+        this.collector = spoutOutputCollector;
+        this.partition = topologyContext.getThisTaskIndex();
+        this.numPartitions = topologyContext.getComponentTasks(topologyContext.getThisComponentId()).size();
+        this.lastTimestamp = -1;
+
+        List<Object> accountIds = getPartitionAccountIds(mongoClient.getEventAccountIds(from, until), partition,
+                                                         numPartitions);
+
+        logger.info("Backfill " + runId + " partition " + partition + "/" + numPartitions + " reading the events of " +
+                            accountIds.size() + " accounts between " + from + " and " + until);
+        if (!accountIds.isEmpty()) {
+            cursor = mongoClient.getEvents(from, until, accountIds, batchSize);
+        }
+        reportProgress();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void nextTuple() {
+        if (cursor != null && cursor.hasNext()) {
+            BasicDBObject entry = (BasicDBObject) cursor.next();
+            String eventType = EventSpout.getEventStream(entry);
+
+            if (eventType != null) {
+                Object messageId = entry.get("_id").toString();
+
+                lastTimestamp = entry.getLong("timestamp");
+                collector.emit(eventType, EventSpout.createEventValues(entry), messageId);
+                emitted++;
+                pending++;
+            }
+        } else {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+            if (!done && pending == 0) {
+                done = true;
+                logger.info("Backfill " + runId + " partition " + partition + " done, " + emitted +
+                                    " events emitted, " + failed + " failed");
+                reportProgress();
+                return;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (System.currentTimeMillis() - lastProgress >= PROGRESS_INTERVAL) {
+            reportProgress();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void ack(Object msgId) {
+        pending--;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fail(Object msgId) {
+        pending--;
+        failed++;
+        logger.warn("Backfill " + runId + " event " + msgId + " failed, it will be missing from the backfill");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
+        EventSpout.declareEventStreams(outputFieldsDeclarer);
+    }
+
+    /**
+     * Returns the account ids a partition reads the events of.  Every account belongs to exactly one partition.
+     *
+     * @param accountIds    the account ids of all partitions
+     * @param partition     the partition (task index)
+     * @param numPartitions the number of partitions
+     * @return the account ids of the partition
+     */
+    static List<Object> getPartitionAccountIds(List<Object> accountIds, int partition, int numPartitions) {
+        List<Object> partitionAccountIds = new ArrayList<>();
+
+        for (Object accountId : accountIds) {
+            if ((String.valueOf(accountId).hashCode() & Integer.MAX_VALUE) % numPartitions == partition) {
+                partitionAccountIds.add(accountId);
+            }
+        }
+        return partitionAccountIds;
+    }
+
+    private void reportProgress() {
+        lastProgress = System.currentTimeMillis();
+
+        try {
+            mongoClient.updateBackfillProgress(runId, partition, numPartitions, from, until, lastTimestamp, emitted,
+                                              failed, done);
+        } catch (Exception e) {
+            logger.error("Unable to report the progress of backfill " + runId + " partition " + partition, e);
+        }
+    }
+
+}
@@ -17,6 +17,7 @@
 package com.streamreduce.storm.spouts;
 
 import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Values;
@@ -25,15 +26,26 @@ import com.streamreduce.storm.GroupingNameConstants;
 import com.streamreduce.storm.MongoClient;
 import com.streamreduce.storm.Visibility;
 import org.apache.log4j.Logger;
+import org.bson.types.BSONTimestamp;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Extension of {@link AbstractScheduledDBCollectionSpout} that will
  * emit the {@link com.mongodb.BasicDBObject} representation for each Nodeable Event
+ * <p/>
+ * With <code>juggaloader.eventspout.mode=tail</code> events are emitted as they are inserted, read by an
+ * {@link EventTailer} from the oplog starting at the spout's resume token, instead of polling the event stream in
+ * one hour windows every 15 seconds.  Should tailing fail, or the resume token have rolled off the oplog while the
+ * spout was down, the spout falls back to polling from the last event it emitted.
+ * <p/>
+ * With <code>juggaloader.reliable=true</code> events are emitted with their id as the message id, so events whose
+ * tuple tree fails or times out are replayed.
  */
 public class EventSpout extends AbstractScheduledDBCollectionSpout {
 
@@ -43,8 +55,29 @@ public class EventSpout extends AbstractScheduledDBCollectionSpout {
     // Not final like all others due to EventSpoutTest needing to set mock/set the MongoClient
     private static MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
 
+    private static final ResourceBundle topologyProps = ResourceBundle.getBundle("juggaloader-topology");
+
+    // Not final for EventSpoutTest to be able to tail
+    private static String mode = topologyProps.getString("juggaloader.eventspout.mode");
+
+    private static final boolean RELIABLE = Boolean.parseBoolean(topologyProps.getString("juggaloader.reliable"));
+    private static final int TAIL_BUFFER_SIZE =
+            Integer.parseInt(topologyProps.getString("juggaloader.eventspout.tail.buffer"));
+    private static final int TAIL_MAX_FAILURES =
+            Integer.parseInt(topologyProps.getString("juggaloader.eventspout.tail.maxfailures"));
+    private static final long TAIL_CHECKPOINT_INTERVAL =
+            Long.parseLong(topologyProps.getString("juggaloader.eventspout.tail.checkpoint.interval"));
+
     private Date lastProcessedEventDate;
 
+    private transient EventTailer tailer;
+    private transient Map stormConfiguration;
+    private transient TopologyContext topologyContext;
+    private transient SpoutOutputCollector collector;
+    private transient BSONTimestamp resumeToken;
+    private transient long lastCheckpoint;
+    private transient boolean checkpointPending;
+
     /**
      * Constructor.  (Calls super constructor with a sleep duration of 15s for now.)
      */
@@ -90,18 +123,183 @@ public class EventSpout extends AbstractScheduledDBCollectionSpout {
         this.lastProcessedEventDate = lastProcessedEventDate;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void open(Map map, TopologyContext topologyContext, SpoutOutputCollector spoutOutputCollector) {
+        if (!"tail".equals(mode)) {
+            super.open(map, topologyContext, spoutOutputCollector);
+            return;
+        }
+
+        this.stormConfiguration = map;
+        this.topologyContext = topologyContext;
+        this.collector = spoutOutputCollector;
+
+        try {
+            resumeToken = getInitialResumeToken();
+            logger.info("Tailing the event stream from " + resumeToken);
+            tailer = new EventTailer(mongoClient, resumeToken, TAIL_BUFFER_SIZE, TAIL_MAX_FAILURES);
+            tailer.start();
+        } catch (Exception e) {
+            logger.error("Unable to tail the event stream, falling back to polling", e);
+            super.open(map, topologyContext, spoutOutputCollector);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void nextTuple() {
+        if (tailer == null) {
+            super.nextTuple();
+            return;
+        }
+
+        BasicDBObject failedEntry = nextFailedEntry();
+
+        if (failedEntry != null) {
+            handleDBEntry(collector, failedEntry);
+            return;
+        }
+
+        EventTailer.TailedEvent tailedEvent = tailer.poll();
+
+        if (tailedEvent != null) {
+            BasicDBObject event = tailedEvent.getEvent();
+
+            handleDBEntry(collector, event);
+            resumeToken = tailedEvent.getResumeToken();
+            if (event.get("timestamp") != null) {
+                lastProcessedEventDate = new Date(event.getLong("timestamp"));
+            }
+            checkpointPending = true;
+        } else if (tailer.isFailed()) {
+            // Persist what was emitted so polling picks up right after it
+            checkpointTail();
+            tailer = null;
+            super.open(stormConfiguration, topologyContext, collector);
+            return;
+        } else {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (System.currentTimeMillis() - lastCheckpoint >= TAIL_CHECKPOINT_INTERVAL) {
+            checkpointTail();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        if (tailer != null) {
+            tailer.stop();
+            checkpointTail();
+        }
+    }
+
+    /**
+     * Returns the oplog timestamp to start tailing from: the persisted resume token, the last processed event date
+     * when switching over from polling, or the end of the oplog when the spout has never run.
+     *
+     * @return the resume token
+     * @throws IllegalStateException if there is no oplog or it no longer holds the resume token
+     */
+    BSONTimestamp getInitialResumeToken() {
+        BSONTimestamp latest = mongoClient.getLatestOplogTimestamp();
+
+        if (latest == null) {
+            throw new IllegalStateException("The oplog is empty or missing, the database must run as a replica set");
+        }
+
+        BSONTimestamp token = mongoClient.readResumeToken("EventSpout");
+
+        if (token == null) {
+            long lastProcessedEvent = mongoClient.readLastProcessedEventDate("EventSpout");
+
+            token = lastProcessedEvent != -1 ?
+                    new BSONTimestamp((int) TimeUnit.MILLISECONDS.toSeconds(lastProcessedEvent), 0) :
+                    latest;
+        }
+
+        BSONTimestamp oldest = mongoClient.getOldestOplogTimestamp();
+
+        // Tailing from before the oldest entry would resume from the start of the oplog and lose the events between
+        if (token != latest && (oldest == null || isBefore(token, oldest))) {
+            throw new IllegalStateException("The resume token " + token + " is older than the oldest oplog entry " +
+                                                    oldest + ", the events in between are no longer in the oplog");
+        }
+
+        return token;
+    }
+
+    /**
+     * Returns whether an oplog timestamp is before another.
+     *
+     * @param timestamp the timestamp
+     * @param other     the timestamp to compare it with
+     * @return true if timestamp is before other
+     */
+    static boolean isBefore(BSONTimestamp timestamp, BSONTimestamp other) {
+        return timestamp.getTime() != other.getTime() ?
+                timestamp.getTime() < other.getTime() :
+                timestamp.getInc() < other.getInc();
+    }
+
+    /**
+     * Persists the resume token and the last processed event date of the last event emitted while tailing.
+     */
+    private void checkpointTail() {
+        lastCheckpoint = System.currentTimeMillis();
+
+        if (!checkpointPending) {
+            return;
+        }
+
+        try {
+            mongoClient.updateResumeToken("EventSpout", resumeToken);
+            if (lastProcessedEventDate != null) {
+                mongoClient.updateLastProcessedEventDate("EventSpout", lastProcessedEventDate.getTime());
+            }
+            checkpointPending = false;
+        } catch (Exception e) {
+            logger.error("Unable to persist the event stream resume token " + resumeToken, e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
+        declareEventStreams(outputFieldsDeclarer);
+    }
+
+    /**
+     * Declares the streams events are emitted to, one per target type, shared with {@link BackfillEventSpout}.
+     *
+     * @param outputFieldsDeclarer the declarer
+     */
+    static void declareEventStreams(OutputFieldsDeclarer outputFieldsDeclarer) {
         // added the default stream because storm complained
         outputFieldsDeclarer.declare(new Fields());
-        outputFieldsDeclarer.declareStream(GroupingNameConstants.ACCOUNT_GROUPING_NAME, new Fields("event"));
-        outputFieldsDeclarer.declareStream(GroupingNameConstants.CONNECTION_GROUPING_NAME, new Fields("event"));
-        outputFieldsDeclarer.declareStream(GroupingNameConstants.INVENTORY_ITEM_GROUPING_NAME, new Fields("event"));
-        outputFieldsDeclarer.declareStream(GroupingNameConstants.USER_GROUPING_NAME, new Fields("event"));
-        outputFieldsDeclarer.declareStream(GroupingNameConstants.MESSAGE_GROUPING_NAME, new Fields("event"));
+
+        // The target id is emitted alongside the event so the metrics bolts can be fields grouped on it
+        Fields eventFields = new Fields("event", "targetId");
+
+        outputFieldsDeclarer.declareStream(GroupingNameConstants.ACCOUNT_GROUPING_NAME, eventFields);
+        outputFieldsDeclarer.declareStream(GroupingNameConstants.CONNECTION_GROUPING_NAME, eventFields);
+        outputFieldsDeclarer.declareStream(GroupingNameConstants.INVENTORY_ITEM_GROUPING_NAME, eventFields);
+        outputFieldsDeclarer.declareStream(GroupingNameConstants.USER_GROUPING_NAME, eventFields);
+        outputFieldsDeclarer.declareStream(GroupingNameConstants.MESSAGE_GROUPING_NAME, eventFields);
     }
 
     /**
@@ -109,6 +307,30 @@ public class EventSpout extends AbstractScheduledDBCollectionSpout {
      */
     @Override
     public void handleDBEntry(SpoutOutputCollector collector, BasicDBObject entry) {
+        String eventType = getEventStream(entry);
+
+        if (eventType == null) {
+            return;
+        }
+
+        Values values = createEventValues(entry);
+
+        if (RELIABLE && entry.get("_id") != null) {
+            collector.emit(eventType, values, entry.get("_id").toString());
+        } else {
+            collector.emit(eventType, values);
+        }
+        ack(entry);
+    }
+
+    /**
+     * Returns the stream an event is emitted to, its target type, or null if it isn't to be emitted: events without
+     * a target type can't be processed and those with a private target aren't.
+     *
+     * @param entry the event
+     * @return the stream id or null
+     */
+    static String getEventStream(BasicDBObject entry) {
         BasicDBObject metadata = entry.containsField("metadata") ? (BasicDBObject) entry.get("metadata") : new BasicDBObject();
         String eventType = metadata.getString("targetType");
 
@@ -120,7 +342,7 @@ public class EventSpout extends AbstractScheduledDBCollectionSpout {
             logger.error("Event with id of " + entry.get("_id") + " has no target type.  Unable to process.");
 
             // Early return to avoid emitting the event
-            return;
+            return null;
         }
 
         String v = (String) metadata.get("targetVisibility");
@@ -128,14 +350,24 @@ public class EventSpout extends AbstractScheduledDBCollectionSpout {
             Visibility visibility = Visibility.valueOf(v);
             if (visibility == Visibility.SELF) {
                 // do not process private information
-                return;
+                return null;
             }
         }
 
+        return eventType;
+    }
+
+    /**
+     * Maps the event to plain Java types and returns the values emitted for it: the event and its target id.
+     *
+     * @param entry the event
+     * @return the values
+     */
+    static Values createEventValues(BasicDBObject entry) {
         MongoClient.mapMongoToPlainJavaTypes(entry);
         // Emit the entry to the type-specific stream
-        collector.emit(eventType, new Values(entry.toMap()));
-        ack(entry);
+        Object targetId = entry.get("targetId");
+        return new Values(entry.toMap(), targetId != null ? targetId.toString() : null);
     }
 
     /**
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.spouts;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.streamreduce.storm.MongoClient;
+import org.apache.log4j.Logger;
+import org.bson.types.BSONTimestamp;
+
+/**
+ * Tails the oplog for events inserted into the event stream on a background thread and buffers them, with their
+ * oplog timestamps, in a bounded queue for {@link EventSpout} to emit.  The tailer blocks once the buffer is full so
+ * the memory held by events in flight stays bounded.
+ * <p/>
+ * A dead cursor is reopened from the last timestamp read.  After <code>maxFailures</code> consecutive failures to
+ * tail (for instance when the database doesn't run as a replica set) the tailer gives up and reports itself as
+ * failed, so the spout can fall back to polling.
+ */
+public class EventTailer implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(EventTailer.class);
+    private static final long RETRY_SLEEP = 1000;
+
+    private final MongoClient mongoClient;
+    private final BlockingQueue<TailedEvent> buffer;
+    private final int maxFailures;
+    private volatile BSONTimestamp lastRead;
+    private volatile boolean running = true;
+    private volatile boolean failed;
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param mongoClient the client used to tail the oplog
+     * @param since       the oplog timestamp (exclusive) to start tailing from
+     * @param bufferSize  the maximum number of events buffered
+     * @param maxFailures the number of consecutive failures after which the tailer gives up
+     */
+    public EventTailer(MongoClient mongoClient, BSONTimestamp since, int bufferSize, int maxFailures) {
+        this.mongoClient = mongoClient;
+        this.lastRead = since;
+        this.buffer = new LinkedBlockingQueue<>(bufferSize);
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * Starts tailing on a daemon thread.
+     */
+    public void start() {
+        thread = new Thread(this, "EventTailer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops tailing.
+     */
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Returns whether the tailer gave up.
+     *
+     * @return true if the tailer gave up and the events should be polled for instead
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the next buffered event without waiting.
+     *
+     * @return the next event or null if none is buffered
+     */
+    public TailedEvent poll() {
+        return buffer.poll();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        int failures = 0;
+
+        while (running) {
+            DBCursor cursor = null;
+
+            try {
+                cursor = mongoClient.tailEvents(lastRead);
+
+                while (running && cursor.hasNext()) {
+                    DBObject entry = cursor.next();
+                    BSONTimestamp ts = (BSONTimestamp) entry.get("ts");
+
+                    buffer.put(new TailedEvent((BasicDBObject) entry.get("o"), ts));
+                    lastRead = ts;
+                    failures = 0;
+                }
+
+                // An await-data cursor also ends when it times out without new entries, which is no failure
+                if (cursor.getCursorId() != 0) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                failures++;
+                logger.warn("Unable to tail the event stream from " + lastRead + " (" + failures + "/" +
+                                    maxFailures + "): " + e.getMessage());
+                if (failures >= maxFailures) {
+                    logger.error("Giving up on tailing the event stream, falling back to polling");
+                    failed = true;
+                    return;
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
+            try {
+                Thread.sleep(RETRY_SLEEP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * An event read from the oplog along with its oplog timestamp, the resume token to tail from once the event is
+     * emitted.
+     */
+    public static class TailedEvent {
+
+        private final BasicDBObject event;
+        private final BSONTimestamp resumeToken;
+
+        public TailedEvent(BasicDBObject event, BSONTimestamp resumeToken) {
+            this.event = event;
+            this.resumeToken = resumeToken;
+        }
+
+        public BasicDBObject getEvent() {
+            return event;
+        }
+
+        public BSONTimestamp getResumeToken() {
+            return resumeToken;
+        }
+
+    }
+
+}
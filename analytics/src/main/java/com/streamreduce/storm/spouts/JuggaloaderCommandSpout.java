@@ -24,6 +24,7 @@ import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Values;
 import com.streamreduce.analytics.MetricName;
 import com.streamreduce.core.metric.MetricModeType;
+import com.streamreduce.storm.MetricCriteriaMap;
 import org.apache.log4j.Logger;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
@@ -106,7 +107,7 @@ public class JuggaloaderCommandSpout extends BaseRichSpout {
             }
         } else {
             Map<String, String> params = (Map<String, String>)queue.remove();
-            Map<String, String> nullCriteria = new HashMap<>();
+            Map<String, String> nullCriteria = new MetricCriteriaMap();
 
             collector.emit(
                 new Values(
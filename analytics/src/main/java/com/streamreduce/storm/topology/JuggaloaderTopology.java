@@ -17,71 +17,394 @@
 package com.streamreduce.storm.topology;
 
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import backtype.storm.Config;
 import backtype.storm.generated.StormTopology;
+import backtype.storm.topology.BoltDeclarer;
 import backtype.storm.topology.TopologyBuilder;
 import backtype.storm.tuple.Fields;
 import com.streamreduce.Constants;
+import com.streamreduce.core.metric.MetricModeType;
 import com.streamreduce.storm.GroupingNameConstants;
+import com.streamreduce.storm.MetricCriteriaMap;
+import com.streamreduce.storm.QuantileSketch;
+import com.streamreduce.storm.bolts.AbstractMetricsBolt;
 import com.streamreduce.storm.bolts.AccountMetricsBolt;
 import com.streamreduce.storm.bolts.ConnectionMetricsBolt;
 import com.streamreduce.storm.bolts.InventoryItemMetricsBolt;
+import com.streamreduce.storm.bolts.JuggaloaderFusedTimeBaseBolt;
 import com.streamreduce.storm.bolts.JuggaloaderMessageGeneratorBolt;
 import com.streamreduce.storm.bolts.JuggaloaderTimeBaseBolt;
+import com.streamreduce.storm.bolts.NodeableUnreliableBolt;
 import com.streamreduce.storm.bolts.PersistMetricsBolt;
 import com.streamreduce.storm.bolts.SobaMessageMetricsBolt;
 import com.streamreduce.storm.bolts.UserMetricsBolt;
+import com.streamreduce.storm.serialization.MetricCriteriaMapSerializer;
+import com.streamreduce.storm.serialization.QuantileSketchSerializer;
+import com.streamreduce.storm.spouts.BackfillEventSpout;
 import com.streamreduce.storm.spouts.EventSpout;
 import com.streamreduce.storm.spouts.JuggaloaderCommandSpout;
 
 
+/**
+ * Builds the Juggaloader topology and its Storm configuration from the <code>topology.*</code> and
+ * <code>juggaloader.granularities</code> properties of <code>juggaloader-topology.properties</code>, optionally
+ * overridden by an external properties file.
+ * <p/>
+ * Each bolt gets the parallelism hint <code>topology.parallelism.&lt;component&gt;</code> (1 when unset).  The spouts
+ * always run a single task: every EventSpout task would read the whole event stream and the command spout binds a
+ * port.  The time-base bolts are chained in granularity order over the enabled granularities only, so disabling
+ * for instance <code>week</code> feeds the <code>month</code> bolt from the <code>day</code> bolt.
+ * <p/>
+ * With <code>juggaloader.timebase.layout=fused</code> the chain is replaced by a single
+ * {@link JuggaloaderFusedTimeBaseBolt} (component <code>timebase</code>) emitting each granularity on its own stream.
+ * <p/>
+ * The backfill topology runs the same metrics and time-base bolts over a time range of the event stream read by
+ * <code>juggaloader.backfill.partitions</code> {@link BackfillEventSpout} tasks, see
+ * {@link #createBackfillTopology(long, long, String)}.
+ */
 public class JuggaloaderTopology {
 
+    public static final String PROPERTIES_RESOURCE = "/juggaloader-topology.properties";
+    public static final String BACKFILL_COLLECTION_PREFIX = "Backfill_";
+
+    private static final Map<String, Long> GRANULARITIES = new LinkedHashMap<>();
+
+    static {
+        GRANULARITIES.put("second", 0L);
+        GRANULARITIES.put("minute", Constants.PERIOD_MINUTE);
+        GRANULARITIES.put("hour", Constants.PERIOD_HOUR);
+        GRANULARITIES.put("day", Constants.PERIOD_DAY);
+        GRANULARITIES.put("week", Constants.PERIOD_WEEK);
+        GRANULARITIES.put("month", Constants.PERIOD_MONTH);
+    }
+
+    private static final String FUSED_TIMEBASE = "timebase";
+    private static final Fields METRIC_FIELDS = new Fields("metricAccount", "metricName");
+    private static final Fields TARGET_FIELDS = new Fields("targetId");
+
+    private final Properties properties;
+
+    /**
+     * Constructor using the bundled <code>juggaloader-topology.properties</code>.
+     */
+    public JuggaloaderTopology() {
+        this(loadProperties(null));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param properties the topology properties
+     */
+    public JuggaloaderTopology(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Loads the bundled <code>juggaloader-topology.properties</code>, overridden by the given file if any.  Only the
+     * topology layout and Storm configuration come from the override, the bolts read their own settings from the
+     * bundled properties.
+     *
+     * @param overridePath the path of a properties file overriding the bundled properties or null
+     * @return the properties
+     */
+    public static Properties loadProperties(String overridePath) {
+        Properties properties = new Properties();
+
+        try {
+            try (InputStream in = JuggaloaderTopology.class.getResourceAsStream(PROPERTIES_RESOURCE)) {
+                properties.load(in);
+            }
+            if (overridePath != null) {
+                try (InputStream in = new FileInputStream(overridePath)) {
+                    properties.load(in);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load the topology properties: " + e.getMessage(), e);
+        }
+
+        return properties;
+    }
+
+    /**
+     * Returns the enabled granularities, in chain order.
+     *
+     * @return the names of the enabled granularities
+     */
+    public List<String> getGranularities() {
+        List<String> enabled = new ArrayList<>();
+        String configured = properties.getProperty("juggaloader.granularities", "");
+
+        for (String granularity : configured.split(",")) {
+            granularity = granularity.trim();
+            if (granularity.isEmpty()) {
+                continue;
+            }
+            if (!GRANULARITIES.containsKey(granularity)) {
+                throw new IllegalArgumentException("Unknown granularity '" + granularity + "', expected one of " +
+                                                           GRANULARITIES.keySet());
+            }
+            enabled.add(granularity);
+        }
+        // The second bolt is where metrics enter the chain
+        if (!enabled.contains("second")) {
+            throw new IllegalArgumentException("The 'second' granularity can't be disabled");
+        }
+
+        // Keep chain order whatever order they were listed in
+        List<String> ordered = new ArrayList<>();
+        for (String granularity : GRANULARITIES.keySet()) {
+            if (enabled.contains(granularity)) {
+                ordered.add(granularity);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Returns the parallelism hint of a component.
+     *
+     * @param component the component id
+     * @return the parallelism hint
+     */
+    public int getParallelism(String component) {
+        return getInt("topology.parallelism." + component, 1);
+    }
+
+    /**
+     * Creates the Storm configuration to submit the topology with.
+     *
+     * @return the configuration
+     */
+    public Config createConfig() {
+        Config config = new Config();
+
+        config.registerSerialization(LinkedHashMap.class);
+        config.registerSerialization(MetricCriteriaMap.class, MetricCriteriaMapSerializer.class);
+        config.registerSerialization(QuantileSketch.class, QuantileSketchSerializer.class);
+        config.registerSerialization(MetricModeType.class);
+        config.setFallBackOnJavaSerialization(false);
+        config.setDebug(Boolean.parseBoolean(properties.getProperty("topology.cluster.debug", "false")));
+        config.setNumWorkers(getInt("topology.num.workers", 1));
+        config.setNumAckers(getInt("topology.num.ackers", 1));
+        // Only limits the events in flight when they are emitted with message ids (juggaloader.reliable=true)
+        config.setMaxSpoutPending(getInt("topology.max.spout.pending", 500));
+        config.setMessageTimeoutSecs(getInt("topology.message.timeout.secs", 30));
+
+        String maxTaskParallelism = properties.getProperty("topology.max.task.parallelism", "").trim();
+        if (!maxTaskParallelism.isEmpty()) {
+            config.setMaxTaskParallelism(Integer.parseInt(maxTaskParallelism));
+        }
+
+        return config;
+    }
+
     public StormTopology createJuggaloaderTopology() {
         TopologyBuilder builder = new TopologyBuilder();
-        builder.setSpout("eventSpout", new EventSpout());
-        builder.setSpout("commandSpout", new JuggaloaderCommandSpout());
-        builder.setBolt("accountMetricsBolt", new AccountMetricsBolt())
-                .shuffleGrouping("eventSpout", GroupingNameConstants.ACCOUNT_GROUPING_NAME);
-        builder.setBolt("connectionMetricsBolt", new ConnectionMetricsBolt())
-                .shuffleGrouping("eventSpout", GroupingNameConstants.CONNECTION_GROUPING_NAME);
-        builder.setBolt("inventoryItemMetricsBolt", new InventoryItemMetricsBolt())
-                .shuffleGrouping("eventSpout", GroupingNameConstants.INVENTORY_ITEM_GROUPING_NAME);
-        builder.setBolt("userMetricsBolt", new UserMetricsBolt())
-                .shuffleGrouping("eventSpout", GroupingNameConstants.USER_GROUPING_NAME);
-        builder.setBolt("messageMetricsBolt", new SobaMessageMetricsBolt())
-               .shuffleGrouping("eventSpout", GroupingNameConstants.MESSAGE_GROUPING_NAME);
-        builder.setBolt("second", new JuggaloaderTimeBaseBolt(0))
-                .fieldsGrouping("accountMetricsBolt", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("connectionMetricsBolt", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("inventoryItemMetricsBolt", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("userMetricsBolt", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("messageMetricsBolt", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("commandSpout", new Fields("metricAccount", "metricName"));
-        builder.setBolt("minute", new JuggaloaderTimeBaseBolt(Constants.PERIOD_MINUTE))
-                .fieldsGrouping("second", new Fields("metricAccount", "metricName"));
-        builder.setBolt("hour", new JuggaloaderTimeBaseBolt(Constants.PERIOD_HOUR))
-                .fieldsGrouping("minute", new Fields("metricAccount", "metricName"));
-        builder.setBolt("day", new JuggaloaderTimeBaseBolt(Constants.PERIOD_DAY))
-                .fieldsGrouping("hour", new Fields("metricAccount", "metricName"));
-        builder.setBolt("week", new JuggaloaderTimeBaseBolt(Constants.PERIOD_WEEK))
-                .fieldsGrouping("day", new Fields("metricAccount", "metricName"));
-        builder.setBolt("month", new JuggaloaderTimeBaseBolt(Constants.PERIOD_MONTH))
-                .fieldsGrouping("week", new Fields("metricAccount", "metricName"));
-        builder.setBolt("persistence", new PersistMetricsBolt())
-                .shuffleGrouping("minute")
-                .shuffleGrouping("hour")
-                .shuffleGrouping("day")
-                .shuffleGrouping("week")
-                .shuffleGrouping("month");
-        // builder.setBolt("message", new JuggaloaderAnomalyGeneratorBolt()) // TODO - replace the next line with this one when SOBA-1521 is done
-        builder.setBolt("message", new JuggaloaderMessageGeneratorBolt())
-                .fieldsGrouping("second", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("minute", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("hour", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("day", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("week", new Fields("metricAccount", "metricName"))
-                .fieldsGrouping("month", new Fields("metricAccount", "metricName"));
+        builder.setSpout("eventSpout", new EventSpout(), 1);
+        builder.setSpout("commandSpout", new JuggaloaderCommandSpout(), 1);
+        declareMetricsBolts(builder);
+        declareTimeBase(builder, null);
         return builder.createTopology();
     }
 
+    /**
+     * Creates the Storm configuration to submit the backfill topology with: {@link #createConfig()} with
+     * <code>juggaloader.backfill.max.pending</code> events in flight per spout task.  The bolts run in reliable mode
+     * whatever <code>juggaloader.reliable</code>, so an event is acked only once its metrics were written, and
+     * don't combine deltas, so no event waits on a combine window to be acked.
+     *
+     * @return the configuration
+     */
+    public Config createBackfillConfig() {
+        Config config = createConfig();
+
+        config.setMaxSpoutPending(getInt("juggaloader.backfill.max.pending", 2000));
+        config.put(NodeableUnreliableBolt.RELIABLE_CONFIG, true);
+        config.put(AbstractMetricsBolt.COMBINE_WINDOW_CONFIG, 0);
+        return config;
+    }
+
+    /**
+     * Creates the backfill topology, which replays the events of a time range through the metrics and time-base
+     * bolts and writes the metrics to the shadow collections of the run, see {@link #getBackfillCollectionPrefix}.
+     * It has no command spout nor message bolt and its time-base bolts don't checkpoint, so the live topology's
+     * stream states and messages are left alone.
+     *
+     * @param from  the timestamp (inclusive) of the first event
+     * @param until the timestamp (exclusive) of the last event
+     * @param runId the backfill run id
+     * @return the topology
+     */
+    public StormTopology createBackfillTopology(long from, long until, String runId) {
+        TopologyBuilder builder = new TopologyBuilder();
+        builder.setSpout("eventSpout",
+                         new BackfillEventSpout(from, until, runId, getInt("juggaloader.backfill.batch.size", 1000)),
+                         getInt("juggaloader.backfill.partitions", 1));
+        declareMetricsBolts(builder);
+        declareTimeBase(builder, runId);
+        return builder.createTopology();
+    }
+
+    /**
+     * Returns the prefix of the shadow metric collections a backfill run writes to.
+     *
+     * @param runId the backfill run id
+     * @return the collection prefix
+     */
+    public static String getBackfillCollectionPrefix(String runId) {
+        return BACKFILL_COLLECTION_PREFIX + runId + "_";
+    }
+
+    private void declareMetricsBolts(TopologyBuilder builder) {
+        builder.setBolt("accountMetricsBolt", new AccountMetricsBolt(), getParallelism("accountMetricsBolt"))
+                .fieldsGrouping("eventSpout", GroupingNameConstants.ACCOUNT_GROUPING_NAME, TARGET_FIELDS);
+        builder.setBolt("connectionMetricsBolt", new ConnectionMetricsBolt(), getParallelism("connectionMetricsBolt"))
+                .fieldsGrouping("eventSpout", GroupingNameConstants.CONNECTION_GROUPING_NAME, TARGET_FIELDS);
+        builder.setBolt("inventoryItemMetricsBolt", new InventoryItemMetricsBolt(),
+                        getParallelism("inventoryItemMetricsBolt"))
+                .fieldsGrouping("eventSpout", GroupingNameConstants.INVENTORY_ITEM_GROUPING_NAME, TARGET_FIELDS);
+        builder.setBolt("userMetricsBolt", new UserMetricsBolt(), getParallelism("userMetricsBolt"))
+                .fieldsGrouping("eventSpout", GroupingNameConstants.USER_GROUPING_NAME, TARGET_FIELDS);
+        builder.setBolt("messageMetricsBolt", new SobaMessageMetricsBolt(), getParallelism("messageMetricsBolt"))
+               .fieldsGrouping("eventSpout", GroupingNameConstants.MESSAGE_GROUPING_NAME, TARGET_FIELDS);
+    }
+
+    /**
+     * Declares the time-base bolts and what they feed.
+     *
+     * @param builder       the builder
+     * @param backfillRunId the backfill run id, or null for the live topology
+     */
+    private void declareTimeBase(TopologyBuilder builder, String backfillRunId) {
+        List<String> granularities = getGranularities();
+
+        if (isFused()) {
+            declareFusedTimeBase(builder, granularities, backfillRunId);
+        } else {
+            declareChainedTimeBase(builder, granularities, backfillRunId);
+        }
+    }
+
+    /**
+     * Returns whether the granularities run fused in a single bolt rather than as a chain of bolts.
+     *
+     * @return true for the fused layout
+     */
+    public boolean isFused() {
+        String layout = properties.getProperty("juggaloader.timebase.layout", "chained").trim();
+
+        if (!"fused".equals(layout) && !"chained".equals(layout)) {
+            throw new IllegalArgumentException("Unknown juggaloader.timebase.layout '" + layout +
+                                                       "', expected chained or fused");
+        }
+        return "fused".equals(layout);
+    }
+
+    private void declareChainedTimeBase(TopologyBuilder builder, List<String> granularities, String backfillRunId) {
+        String previous = null;
+
+        for (String granularity : granularities) {
+            JuggaloaderTimeBaseBolt timeBaseBolt = new JuggaloaderTimeBaseBolt(GRANULARITIES.get(granularity));
+            if (backfillRunId != null) {
+                timeBaseBolt.setCheckpointEnabled(false);
+            }
+            BoltDeclarer bolt = builder.setBolt(granularity, timeBaseBolt, getParallelism(granularity));
+            if (previous == null) {
+                declareMetricInputs(bolt, backfillRunId == null);
+            } else {
+                bolt.fieldsGrouping(previous, METRIC_FIELDS);
+            }
+            previous = granularity;
+        }
+
+        // Second-level metrics aren't persisted
+        if (granularities.size() > 1) {
+            BoltDeclarer persistence = builder.setBolt("persistence", createPersistMetricsBolt(backfillRunId),
+                                                       getParallelism("persistence"));
+            for (String granularity : granularities.subList(1, granularities.size())) {
+                persistence.shuffleGrouping(granularity);
+            }
+        }
+
+        // A backfill generates no messages, those of the time range were generated live
+        if (backfillRunId != null) {
+            return;
+        }
+
+        // builder.setBolt("message", new JuggaloaderAnomalyGeneratorBolt()) // TODO - replace the next line with this one when SOBA-1521 is done
+        BoltDeclarer message = builder.setBolt("message", new JuggaloaderMessageGeneratorBolt(),
+                                               getParallelism("message"));
+        for (String granularity : granularities) {
+            message.fieldsGrouping(granularity, METRIC_FIELDS);
+        }
+    }
+
+    private void declareFusedTimeBase(TopologyBuilder builder, List<String> granularities, String backfillRunId) {
+        String[] names = granularities.toArray(new String[granularities.size()]);
+        long[] periods = new long[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            periods[i] = GRANULARITIES.get(names[i]);
+        }
+        JuggaloaderFusedTimeBaseBolt timeBaseBolt = new JuggaloaderFusedTimeBaseBolt(names, periods);
+        if (backfillRunId != null) {
+            timeBaseBolt.setCheckpointEnabled(false);
+        }
+        declareMetricInputs(builder.setBolt(FUSED_TIMEBASE, timeBaseBolt, getParallelism(FUSED_TIMEBASE)),
+                            backfillRunId == null);
+
+        // Second-level metrics aren't persisted
+        if (granularities.size() > 1) {
+            BoltDeclarer persistence = builder.setBolt("persistence", createPersistMetricsBolt(backfillRunId),
+                                                       getParallelism("persistence"));
+            for (String granularity : granularities.subList(1, granularities.size())) {
+                persistence.shuffleGrouping(FUSED_TIMEBASE, granularity);
+            }
+        }
+
+        // A backfill generates no messages, those of the time range were generated live
+        if (backfillRunId != null) {
+            return;
+        }
+
+        BoltDeclarer message = builder.setBolt("message", new JuggaloaderMessageGeneratorBolt(),
+                                               getParallelism("message"));
+        for (String granularity : granularities) {
+            message.fieldsGrouping(FUSED_TIMEBASE, granularity, METRIC_FIELDS);
+        }
+    }
+
+    private void declareMetricInputs(BoltDeclarer bolt, boolean withCommandSpout) {
+        bolt.fieldsGrouping("accountMetricsBolt", METRIC_FIELDS)
+            .fieldsGrouping("connectionMetricsBolt", METRIC_FIELDS)
+            .fieldsGrouping("inventoryItemMetricsBolt", METRIC_FIELDS)
+            .fieldsGrouping("userMetricsBolt", METRIC_FIELDS)
+            .fieldsGrouping("messageMetricsBolt", METRIC_FIELDS);
+        if (withCommandSpout) {
+            bolt.fieldsGrouping("commandSpout", METRIC_FIELDS);
+        }
+    }
+
+    private PersistMetricsBolt createPersistMetricsBolt(String backfillRunId) {
+        return backfillRunId != null ? new PersistMetricsBolt(getBackfillCollectionPrefix(backfillRunId)) :
+                new PersistMetricsBolt();
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key, "").trim();
+
+        return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
 }
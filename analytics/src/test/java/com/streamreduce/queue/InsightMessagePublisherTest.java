@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link InsightMessagePublisher} works as expected.
+ */
+public class InsightMessagePublisherTest {
+
+    @Test
+    public void testInsightsAreSentInOrderInBatches() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<List<Map<String, Object>>> batches = Collections.synchronizedList(
+                new ArrayList<List<Map<String, Object>>>());
+        InsightMessagePublisher publisher = new InsightMessagePublisher(new InsightMessagePublisher.BatchSender() {
+            @Override
+            public void send(List<Map<String, Object>> eventMaps) throws Exception {
+                // hold the first batch so the rest queue up behind it
+                release.await();
+                batches.add(new ArrayList<>(eventMaps));
+            }
+        }, 100, 10, 10);
+
+        for (int i = 0; i < 25; i++) {
+            Assert.assertTrue(publisher.publish(createInsight(i)));
+        }
+        release.countDown();
+        Assert.assertTrue(publisher.shutdown(5000));
+
+        List<Map<String, Object>> sent = new ArrayList<>();
+        for (List<Map<String, Object>> batch : batches) {
+            Assert.assertTrue(batch.size() <= 10);
+            sent.addAll(batch);
+        }
+        Assert.assertEquals(25, sent.size());
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals(i, sent.get(i).get("index"));
+        }
+        // the first insight was sent alone, the others queued meanwhile were batched
+        Assert.assertTrue(batches.size() <= 4);
+    }
+
+    @Test
+    public void testPublishReportsAFullQueue() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch sending = new CountDownLatch(1);
+        InsightMessagePublisher publisher = new InsightMessagePublisher(new InsightMessagePublisher.BatchSender() {
+            @Override
+            public void send(List<Map<String, Object>> eventMaps) throws Exception {
+                sending.countDown();
+                release.await();
+            }
+        }, 2, 10, 10);
+
+        Assert.assertTrue(publisher.publish(createInsight(0)));
+        Assert.assertTrue(sending.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(publisher.publish(createInsight(1)));
+        Assert.assertTrue(publisher.publish(createInsight(2)));
+        Assert.assertFalse(publisher.publish(createInsight(3)));
+        Assert.assertEquals(2, publisher.pending());
+
+        release.countDown();
+        Assert.assertTrue(publisher.shutdown(5000));
+        Assert.assertFalse(publisher.publish(createInsight(4)));
+    }
+
+    @Test
+    public void testAFailedBatchDoesNotStopThePublisher() throws Exception {
+        final List<Map<String, Object>> sent = Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+        InsightMessagePublisher publisher = new InsightMessagePublisher(new InsightMessagePublisher.BatchSender() {
+            @Override
+            public void send(List<Map<String, Object>> eventMaps) throws Exception {
+                if (eventMaps.get(0).get("index").equals(0)) {
+                    throw new RuntimeException("broker down");
+                }
+                sent.addAll(eventMaps);
+            }
+        }, 10, 1, 10);
+
+        publisher.publish(createInsight(0));
+        publisher.publish(createInsight(1));
+        Assert.assertTrue(publisher.shutdown(5000));
+
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(1, sent.get(0).get("index"));
+    }
+
+    private Map<String, Object> createInsight(int index) {
+        Map<String, Object> insight = new HashMap<>();
+        insight.put("index", index);
+        return insight;
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import com.streamreduce.Constants;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Class used to test that {@link JuggaloaderStreamStateCheckpointer} works as expected.
+ */
+public class JuggaloaderStreamStateCheckpointerTest {
+
+    @Test
+    public void testCheckpointOnlyWritesChangedStreams() throws Exception {
+        for (JuggaloaderStreamStateStore store : stores()) {
+            MongoClient mongoClient = mock(MongoClient.class);
+            JuggaloaderStreamStateCheckpointer checkpointer =
+                    new JuggaloaderStreamStateCheckpointer(mongoClient, Constants.PERIOD_MINUTE, 0, 1, 0);
+
+            JuggaloaderStreamState state = store.create("account", "metricA", criteria("1"), 2.0f, 10L);
+            state.n = 7;
+            store.update(state);
+            store.update(store.create("account", "metricB", criteria("2"), 3.0f, 10L));
+            checkpointer.checkpoint(store);
+
+            List<BasicDBObject> written = lastSaved(mongoClient);
+            Assert.assertEquals(2, written.size());
+
+            // Only the touched stream is written the second time around
+            store.update(store.get("account", "metricB", criteria("2")));
+            checkpointer.checkpoint(store);
+            written = lastSaved(mongoClient);
+            Assert.assertEquals(1, written.size());
+            Assert.assertEquals("metricB", written.get(0).getString("metricName"));
+            Assert.assertEquals(Constants.PERIOD_MINUTE, written.get(0).getLong("period"));
+        }
+    }
+
+    @Test
+    public void testCheckpointRemovesDeletedStreams() throws Exception {
+        for (JuggaloaderStreamStateStore store : stores()) {
+            MongoClient mongoClient = mock(MongoClient.class);
+            JuggaloaderStreamStateCheckpointer checkpointer =
+                    new JuggaloaderStreamStateCheckpointer(mongoClient, Constants.PERIOD_HOUR, 0, 1, 0);
+
+            store.update(store.create("account", "metricA", criteria("1"), 2.0f, 10L));
+            checkpointer.checkpoint(store);
+            store.remove("account", "metricA", criteria("1"));
+            checkpointer.checkpoint(store);
+
+            ArgumentCaptor<List> removed = ArgumentCaptor.forClass(List.class);
+            verify(mongoClient, times(2)).removeStreamStates(removed.capture());
+            Assert.assertEquals(Collections.singletonList(Constants.PERIOD_HOUR + ":account:metricA{OBJECT_ID=1}"),
+                                removed.getValue());
+        }
+    }
+
+    @Test
+    public void testFailedCheckpointIsRetried() throws Exception {
+        for (JuggaloaderStreamStateStore store : stores()) {
+            MongoClient mongoClient = mock(MongoClient.class);
+            JuggaloaderStreamStateCheckpointer checkpointer =
+                    new JuggaloaderStreamStateCheckpointer(mongoClient, Constants.PERIOD_MINUTE, 0, 1, 0);
+
+            store.update(store.create("account", "metricA", criteria("1"), 2.0f, 10L));
+            store.update(store.create("account", "metricB", criteria("2"), 3.0f, 10L));
+            doThrow(new MongoException("Connection refused")).when(mongoClient).saveStreamStates(anyList());
+            checkpointer.checkpoint(store);
+
+            // The streams drained by the failed checkpoint are written by the next one, along with the new changes
+            doNothing().when(mongoClient).saveStreamStates(anyList());
+            store.update(store.create("account", "metricC", criteria("3"), 4.0f, 10L));
+            checkpointer.checkpoint(store);
+            List<BasicDBObject> written = lastSaved(mongoClient);
+            Assert.assertEquals(3, written.size());
+
+            // Nothing is left to write once a checkpoint succeeds
+            checkpointer.checkpoint(store);
+            Assert.assertTrue(lastSaved(mongoClient).isEmpty());
+        }
+    }
+
+    @Test
+    public void testRestoreRoundTripsOwnPartition() throws Exception {
+        MongoClient mongoClient = mock(MongoClient.class);
+        JuggaloaderStreamStateCheckpointer writer =
+                new JuggaloaderStreamStateCheckpointer(mongoClient, Constants.PERIOD_MINUTE, 0, 1, 0);
+        JuggaloaderStreamStateStore store = new PrimitiveStreamStateStore();
+
+        for (int i = 0; i < 50; i++) {
+            JuggaloaderStreamState state = store.create("account" + i, "metric", criteria("" + i), i, i);
+            state.yAvgLast = i * 1.5f;
+            state.anomalyReset = 2;
+            if (i % 2 == 0) {
+                state.detectorState = new float[] {i, 0.25f};
+                state.sketch = createSketch(i);
+            }
+            store.update(state);
+        }
+        writer.checkpoint(store);
+        List<BasicDBObject> written = lastSaved(mongoClient);
+
+        // Restore into two tasks using the same layout, each only gets its own streams
+        when(mongoClient.getStreamStates(eq(Constants.PERIOD_MINUTE), any(Integer.class), anyInt()))
+                .thenReturn(written);
+        int restored = 0;
+        for (int task = 0; task < 2; task++) {
+            JuggaloaderStreamStateStore restoredStore = new MapStreamStateStore();
+            restored += new JuggaloaderStreamStateCheckpointer(mongoClient, Constants.PERIOD_MINUTE, task, 2, 0)
+                    .restore(restoredStore);
+
+            for (int i = 0; i < 50; i++) {
+                JuggaloaderStreamState state = restoredStore.get("account" + i, "metric", criteria("" + i));
+                if (JuggaloaderStreamStateCheckpointer.partitionFor("account" + i, "metric", 2) == task) {
+                    Assert.assertEquals(i * 1.5f, state.yAvgLast, 0.0f);
+                    Assert.assertEquals(2, state.anomalyReset);
+                    if (i % 2 == 0) {
+                        Assert.assertArrayEquals(new float[] {i, 0.25f}, state.detectorState, 0.0f);
+                        Assert.assertEquals(createSketch(i), state.sketch);
+                    } else {
+                        Assert.assertNull(state.detectorState);
+                        Assert.assertNull(state.sketch);
+                    }
+                } else {
+                    Assert.assertNull(state);
+                }
+            }
+            Assert.assertTrue(restoredStore.drainChanges().isEmpty());
+        }
+        Assert.assertEquals(50, restored);
+    }
+
+    private static List<JuggaloaderStreamStateStore> stores() {
+        List<JuggaloaderStreamStateStore> stores = new ArrayList<>();
+        stores.add(new MapStreamStateStore());
+        stores.add(new PrimitiveStreamStateStore());
+        return stores;
+    }
+
+    private static List<BasicDBObject> lastSaved(MongoClient mongoClient) {
+        ArgumentCaptor<List> saved = ArgumentCaptor.forClass(List.class);
+        verify(mongoClient, atLeastOnce()).saveStreamStates(saved.capture());
+        return (List<BasicDBObject>) saved.getValue();
+    }
+
+    private static Map<String, String> criteria(String objectId) {
+        Map<String, String> criteria = new HashMap<>();
+        criteria.put("OBJECT_ID", objectId);
+        return criteria;
+    }
+
+
+    private static QuantileSketch createSketch(int samples) {
+        QuantileSketch sketch = new QuantileSketch(16);
+
+        // enough samples for a few levels
+        for (int i = 0; i < samples * 10; i++) {
+            sketch.add(i % 7);
+        }
+        return sketch;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Class used to test that {@link MetricsBatchWriter} works as expected.
+ */
+public class MetricsBatchWriterTest {
+
+    @Test
+    public void testFlushWritesOneBatchPerCollection() throws Exception {
+        MongoClient mongoClient = mock(MongoClient.class);
+        MetricsBatchWriter writer = new MetricsBatchWriter(mongoClient, 3, WriteConcern.SAFE);
+
+        Assert.assertFalse(writer.add("account1", new BasicDBObject("metricName", "a")));
+        Assert.assertFalse(writer.add("account2", new BasicDBObject("metricName", "b")));
+        Assert.assertTrue(writer.add("account1", new BasicDBObject("metricName", "c")));
+
+        Map<String, List<BasicDBObject>> written = writer.flush();
+
+        Assert.assertEquals(0, writer.size());
+        Assert.assertEquals(2, written.get("Metric_account1").size());
+        Assert.assertEquals(1, written.get("Metric_account2").size());
+        verify(mongoClient).writeMetrics("Metric_account1", written.get("Metric_account1"), WriteConcern.SAFE);
+        verify(mongoClient).writeMetrics("Metric_account2", written.get("Metric_account2"), WriteConcern.SAFE);
+        Assert.assertTrue(writer.flush().isEmpty());
+    }
+
+    @Test
+    public void testFlushDropsFailedCollection() throws Exception {
+        MongoClient mongoClient = mock(MongoClient.class);
+        MetricsBatchWriter writer = new MetricsBatchWriter(mongoClient, 10, WriteConcern.NORMAL);
+
+        doThrow(new MongoException("down")).when(mongoClient).writeMetrics(eq("Metric_account1"), anyList(),
+                                                                           eq(WriteConcern.NORMAL));
+        writer.add("account1", new BasicDBObject("metricName", "a"));
+        writer.add("account2", new BasicDBObject("metricName", "b"));
+
+        Map<String, List<BasicDBObject>> written = writer.flush();
+
+        Assert.assertEquals(1, written.size());
+        Assert.assertTrue(written.containsKey("Metric_account2"));
+        Assert.assertEquals(0, writer.size());
+    }
+
+    @Test
+    public void testCollectionPrefixRedirectsToShadowCollections() throws Exception {
+        MongoClient mongoClient = mock(MongoClient.class);
+        MetricsBatchWriter writer = new MetricsBatchWriter(mongoClient, 10, WriteConcern.NORMAL, "Backfill_run1_");
+
+        writer.add("account1", new BasicDBObject("metricName", "a"));
+
+        Map<String, List<BasicDBObject>> written = writer.flush();
+
+        Assert.assertEquals("Backfill_run1_Metric_account1", writer.getCollectionName("account1"));
+        Assert.assertEquals(1, written.get("Backfill_run1_Metric_account1").size());
+        verify(mongoClient).writeMetrics("Backfill_run1_Metric_account1", written.get("Backfill_run1_Metric_account1"),
+                                         WriteConcern.NORMAL);
+    }
+
+}
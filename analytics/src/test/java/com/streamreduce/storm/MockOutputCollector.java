@@ -34,6 +34,7 @@ import backtype.storm.tuple.Values;
 public class MockOutputCollector implements IOutputCollector, ISpoutOutputCollector {
 
     private List<Tuple> ackedTuples = new ArrayList<>();
+    private List<Tuple> failedTuples = new ArrayList<>();
     private Map<String, List<Values>> emittedValuesMap = new HashMap<>();
     private Map<String, List<Values>> emittedSpoutValuesMap = new HashMap<>();
     private Values lastEmmitedValues;
@@ -127,6 +128,15 @@ public class MockOutputCollector implements IOutputCollector, ISpoutOutputCollec
         return ackedTuples;
     }
 
+    /**
+     * Returns the list of failed tuples.
+     *
+     * @return the list of failed tuples
+     */
+    public List<Tuple> getFailedTuples() {
+        return failedTuples;
+    }
+
     /**
      * Resets the emitted spout values.
      */
@@ -175,7 +185,7 @@ public class MockOutputCollector implements IOutputCollector, ISpoutOutputCollec
      */
     @Override
     public void fail(Tuple tuple) {
-        throw new UnsupportedOperationException("MockObjectCollector#fail(Tuple) is not implemented!");
+        failedTuples.add(tuple);
     }
 
     /**
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link PrimitiveStreamStateStore} works as expected.
+ */
+public class PrimitiveStreamStateStoreTest {
+
+    @Test
+    public void testCriteriaOrderDoesNotMatter() throws Exception {
+        PrimitiveStreamStateStore store = new PrimitiveStreamStateStore();
+        Map<String, String> criteria = new LinkedHashMap<>();
+        Map<String, String> reordered = new LinkedHashMap<>();
+
+        criteria.put("PROVIDER_ID", "github");
+        criteria.put("OBJECT_ID", "1");
+        reordered.put("OBJECT_ID", "1");
+        reordered.put("PROVIDER_ID", "github");
+
+        JuggaloaderStreamState state = store.create("account", "metric", criteria, 5.0f, 100L);
+        state.n = 42;
+        store.update(state);
+
+        Assert.assertEquals(42, store.get("account", "metric", reordered).n);
+        Assert.assertNull(store.get("account", "other", reordered));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testMutatingTupleCriteriaDoesNotCorruptStore() throws Exception {
+        PrimitiveStreamStateStore store = new PrimitiveStreamStateStore();
+        Map<String, String> criteria = new HashMap<>();
+
+        criteria.put("OBJECT_ID", "1");
+        store.update(store.create("account", "metric", criteria, 1.0f, 1L));
+        criteria.put("HASHTAG", "#foo");
+
+        Assert.assertNull(store.get("account", "metric", criteria));
+        criteria.remove("HASHTAG");
+        Assert.assertNotNull(store.get("account", "metric", criteria));
+    }
+
+    @Test
+    public void testGrowRemoveAndReuse() throws Exception {
+        PrimitiveStreamStateStore store = new PrimitiveStreamStateStore(16);
+        int streams = 5000;
+
+        for (int i = 0; i < streams; i++) {
+            JuggaloaderStreamState state = store.create("account" + (i % 7), "metric" + i, criteria(i), i, i);
+            state.max = i * 2;
+            store.update(state);
+        }
+        Assert.assertEquals(streams, store.size());
+
+        for (int i = 0; i < streams; i += 2) {
+            store.remove("account" + (i % 7), "metric" + i, criteria(i));
+        }
+        Assert.assertEquals(streams / 2, store.size());
+
+        for (int i = 0; i < streams; i++) {
+            JuggaloaderStreamState state = store.get("account" + (i % 7), "metric" + i, criteria(i));
+            if (i % 2 == 0) {
+                Assert.assertNull(state);
+            } else {
+                Assert.assertEquals(i, state.yAvgLast, 0.0f);
+                Assert.assertEquals(i * 2, state.max, 0.0f);
+            }
+        }
+
+        // removed ids are reused and come back freshly initialized
+        JuggaloaderStreamState state = store.create("account0", "metric0", criteria(0), 3.0f, 10L);
+        Assert.assertEquals(1, state.n);
+        Assert.assertEquals(3.0f, state.max, 0.0f);
+        Assert.assertEquals(streams / 2 + 1, store.size());
+
+        store.clear();
+        Assert.assertEquals(0, store.size());
+        Assert.assertNull(store.get("account1", "metric1", criteria(1)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUpdateForeignStateFails() throws Exception {
+        new PrimitiveStreamStateStore().update(new JuggaloaderStreamState(1.0f, 1L));
+    }
+
+    private static Map<String, String> criteria(int i) {
+        Map<String, String> criteria = new HashMap<>();
+        criteria.put("OBJECT_ID", Integer.toString(i % 13));
+        return criteria;
+    }
+
+}
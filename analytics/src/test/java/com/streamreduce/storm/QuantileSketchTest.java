@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link QuantileSketch} works as expected.
+ */
+public class QuantileSketchTest {
+
+    private static final double[] QUANTILES = {0.0, 0.01, 0.25, 0.5, 0.95, 0.99, 1.0};
+
+    @Test
+    public void testExactBelowK() throws Exception {
+        QuantileSketch sketch = new QuantileSketch(128);
+
+        Assert.assertNull(sketch.getQuantiles(QUANTILES));
+        for (int i = 100; i > 0; i--) {
+            sketch.add(i);
+        }
+
+        Assert.assertArrayEquals(new float[] {1, 1, 25, 50, 95, 99, 100}, sketch.getQuantiles(QUANTILES), 0.0f);
+        Assert.assertEquals(100, sketch.getN());
+    }
+
+    @Test
+    public void testRankErrorIsBounded() throws Exception {
+        Random random = new Random(42);
+        float[] samples = new float[100000];
+        QuantileSketch sketch = new QuantileSketch(128);
+
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) (100 + 10 * random.nextGaussian());
+            sketch.add(samples[i]);
+        }
+
+        assertRankError(samples, sketch, 0.02);
+        Assert.assertTrue(sketch.toString(), sketch.getRetainedItems() < 3 * 128 + 64);
+    }
+
+    @Test
+    public void testMergedSketchesAreAsAccurateAsOne() throws Exception {
+        Random random = new Random(42);
+        float[] samples = new float[24 * 60 * 30];
+        QuantileSketch day = new QuantileSketch(128);
+
+        // a day of hours of minutes of 30 samples, skewed and with a daily cycle
+        for (int hour = 0; hour < 24; hour++) {
+            QuantileSketch hourSketch = new QuantileSketch(128);
+
+            for (int minute = 0; minute < 60; minute++) {
+                QuantileSketch minuteSketch = new QuantileSketch(128);
+
+                for (int i = 0; i < 30; i++) {
+                    int index = (hour * 60 + minute) * 30 + i;
+                    samples[index] = (float) (hour * 10 + Math.exp(random.nextGaussian()));
+                    minuteSketch.add(samples[index]);
+                }
+                hourSketch.merge(minuteSketch);
+                Assert.assertEquals(30, minuteSketch.getN());
+            }
+            day.merge(hourSketch);
+        }
+
+        Assert.assertEquals(samples.length, day.getN());
+        assertRankError(samples, day, 0.02);
+    }
+
+    @Test
+    public void testCopyAndEncodingRoundTrip() throws Exception {
+        QuantileSketch sketch = new QuantileSketch(16);
+
+        for (int i = 0; i < 1000; i++) {
+            sketch.add(i % 37);
+        }
+
+        QuantileSketch copy = new QuantileSketch(sketch);
+        Assert.assertEquals(sketch, copy);
+        Assert.assertEquals(sketch, QuantileSketch.fromBytes(sketch.toBytes()));
+
+        // copies are independent, and keep sketching the same way
+        copy.add(5);
+        Assert.assertFalse(sketch.equals(copy));
+        sketch.add(5);
+        Assert.assertEquals(sketch, copy);
+    }
+
+    private void assertRankError(float[] samples, QuantileSketch sketch, double maxError) {
+        float[] sorted = samples.clone();
+        float[] estimates = sketch.getQuantiles(QUANTILES);
+
+        Arrays.sort(sorted);
+        Assert.assertEquals(sorted[0], estimates[0], 0.0f);
+        Assert.assertEquals(sorted[sorted.length - 1], estimates[QUANTILES.length - 1], 0.0f);
+        for (int q = 1; q < QUANTILES.length - 1; q++) {
+            // the fraction of samples below the estimate
+            int rank = Arrays.binarySearch(sorted, estimates[q]);
+            double fraction = (double) Math.abs(rank < 0 ? -rank - 1 : rank) / sorted.length;
+
+            Assert.assertEquals("q" + QUANTILES[q], QUANTILES[q], fraction, maxError);
+        }
+    }
+
+}
@@ -53,13 +53,26 @@ public abstract class AbstractMetricsBoltTest {
      * @return the map of calculated events
      */
     protected Map<String, Float> processEvents(List<Map<String, Object>> events) {
+        return processEvents(events, null);
+    }
+
+    /**
+     * Takes a list of mock events, executes them using the bolt specified, prepared with the Storm configuration
+     * passed in, and returns the calculated metrics.
+     *
+     * @param events             the events
+     * @param stormConfiguration the Storm configuration, or null
+     *
+     * @return the map of calculated events
+     */
+    protected Map<String, Float> processEvents(List<Map<String, Object>> events, Map stormConfiguration) {
         Map<String, Float> metricCounts = new HashMap<>();
         AbstractMetricsBolt bolt = getBolt();
 
         outputCollector = new MockOutputCollector();
 
         // Prepare the bolt so that it uses our mock output collector
-        bolt.prepare(null, null, new OutputCollector(outputCollector));
+        bolt.prepare(stormConfiguration, null, new OutputCollector(outputCollector));
 
         // Emit all events
         for (Map<String, Object> event : events) {
@@ -70,6 +83,9 @@ public abstract class AbstractMetricsBoltTest {
             bolt.execute(tuple);
         }
 
+        // Emit anything still held by the metric combiner
+        bolt.cleanup();
+
         // Turn all emitted metrics into the metrics map
         for (Values metric : outputCollector.getEmittedValues()) {
             String accountId = metric.get(0).toString();
@@ -17,11 +17,17 @@
 package com.streamreduce.storm.bolts;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Tuple;
+import com.streamreduce.storm.MockOutputCollector;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 /**
  * Tests that {@link AccountMetricsBolt} works properly.
@@ -45,12 +51,78 @@ public class AccountMetricsBoltTest extends AbstractMetricsBoltTest {
     public void testEventHandling() throws Exception {
         Map<String, Float> metrics = processEvents(getEventsForTesting());
 
-        // Only CREATE/DELETE should be emitted
+        // Only CREATE/DELETE should be emitted, one delta each since combining is off by default
+        Assert.assertEquals(0, AbstractMetricsBolt.COMBINE_WINDOW);
         Assert.assertEquals(2, outputCollector.getEmittedValues().size());
         Assert.assertEquals(1, metrics.size());
         Assert.assertEquals(new Float(0), metrics.get("global.ACCOUNT_COUNT"));
     }
 
+    /**
+     * Make sure deltas are combined when the topology turns combining on.
+     *
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void testCombinedEventHandling() throws Exception {
+        Map<String, Object> stormConfiguration = new HashMap<>();
+
+        stormConfiguration.put(AbstractMetricsBolt.COMBINE_WINDOW_CONFIG, 60000L);
+
+        Map<String, Float> metrics = processEvents(getEventsForTesting(), stormConfiguration);
+
+        // CREATE/DELETE combined into a single delta
+        Assert.assertEquals(1, outputCollector.getEmittedValues().size());
+        Assert.assertEquals(new Float(0), metrics.get("global.ACCOUNT_COUNT"));
+    }
+
+    /**
+     * Make sure the tuples whose deltas are held by the combiner are failed, not acked, when emitting the combined
+     * delta fails.
+     *
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void testDeferredTuplesAreFailedWhenTheCombinedEmitFails() throws Exception {
+        Map<String, Object> stormConfiguration = new HashMap<>();
+        AbstractMetricsBolt bolt = getBolt();
+        MockOutputCollector collector = new MockOutputCollector() {
+            @Override
+            public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuples) {
+                throw new IllegalStateException("Emit failed");
+            }
+        };
+        List<Tuple> tuples = new ArrayList<>();
+
+        stormConfiguration.put(AbstractMetricsBolt.COMBINE_WINDOW_CONFIG, 60000L);
+        stormConfiguration.put(NodeableUnreliableBolt.RELIABLE_CONFIG, true);
+        bolt.prepare(stormConfiguration, null, new OutputCollector(collector));
+
+        for (Map<String, Object> event : getEventsForTesting()) {
+            Tuple tuple = Mockito.mock(Tuple.class);
+
+            Mockito.when(tuple.getValue(0)).thenReturn(event);
+            bolt.execute(tuple);
+            tuples.add(tuple);
+        }
+        // Held by the combiner until the next tick
+        Assert.assertTrue(collector.getAckedTuples().isEmpty());
+
+        Tuple tick = Mockito.mock(Tuple.class);
+
+        Mockito.when(tick.getSourceComponent()).thenReturn(backtype.storm.Constants.SYSTEM_COMPONENT_ID);
+        Mockito.when(tick.getSourceStreamId()).thenReturn(backtype.storm.Constants.SYSTEM_TICK_STREAM_ID);
+        bolt.execute(tick);
+
+        Assert.assertTrue(collector.getFailedTuples().containsAll(tuples));
+
+        // Nothing is left for the next tick to ack
+        bolt.execute(tick);
+        for (Tuple tuple : tuples) {
+            Assert.assertFalse(collector.getAckedTuples().contains(tuple));
+        }
+    }
+
     /**
      * Return a list of mocked account events for testing.
      *
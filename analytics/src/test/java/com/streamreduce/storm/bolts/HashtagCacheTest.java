@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link HashtagCache} works as expected.
+ */
+public class HashtagCacheTest {
+
+    @Test
+    public void testOnlyTheCachedVersionHits() throws Exception {
+        HashtagCache cache = new HashtagCache(HashtagCacheTest.class, 10);
+
+        cache.put("target", 3, ImmutableSet.of("#aws", "#prod"));
+
+        Assert.assertEquals(ImmutableSet.of("#aws", "#prod"), cache.get("target", 3));
+        Assert.assertNull(cache.get("target", 2));
+        Assert.assertNull(cache.get("other", 3));
+
+        cache.remove("target");
+        Assert.assertNull(cache.get("target", 3));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTargetIsEvicted() throws Exception {
+        HashtagCache cache = new HashtagCache(HashtagCacheTest.class, 2);
+
+        cache.put("a", 1, ImmutableSet.of("#a"));
+        cache.put("b", 1, ImmutableSet.of("#b"));
+        cache.get("a", 1);
+        cache.put("c", 1, ImmutableSet.of("#c"));
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get("a", 1));
+        Assert.assertNull(cache.get("b", 1));
+        Assert.assertNotNull(cache.get("c", 1));
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import backtype.storm.tuple.Values;
+import com.streamreduce.Constants;
+import com.streamreduce.analytics.MetricName;
+import com.streamreduce.storm.JuggaloaderStreamState;
+import com.streamreduce.storm.MockOutputCollector;
+import com.streamreduce.storm.QuantileSketch;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Class used to test that {@link JuggaloaderFusedTimeBaseBolt} works as expected.
+ */
+public class JuggaloaderFusedTimeBaseBoltTest {
+
+    private static final String[] GRANULARITIES = {"second", "minute", "hour"};
+    private static final long[] PERIODS = {0, Constants.PERIOD_MINUTE, Constants.PERIOD_HOUR};
+
+    @Test
+    public void testFusedOutputMatchesChainedBolts() throws Exception {
+        List<Values> samples = createSamples();
+        List<Map<String, JuggaloaderStreamState>> chainStates = new ArrayList<>();
+        List<List<Values>> chainOutput = new ArrayList<>();
+
+        for (int level = 0; level < PERIODS.length; level++) {
+            chainStates.add(new HashMap<String, JuggaloaderStreamState>());
+            chainOutput.add(new ArrayList<Values>());
+        }
+
+        // What each bolt of the chain emits, anomalies are dropped by the next bolt
+        for (Values sample : samples) {
+            Values values = JuggaloaderTimeBase.process(createTuple(sample), chainStates.get(0), PERIODS[0], null);
+
+            for (int level = 0; values != null; ) {
+                chainOutput.get(level).add(values);
+                level++;
+                if (level == PERIODS.length || (Boolean) values.get(13)) {
+                    break;
+                }
+                values = JuggaloaderTimeBase.process(createTuple(values), chainStates.get(level), PERIODS[level],
+                                                     null);
+            }
+        }
+
+        MockOutputCollector outputCollector = new MockOutputCollector();
+        JuggaloaderFusedTimeBaseBolt bolt = new JuggaloaderFusedTimeBaseBolt(GRANULARITIES, PERIODS);
+        TopologyContext topologyContext = Mockito.mock(TopologyContext.class);
+
+        Mockito.when(topologyContext.getThisComponentId()).thenReturn("timebase");
+        Mockito.when(topologyContext.getComponentTasks("timebase")).thenReturn(Arrays.asList(1));
+        bolt.prepare(new HashMap(), topologyContext, new OutputCollector(outputCollector));
+
+        for (Values sample : samples) {
+            bolt.execute(createTuple(sample));
+        }
+
+        boolean sawAnomaly = false;
+        for (int level = 0; level < PERIODS.length; level++) {
+            List<Values> fused = outputCollector.getEmittedValuesForStream(GRANULARITIES[level]);
+
+            Assert.assertFalse(GRANULARITIES[level], chainOutput.get(level).isEmpty());
+            Assert.assertEquals(GRANULARITIES[level], chainOutput.get(level), fused);
+            for (Values values : fused) {
+                sawAnomaly |= (Boolean) values.get(13);
+            }
+        }
+        Assert.assertTrue(sawAnomaly);
+    }
+
+    @Test
+    public void testCoarseQuantilesCoverEverySample() throws Exception {
+        List<Values> samples = createSamples();
+        MockOutputCollector outputCollector = new MockOutputCollector();
+        JuggaloaderFusedTimeBaseBolt bolt = new JuggaloaderFusedTimeBaseBolt(GRANULARITIES, PERIODS);
+        TopologyContext topologyContext = Mockito.mock(TopologyContext.class);
+
+        Mockito.when(topologyContext.getThisComponentId()).thenReturn("timebase");
+        Mockito.when(topologyContext.getComponentTasks("timebase")).thenReturn(Arrays.asList(1));
+        bolt.prepare(new HashMap(), topologyContext, new OutputCollector(outputCollector));
+
+        for (Values sample : samples) {
+            bolt.execute(createTuple(sample));
+        }
+
+        int sketchField = JuggaloaderTimeBaseBolt.OUTPUT_FIELDS.fieldIndex("sketch");
+        long hourSamples = 0;
+        for (Values values : outputCollector.getEmittedValuesForStream("hour")) {
+            QuantileSketch sketch = (QuantileSketch) values.get(sketchField);
+
+            if (!(Boolean) values.get(13)) {
+                float p50 = (Float) values.get(JuggaloaderTimeBaseBolt.OUTPUT_FIELDS.fieldIndex("p50"));
+                float p99 = (Float) values.get(JuggaloaderTimeBaseBolt.OUTPUT_FIELDS.fieldIndex("p99"));
+
+                hourSamples += sketch.getN();
+                // samples are 100 to 110 with the odd spike
+                Assert.assertTrue(sketch.getMin() >= 100);
+                Assert.assertTrue(p50 >= 100 && p50 <= 110);
+                Assert.assertTrue(p99 >= p50);
+            }
+        }
+        // hours are sketched from every minute sample, rather than from the one emitted per minute
+        Assert.assertTrue(hourSamples > 5 * 120);
+        for (Values values : outputCollector.getEmittedValuesForStream("second")) {
+            Assert.assertNull(values.get(sketchField));
+        }
+    }
+
+    private List<Values> createSamples() {
+        Random random = new Random(42);
+        List<Values> samples = new ArrayList<>();
+        long ts = 1350000000000L;
+
+        // Six hours of samples every 30 seconds for two streams, with the occasional spike
+        for (int i = 0; i < 6 * 120; i++) {
+            ts += 30000;
+            for (int stream = 0; stream < 2; stream++) {
+                Map<String, String> metricCriteria = new HashMap<>();
+                metricCriteria.put("stream", Integer.toString(stream));
+
+                float y = 100 + random.nextFloat() * 10 + (random.nextInt(100) == 0 ? 1000 : 0);
+                samples.add(new Values("JuggaloaderFusedTimeBaseBoltTest", MetricName.TEST_STREAM.toString(),
+                                       "ABSOLUTE", ts, y, metricCriteria, new HashMap<String, Object>()));
+            }
+        }
+        return samples;
+    }
+
+    private Tuple createTuple(Values values) {
+        Tuple tuple = Mockito.mock(TupleImpl.class);
+
+        Mockito.when(tuple.getStringByField("metricAccount")).thenReturn((String) values.get(0));
+        Mockito.when(tuple.getStringByField("metricName")).thenReturn((String) values.get(1));
+        Mockito.when(tuple.getStringByField("metricType")).thenReturn((String) values.get(2));
+        Mockito.when(tuple.getLongByField("metricTimestamp")).thenReturn((Long) values.get(3));
+        Mockito.when(tuple.getFloatByField("metricValue")).thenReturn((Float) values.get(4));
+        Mockito.when(tuple.getValueByField("metricCriteria")).thenReturn(values.get(5));
+        Mockito.when(tuple.getValueByField("metaData")).thenReturn(values.get(6));
+        if (values.size() == JuggaloaderTimeBaseBolt.OUTPUT_FIELDS.size()) {
+            int sketchField = JuggaloaderTimeBaseBolt.OUTPUT_FIELDS.fieldIndex("sketch");
+
+            Mockito.when(((TupleImpl) tuple).containsKey("sketch")).thenReturn(true);
+            Mockito.when(tuple.getValueByField("sketch")).thenReturn(values.get(sketchField));
+        }
+        return tuple;
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import com.streamreduce.Constants;
+import com.streamreduce.analytics.MetricName;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Class used to test that {@link JuggaloaderMessageGeneratorBolt} works as expected.
+ */
+public class JuggaloaderMessageGeneratorBoltTest {
+
+    private final List<Map<String, Object>> produced = new ArrayList<>();
+    private final JuggaloaderMessageGeneratorBolt bolt = new JuggaloaderMessageGeneratorBolt() {
+        @Override
+        protected void produce(Map<String, Object> map) {
+            produced.add(map);
+        }
+    };
+
+    @Test
+    public void testFullBucketIsFlushedWithItemsSortedByStddev() throws Exception {
+        float[] stddevs = new float[MessageAggregationBucket.MAX_LENGTH];
+
+        for (int i = 0; i < stddevs.length; i++) {
+            stddevs[i] = (i * 7) % 13;
+            bolt.realExecute(createTuple("conn1", i, stddevs[i]));
+            // a different connection, bucketed separately
+            bolt.realExecute(createTuple("conn2", i, stddevs[i]));
+            if (i < stddevs.length - 1) {
+                Assert.assertTrue(produced.isEmpty());
+            }
+        }
+
+        Assert.assertEquals(2, produced.size());
+
+        List<Map<String, Object>> items = (List<Map<String, Object>>) produced.get(0).get("items");
+        Assert.assertEquals(stddevs.length, items.size());
+        for (int i = 1; i < items.size(); i++) {
+            float previous = (Float) items.get(i - 1).get("stddev");
+            float current = (Float) items.get(i).get("stddev");
+
+            Assert.assertTrue(previous >= current);
+            if (previous == current) {
+                // items with the same stddev come latest first
+                Assert.assertTrue((Float) items.get(i - 1).get("value") > (Float) items.get(i).get("value"));
+            }
+        }
+        Assert.assertEquals("conn1", produced.get(0).get("targetConnectionId"));
+        Assert.assertEquals("conn2", produced.get(1).get("targetConnectionId"));
+    }
+
+    @Test
+    public void testTickTupleOnlyFlushesExpiredBuckets() throws Exception {
+        Tuple tick = Mockito.mock(TupleImpl.class);
+
+        Mockito.when(tick.getSourceComponent()).thenReturn(backtype.storm.Constants.SYSTEM_COMPONENT_ID);
+        Mockito.when(tick.getSourceStreamId()).thenReturn(backtype.storm.Constants.SYSTEM_TICK_STREAM_ID);
+
+        bolt.realExecute(createTuple("conn1", 0, 1.0f));
+        bolt.realExecute(tick);
+
+        Assert.assertTrue(produced.isEmpty());
+    }
+
+    private Tuple createTuple(String targetConnectionId, int index, float stddev) {
+        Tuple tuple = Mockito.mock(TupleImpl.class);
+        Map<String, Object> metaData = new HashMap<>();
+
+        metaData.put("targetConnectionId", targetConnectionId);
+        Mockito.when(tuple.getSourceComponent()).thenReturn("hour");
+        Mockito.when(tuple.getLongByField("granularity")).thenReturn(Constants.PERIOD_HOUR);
+        Mockito.when(tuple.getBooleanByField("anomaly")).thenReturn(false);
+        Mockito.when(tuple.getStringByField("metricAccount")).thenReturn("account1");
+        Mockito.when(tuple.getStringByField("metricName")).thenReturn(MetricName.MESSAGE_COUNT.toString());
+        Mockito.when(tuple.getFloatByField("diff")).thenReturn(1.0f);
+        Mockito.when(tuple.getValueByField("metricCriteria")).thenReturn(new HashMap<String, String>());
+        Mockito.when(tuple.getValueByField("metaData")).thenReturn(metaData);
+        Mockito.when(tuple.getLongByField("metricTimestamp")).thenReturn(1350000000000L + index);
+        Mockito.when(tuple.getFloatByField("metricValue")).thenReturn((float) index);
+        Mockito.when(tuple.getFloatByField("avgy")).thenReturn(1.0f);
+        Mockito.when(tuple.getFloatByField("stddev")).thenReturn(stddev);
+        Mockito.when(tuple.getFloatByField("min")).thenReturn(0.0f);
+        Mockito.when(tuple.getFloatByField("max")).thenReturn(2.0f);
+        return tuple;
+    }
+
+}
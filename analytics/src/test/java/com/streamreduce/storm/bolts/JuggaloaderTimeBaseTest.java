@@ -25,6 +25,8 @@ import com.mongodb.util.JSON;
 import com.streamreduce.Constants;
 import com.streamreduce.analytics.MetricName;
 import com.streamreduce.storm.JuggaloaderStreamState;
+import com.streamreduce.storm.PrimitiveStreamStateStore;
+import com.streamreduce.storm.QuantileSketch;
 import com.streamreduce.util.JSONUtils;
 import org.joda.time.DateTime;
 import org.junit.Assert;
@@ -96,6 +98,49 @@ public class JuggaloaderTimeBaseTest {
     }
     */
 
+    @Test
+    public void testProcess_primitiveStateStoreMatchesMap() throws Exception {
+        for (int f = 0; f <= 7; f++) {
+            String testFunction = "function" + f;
+            BasicDBList testData = getTestData(testFunction);
+            Map<String, JuggaloaderStreamState> states = new HashMap<>();
+            PrimitiveStreamStateStore primitiveStates = new PrimitiveStreamStateStore(16);
+
+            for (Object row : testData) {
+                BasicDBObject dbObject = (BasicDBObject) row;
+                dbObject.put("testFunction", testFunction);
+                Tuple tuple = createTuple(dbObject);
+                Values expected = JuggaloaderTimeBase.process(tuple, states, Constants.PERIOD_MINUTE, null);
+                Values actual = JuggaloaderTimeBase.process(tuple, primitiveStates, Constants.PERIOD_MINUTE, null);
+
+                Assert.assertEquals(testFunction, expected, actual);
+            }
+            Assert.assertEquals(states.size(), primitiveStates.size());
+        }
+    }
+
+    @Test
+    public void testFirstCoarsePeriodSketchIsKept() throws Exception {
+        long start = dateTime.getMillis();
+        JuggaloaderStreamState state = new JuggaloaderStreamState(0.0f, start);
+        Values values = null;
+
+        // The first hourly emission is suppressed, its samples go with the next one
+        for (int i = 0; i <= 60; i++) {
+            values = JuggaloaderTimeBase.update(state, Constants.PERIOD_HOUR, "account", "metric", "ABSOLUTE",
+                                                start + i * Constants.PERIOD_MINUTE, i, null,
+                                                new HashMap<String, Object>(), new HashMap<String, String>());
+            if (i == 0) {
+                Assert.assertNull(values);
+            }
+        }
+
+        assertNotNull(values);
+        QuantileSketch sketch = (QuantileSketch) values.get(values.size() - 1);
+        Assert.assertEquals(61, sketch.getN());
+        Assert.assertNull(state.sketch);
+    }
+
     private void testProcess(String testFunction) throws Exception {
         BasicDBList testData = getTestData(testFunction);
         Iterator<Object> iter = testData.iterator();
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.Collections;
+import java.util.List;
+
+import backtype.storm.tuple.Values;
+import com.streamreduce.core.metric.MetricModeType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link MetricCombiner} works as expected.
+ */
+public class MetricCombinerTest {
+
+    @Test
+    public void testDeltasAreSummedPerCounter() throws Exception {
+        MetricCombiner combiner = new MetricCombiner(1000, 100);
+
+        combiner.add(metric("account", "A", 10L, 1.0f), 0);
+        combiner.add(metric("account", "B", 11L, 1.0f), 0);
+        combiner.add(metric("account", "A", 12L, -1.0f), 0);
+        combiner.add(metric("account", "A", 13L, 1.0f), 0);
+        combiner.add(metric("global", "A", 14L, 1.0f), 0);
+
+        List<Values> drained = combiner.drain();
+
+        Assert.assertEquals(3, drained.size());
+        Assert.assertEquals(1.0f, (Float)drained.get(0).get(5), 0.0f);
+        Assert.assertEquals(13L, drained.get(0).get(4));
+        Assert.assertEquals("B", drained.get(1).get(6));
+        Assert.assertEquals("global", drained.get(2).get(0));
+        Assert.assertEquals(0, combiner.size());
+    }
+
+    @Test
+    public void testAddDoesNotModifyTheMetricPassedIn() throws Exception {
+        MetricCombiner combiner = new MetricCombiner(1000, 100);
+        Values first = metric("account", "A", 10L, 1.0f);
+
+        combiner.add(first, 0);
+        combiner.add(metric("account", "A", 12L, 1.0f), 0);
+
+        Assert.assertEquals(1.0f, (Float)first.get(5), 0.0f);
+        Assert.assertEquals(2.0f, (Float)combiner.drain().get(0).get(5), 0.0f);
+    }
+
+    @Test
+    public void testFullAndDue() throws Exception {
+        MetricCombiner combiner = new MetricCombiner(1000, 2);
+
+        Assert.assertFalse(combiner.isDue(5000));
+        Assert.assertFalse(combiner.add(metric("account", "A", 10L, 1.0f), 5000));
+        Assert.assertFalse(combiner.add(metric("account", "A", 10L, 1.0f), 5500));
+        Assert.assertTrue(combiner.add(metric("account", "B", 10L, 1.0f), 5500));
+        Assert.assertFalse(combiner.isDue(5999));
+        Assert.assertTrue(combiner.isDue(6000));
+
+        Assert.assertNotNull(combiner.remove(metric("account", "B", 20L, 5.0f)));
+        Assert.assertNull(combiner.remove(metric("account", "B", 20L, 5.0f)));
+        Assert.assertEquals(1, combiner.size());
+    }
+
+    private static Values metric(String account, String metricId, Long timestamp, Float value) {
+        return new Values(account, metricId, MetricModeType.DELTA, Collections.emptyMap(), timestamp, value,
+                          metricId);
+    }
+
+}
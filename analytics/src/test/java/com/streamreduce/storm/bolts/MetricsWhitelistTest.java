@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.streamreduce.analytics.MetricCriteria;
+import com.streamreduce.analytics.MetricName;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link MetricsWhitelist} works as expected.
+ */
+public class MetricsWhitelistTest {
+
+    @After
+    public void restoreBundledRules() throws Exception {
+        MetricsWhitelist.setRules(MetricsWhitelistRules.parse(new InputStreamReader(
+                MetricsWhitelist.class.getResourceAsStream(MetricsWhitelist.RULES_RESOURCE), "UTF-8")));
+    }
+
+    @Test
+    public void testBundledRules() throws Exception {
+        String connectionActivity = MetricName.CONNECTION_ACTIVITY_COUNT.toString();
+        String resourceUsage = MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString();
+
+        Assert.assertTrue(MetricsWhitelist.whitelist(connectionActivity, criteria(MetricCriteria.PROVIDER_TYPE,
+                                                                                  "projecthosting")));
+        Assert.assertFalse(MetricsWhitelist.whitelist(connectionActivity, criteria(MetricCriteria.PROVIDER_TYPE,
+                                                                                   "projecthosting",
+                                                                                   MetricCriteria.HASHTAG, "#foo")));
+        Assert.assertTrue(MetricsWhitelist.whitelist(resourceUsage, criteria(MetricCriteria.RESOURCE_ID,
+                                                                             "ti.cloud.api")));
+        Assert.assertFalse(MetricsWhitelist.whitelist(resourceUsage, criteria(MetricCriteria.RESOURCE_ID, "disk",
+                                                                              MetricCriteria.METRIC_ID, "maximum")));
+        Assert.assertTrue(MetricsWhitelist.whitelist(connectionActivity, criteria(MetricCriteria.OBJECT_ID, "1")));
+        Assert.assertFalse(MetricsWhitelist.whitelist(connectionActivity, criteria()));
+        Assert.assertTrue(MetricsWhitelist.whitelist(MetricName.TEST_STREAM + ".foo", criteria()));
+        Assert.assertFalse(MetricsWhitelist.whitelist(MetricName.ACCOUNT_COUNT.toString(), criteria()));
+
+        Assert.assertTrue(MetricsWhitelist.whiteListedForAnomalies(resourceUsage, criteria(MetricCriteria.METRIC_ID,
+                                                                                           "average")));
+        Assert.assertFalse(MetricsWhitelist.whiteListedForAnomalies(resourceUsage, criteria(
+                MetricCriteria.METRIC_ID, "average", MetricCriteria.RESOURCE_ID, "CPUUtilization")));
+    }
+
+    @Test
+    public void testVerdictsAreDroppedWhenTheRulesChange() throws Exception {
+        String userCount = MetricName.USER_COUNT.toString();
+
+        Assert.assertTrue(MetricsWhitelist.whitelist(userCount, criteria()));
+
+        MetricsWhitelist.setRules(MetricsWhitelistRules.parse(new StringReader(
+                "whitelist reject name equals USER_COUNT\n" +
+                "whitelist accept OBJECT_TYPE present and PROVIDER_ID startsWith aws\n")));
+
+        Assert.assertFalse(MetricsWhitelist.whitelist(userCount, criteria()));
+        Assert.assertTrue(MetricsWhitelist.whitelist("OTHER", criteria(MetricCriteria.OBJECT_TYPE, "x",
+                                                                       MetricCriteria.PROVIDER_ID, "aws-ec2")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCriterionIsRejected() throws Exception {
+        MetricsWhitelistRules.parse(new StringReader("whitelist accept RESOURCE equals foo\n"));
+    }
+
+    private static Map<String, String> criteria(Object... keysAndValues) {
+        Map<String, String> criteria = new HashMap<>();
+
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            criteria.put(keysAndValues[i].toString(), keysAndValues[i + 1].toString());
+        }
+        return criteria;
+    }
+
+}
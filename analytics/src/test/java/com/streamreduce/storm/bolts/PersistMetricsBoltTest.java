@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.streamreduce.storm.MockOutputCollector;
+import com.streamreduce.storm.MongoClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Class used to test that {@link PersistMetricsBolt} works as expected.
+ */
+public class PersistMetricsBoltTest {
+
+    private MongoClient originalMongoClient;
+    private MongoClient mongoClient;
+    private MockOutputCollector outputCollector;
+    private PersistMetricsBolt bolt;
+
+    @Before
+    public void setUp() throws Exception {
+        mongoClient = mock(MongoClient.class);
+        outputCollector = new MockOutputCollector();
+        bolt = new PersistMetricsBolt();
+        originalMongoClient = (MongoClient) ReflectionTestUtils.getField(bolt, "mongoClient");
+        ReflectionTestUtils.setField(bolt, "mongoClient", mongoClient);
+
+        Map<String, Object> stormConfiguration = new HashMap<>();
+        stormConfiguration.put(NodeableUnreliableBolt.RELIABLE_CONFIG, true);
+        bolt.prepare(stormConfiguration, null, new OutputCollector(outputCollector));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReflectionTestUtils.setField(bolt, "mongoClient", originalMongoClient);
+    }
+
+    @Test
+    public void testReliableModeAcksWrittenMetrics() throws Exception {
+        Tuple first = createTuple("account1", 1350000000000L);
+        Tuple second = createTuple("account1", 1350000001000L);
+
+        bolt.execute(first);
+        bolt.execute(second);
+
+        // Nothing is acked until the metrics are written
+        Assert.assertTrue(outputCollector.getAckedTuples().isEmpty());
+
+        Tuple tick = createTickTuple();
+        bolt.execute(tick);
+
+        verify(mongoClient).writeMetrics(eq("Metric_account1"), anyList(), eq(WriteConcern.SAFE));
+        Assert.assertEquals(Arrays.asList(first, second, tick), outputCollector.getAckedTuples());
+        Assert.assertTrue(outputCollector.getFailedTuples().isEmpty());
+    }
+
+    @Test
+    public void testReliableModeFailsUnwrittenMetrics() throws Exception {
+        doThrow(new MongoException("down")).when(mongoClient).writeMetrics(eq("Metric_account1"), anyList(),
+                                                                           eq(WriteConcern.SAFE));
+        Tuple failed = createTuple("account1", 1350000000000L);
+        Tuple written = createTuple("account2", 1350000000000L);
+
+        bolt.execute(failed);
+        bolt.execute(written);
+        bolt.execute(createTickTuple());
+
+        verify(mongoClient).writeMetrics(eq("Metric_account2"), anyList(), eq(WriteConcern.SAFE));
+        Assert.assertEquals(Arrays.asList(failed), outputCollector.getFailedTuples());
+        Assert.assertTrue(outputCollector.getAckedTuples().contains(written));
+        Assert.assertFalse(outputCollector.getAckedTuples().contains(failed));
+    }
+
+    @Test
+    public void testReliableModeUsesAnAcknowledgedWriteConcern() throws Exception {
+        // The default juggaloader.persist.write.concern is NORMAL
+        bolt.execute(createTuple("account1", 1350000000000L));
+        bolt.execute(createTickTuple());
+
+        verify(mongoClient).writeMetrics(anyString(), anyList(), eq(WriteConcern.SAFE));
+    }
+
+    private Tuple createTuple(String metricAccount, long metricTimestamp) {
+        Tuple tuple = mock(TupleImpl.class);
+        Map<String, String> metricCriteria = new HashMap<>();
+        metricCriteria.put("stream", "1");
+
+        when(tuple.getStringByField("metricAccount")).thenReturn(metricAccount);
+        when(tuple.getStringByField("metricName")).thenReturn("TEST_STREAM");
+        when(tuple.getStringByField("metricType")).thenReturn("ABSOLUTE");
+        when(tuple.getLongByField("metricTimestamp")).thenReturn(metricTimestamp);
+        when(tuple.getFloatByField("metricValue")).thenReturn(1.0f);
+        when(tuple.getValueByField("metricCriteria")).thenReturn(metricCriteria);
+        when(tuple.getLongByField("granularity")).thenReturn(0L);
+        when(tuple.getBooleanByField("anomaly")).thenReturn(false);
+        return tuple;
+    }
+
+    private Tuple createTickTuple() {
+        Tuple tick = mock(TupleImpl.class);
+
+        when(tick.getSourceComponent()).thenReturn(backtype.storm.Constants.SYSTEM_COMPONENT_ID);
+        when(tick.getSourceStreamId()).thenReturn(backtype.storm.Constants.SYSTEM_TICK_STREAM_ID);
+        return tick;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.detectors;
+
+import java.util.Random;
+import java.util.ResourceBundle;
+
+import com.streamreduce.Constants;
+import com.streamreduce.storm.JuggaloaderStreamState;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that the {@link AnomalyDetector}s created by {@link AnomalyDetectors} work as expected.
+ */
+public class AnomalyDetectorsTest {
+
+    private static final ResourceBundle topologyProps = ResourceBundle.getBundle("juggaloader-topology");
+
+    @Test
+    public void testZScoreDetector() throws Exception {
+        AnomalyDetector detector = AnomalyDetectors.create(ZScoreDetector.NAME, topologyProps);
+        JuggaloaderStreamState state = new JuggaloaderStreamState(1.0f, 1L);
+
+        Assert.assertEquals(0, detector.getStateSize());
+        Assert.assertTrue(detector.isOutlier(state, 10.0f, 2L, 5.0f, 1.0f));
+        Assert.assertFalse(detector.isOutlier(state, 6.0f, 2L, 5.0f, 1.0f));
+        // no anomalies on flat streams
+        Assert.assertFalse(detector.isOutlier(state, 10.0f, 2L, 5.0f, 0.0f));
+    }
+
+    @Test
+    public void testStatefulDetectorsCatchSpikesInSeasonalStreams() throws Exception {
+        for (String name : new String[] {SeasonalEwmaDetector.NAME, HoltWintersDetector.NAME,
+                                         MedianMadDetector.NAME}) {
+            AnomalyDetector detector = AnomalyDetectors.create(name, topologyProps);
+            Random random = new Random(42);
+            long ts = 1350000000000L;
+            JuggaloaderStreamState state = new JuggaloaderStreamState(100.0f, ts);
+            int samples = 0;
+            int falsePositives = 0;
+            int spikes = 0;
+            int detectedSpikes = 0;
+
+            state.detectorState = new float[detector.getStateSize()];
+
+            // Five days of a daily cycle sampled every 5 minutes, with a spike every 6 hours from the third day on
+            for (int i = 0; i < 5 * 24 * 12; i++) {
+                ts += 5 * Constants.PERIOD_MINUTE;
+                double hour = (ts % Constants.PERIOD_DAY) / (double) Constants.PERIOD_HOUR;
+                float y = (float) (100 + 50 * Math.sin(2 * Math.PI * hour / 24) + random.nextGaussian());
+                boolean spike = i >= 2 * 24 * 12 && i % (6 * 12) == 0;
+
+                if (spike) {
+                    y += 400;
+                }
+
+                boolean outlier = detector.isOutlier(state, y, ts, 0.0f, 0.0f);
+                // as JuggaloaderTimeBase.update does
+                state.tslast = ts;
+
+                if (i >= 2 * 24 * 12) {
+                    samples++;
+                    if (spike) {
+                        spikes++;
+                        detectedSpikes += outlier ? 1 : 0;
+                    } else {
+                        falsePositives += outlier ? 1 : 0;
+                    }
+                }
+            }
+
+            Assert.assertEquals(name, spikes, detectedSpikes);
+            Assert.assertTrue(name + ": " + falsePositives, falsePositives < samples / 100);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDetector() throws Exception {
+        AnomalyDetectors.create("crystal-ball", topologyProps);
+    }
+
+}
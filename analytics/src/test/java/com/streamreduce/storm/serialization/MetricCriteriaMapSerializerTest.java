@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.serialization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.serialization.KryoValuesDeserializer;
+import backtype.storm.serialization.KryoValuesSerializer;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.Utils;
+import com.streamreduce.analytics.MetricCriteria;
+import com.streamreduce.storm.MetricCriteriaMap;
+import com.streamreduce.storm.topology.JuggaloaderTopology;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link MetricCriteriaMapSerializer} works as expected.
+ */
+public class MetricCriteriaMapSerializerTest {
+
+    @Test
+    public void testRoundTripThroughTheTopologySerializers() throws Exception {
+        Map conf = Utils.readDefaultConfig();
+        conf.putAll(new JuggaloaderTopology().createConfig());
+
+        Map<String, String> plain = new LinkedHashMap<>();
+        plain.put(MetricCriteria.PROVIDER_TYPE.toString(), "cloud");
+        plain.put("customKey", "customValue");
+        plain.put(MetricCriteria.HASHTAG.toString(), "#prod");
+        MetricCriteriaMap criteria = new MetricCriteriaMap(plain);
+
+        byte[] compact = new KryoValuesSerializer(conf).serialize(new Values("account", criteria));
+        byte[] original = new KryoValuesSerializer(conf).serialize(new Values("account", plain));
+        List<Object> values = new KryoValuesDeserializer(conf).deserialize(compact);
+        MetricCriteriaMap read = (MetricCriteriaMap) values.get(1);
+
+        Assert.assertEquals(plain, read);
+        // insertion order is kept
+        Assert.assertEquals(new ArrayList<>(plain.keySet()), new ArrayList<>(read.keySet()));
+        Assert.assertTrue(compact.length < original.length);
+    }
+
+    @Test
+    public void testKeysAndValuesAreInterned() throws Exception {
+        Map<MetricCriteria, String> criteria = new HashMap<>();
+        criteria.put(MetricCriteria.PROVIDER_ID, new String("aws"));
+
+        MetricCriteriaMap first = new MetricCriteriaMap(criteria);
+        MetricCriteriaMap second = new MetricCriteriaMap(criteria);
+        second.put(new String(MetricCriteria.OBJECT_ID.toString()), new String("aws"));
+
+        Assert.assertSame(first.get(MetricCriteria.PROVIDER_ID.toString()),
+                          second.get(MetricCriteria.OBJECT_ID.toString()));
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.serialization;
+
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.serialization.KryoValuesDeserializer;
+import backtype.storm.serialization.KryoValuesSerializer;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.Utils;
+import com.streamreduce.storm.QuantileSketch;
+import com.streamreduce.storm.topology.JuggaloaderTopology;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link QuantileSketchSerializer} works as expected.
+ */
+public class QuantileSketchSerializerTest {
+
+    @Test
+    public void testRoundTripThroughTheTopologySerializers() throws Exception {
+        Map conf = Utils.readDefaultConfig();
+        conf.putAll(new JuggaloaderTopology().createConfig());
+
+        QuantileSketch sketch = new QuantileSketch(32);
+        for (int i = 0; i < 500; i++) {
+            sketch.add(i * 0.5f);
+        }
+
+        byte[] serialized = new KryoValuesSerializer(conf).serialize(new Values("account", sketch, null));
+        List<Object> values = new KryoValuesDeserializer(conf).deserialize(serialized);
+
+        Assert.assertEquals(sketch, values.get(1));
+        Assert.assertNull(values.get(2));
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.spouts;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Values;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.streamreduce.storm.GroupingNameConstants;
+import com.streamreduce.storm.MockOutputCollector;
+import com.streamreduce.storm.MongoClient;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Class used to test that {@link BackfillEventSpout} works as expected.
+ */
+public class BackfillEventSpoutTest {
+
+    @Test
+    public void testPartitionsAreDisjointAndCoverEveryAccount() throws Exception {
+        List<Object> accountIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            accountIds.add(new ObjectId());
+        }
+        accountIds.add(null);
+
+        Set<Object> seen = new HashSet<>();
+        int total = 0;
+        for (int partition = 0; partition < 4; partition++) {
+            List<Object> partitionAccountIds = BackfillEventSpout.getPartitionAccountIds(accountIds, partition, 4);
+            seen.addAll(partitionAccountIds);
+            total += partitionAccountIds.size();
+        }
+
+        Assert.assertEquals(accountIds.size(), total);
+        Assert.assertEquals(new HashSet<>(accountIds), seen);
+    }
+
+    @Test
+    public void testEmitsEventsInOrderAndIsDoneOnceAcked() throws Exception {
+        ObjectId accountId = new ObjectId();
+        DBObject first = createEvent(accountId, 1000L, "Connection", null);
+        DBObject hidden = createEvent(accountId, 2000L, "Connection", "SELF");
+        DBObject last = createEvent(accountId, 3000L, "InventoryItem", null);
+
+        DBCursor cursor = mock(DBCursor.class);
+        when(cursor.hasNext()).thenReturn(true, true, true, false);
+        when(cursor.next()).thenReturn(first, hidden, last);
+
+        MongoClient mockMongoClient = mock(MongoClient.class);
+        when(mockMongoClient.getEventAccountIds(0L, 5000L)).thenReturn(Arrays.<Object>asList(accountId));
+        when(mockMongoClient.getEvents(0L, 5000L, Arrays.<Object>asList(accountId), 10)).thenReturn(cursor);
+
+        MockOutputCollector outputCollector = new MockOutputCollector();
+        BackfillEventSpout spout = new BackfillEventSpout(0L, 5000L, "run1", 10);
+        ReflectionTestUtils.setField(spout, "mongoClient", mockMongoClient);
+        spout.open(null, createContext(), new SpoutOutputCollector(outputCollector));
+
+        for (int i = 0; i < 4; i++) {
+            spout.nextTuple();
+        }
+
+        List<Values> connections =
+                outputCollector.getEmittedSpoutValuesMap().get(GroupingNameConstants.CONNECTION_GROUPING_NAME);
+        List<Values> inventoryItems =
+                outputCollector.getEmittedSpoutValuesMap().get(GroupingNameConstants.INVENTORY_ITEM_GROUPING_NAME);
+
+        Assert.assertEquals(1, connections.size());
+        Assert.assertEquals(1000L, ((Map) connections.get(0).get(0)).get("timestamp"));
+        Assert.assertEquals(1, inventoryItems.size());
+        Assert.assertEquals(3000L, ((Map) inventoryItems.get(0).get(0)).get("timestamp"));
+        verify(cursor).close();
+        // Not done while events are in flight
+        verify(mockMongoClient, never()).updateBackfillProgress(anyString(), anyInt(), anyInt(), anyLong(), anyLong(),
+                                                                 anyLong(), anyLong(), anyLong(), eq(true));
+
+        spout.ack(first.get("_id").toString());
+        spout.fail(last.get("_id").toString());
+        spout.nextTuple();
+
+        verify(mockMongoClient).updateBackfillProgress("run1", 0, 1, 0L, 5000L, 3000L, 2L, 1L, true);
+    }
+
+    @Test
+    public void testPartitionWithoutAccountsIsDone() throws Exception {
+        MongoClient mockMongoClient = mock(MongoClient.class);
+        when(mockMongoClient.getEventAccountIds(0L, 5000L)).thenReturn(new ArrayList<>());
+
+        BackfillEventSpout spout = new BackfillEventSpout(0L, 5000L, "run1", 10);
+        ReflectionTestUtils.setField(spout, "mongoClient", mockMongoClient);
+        spout.open(null, createContext(), new SpoutOutputCollector(new MockOutputCollector()));
+        spout.nextTuple();
+
+        verify(mockMongoClient).updateBackfillProgress("run1", 0, 1, 0L, 5000L, -1L, 0L, 0L, true);
+    }
+
+    private TopologyContext createContext() {
+        TopologyContext context = mock(TopologyContext.class);
+
+        when(context.getThisTaskIndex()).thenReturn(0);
+        when(context.getThisComponentId()).thenReturn("eventSpout");
+        when(context.getComponentTasks("eventSpout")).thenReturn(Arrays.asList(1));
+        return context;
+    }
+
+    private DBObject createEvent(ObjectId accountId, long timestamp, String targetType, String targetVisibility) {
+        BasicDBObject metadata = new BasicDBObject("targetType", targetType);
+
+        if (targetVisibility != null) {
+            metadata.put("targetVisibility", targetVisibility);
+        }
+        return new BasicDBObject("_id", new ObjectId())
+                .append("accountId", accountId)
+                .append("targetId", new ObjectId())
+                .append("timestamp", timestamp)
+                .append("metadata", metadata);
+    }
+
+}
@@ -17,20 +17,28 @@
 package com.streamreduce.storm.spouts;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.Lists;
+import backtype.storm.spout.SpoutOutputCollector;
 import com.mongodb.BasicDBObject;
+import com.streamreduce.storm.MockOutputCollector;
 import com.streamreduce.storm.MongoClient;
 import org.apache.log4j.Logger;
+import org.bson.types.BSONTimestamp;
 import org.junit.Test;
 import org.springframework.test.util.ReflectionTestUtils;
 
@@ -84,4 +92,70 @@ public class EventSpoutTest {
 
         assertNull(basicDBObject);
     }
+
+    @Test
+    public void testOpenFallsBackToPollingWithoutOplog() {
+        MongoClient mockMongoClient = mock(MongoClient.class);
+        when(mockMongoClient.readLastProcessedEventDate("EventSpout")).thenReturn(-1L);
+        when(mockMongoClient.getLatestOplogTimestamp()).thenReturn(null);
+
+        EventSpout spout = new EventSpout();
+        ReflectionTestUtils.setField(spout, "mongoClient", mockMongoClient);
+        ReflectionTestUtils.setField(spout, "mode", "tail");
+        try {
+            spout.open(null, null, new SpoutOutputCollector(new MockOutputCollector()));
+        } finally {
+            ReflectionTestUtils.setField(spout, "mode", "poll");
+        }
+
+        verify(mockMongoClient).getEvents(null, null);
+        verify(mockMongoClient, never()).tailEvents(any(BSONTimestamp.class));
+    }
+
+    @Test
+    public void testOpenFallsBackToPollingWhenTheResumeTokenRolledOffTheOplog() {
+        long lastProcessedEvent = TimeUnit.SECONDS.toMillis(100);
+        MongoClient mockMongoClient = mock(MongoClient.class);
+        when(mockMongoClient.readLastProcessedEventDate("EventSpout")).thenReturn(lastProcessedEvent);
+        when(mockMongoClient.readResumeToken("EventSpout")).thenReturn(new BSONTimestamp(100, 1));
+        when(mockMongoClient.getOldestOplogTimestamp()).thenReturn(new BSONTimestamp(200, 0));
+        when(mockMongoClient.getLatestOplogTimestamp()).thenReturn(new BSONTimestamp(300, 0));
+
+        EventSpout spout = new EventSpout();
+        ReflectionTestUtils.setField(spout, "mongoClient", mockMongoClient);
+        ReflectionTestUtils.setField(spout, "mode", "tail");
+        try {
+            spout.open(null, null, new SpoutOutputCollector(new MockOutputCollector()));
+        } finally {
+            ReflectionTestUtils.setField(spout, "mode", "poll");
+        }
+
+        verify(mockMongoClient).getOldestOplogTimestamp();
+        // Polling resumes from the last event emitted instead of the start of the oplog
+        verify(mockMongoClient).getEvents(new Date(lastProcessedEvent),
+                                          new Date(lastProcessedEvent + TimeUnit.HOURS.toMillis(1)));
+        verify(mockMongoClient, never()).tailEvents(any(BSONTimestamp.class));
+    }
+
+    @Test
+    public void testGetInitialResumeTokenWithinTheOplog() {
+        BSONTimestamp resumeToken = new BSONTimestamp(200, 1);
+        MongoClient mockMongoClient = mock(MongoClient.class);
+        when(mockMongoClient.readResumeToken("EventSpout")).thenReturn(resumeToken);
+        when(mockMongoClient.getOldestOplogTimestamp()).thenReturn(new BSONTimestamp(200, 0));
+        when(mockMongoClient.getLatestOplogTimestamp()).thenReturn(new BSONTimestamp(300, 0));
+
+        EventSpout spout = new EventSpout();
+        ReflectionTestUtils.setField(spout, "mongoClient", mockMongoClient);
+
+        assertEquals(resumeToken, spout.getInitialResumeToken());
+    }
+
+    @Test
+    public void testIsBefore() {
+        assertTrue(EventSpout.isBefore(new BSONTimestamp(100, 5), new BSONTimestamp(200, 0)));
+        assertTrue(EventSpout.isBefore(new BSONTimestamp(200, 0), new BSONTimestamp(200, 1)));
+        assertFalse(EventSpout.isBefore(new BSONTimestamp(200, 1), new BSONTimestamp(200, 1)));
+        assertFalse(EventSpout.isBefore(new BSONTimestamp(300, 0), new BSONTimestamp(200, 9)));
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.topology;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import backtype.storm.Config;
+import backtype.storm.generated.GlobalStreamId;
+import backtype.storm.generated.StormTopology;
+import com.streamreduce.storm.bolts.AbstractMetricsBolt;
+import com.streamreduce.storm.bolts.NodeableUnreliableBolt;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link JuggaloaderTopology} works as expected.
+ */
+public class JuggaloaderTopologyTest {
+
+    @Test
+    public void testDisabledGranularitiesAreSkippedInTheChain() throws Exception {
+        Properties properties = JuggaloaderTopology.loadProperties(null);
+        properties.setProperty("juggaloader.granularities", "month, second,hour");
+        properties.setProperty("topology.parallelism.hour", "3");
+
+        JuggaloaderTopology juggaloaderTopology = new JuggaloaderTopology(properties);
+        StormTopology topology = juggaloaderTopology.createJuggaloaderTopology();
+
+        Assert.assertEquals(Arrays.asList("second", "hour", "month"), juggaloaderTopology.getGranularities());
+        Assert.assertFalse(topology.get_bolts().containsKey("minute"));
+        Assert.assertTrue(topology.get_bolts().get("hour").get_common().get_inputs()
+                                  .containsKey(new GlobalStreamId("second", "default")));
+        Assert.assertTrue(topology.get_bolts().get("month").get_common().get_inputs()
+                                  .containsKey(new GlobalStreamId("hour", "default")));
+        Assert.assertEquals(2, topology.get_bolts().get("persistence").get_common().get_inputs().size());
+        Assert.assertEquals(3, topology.get_bolts().get("hour").get_common().get_parallelism_hint());
+        Assert.assertEquals(1, topology.get_spouts().get("eventSpout").get_common().get_parallelism_hint());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSecondGranularityIsRequired() throws Exception {
+        Properties properties = JuggaloaderTopology.loadProperties(null);
+        properties.setProperty("juggaloader.granularities", "minute,hour");
+
+        new JuggaloaderTopology(properties).getGranularities();
+    }
+
+    @Test
+    public void testConfigComesFromProperties() throws Exception {
+        Properties properties = JuggaloaderTopology.loadProperties(null);
+        properties.setProperty("topology.num.workers", "4");
+        properties.setProperty("topology.message.timeout.secs", "60");
+        properties.setProperty("topology.max.task.parallelism", "");
+
+        Config config = new JuggaloaderTopology(properties).createConfig();
+
+        Assert.assertEquals(4, config.get(Config.TOPOLOGY_WORKERS));
+        Assert.assertEquals(60, config.get(Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS));
+        Assert.assertFalse(config.containsKey(Config.TOPOLOGY_MAX_TASK_PARALLELISM));
+    }
+
+    @Test
+    public void testDefaultConfigRunsOneCappedWorker() throws Exception {
+        Config config = new JuggaloaderTopology(JuggaloaderTopology.loadProperties(null)).createConfig();
+
+        Assert.assertEquals(1, config.get(Config.TOPOLOGY_WORKERS));
+        Assert.assertEquals(2, config.get(Config.TOPOLOGY_MAX_TASK_PARALLELISM));
+        Assert.assertEquals(false, config.get(Config.TOPOLOGY_FALL_BACK_ON_JAVA_SERIALIZATION));
+    }
+
+    @Test
+    public void testBackfillTopologyWritesShadowCollectionsOnly() throws Exception {
+        Properties properties = JuggaloaderTopology.loadProperties(null);
+        properties.setProperty("juggaloader.backfill.partitions", "3");
+        properties.setProperty("juggaloader.backfill.max.pending", "100");
+
+        JuggaloaderTopology juggaloaderTopology = new JuggaloaderTopology(properties);
+        StormTopology topology = juggaloaderTopology.createBackfillTopology(0L, 1000L, "run1");
+        Config config = juggaloaderTopology.createBackfillConfig();
+
+        Assert.assertEquals(3, topology.get_spouts().get("eventSpout").get_common().get_parallelism_hint());
+        Assert.assertFalse(topology.get_spouts().containsKey("commandSpout"));
+        Assert.assertFalse(topology.get_bolts().containsKey("message"));
+        Assert.assertTrue(topology.get_bolts().containsKey("persistence"));
+        Assert.assertFalse(topology.get_bolts().get("second").get_common().get_inputs()
+                                   .containsKey(new GlobalStreamId("commandSpout", "default")));
+        Assert.assertEquals(100, config.get(Config.TOPOLOGY_MAX_SPOUT_PENDING));
+        Assert.assertEquals(true, config.get(NodeableUnreliableBolt.RELIABLE_CONFIG));
+        Assert.assertEquals(0, config.get(AbstractMetricsBolt.COMBINE_WINDOW_CONFIG));
+        Assert.assertEquals("Backfill_run1_", JuggaloaderTopology.getBackfillCollectionPrefix("run1"));
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+import com.streamreduce.ConnectionTypeConstants;
+import com.streamreduce.ProviderIdConstants;
+import com.streamreduce.core.event.EventId;
+import com.streamreduce.util.JSONUtils;
+import org.bson.types.ObjectId;
+
+/**
+ * Builds the events the benchmarks replay, as stored in the event stream (ObjectIds, nested {@link BasicDBObject}s).
+ * <p/>
+ * Each inventory item is created once and then reports activity, alternately a CloudWatch payload and an agent payload
+ * recorded from production (the <code>CloudWatchMetrics.json</code> and <code>AgentMetrics.json</code> fixtures of
+ * the analytics tests) with every metric value scaled by a random factor, so the time-base bolts see varying streams.
+ * The events are generated from a seed, so every run replays the same events.
+ */
+public final class BenchmarkEvents {
+
+    public static final String CLOUDWATCH_FIXTURE = "/com/streamreduce/storm/bolts/CloudWatchMetrics.json";
+    public static final String AGENT_FIXTURE = "/com/streamreduce/storm/bolts/AgentMetrics.json";
+
+    private static final String[] OPERATING_SYSTEMS = {"AMZN_LINUX", "UBUNTU", "WINDOWS"};
+    private static final String[] ZONES = {"us-east-1a", "us-east-1b", "us-west-1a"};
+
+    private BenchmarkEvents() {
+    }
+
+    /**
+     * Creates events for inventory items spread over accounts, in timestamp order.
+     *
+     * @param count    the number of events
+     * @param accounts the number of accounts
+     * @param items    the number of inventory items, spread over the accounts
+     * @param start    the timestamp of the first event
+     * @param interval the time in between two events (ms)
+     * @param seed     the seed of the random payload scaling
+     * @return the events
+     */
+    public static List<BasicDBObject> createEvents(int count, int accounts, int items, long start, long interval,
+                                                   long seed) {
+        BasicDBObject cloudWatchPayload = readFixture(CLOUDWATCH_FIXTURE);
+        BasicDBObject agentPayload = readFixture(AGENT_FIXTURE);
+        Random random = new Random(seed);
+        ObjectId[] accountIds = new ObjectId[accounts];
+        BasicDBObject[] itemMetadata = new BasicDBObject[items];
+        ObjectId[] itemIds = new ObjectId[items];
+        List<BasicDBObject> events = new ArrayList<>(count);
+
+        for (int i = 0; i < accounts; i++) {
+            accountIds[i] = new ObjectId();
+        }
+        for (int i = 0; i < items; i++) {
+            itemIds[i] = new ObjectId();
+            itemMetadata[i] = new BasicDBObject("targetType", "InventoryItem")
+                    .append("targetProviderId", ProviderIdConstants.AWS_PROVIDER_ID)
+                    .append("targetProviderType", ConnectionTypeConstants.CLOUD_TYPE)
+                    .append("targetConnectionId", new ObjectId())
+                    .append("targetISO3166Code", "US")
+                    .append("targetRegion", ZONES[i % ZONES.length].substring(0, 9))
+                    .append("targetZone", ZONES[i % ZONES.length])
+                    .append("targetOS", OPERATING_SYSTEMS[i % OPERATING_SYSTEMS.length]);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int item = i % items;
+            EventId eventId = i < items ? EventId.CREATE : EventId.ACTIVITY;
+            BasicDBObject metadata = (BasicDBObject) itemMetadata[item].copy();
+
+            if (eventId == EventId.ACTIVITY) {
+                boolean agent = (i / items) % 2 == 0;
+
+                metadata.put("payload", scale(agent ? agentPayload : cloudWatchPayload, 0.5 + random.nextDouble()));
+                if (agent) {
+                    metadata.put("isAgentActivity", true);
+                }
+            }
+
+            events.add(new BasicDBObject("_id", new ObjectId())
+                               .append("timestamp", start + i * interval)
+                               .append("eventId", eventId.toString())
+                               .append("accountId", accountIds[item % accounts])
+                               .append("userId", new ObjectId())
+                               .append("targetId", itemIds[item])
+                               .append("metadata", metadata));
+        }
+        return events;
+    }
+
+    /**
+     * Returns a deep copy of the event as plain Java types, the way {@link com.streamreduce.storm.spouts.EventSpout}
+     * emits it to the metrics bolts.
+     *
+     * @param event the event
+     * @return the event map
+     */
+    public static Map<String, Object> toEmittedEvent(BasicDBObject event) {
+        BasicDBObject copy = (BasicDBObject) event.copy();
+
+        MongoClient.mapMongoToPlainJavaTypes(copy);
+        return copy.toMap();
+    }
+
+    /**
+     * Reads a JSON fixture from the classpath.
+     *
+     * @param resource the fixture
+     * @return the fixture
+     */
+    public static BasicDBObject readFixture(String resource) {
+        try {
+            return (BasicDBObject) JSON.parse(JSONUtils.readJSONFromClasspath(resource));
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to read the fixture " + resource + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Object scale(Object value, double factor) {
+        if (value instanceof BasicDBObject) {
+            BasicDBObject scaled = new BasicDBObject();
+            for (Map.Entry<String, Object> entry : ((BasicDBObject) value).entrySet()) {
+                // the recorded CloudWatch timestamps are dates, not metric values
+                scaled.put(entry.getKey(), "timestamp".equals(entry.getKey()) ?
+                        entry.getValue() : scale(entry.getValue(), factor));
+            }
+            return scaled;
+        }
+        if (value instanceof BasicDBList) {
+            BasicDBList scaled = new BasicDBList();
+            for (Object element : (BasicDBList) value) {
+                scaled.add(scale(element, factor));
+            }
+            return scaled;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() * factor;
+        }
+        return value;
+    }
+
+}
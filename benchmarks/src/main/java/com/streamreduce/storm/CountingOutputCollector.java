@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.Collection;
+import java.util.List;
+
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.tuple.Tuple;
+
+/**
+ * {@link IOutputCollector} for benchmarks that counts what a bolt emits instead of keeping it, unlike the
+ * MockOutputCollector of the tests which would grow for as long as the benchmark runs.
+ */
+public class CountingOutputCollector implements IOutputCollector {
+
+    private long emitted;
+    private long acked;
+    private List<Object> lastEmitted;
+
+    /**
+     * Returns the number of tuples emitted.
+     *
+     * @return the number of tuples emitted
+     */
+    public long getEmitted() {
+        return emitted;
+    }
+
+    /**
+     * Returns the number of tuples acked.
+     *
+     * @return the number of tuples acked
+     */
+    public long getAcked() {
+        return acked;
+    }
+
+    /**
+     * Returns the values of the last tuple emitted.
+     *
+     * @return the values or null if nothing was emitted
+     */
+    public List<Object> getLastEmitted() {
+        return lastEmitted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+        emitted++;
+        lastEmitted = tuple;
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+        emit(streamId, anchors, tuple);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void ack(Tuple input) {
+        acked++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fail(Tuple input) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reportError(Throwable error) {
+    }
+
+}
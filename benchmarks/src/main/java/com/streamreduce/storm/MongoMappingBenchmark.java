@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.BasicDBObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link MongoClient#mapMongoToPlainJavaTypes} on the events the spouts read before emitting them.  Since
+ * the mapping works in place, every invocation maps a fresh deep copy of the event; <code>copy</code> measures the
+ * copy alone so it can be subtracted.
+ * <p/>
+ * <code>CREATE</code> events carry metadata only, <code>ACTIVITY</code> events the recorded CloudWatch and agent
+ * payloads, see {@link BenchmarkEvents}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MongoMappingBenchmark {
+
+    private static final int EVENTS = 256;
+
+    @Param({"CREATE", "ACTIVITY"})
+    public String eventId;
+
+    private BasicDBObject[] events;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<BasicDBObject> created = BenchmarkEvents.createEvents(2 * EVENTS, 4, EVENTS, System.currentTimeMillis(),
+                                                                   10, 42);
+
+        events = ("CREATE".equals(eventId) ? created.subList(0, EVENTS) : created.subList(EVENTS, 2 * EVENTS))
+                .toArray(new BasicDBObject[EVENTS]);
+    }
+
+    private BasicDBObject nextEvent() {
+        BasicDBObject event = events[next];
+
+        next = (next + 1) % EVENTS;
+        return event;
+    }
+
+    @Benchmark
+    public Object copy() {
+        return nextEvent().copy();
+    }
+
+    @Benchmark
+    public Object copyAndMap() {
+        BasicDBObject event = (BasicDBObject) nextEvent().copy();
+
+        MongoClient.mapMongoToPlainJavaTypes(event);
+        return event;
+    }
+
+}
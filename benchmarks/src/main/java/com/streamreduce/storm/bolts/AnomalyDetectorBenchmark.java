@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import backtype.storm.tuple.Values;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+import com.streamreduce.Constants;
+import com.streamreduce.core.metric.MetricModeType;
+import com.streamreduce.storm.JuggaloaderStreamState;
+import com.streamreduce.storm.detectors.AnomalyDetector;
+import com.streamreduce.storm.detectors.AnomalyDetectors;
+import com.streamreduce.util.JSONUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the time-base update of a sample with each {@link AnomalyDetector}, the CPU cost side of picking a
+ * detector for a metric (see {@link AnomalyDetectorReplay} for the hit rates).
+ * <p/>
+ * The samples are the recorded series of the JuggaloaderTimeBaseTest fixtures, one stream each, replayed over and over
+ * one minute apart at the finest granularity, where every sample goes through the detector.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnomalyDetectorBenchmark {
+
+    private static final String FIXTURE = "/com/streamreduce/storm/bolts/JuggaloaderTimeBaseTest-function%d.json";
+    private static final int SERIES = 9;
+
+    @Param({"zscore", "seasonal-ewma", "holt-winters", "median-mad"})
+    public String detectorName;
+
+    private AnomalyDetector detector;
+    private float[][] series;
+    private JuggaloaderStreamState[] states;
+    private Map<String, String>[] criteria;
+    private Map<String, Object> metaData;
+    private int stream;
+    private int position;
+    private long ts;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        detector = AnomalyDetectors.create(detectorName, JuggaloaderTimeBase.topologyProps);
+        series = new float[SERIES][];
+        states = new JuggaloaderStreamState[SERIES];
+        criteria = new Map[SERIES];
+        ts = System.currentTimeMillis();
+
+        for (int i = 0; i < SERIES; i++) {
+            BasicDBList samples = (BasicDBList) JSON.parse(JSONUtils.readJSONFromClasspath(String.format(FIXTURE, i)));
+
+            series[i] = new float[samples.size()];
+            for (int j = 0; j < samples.size(); j++) {
+                series[i][j] = Float.parseFloat(((BasicDBObject) samples.get(j)).getString("y"));
+            }
+            states[i] = new JuggaloaderStreamState(series[i][0], ts);
+            criteria[i] = new HashMap<>();
+            criteria[i].put("RESOURCE_ID", "function" + i);
+        }
+        metaData = new HashMap<>();
+    }
+
+    @Benchmark
+    public Values update() {
+        int i = stream;
+        float y = series[i][position % series[i].length];
+
+        if (++stream == SERIES) {
+            stream = 0;
+            position++;
+            ts += Constants.PERIOD_MINUTE;
+        }
+
+        return JuggaloaderTimeBase.update(states[i], detector, 0, "benchmark", "TEST_STREAM",
+                                          MetricModeType.ABSOLUTE.toString(), ts, y, null, metaData, criteria[i]);
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import backtype.storm.tuple.Values;
+import com.streamreduce.core.metric.MetricModeType;
+import com.streamreduce.storm.JuggaloaderStreamStateStore;
+import com.streamreduce.storm.MapStreamStateStore;
+import com.streamreduce.storm.PrimitiveStreamStateStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link JuggaloaderTimeBase} processing a sample the way a time-base bolt does once the tuple is parsed:
+ * the whitelist check, the stream state lookup in the configured state store and the update with the metric's
+ * anomaly detector.
+ * <p/>
+ * The samples come from synthetic <code>INVENTORY_ITEM_RESOURCE_USAGE</code> streams fed round robin, one sample per
+ * stream per second, so the number of streams sets how much state the lookups go through and the period how often a
+ * stream emits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JuggaloaderTimeBaseBenchmark {
+
+    private static final String[] RESOURCES = {"CPUUtilization", "DiskReadBytes", "NetworkIn", "NetworkOut"};
+    private static final int NOISE_SIZE = 1024;
+
+    @Param({"map", "primitive"})
+    public String store;
+
+    @Param({"1000", "100000"})
+    public int streams;
+
+    @Param({"0", "60000", "3600000"})
+    public long periodMillis;
+
+    private JuggaloaderStreamStateStore states;
+    private String[] accountIds;
+    private String metricName;
+    private Map<String, String>[] criteria;
+    private float[] levels;
+    private float[] noise;
+    private Map<String, Object> metaData;
+    private int next;
+    private int round;
+    private long ts;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        Random random = new Random(42);
+
+        states = "primitive".equals(store) ? new PrimitiveStreamStateStore() : new MapStreamStateStore();
+        accountIds = new String[streams];
+        metricName = "INVENTORY_ITEM_RESOURCE_USAGE";
+        criteria = new Map[streams];
+        levels = new float[streams];
+        for (int i = 0; i < streams; i++) {
+            // The time-base bolts receive criteria as HashMaps
+            HashMap<String, String> streamCriteria = new HashMap<>();
+
+            streamCriteria.put("OBJECT_ID", "item-" + (i / RESOURCES.length));
+            streamCriteria.put("RESOURCE_ID", RESOURCES[i % RESOURCES.length]);
+            streamCriteria.put("METRIC_ID", "average");
+            accountIds[i] = "account-" + (i % 50);
+            criteria[i] = streamCriteria;
+            levels[i] = 10 + random.nextFloat() * 1000;
+        }
+
+        noise = new float[NOISE_SIZE];
+        for (int i = 0; i < NOISE_SIZE; i++) {
+            noise[i] = 1 + (float) random.nextGaussian() * 0.05f;
+        }
+        metaData = new HashMap<>();
+        ts = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public Values process() {
+        int stream = next;
+
+        if (++next == streams) {
+            next = 0;
+            round++;
+            ts += 1000;
+        }
+        if (!MetricsWhitelist.whitelist(metricName, criteria[stream])) {
+            return null;
+        }
+
+        float y = levels[stream] * noise[(stream + round) & (NOISE_SIZE - 1)];
+
+        return JuggaloaderTimeBase.process(states, periodMillis, accountIds[stream], metricName,
+                                           MetricModeType.ABSOLUTE.toString(), ts, y, null, metaData,
+                                           criteria[stream]);
+    }
+
+}
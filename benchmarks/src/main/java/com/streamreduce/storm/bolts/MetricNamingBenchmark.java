@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.streamreduce.storm.utils.MetricsUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the per-sample work on a metric's name and criteria: {@link MetricsUtils#createUniqueMetricName} and
+ * the {@link MetricsWhitelist} verdict, cached per stream, next to the uncached evaluation of the bundled rules by
+ * {@link MetricsWhitelistRules}.
+ * <p/>
+ * The streams cycle through names the rules accept and reject with 0, 1 or 3 criteria, and there are either few of
+ * them (every verdict is cached) or more than <code>juggaloader.whitelist.cache.size</code> (the cache keeps being
+ * cleared and refilled).  Without criteria the streams collapse to one per metric name.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricNamingBenchmark {
+
+    private static final String[] METRIC_NAMES = {
+            "INVENTORY_ITEM_RESOURCE_USAGE", "INVENTORY_ITEM_COUNT", "CONNECTION_ACTIVITY_COUNT", "ACCOUNT_COUNT"
+    };
+    private static final String[] METRIC_IDS = {"average", "maximum", "minimum", "sum"};
+
+    @Param({"0", "1", "3"})
+    public int criteriaCount;
+
+    @Param({"64", "200000"})
+    public int streams;
+
+    private MetricsWhitelistRules rules;
+    private String[] metricNames;
+    private Map<String, String>[] criteria;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        try (InputStream in = MetricsWhitelist.class.getResourceAsStream(MetricsWhitelist.RULES_RESOURCE)) {
+            rules = MetricsWhitelistRules.parse(new InputStreamReader(in, "UTF-8"));
+        }
+
+        metricNames = new String[streams];
+        criteria = new Map[streams];
+        for (int i = 0; i < streams; i++) {
+            // The time-base bolts receive criteria as HashMaps
+            HashMap<String, String> streamCriteria = new HashMap<>();
+
+            if (criteriaCount > 0) {
+                streamCriteria.put("OBJECT_ID", "item-" + i);
+            }
+            if (criteriaCount > 1) {
+                streamCriteria.put("RESOURCE_ID", "CPUUtilization");
+                streamCriteria.put("METRIC_ID", METRIC_IDS[i % METRIC_IDS.length]);
+            }
+            metricNames[i] = METRIC_NAMES[i % METRIC_NAMES.length];
+            criteria[i] = streamCriteria;
+        }
+    }
+
+    private int nextStream() {
+        int stream = next;
+
+        if (++next == streams) {
+            next = 0;
+        }
+        return stream;
+    }
+
+    @Benchmark
+    public String createUniqueMetricName() {
+        int stream = nextStream();
+
+        return MetricsUtils.createUniqueMetricName(metricNames[stream], criteria[stream]);
+    }
+
+    @Benchmark
+    public boolean whitelist() {
+        int stream = nextStream();
+
+        return MetricsWhitelist.whitelist(metricNames[stream], criteria[stream]);
+    }
+
+    @Benchmark
+    public boolean whitelistRules() {
+        int stream = nextStream();
+
+        return rules.whitelist(metricNames[stream], criteria[stream]);
+    }
+
+}
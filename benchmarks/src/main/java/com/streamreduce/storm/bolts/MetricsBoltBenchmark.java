@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.bolts;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import backtype.storm.generated.StormTopology;
+import backtype.storm.task.GeneralTopologyContext;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.TupleImpl;
+import backtype.storm.tuple.Values;
+import com.mongodb.BasicDBObject;
+import com.streamreduce.storm.BenchmarkEvents;
+import com.streamreduce.storm.CountingOutputCollector;
+import com.streamreduce.storm.GroupingNameConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks an {@link InventoryItemMetricsBolt} turning events into metrics.  <code>CREATE</code> events are mostly
+ * the built-in object counts of {@link AbstractMetricsBolt} (<code>handleObjectCounts</code>) and the inventory
+ * counts per region, zone and OS, <code>ACTIVITY</code> events the resource usage metrics of the recorded CloudWatch
+ * and agent payloads, see {@link BenchmarkEvents}.
+ * <p/>
+ * Deltas are combined as configured by <code>juggaloader.metrics.combine.window</code>, as in the topology.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBoltBenchmark {
+
+    private static final int EVENTS = 4096;
+    private static final String SPOUT = "eventSpout";
+    private static final int SPOUT_TASK = 1;
+
+    @Param({"CREATE", "ACTIVITY"})
+    public String eventId;
+
+    private InventoryItemMetricsBolt bolt;
+    private CountingOutputCollector outputCollector;
+    private Tuple[] tuples;
+    private int next;
+
+    @Setup
+    public void setup() {
+        // Every event of the first pass over the items is a CREATE, the following ones are ACTIVITY
+        boolean create = "CREATE".equals(eventId);
+        List<BasicDBObject> events = BenchmarkEvents.createEvents(create ? EVENTS : 2 * EVENTS, 20,
+                                                                  create ? EVENTS : 256, System.currentTimeMillis(),
+                                                                  10, 42);
+        List<BasicDBObject> replayed = create ? events : events.subList(EVENTS, 2 * EVENTS);
+
+        // Tuples check their values against the fields their spout declared
+        Map<String, Fields> streamToFields = new HashMap<>();
+        Map<String, Map<String, Fields>> componentToStreamToFields = new HashMap<>();
+        streamToFields.put(GroupingNameConstants.INVENTORY_ITEM_GROUPING_NAME, new Fields("event", "targetId"));
+        componentToStreamToFields.put(SPOUT, streamToFields);
+        GeneralTopologyContext context = new GeneralTopologyContext(
+                new StormTopology(), new HashMap(), Collections.singletonMap(SPOUT_TASK, SPOUT),
+                Collections.singletonMap(SPOUT, Collections.singletonList(SPOUT_TASK)), componentToStreamToFields,
+                "benchmark");
+
+        tuples = new Tuple[replayed.size()];
+        for (int i = 0; i < tuples.length; i++) {
+            Map<String, Object> event = BenchmarkEvents.toEmittedEvent(replayed.get(i));
+
+            tuples[i] = new TupleImpl(context, new Values(event, event.get("targetId")), SPOUT_TASK,
+                                      GroupingNameConstants.INVENTORY_ITEM_GROUPING_NAME);
+        }
+
+        outputCollector = new CountingOutputCollector();
+        bolt = new InventoryItemMetricsBolt();
+        bolt.prepare(null, null, new OutputCollector(outputCollector));
+    }
+
+    @TearDown
+    public void tearDown() {
+        bolt.cleanup();
+    }
+
+    @Benchmark
+    public long execute() {
+        bolt.execute(tuples[next]);
+        next = (next + 1) % tuples.length;
+        return outputCollector.getEmitted();
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.serialization;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import backtype.storm.serialization.KryoValuesDeserializer;
+import backtype.storm.serialization.KryoValuesSerializer;
+import backtype.storm.tuple.Values;
+import backtype.storm.utils.Utils;
+import com.streamreduce.analytics.MetricCriteria;
+import com.streamreduce.analytics.MetricName;
+import com.streamreduce.storm.MetricCriteriaMap;
+import com.streamreduce.storm.topology.JuggaloaderTopology;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the serialization of a time-base bolt output tuple with its criteria as a plain {@link LinkedHashMap}
+ * and as a {@link MetricCriteriaMap}, using the serializers Storm uses between workers with the topology's
+ * configuration.  The bytes per tuple are printed once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricTupleSerializationBenchmark {
+
+    @Param({"LinkedHashMap", "MetricCriteriaMap"})
+    public String criteriaType;
+
+    private KryoValuesSerializer serializer;
+    private KryoValuesDeserializer deserializer;
+    private Values tuple;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws Exception {
+        Map conf = Utils.readDefaultConfig();
+        Map<String, String> criteria = new LinkedHashMap<>();
+
+        conf.putAll(new JuggaloaderTopology().createConfig());
+        criteria.put(MetricCriteria.PROVIDER_TYPE.toString(), "cloud");
+        criteria.put(MetricCriteria.PROVIDER_ID.toString(), "aws");
+        criteria.put(MetricCriteria.OBJECT_ID.toString(), "5091aa2de4b0a4b1d5a5a1fe");
+        criteria.put(MetricCriteria.RESOURCE_ID.toString(), "CPUUtilization");
+        criteria.put(MetricCriteria.METRIC_ID.toString(), "average");
+
+        serializer = new KryoValuesSerializer(conf);
+        deserializer = new KryoValuesDeserializer(conf);
+        tuple = createTuple("MetricCriteriaMap".equals(criteriaType) ? new MetricCriteriaMap(criteria) : criteria);
+        serialized = serializer.serialize(tuple);
+        System.out.println(criteriaType + " criteria: " + serialized.length + " bytes/tuple");
+    }
+
+    private static Values createTuple(Map<String, String> criteria) {
+        return new Values("4ff5ab17e4b0ea4b3bb72b92", MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString(), "ABSOLUTE",
+                          System.currentTimeMillis(), 42.5f, criteria, new HashMap<String, Object>(), 60000L, 40.1f,
+                          2.3f, 0.5f, 12.0f, 97.0f, false);
+    }
+
+    @Benchmark
+    public Object serialize() throws Exception {
+        return serializer.serialize(tuple);
+    }
+
+    @Benchmark
+    public Object deserialize() throws Exception {
+        return deserializer.deserialize(serialized);
+    }
+
+}
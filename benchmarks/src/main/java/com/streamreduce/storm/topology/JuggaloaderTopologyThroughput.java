@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.storm.topology;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import backtype.storm.LocalCluster;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.streamreduce.storm.BenchmarkEvents;
+import com.streamreduce.storm.MongoClient;
+import com.streamreduce.util.PropertiesOverrideLoader;
+import org.apache.log4j.Logger;
+
+/**
+ * End-to-end throughput benchmark of the Juggaloader topology: inserts synthetic events (see {@link BenchmarkEvents})
+ * into the event stream, replays them through the spout, metrics, time-base and persistence bolts of the backfill
+ * topology in a {@link LocalCluster} and reports the events per second once every partition is done.
+ * <p/>
+ * Runs against the database of the <code>message</code> configuration, the embedded Mongo with the analytics test
+ * <code>override.properties</code>.  The events and the shadow metric collections written are removed afterwards.
+ * <p/>
+ * Usage: <code>JuggaloaderTopologyThroughput [events] [accounts]</code>, see the <code>topology-benchmark</code>
+ * profile.
+ */
+public final class JuggaloaderTopologyThroughput {
+
+    private static final Logger logger = Logger.getLogger(JuggaloaderTopologyThroughput.class);
+
+    private static final String TOPOLOGY_NAME = "juggaloader-throughput";
+    private static final int INSERT_BATCH_SIZE = 1000;
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+    private JuggaloaderTopologyThroughput() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        // one event per second per account, so every granularity up to the hour sees several periods
+        long interval = Math.max(1, 1000 / accounts);
+        long from = System.currentTimeMillis() - events * interval - TimeUnit.HOURS.toMillis(1);
+        long until = from + events * interval;
+        String runId = "throughput" + System.currentTimeMillis();
+
+        Properties databaseProperties = PropertiesOverrideLoader.loadProperties("database.properties");
+        Mongo mongo = new Mongo(databaseProperties.getProperty("message.database.host"),
+                                Integer.parseInt(databaseProperties.getProperty("message.database.port")));
+        DB db = mongo.getDB(databaseProperties.getProperty("message.database.name", "nodeablemsgdb"));
+        DBCollection eventStream = db.getCollection("eventStream");
+        MongoClient mongoClient = new MongoClient(MongoClient.MESSAGEDB_CONFIG_ID);
+        Properties topologyProps = JuggaloaderTopology.loadProperties(null);
+        JuggaloaderTopology topology = new JuggaloaderTopology(topologyProps);
+        String collectionPrefix = JuggaloaderTopology.getBackfillCollectionPrefix(runId);
+        BasicDBObject insertedRange = new BasicDBObject("timestamp",
+                                                        new BasicDBObject("$gte", from).append("$lt", until));
+
+        try {
+            insertEvents(eventStream, BenchmarkEvents.createEvents(events, accounts, accounts * 50, from, interval,
+                                                                   42));
+
+            LocalCluster cluster = new LocalCluster();
+            int partitions = Integer.parseInt(topologyProps.getProperty("juggaloader.backfill.partitions").trim());
+
+            logger.info("Replaying " + events + " events of " + accounts + " accounts with " + partitions +
+                                " partitions and granularities " + topology.getGranularities());
+            cluster.submitTopology(TOPOLOGY_NAME, topology.createBackfillConfig(),
+                                   topology.createBackfillTopology(from, until, runId));
+
+            // The clock starts once a partition has opened, leaving the cluster startup out
+            long start = 0;
+            long end = 0;
+            long emitted = 0;
+            long failed = 0;
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            int done = 0;
+            while (done < partitions && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+
+                List<BasicDBObject> progress = mongoClient.getBackfillProgress(runId);
+                if (progress.isEmpty()) {
+                    continue;
+                }
+                if (start == 0) {
+                    start = System.currentTimeMillis();
+                }
+                emitted = 0;
+                failed = 0;
+                done = 0;
+                for (BasicDBObject partition : progress) {
+                    emitted += partition.getLong("emitted");
+                    failed += partition.getLong("failed");
+                    done += partition.getBoolean("done") ? 1 : 0;
+                }
+                end = System.currentTimeMillis();
+            }
+
+            cluster.killTopology(TOPOLOGY_NAME);
+            cluster.shutdown();
+
+            long metrics = 0;
+            for (String name : mongoClient.getShadowMetricCollectionNames(collectionPrefix)) {
+                metrics += db.getCollection(name).count();
+            }
+
+            if (done < partitions) {
+                logger.error("Timed out after " + (end - start) + "ms with " + done + "/" + partitions +
+                                     " partitions done and " + emitted + " events emitted");
+            } else {
+                long elapsed = Math.max(1, end - start);
+                System.out.println(String.format("%d events (%d failed) in %dms: %.1f events/s, %d metric documents",
+                                                 emitted, failed, elapsed, emitted * 1000.0 / elapsed, metrics));
+            }
+        } finally {
+            eventStream.remove(insertedRange);
+            db.getCollection(MongoClient.BACKFILL_PROGRESS_COLLECTION_NAME).remove(new BasicDBObject("runId", runId));
+            mongoClient.dropShadowMetricCollections(collectionPrefix);
+            mongo.close();
+        }
+    }
+
+    private static void insertEvents(DBCollection eventStream, List<BasicDBObject> events) {
+        List<DBObject> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+
+        for (BasicDBObject event : events) {
+            batch.add(event);
+            if (batch.size() == INSERT_BATCH_SIZE) {
+                eventStream.insert(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            eventStream.insert(batch);
+        }
+        eventStream.ensureIndex(new BasicDBObject("timestamp", 1));
+    }
+
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.util;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.streamreduce.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Packs metric samples into time-bucketed documents of the account metric collections and unpacks them.
+ * <p/>
+ * A bucket holds the samples of one metric stream (name, criteria and granularity) over a time span: the stream
+ * fields once and each sample field as an array under <code>samples</code>, the arrays being aligned by sample.
+ * Buckets are written with upserts pushing the new samples, so a stream costs a document (and an index entry) per
+ * bucket instead of one per sample.  The span grows with the granularity, see {@link #getBucketSpan(long)}.
+ * <p/>
+ * Samples read back from a bucket have the fields of the per-sample documents written before buckets, which are
+ * still found in collections written before the change.
+ */
+public final class MetricBucketUtils {
+
+    public static final String BUCKET_START = "bucketStart";
+    public static final String BUCKET_END = "bucketEnd";
+    public static final String SAMPLE_COUNT = "sampleCount";
+    public static final String SAMPLES = "samples";
+    public static final String METRIC_TIMESTAMP = "metricTimestamp";
+
+    /**
+     * The fields identifying the stream of a sample, stored once per bucket.
+     */
+    public static final List<String> STREAM_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "metricName", "metricType", "metricGranularity", "metricCriteria"));
+
+    /**
+     * The fields of a sample, stored in aligned arrays under {@link #SAMPLES}.
+     */
+    public static final List<String> SAMPLE_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            METRIC_TIMESTAMP, "metricValue", "metricAVGY", "metricSTDDEV", "metricDIFF", "metricMIN", "metricMAX",
+            "metricIsAnomaly", "metricQuantiles"));
+
+    // The separators of the bucket ids and their escape character
+    private static final String ID_SPECIAL_CHARS = "\\{},=:";
+
+    private static final Comparator<DBObject> OLDEST_FIRST = new Comparator<DBObject>() {
+        @Override
+        public int compare(DBObject a, DBObject b) {
+            long tsA = getTimestamp(a);
+            long tsB = getTimestamp(b);
+
+            return tsA < tsB ? -1 : (tsA == tsB ? 0 : 1);
+        }
+    };
+
+    private MetricBucketUtils() {
+    }
+
+    /**
+     * Returns the time span of the buckets of a granularity: a minute for raw (finer than minute) samples, an hour
+     * for minute samples, a day for hourly samples, a month for daily samples and a year of months for coarser ones.
+     * Raw samples come as fast as their events do, the short span bounds how far their buckets grow, each growth
+     * moving the document and a bucket being a single document of at most 16MB.
+     *
+     * @param granularity the metric granularity
+     * @return the bucket span (ms)
+     */
+    public static long getBucketSpan(long granularity) {
+        if (granularity < Constants.PERIOD_MINUTE) {
+            return Constants.PERIOD_MINUTE;
+        }
+        if (granularity <= Constants.PERIOD_MINUTE) {
+            return Constants.PERIOD_HOUR;
+        }
+        if (granularity <= Constants.PERIOD_HOUR) {
+            return Constants.PERIOD_DAY;
+        }
+        if (granularity <= Constants.PERIOD_DAY) {
+            return Constants.PERIOD_MONTH;
+        }
+        return 12 * Constants.PERIOD_MONTH;
+    }
+
+    /**
+     * Returns the start of the bucket a sample falls into.
+     *
+     * @param timestamp   the sample timestamp
+     * @param granularity the metric granularity
+     * @return the bucket start
+     */
+    public static long getBucketStart(long timestamp, long granularity) {
+        long span = getBucketSpan(granularity);
+
+        return timestamp - (timestamp % span + span) % span;
+    }
+
+    /**
+     * Returns the <code>_id</code> of a bucket, built from the stream and the bucket start so that writers upsert
+     * into the same bucket without looking it up first.
+     *
+     * @param metricName     the metric name
+     * @param metricCriteria the metric criteria, or null
+     * @param granularity    the metric granularity
+     * @param bucketStart    the bucket start
+     * @return the bucket id
+     */
+    public static String getBucketId(String metricName, Map<String, ?> metricCriteria, long granularity,
+                                     long bucketStart) {
+        return getStreamId(metricName, metricCriteria, granularity) + bucketStart;
+    }
+
+    /**
+     * Returns the prefix shared by the <code>_id</code>s of the buckets of a stream, which makes the buckets of a
+     * stream an <code>_id</code> range.  The separators (<code>{},=:</code>) and backslashes within the name and the
+     * criteria are escaped with a backslash, so that no two streams share a prefix nor does a prefix start the id of
+     * another stream's bucket.  Streams without such characters keep the ids they had before escaping.
+     *
+     * @param metricName     the metric name
+     * @param metricCriteria the metric criteria, or null
+     * @param granularity    the metric granularity
+     * @return the bucket id prefix
+     */
+    public static String getStreamId(String metricName, Map<String, ?> metricCriteria, long granularity) {
+        StringBuilder id = new StringBuilder();
+
+        appendEscaped(id, metricName).append('{');
+        if (metricCriteria != null) {
+            boolean first = true;
+            for (Map.Entry<String, ?> criteriaEntry : new TreeMap<>(metricCriteria).entrySet()) {
+                if (!first) {
+                    id.append(',');
+                }
+                appendEscaped(id, criteriaEntry.getKey()).append('=');
+                appendEscaped(id, String.valueOf(criteriaEntry.getValue()));
+                first = false;
+            }
+        }
+        return id.append("}:").append(granularity).append(':').toString();
+    }
+
+    /**
+     * Returns the <code>_id</code> prefix of the stream of a sample or bucket, see
+     * {@link #getStreamId(String, Map, long)}.
+     *
+     * @param document the sample or bucket
+     * @return the bucket id prefix
+     */
+    public static String getStreamId(DBObject document) {
+        return getStreamId((String) document.get("metricName"), getCriteria(document), getGranularity(document));
+    }
+
+    private static StringBuilder appendEscaped(StringBuilder id, String component) {
+        for (int i = 0; i < component.length(); i++) {
+            char c = component.charAt(i);
+
+            if (ID_SPECIAL_CHARS.indexOf(c) >= 0) {
+                id.append('\\');
+            }
+            id.append(c);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the <code>_id</code> of the bucket a sample belongs to.
+     *
+     * @param sample the sample, with the fields of {@link #STREAM_FIELDS} and {@link #SAMPLE_FIELDS}
+     * @return the bucket id
+     */
+    public static String getBucketId(DBObject sample) {
+        long granularity = getGranularity(sample);
+
+        return getBucketId((String) sample.get("metricName"), getCriteria(sample), granularity,
+                           getBucketStart(getTimestamp(sample), granularity));
+    }
+
+    /**
+     * Creates the upserts writing samples into their buckets, one per bucket: the stream fields and bucket bounds
+     * are set and the samples pushed in the order given.  Sample fields a sample lacks are pushed as null to keep the
+     * arrays aligned.
+     *
+     * @param samples the samples, with the fields of {@link #STREAM_FIELDS} and {@link #SAMPLE_FIELDS}
+     * @return the update of each bucket, keyed by the bucket id to upsert
+     */
+    public static Map<String, DBObject> createBucketUpdates(List<? extends DBObject> samples) {
+        Map<String, DBObject> updates = new LinkedHashMap<>();
+
+        for (DBObject sample : samples) {
+            String bucketId = getBucketId(sample);
+            DBObject update = updates.get(bucketId);
+
+            if (update == null) {
+                long granularity = getGranularity(sample);
+                long bucketStart = getBucketStart(getTimestamp(sample), granularity);
+                BasicDBObject set = new BasicDBObject();
+                BasicDBObject pushAll = new BasicDBObject();
+
+                for (String field : STREAM_FIELDS) {
+                    set.put(field, sample.get(field));
+                }
+                set.put("metricGranularity", granularity);
+                set.put(BUCKET_START, bucketStart);
+                set.put(BUCKET_END, bucketStart + getBucketSpan(granularity));
+                for (String field : SAMPLE_FIELDS) {
+                    pushAll.put(SAMPLES + "." + field, new BasicDBList());
+                }
+
+                update = new BasicDBObject("$set", set)
+                        .append("$inc", new BasicDBObject(SAMPLE_COUNT, 0))
+                        .append("$pushAll", pushAll);
+                updates.put(bucketId, update);
+            }
+
+            DBObject pushAll = (DBObject) update.get("$pushAll");
+            DBObject inc = (DBObject) update.get("$inc");
+
+            for (String field : SAMPLE_FIELDS) {
+                ((BasicDBList) pushAll.get(SAMPLES + "." + field)).add(sample.get(field));
+            }
+            inc.put(SAMPLE_COUNT, (Integer) inc.get(SAMPLE_COUNT) + 1);
+        }
+
+        return updates;
+    }
+
+    /**
+     * Creates the whole document of a bucket holding the given samples, for replacing a bucket rather than pushing
+     * samples into it, see {@link #createBucketUpdates(List)}.
+     *
+     * @param samples the samples, all of the same bucket and in the order to store them
+     * @return the bucket, with its <code>_id</code>
+     */
+    public static DBObject createBucket(List<? extends DBObject> samples) {
+        Map.Entry<String, DBObject> bucketUpdate = createBucketUpdates(samples).entrySet().iterator().next();
+        DBObject update = bucketUpdate.getValue();
+        DBObject pushAll = (DBObject) update.get("$pushAll");
+        BasicDBObject bucket = new BasicDBObject("_id", bucketUpdate.getKey());
+        BasicDBObject bucketSamples = new BasicDBObject();
+
+        bucket.putAll((DBObject) update.get("$set"));
+        bucket.putAll((DBObject) update.get("$inc"));
+        for (String field : SAMPLE_FIELDS) {
+            bucketSamples.put(field, pushAll.get(SAMPLES + "." + field));
+        }
+        bucket.put(SAMPLES, bucketSamples);
+        return bucket;
+    }
+
+    /**
+     * Returns the index the buckets are read with: by stream name and granularity, latest buckets first.
+     *
+     * @return the index keys
+     */
+    public static DBObject getBucketIndex() {
+        return new BasicDBObject("metricName", 1).append("metricGranularity", 1).append(BUCKET_END, -1);
+    }
+
+    /**
+     * Restricts a query to the buckets holding samples of a time range, buckets only if the range is open.
+     *
+     * @param query     the query
+     * @param startTime the time of the earliest sample, or null
+     * @param endTime   the time of the latest sample, or null
+     */
+    public static void addBucketRange(BasicDBObject query, Long startTime, Long endTime) {
+        query.put(BUCKET_END, startTime != null ?
+                new BasicDBObject("$gt", startTime) :
+                new BasicDBObject("$exists", true));
+        if (endTime != null) {
+            query.put(BUCKET_START, new BasicDBObject("$lte", endTime));
+        }
+    }
+
+    /**
+     * Returns whether a document of a metric collection is a bucket rather than a sample written before buckets.
+     *
+     * @param document the document
+     * @return true for a bucket
+     */
+    public static boolean isBucket(DBObject document) {
+        return document.containsField(SAMPLES);
+    }
+
+    /**
+     * Unpacks the samples of a bucket in a time range, in the order they were written.  Each sample has the stream
+     * fields of the bucket and its own sample fields, null quantiles left out.
+     *
+     * @param bucket    the bucket
+     * @param startTime the time of the earliest sample to return, or null
+     * @param endTime   the time of the latest sample to return, or null
+     * @return the samples
+     */
+    public static List<DBObject> unpackBucket(DBObject bucket, Long startTime, Long endTime) {
+        DBObject samples = (DBObject) bucket.get(SAMPLES);
+        List<?> timestamps = (List<?>) samples.get(METRIC_TIMESTAMP);
+        List<DBObject> unpacked = new ArrayList<>(timestamps.size());
+
+        for (int i = 0; i < timestamps.size(); i++) {
+            long ts = ((Number) timestamps.get(i)).longValue();
+
+            if ((startTime != null && ts < startTime) || (endTime != null && ts > endTime)) {
+                continue;
+            }
+
+            BasicDBObject sample = new BasicDBObject();
+
+            for (String field : STREAM_FIELDS) {
+                sample.put(field, bucket.get(field));
+            }
+            for (String field : SAMPLE_FIELDS) {
+                List<?> values = (List<?>) samples.get(field);
+                Object value = values != null && i < values.size() ? values.get(i) : null;
+
+                if (value != null || !field.equals("metricQuantiles")) {
+                    sample.put(field, value);
+                }
+            }
+            unpacked.add(sample);
+        }
+        return unpacked;
+    }
+
+    /**
+     * Returns the time span covered by the samples of each stream of the buckets, within a time range.
+     *
+     * @param buckets   the buckets
+     * @param startTime the time of the earliest sample to consider, or null
+     * @param endTime   the time of the latest sample to consider, or null
+     * @return the timestamps of the earliest and the latest sample of each stream, keyed by stream id
+     */
+    public static Map<String, long[]> getSampleSpans(Iterator<DBObject> buckets, Long startTime, Long endTime) {
+        Map<String, long[]> spans = new HashMap<>();
+
+        while (buckets.hasNext()) {
+            DBObject bucket = buckets.next();
+            List<DBObject> samples = unpackBucket(bucket, startTime, endTime);
+
+            if (samples.isEmpty()) {
+                continue;
+            }
+
+            String streamId = getStreamId(bucket);
+            long[] span = spans.get(streamId);
+
+            if (span == null) {
+                span = new long[]{Long.MAX_VALUE, Long.MIN_VALUE};
+                spans.put(streamId, span);
+            }
+            for (DBObject sample : samples) {
+                span[0] = Math.min(span[0], getTimestamp(sample));
+                span[1] = Math.max(span[1], getTimestamp(sample));
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Returns the samples of a bucket with those in a time range replaced by others, the samples outside of it kept.
+     *
+     * @param bucket    the bucket
+     * @param samples   the samples replacing those in the range, of the bucket's stream
+     * @param startTime the time of the earliest sample to replace
+     * @param endTime   the time of the latest sample to replace
+     * @return the samples, oldest first
+     */
+    public static List<DBObject> replaceSamples(DBObject bucket, List<? extends DBObject> samples, long startTime,
+                                                long endTime) {
+        List<DBObject> replaced = new ArrayList<>();
+
+        replaced.addAll(unpackBucket(bucket, null, startTime - 1));
+        replaced.addAll(unpackBucket(bucket, endTime + 1, null));
+        replaced.addAll(samples);
+        sortOldestFirst(replaced);
+        return replaced;
+    }
+
+    /**
+     * Returns the latest samples of the buckets in a time range.  The buckets must come latest {@link #BUCKET_END}
+     * first, which lets the reading stop at the first bucket ending before the <code>count</code> latest samples
+     * seen so far.
+     *
+     * @param buckets   the buckets, latest bucket end first
+     * @param startTime the time of the earliest sample to return, or null
+     * @param endTime   the time of the latest sample to return, or null
+     * @param count     the number of samples to return at most
+     * @return the samples, latest first
+     */
+    public static List<DBObject> getLatestSamples(Iterator<DBObject> buckets, Long startTime, Long endTime,
+                                                  int count) {
+        if (count <= 0) {
+            return new ArrayList<>();
+        }
+
+        // Min-heap of the count latest samples seen so far
+        PriorityQueue<DBObject> latest = new PriorityQueue<>(count + 1, OLDEST_FIRST);
+
+        while (buckets.hasNext()) {
+            DBObject bucket = buckets.next();
+            long bucketEnd = ((Number) bucket.get(BUCKET_END)).longValue();
+
+            // Every sample of this bucket and the following ones is older than bucketEnd
+            if (latest.size() == count && getTimestamp(latest.peek()) >= bucketEnd) {
+                break;
+            }
+            for (DBObject sample : unpackBucket(bucket, startTime, endTime)) {
+                latest.add(sample);
+                if (latest.size() > count) {
+                    latest.poll();
+                }
+            }
+        }
+
+        List<DBObject> samples = new ArrayList<>(latest);
+
+        sortLatestFirst(samples);
+        return samples;
+    }
+
+    /**
+     * Sorts samples by {@link #METRIC_TIMESTAMP}, latest first.
+     *
+     * @param samples the samples
+     */
+    public static void sortLatestFirst(List<DBObject> samples) {
+        Collections.sort(samples, Collections.reverseOrder(OLDEST_FIRST));
+    }
+
+    /**
+     * Sorts samples by {@link #METRIC_TIMESTAMP}, oldest first.
+     *
+     * @param samples the samples
+     */
+    public static void sortOldestFirst(List<DBObject> samples) {
+        Collections.sort(samples, OLDEST_FIRST);
+    }
+
+    private static long getTimestamp(DBObject sample) {
+        return ((Number) sample.get(METRIC_TIMESTAMP)).longValue();
+    }
+
+    private static long getGranularity(DBObject sample) {
+        Number granularity = (Number) sample.get("metricGranularity");
+
+        return granularity != null ? granularity.longValue() : 0;
+    }
+
+    /**
+     * Returns the criteria of a sample or bucket as a map.
+     *
+     * @param document the sample or bucket
+     * @return the criteria, or null
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, ?> getCriteria(DBObject document) {
+        Object criteria = document.get("metricCriteria");
+
+        if (criteria instanceof DBObject) {
+            return ((DBObject) criteria).toMap();
+        }
+        return (Map<String, ?>) criteria;
+    }
+
+}
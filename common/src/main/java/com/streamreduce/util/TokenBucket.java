@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.util;
+
+/**
+ * Token bucket rate limiter: tokens are added at a fixed rate up to the capacity of the bucket, and every permit takes
+ * one.  A permit taken from an empty bucket is reserved against the tokens to come, so the callers wait their turn in
+ * the order they reserved.  A bucket of no rate is unlimited.
+ * <p/>
+ * The times are passed in by the callers, in milliseconds.
+ */
+public class TokenBucket {
+
+    private final double tokensPerMilli;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillTime;
+
+    /**
+     * Constructor, the bucket starting full.
+     *
+     * @param permitsPerMinute the rate tokens are added at, 0 for no limit
+     * @param capacity         the maximum number of tokens, the permits that can be taken at once
+     * @param now              the current time
+     */
+    public TokenBucket(double permitsPerMinute, double capacity, long now) {
+        this.tokensPerMilli = permitsPerMinute / 60000;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.lastRefillTime = now;
+    }
+
+    /**
+     * Takes a permit.
+     *
+     * @param now the current time
+     * @return the time to wait before using the permit, 0 if it can be used now
+     */
+    public synchronized long reserve(long now) {
+        if (isUnlimited()) {
+            return 0;
+        }
+        refill(now);
+        tokens--;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerMilli);
+    }
+
+    /**
+     * Empties the bucket, the next permits waiting for new tokens.  Called when the rate limited service reports that
+     * it is being called too often.
+     *
+     * @param now the current time
+     */
+    public synchronized void drain(long now) {
+        refill(now);
+        tokens = Math.min(tokens, 0);
+    }
+
+    /**
+     * Returns the tokens available, negative when permits are reserved against the tokens to come.
+     *
+     * @param now the current time
+     * @return the number of tokens
+     */
+    public synchronized double getTokens(long now) {
+        refill(now);
+        return tokens;
+    }
+
+    public boolean isUnlimited() {
+        return tokensPerMilli <= 0;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefillTime) {
+            tokens = Math.min(capacity, tokens + (now - lastRefillTime) * tokensPerMilli);
+            lastRefillTime = now;
+        }
+    }
+
+}
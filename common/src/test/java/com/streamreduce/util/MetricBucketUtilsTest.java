@@ -0,0 +1,280 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.util;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.streamreduce.Constants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class used to test that {@link MetricBucketUtils} works as expected.
+ */
+public class MetricBucketUtilsTest {
+
+    private static final long TS = 1350000000000L;
+
+    @Test
+    public void testBucketsAlignToTheirSpan() {
+        Assert.assertEquals(Constants.PERIOD_MINUTE, MetricBucketUtils.getBucketSpan(0));
+        Assert.assertEquals(Constants.PERIOD_HOUR, MetricBucketUtils.getBucketSpan(Constants.PERIOD_MINUTE));
+        Assert.assertEquals(Constants.PERIOD_DAY, MetricBucketUtils.getBucketSpan(Constants.PERIOD_HOUR));
+        Assert.assertEquals(Constants.PERIOD_MONTH, MetricBucketUtils.getBucketSpan(Constants.PERIOD_DAY));
+        Assert.assertEquals(TS, MetricBucketUtils.getBucketStart(TS, Constants.PERIOD_MINUTE));
+        Assert.assertEquals(TS, MetricBucketUtils.getBucketStart(TS + Constants.PERIOD_HOUR - 1,
+                                                                 Constants.PERIOD_MINUTE));
+        Assert.assertEquals(TS - Constants.PERIOD_HOUR, MetricBucketUtils.getBucketStart(TS - 1,
+                                                                                         Constants.PERIOD_MINUTE));
+        Assert.assertEquals(TS + Constants.PERIOD_MINUTE, MetricBucketUtils.getBucketStart(TS + 90000, 0));
+    }
+
+    @Test
+    public void testBucketIdIgnoresCriteriaOrder() {
+        Map<String, String> criteria = new LinkedHashMap<>();
+        Map<String, String> reversed = new LinkedHashMap<>();
+
+        criteria.put("OBJECT_ID", "item");
+        criteria.put("METRIC_ID", "average");
+        reversed.put("METRIC_ID", "average");
+        reversed.put("OBJECT_ID", "item");
+
+        Assert.assertEquals("TEST{METRIC_ID=average,OBJECT_ID=item}:60000:" + TS,
+                            MetricBucketUtils.getBucketId("TEST", criteria, 60000, TS));
+        Assert.assertEquals(MetricBucketUtils.getBucketId("TEST", criteria, 60000, TS),
+                            MetricBucketUtils.getBucketId("TEST", reversed, 60000, TS));
+        Assert.assertEquals(MetricBucketUtils.getBucketId(createSample("TEST", TS + 1, 1f)),
+                            MetricBucketUtils.getBucketId(createSample("TEST", TS + 2, 2f)));
+        Assert.assertTrue(MetricBucketUtils.getBucketId("TEST", criteria, 60000, TS).startsWith(
+                MetricBucketUtils.getStreamId("TEST", reversed, 60000)));
+    }
+
+    @Test
+    public void testBucketIdsOfDistinctStreamsDontCollide() {
+        Map<String, String> twoCriteria = new LinkedHashMap<>();
+        Map<String, String> oneCriteria = new LinkedHashMap<>();
+
+        twoCriteria.put("x", "1");
+        twoCriteria.put("y", "2");
+        oneCriteria.put("x", "1,y=2");
+
+        Assert.assertFalse(MetricBucketUtils.getBucketId("TEST", twoCriteria, 60000, TS).equals(
+                MetricBucketUtils.getBucketId("TEST", oneCriteria, 60000, TS)));
+        Assert.assertEquals("TEST{x=1\\,y\\=2}:60000:" + TS,
+                            MetricBucketUtils.getBucketId("TEST", oneCriteria, 60000, TS));
+
+        // The prefix range of a stream doesn't reach the buckets of a stream whose name starts with that prefix
+        String streamId = MetricBucketUtils.getStreamId("TEST", null, 60000);
+        Assert.assertFalse(MetricBucketUtils.getBucketId(streamId, null, 60000, TS).startsWith(streamId));
+    }
+
+    @Test
+    public void testBucketUpdatesGroupSamplesByBucket() {
+        BasicDBObject quantiles = new BasicDBObject("p50", 2f);
+        BasicDBObject withQuantiles = createSample("TEST", TS + 60000, 2f).append("metricQuantiles", quantiles);
+        List<BasicDBObject> samples = Arrays.asList(createSample("TEST", TS, 1f), withQuantiles,
+                                                    createSample("OTHER", TS, 3f),
+                                                    createSample("TEST", TS + Constants.PERIOD_HOUR, 4f));
+        Map<String, DBObject> updates = MetricBucketUtils.createBucketUpdates(samples);
+
+        Assert.assertEquals(3, updates.size());
+
+        DBObject update = updates.get(MetricBucketUtils.getBucketId(samples.get(0)));
+        DBObject set = (DBObject) update.get("$set");
+        DBObject pushAll = (DBObject) update.get("$pushAll");
+
+        Assert.assertEquals("TEST", set.get("metricName"));
+        Assert.assertEquals(TS, set.get(MetricBucketUtils.BUCKET_START));
+        Assert.assertEquals(TS + Constants.PERIOD_HOUR, set.get(MetricBucketUtils.BUCKET_END));
+        Assert.assertEquals(2, ((DBObject) update.get("$inc")).get(MetricBucketUtils.SAMPLE_COUNT));
+        Assert.assertEquals(Arrays.asList(TS, TS + 60000), pushAll.get("samples.metricTimestamp"));
+        Assert.assertEquals(Arrays.asList(1f, 2f), pushAll.get("samples.metricValue"));
+        Assert.assertEquals(Arrays.asList(null, quantiles), pushAll.get("samples.metricQuantiles"));
+    }
+
+    @Test
+    public void testUnpackBucketRestoresSamples() {
+        DBObject bucket = createBucket("TEST", TS, 1f, 2f, 3f);
+        List<DBObject> samples = MetricBucketUtils.unpackBucket(bucket, TS + 60000, null);
+
+        Assert.assertTrue(MetricBucketUtils.isBucket(bucket));
+        Assert.assertFalse(MetricBucketUtils.isBucket(createSample("TEST", TS, 1f)));
+        Assert.assertEquals(2, samples.size());
+        Assert.assertEquals(TS + 60000, samples.get(0).get("metricTimestamp"));
+        Assert.assertEquals(2f, samples.get(0).get("metricValue"));
+        Assert.assertEquals("TEST", samples.get(0).get("metricName"));
+        Assert.assertEquals("item", ((DBObject) samples.get(0).get("metricCriteria")).get("OBJECT_ID"));
+        Assert.assertFalse(samples.get(0).containsField("metricQuantiles"));
+    }
+
+    @Test
+    public void testCreateBucketMatchesTheUpsertedBucket() {
+        List<DBObject> samples = new ArrayList<>();
+
+        samples.add(createSample("TEST", TS + 120000, 3f));
+        samples.add(createSample("TEST", TS, 1f));
+        MetricBucketUtils.sortOldestFirst(samples);
+
+        DBObject bucket = MetricBucketUtils.createBucket(samples);
+        DBObject bucketSamples = (DBObject) bucket.get(MetricBucketUtils.SAMPLES);
+
+        Assert.assertEquals(MetricBucketUtils.getBucketId(samples.get(0)), bucket.get("_id"));
+        Assert.assertEquals(TS, bucket.get(MetricBucketUtils.BUCKET_START));
+        Assert.assertEquals(TS + Constants.PERIOD_HOUR, bucket.get(MetricBucketUtils.BUCKET_END));
+        Assert.assertEquals(2, bucket.get(MetricBucketUtils.SAMPLE_COUNT));
+        Assert.assertEquals(Arrays.asList(TS, TS + 120000), bucketSamples.get("metricTimestamp"));
+        Assert.assertEquals(Arrays.asList(1f, 3f), getValues(MetricBucketUtils.unpackBucket(bucket, null, null)));
+    }
+
+    @Test
+    public void testLatestSamplesStopAtOlderBuckets() {
+        List<DBObject> buckets = new ArrayList<>();
+
+        // Latest bucket end first, two streams with buckets of the same hours
+        buckets.add(createBucket("A", TS, 1f, 2f));
+        buckets.add(createBucket("B", TS + 30000, 3f));
+        buckets.add(createBucket("A", TS - Constants.PERIOD_HOUR, 4f, 5f));
+        buckets.add(createBucket("B", TS - Constants.PERIOD_HOUR + 30000, 6f));
+
+        CountingIterator latestThree = new CountingIterator(buckets.iterator());
+        List<DBObject> samples = MetricBucketUtils.getLatestSamples(latestThree, null, null, 3);
+
+        Assert.assertEquals(Arrays.asList(2f, 3f, 1f), getValues(samples));
+        Assert.assertEquals(3, latestThree.count);
+
+        samples = MetricBucketUtils.getLatestSamples(buckets.iterator(), null, TS - 1, 10);
+        Assert.assertEquals(Arrays.asList(5f, 6f, 4f), getValues(samples));
+        Assert.assertTrue(MetricBucketUtils.getLatestSamples(buckets.iterator(), null, null, 0).isEmpty());
+    }
+
+    @Test
+    public void testSampleSpansCoverEachStreamInTheRange() {
+        List<DBObject> buckets = new ArrayList<>();
+
+        buckets.add(createBucket("A", TS, 1f, 2f, 3f));
+        buckets.add(createBucket("A", TS + Constants.PERIOD_HOUR, 4f));
+        buckets.add(createBucket("B", TS + 30000, 5f));
+
+        Map<String, long[]> spans = MetricBucketUtils.getSampleSpans(buckets.iterator(), TS + 60000, null);
+        String streamId = MetricBucketUtils.getStreamId(createSample("A", TS, 1f));
+
+        Assert.assertEquals(1, spans.size());
+        Assert.assertEquals(streamId, MetricBucketUtils.getStreamId(buckets.get(0)));
+        Assert.assertArrayEquals(new long[]{TS + 60000, TS + Constants.PERIOD_HOUR}, spans.get(streamId));
+    }
+
+    @Test
+    public void testBackfillReplacesOnlyTheSamplesItCovered() {
+        long hour = Constants.PERIOD_HOUR;
+        long minute = Constants.PERIOD_MINUTE;
+        // Live hourly samples, a backfill from TS doesn't emit the first hour of the stream nor the last partial one
+        DBObject liveHours = createBucket(hour, new long[]{TS + 10 * minute, TS + 70 * minute, TS + 130 * minute,
+                TS + 190 * minute, TS + 420 * minute}, 1f, 2f, 3f, 4f, 5f);
+        DBObject shadowHours = createBucket(hour, new long[]{TS + 125 * minute, TS + 185 * minute}, 20f, 30f);
+        // A live daily sample, the backfill emits none for a day it didn't cover whole
+        DBObject liveDays = createBucket(Constants.PERIOD_DAY, new long[]{TS + 300 * minute}, 7f);
+
+        Map<String, long[]> spans = MetricBucketUtils.getSampleSpans(Arrays.asList(shadowHours).iterator(), TS,
+                                                                     TS + 360 * minute - 1);
+        long[] span = spans.get(MetricBucketUtils.getStreamId(liveHours));
+        List<DBObject> samples = MetricBucketUtils.replaceSamples(
+                liveHours, MetricBucketUtils.unpackBucket(shadowHours, null, null), span[0], span[1]);
+
+        Assert.assertEquals(liveHours.get("_id"), shadowHours.get("_id"));
+        Assert.assertEquals(Arrays.asList(1f, 2f, 20f, 30f, 4f, 5f), getValues(samples));
+        Assert.assertFalse(spans.containsKey(MetricBucketUtils.getStreamId(liveDays)));
+    }
+
+    private BasicDBObject createSample(String metricName, long ts, float value) {
+        return new BasicDBObject("metricName", metricName)
+                .append("metricType", "ABSOLUTE")
+                .append("metricTimestamp", ts)
+                .append("metricValue", value)
+                .append("metricGranularity", Constants.PERIOD_MINUTE)
+                .append("metricCriteria", new BasicDBObject("OBJECT_ID", "item"));
+    }
+
+    /**
+     * Creates the bucket of samples of the given granularity and timestamps, as written by upserting them.
+     */
+    private DBObject createBucket(long granularity, long[] timestamps, float... values) {
+        List<BasicDBObject> samples = new ArrayList<>();
+
+        for (int i = 0; i < values.length; i++) {
+            samples.add(createSample("TEST", timestamps[i], values[i]).append("metricGranularity", granularity));
+        }
+
+        return MetricBucketUtils.createBucket(samples);
+    }
+
+    /**
+     * Creates the bucket of minute samples from the given time on, as written by upserting them.
+     */
+    private DBObject createBucket(String metricName, long firstTs, float... values) {
+        List<BasicDBObject> samples = new ArrayList<>();
+
+        for (int i = 0; i < values.length; i++) {
+            samples.add(createSample(metricName, firstTs + i * 60000, values[i]));
+        }
+
+        return MetricBucketUtils.createBucket(samples);
+    }
+
+    private List<Object> getValues(List<DBObject> samples) {
+        List<Object> values = new ArrayList<>();
+
+        for (DBObject sample : samples) {
+            values.add(sample.get("metricValue"));
+        }
+        return values;
+    }
+
+    private static class CountingIterator implements Iterator<DBObject> {
+
+        private final Iterator<DBObject> iterator;
+        private int count;
+
+        private CountingIterator(Iterator<DBObject> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public DBObject next() {
+            count++;
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Class used to test that {@link TokenBucket} works as expected.
+ */
+public class TokenBucketTest {
+
+    private static final long NOW = 1350000000000L;
+
+    @Test
+    public void testPermitsWaitForTokensInTurn() {
+        // One token per second, two at once
+        TokenBucket bucket = new TokenBucket(60, 2, NOW);
+
+        Assert.assertEquals(0, bucket.reserve(NOW));
+        Assert.assertEquals(0, bucket.reserve(NOW));
+        Assert.assertEquals(1000, bucket.reserve(NOW));
+        Assert.assertEquals(2000, bucket.reserve(NOW));
+        Assert.assertEquals(1000, bucket.reserve(NOW + 2000));
+        Assert.assertEquals(-1.0, bucket.getTokens(NOW + 2000), 0.001);
+    }
+
+    @Test
+    public void testTokensStopAtCapacity() {
+        TokenBucket bucket = new TokenBucket(60, 2, NOW);
+
+        Assert.assertEquals(2.0, bucket.getTokens(NOW + 60000), 0.001);
+        bucket.drain(NOW + 60000);
+        Assert.assertEquals(0.0, bucket.getTokens(NOW + 60000), 0.001);
+        Assert.assertEquals(1000, bucket.reserve(NOW + 60000));
+    }
+
+    @Test
+    public void testNoRateIsUnlimited() {
+        TokenBucket bucket = new TokenBucket(0, 1, NOW);
+
+        Assert.assertTrue(bucket.isUnlimited());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(0, bucket.reserve(NOW));
+        }
+    }
+
+}
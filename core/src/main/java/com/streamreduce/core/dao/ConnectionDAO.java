@@ -17,16 +17,28 @@
 package com.streamreduce.core.dao;
 
 import com.google.code.morphia.Datastore;
+import com.google.code.morphia.Key;
+import com.google.code.morphia.annotations.PostPersist;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
 import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 import com.streamreduce.core.model.Account;
 import com.streamreduce.core.model.Connection;
 import com.streamreduce.core.model.SobaObject.Visibility;
 import com.streamreduce.core.model.User;
 
+import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Repository;
@@ -35,11 +47,109 @@ import org.springframework.util.Assert;
 @Repository("connectionDAO")
 public class ConnectionDAO extends SobaObjectDAO<Connection> {
 
+    // only changed by the conditional updates of the polling job, see claimPolling
+    private static final List<String> POLLING_LEASE_FIELDS = Arrays.asList("pollingLeaseOwner", "pollingLeaseExpiry");
+
     @Autowired
     protected ConnectionDAO(@Qualifier(value = "businessDBDatastore") Datastore datastore) {
         super(datastore);
     }
 
+    /**
+     * Saves a connection without writing its polling lease, see {@link #save(Connection, WriteConcern)}.
+     *
+     * @param connection the connection
+     * @return the key of the connection
+     */
+    @Override
+    public Key<Connection> save(Connection connection) {
+        return save(connection, null);
+    }
+
+    /**
+     * Saves a connection without writing its polling lease, which only {@link #claimPolling},
+     * {@link #renewPollingLease} and the updates of {@link #createPollingLeaseQuery} change: a copy read before another
+     * node claimed the connection would otherwise hand the lease back when saved.  A stored connection is updated
+     * field by field, all but the lease fields, and a new one is inserted without a lease.
+     * <p/>
+     * The copy a node polls, see {@link Connection#getPollingNodeId()}, is only saved while that node holds the lease,
+     * so a poll that lost its lease to another node doesn't overwrite the connection.
+     *
+     * @param connection the connection
+     * @param wc         the write concern, or null for the default one
+     * @return the key of the connection
+     * @throws IllegalStateException if the node polling the connection lost its lease
+     */
+    @Override
+    public Key<Connection> save(Connection connection, WriteConcern wc) {
+        String pollingNodeId = connection.getPollingNodeId();
+
+        if (connection.getId() != null) {
+            Mapper mapper = ds.getMapper();
+            MappedClass mappedClass = mapper.getMappedClass(entityClazz);
+            DBObject document = mapper.toDBObject(connection); // runs the @PrePersist methods
+            BasicDBObject query = new BasicDBObject(Mapper.ID_KEY, connection.getId());
+            BasicDBObject set = new BasicDBObject();
+            BasicDBObject unset = new BasicDBObject();
+
+            if (pollingNodeId != null) {
+                query.append("pollingLeaseOwner", pollingNodeId);
+            }
+            if (document.containsField(Mapper.CLASS_NAME_FIELDNAME)) {
+                set.put(Mapper.CLASS_NAME_FIELDNAME, document.get(Mapper.CLASS_NAME_FIELDNAME));
+            }
+            for (MappedField field : mappedClass.getPersistenceFields()) {
+                String name = field.getNameToStore();
+
+                if (name.equals(Mapper.ID_KEY) || POLLING_LEASE_FIELDS.contains(name)) {
+                    continue;
+                }
+                if (document.containsField(name)) {
+                    set.put(name, document.get(name));
+                } else {
+                    unset.put(name, 1);
+                }
+            }
+
+            BasicDBObject update = new BasicDBObject("$set", set);
+            if (!unset.isEmpty()) {
+                update.append("$unset", unset);
+            }
+            WriteResult result = wc != null ?
+                    getCollection().update(query, update, false, false, wc) :
+                    getCollection().update(query, update);
+
+            if (result.getN() > 0) {
+                mappedClass.callLifecycleMethods(PostPersist.class, connection, document, mapper);
+                return new Key<>(entityClazz, connection.getId());
+            }
+            if (pollingNodeId != null) {
+                throw new IllegalStateException("Connection " + connection.getId() + " not saved, " + pollingNodeId +
+                                                        " lost its polling lease");
+            }
+
+            // removed meanwhile, written back as mapped above rather than mapped (and its @PrePersist methods run)
+            // again by super.save
+            for (String name : POLLING_LEASE_FIELDS) {
+                document.removeField(name);
+            }
+            connection.setPollingLeaseOwner(null);
+            connection.setPollingLeaseExpiry(0);
+            if (wc != null) {
+                getCollection().save(document, wc);
+            } else {
+                getCollection().save(document);
+            }
+            mappedClass.callLifecycleMethods(PostPersist.class, connection, document, mapper);
+            return new Key<>(entityClazz, connection.getId());
+        }
+
+        // a new connection
+        connection.setPollingLeaseOwner(null);
+        connection.setPollingLeaseExpiry(0);
+        return wc != null ? super.save(connection, wc) : super.save(connection);
+    }
+
     public Connection getByAPIKey(String apiKey, String type) {
         Query<Connection> q = ds.createQuery(entityClazz);
         q.field("authenticationToken.token").equal(apiKey);
@@ -109,4 +219,57 @@ public class ConnectionDAO extends SobaObjectDAO<Connection> {
         return q.asList();
     }
 
+    /**
+     * Claims the polling of a connection for a node, unless another node holds an unexpired lease on it.  The claim is
+     * atomic, so a single node gets to poll the connection.  The connection is marked as polled from now on.
+     *
+     * @param connectionId the connection id
+     * @param owner the id of the node claiming the connection
+     * @param now the current time
+     * @param leaseTime the time the lease lasts unless renewed (ms)
+     * @return true if the node got the lease
+     */
+    public boolean claimPolling(ObjectId connectionId, String owner, long now, long leaseTime) {
+        Query<Connection> q = ds.createQuery(entityClazz);
+        q.field(Mapper.ID_KEY).equal(connectionId);
+        q.or(q.criteria("pollingLeaseExpiry").doesNotExist(),
+             q.criteria("pollingLeaseExpiry").lessThan(now));
+        UpdateOperations<Connection> ops = ds.createUpdateOperations(entityClazz)
+                .set("pollingLeaseOwner", owner)
+                .set("pollingLeaseExpiry", now + leaseTime)
+                .set("pollingInProgress", true)
+                .set("pollingLastExecutionTime", now);
+        return ds.findAndModify(q, ops) != null;
+    }
+
+    /**
+     * Extends the polling lease of a node on a connection, if the node still holds it.
+     *
+     * @param connectionId the connection id
+     * @param owner the id of the node holding the lease
+     * @param now the current time
+     * @param leaseTime the time the lease lasts from now unless renewed again (ms)
+     * @return true if the lease was extended, false if it expired and was claimed by another node
+     */
+    public boolean renewPollingLease(ObjectId connectionId, String owner, long now, long leaseTime) {
+        Query<Connection> q = createPollingLeaseQuery(connectionId, owner);
+        UpdateOperations<Connection> ops = ds.createUpdateOperations(entityClazz)
+                .set("pollingLeaseExpiry", now + leaseTime);
+        return ds.update(q, ops).getUpdatedCount() > 0;
+    }
+
+    /**
+     * Returns the query matching a connection as long as a node holds its polling lease.
+     *
+     * @param connectionId the connection id
+     * @param owner the id of the node holding the lease
+     * @return the query
+     */
+    public Query<Connection> createPollingLeaseQuery(ObjectId connectionId, String owner) {
+        Query<Connection> q = ds.createQuery(entityClazz);
+        q.field(Mapper.ID_KEY).equal(connectionId);
+        q.field("pollingLeaseOwner").equal(owner);
+        return q;
+    }
+
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.dao;
+
+import com.google.code.morphia.Datastore;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.streamreduce.Constants;
+import com.streamreduce.util.MetricBucketUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ensures the indexes of the per-account collections of the message database, which are created lazily by name and
+ * so never get the indexes Morphia builds for mapped collections.
+ * <p/>
+ * The indexes are declared per collection family, the collections sharing a name prefix: the metric collections
+ * ({@link Constants#METRIC_COLLECTION_PREFIX}) are read by stream and latest bucket first, see
+ * {@link MetricBucketUtils#getBucketIndex()}, and the inboxes ({@link Constants#INBOX_COLLECTION_PREFIX}) by
+ * visibility or hashtags, latest message first, and by connection when a connection's messages are removed.
+ * <p/>
+ * The DAOs call {@link #ensureIndexes(DBCollection)} whenever they use a collection.  Only the first call for a
+ * collection builds its missing indexes, in the background so the collection stays usable meanwhile; the collections
+ * already indexed are cached.  The report of {@link #getIndexReport()} lists the declared indexes missing from the
+ * existing collections and the indexes that are not declared, which nothing of ours queries by.  It lists the
+ * indexes of every per-account collection, so it is logged at startup only if
+ * <code>nodeable.index.report.startup</code> is true, and then by the task executor rather than while the context
+ * starts.  The JMX operation reports on demand.
+ */
+@Component("indexManager")
+@ManagedResource(objectName="com.streamreduce.core.dao:type=IndexManager,name=index-manager-mgmt",
+                 currencyTimeLimit = 15)
+public class IndexManager implements InitializingBean {
+
+    private static final Map<String, List<DBObject>> DECLARED_INDEXES = new LinkedHashMap<>();
+
+    static {
+        DECLARED_INDEXES.put(Constants.METRIC_COLLECTION_PREFIX, Arrays.asList(
+                MetricBucketUtils.getBucketIndex()));
+        DECLARED_INDEXES.put(Constants.INBOX_COLLECTION_PREFIX, Arrays.<DBObject>asList(
+                new BasicDBObject("visibility", 1).append("modified", -1),
+                new BasicDBObject("hashtags", 1).append("modified", -1),
+                new BasicDBObject("connectionId", 1)));
+    }
+
+    private transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Set<String> indexedCollections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Value("${nodeable.index.report.startup}")
+    private boolean reportOnStartup;
+
+    @Autowired
+    @Qualifier(value = "messageDBDatastore")
+    private Datastore messageDatastore;
+
+    @Autowired
+    @Qualifier(value = "taskExecutor")
+    private TaskExecutor taskExecutor;
+
+    /**
+     * Logs the index report in the background if <code>nodeable.index.report.startup</code> is true, see
+     * {@link #getIndexReport()}.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        if (!reportOnStartup) {
+            return;
+        }
+        taskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                logIndexReport();
+            }
+        });
+    }
+
+    private void logIndexReport() {
+        try {
+            List<String> report = createIndexReport();
+
+            if (report.isEmpty()) {
+                logger.info("[INDEX MANAGER] The per-account collections have the declared indexes");
+            }
+            for (String line : report) {
+                logger.warn("[INDEX MANAGER] " + line);
+            }
+        } catch (Exception e) {
+            logger.error("[INDEX MANAGER] Unable to report the indexes: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the indexes declared for a collection, those of its family.
+     *
+     * @param collectionName the collection name
+     * @return the index keys, empty for collections of no family
+     */
+    public List<DBObject> getDeclaredIndexes(String collectionName) {
+        for (Map.Entry<String, List<DBObject>> family : DECLARED_INDEXES.entrySet()) {
+            if (collectionName.startsWith(family.getKey())) {
+                return family.getValue();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Ensures the declared indexes of a collection of the message database, see {@link #ensureIndexes(DBCollection)}.
+     *
+     * @param collectionName the collection name
+     */
+    public void ensureIndexes(String collectionName) {
+        if (!indexedCollections.contains(collectionName)) {
+            ensureIndexes(messageDatastore.getDB().getCollection(collectionName));
+        }
+    }
+
+    /**
+     * Ensures the declared indexes of a collection, building the missing ones in the background.  Only the first call
+     * for a collection reaches the database.
+     *
+     * @param collection the collection
+     */
+    public void ensureIndexes(DBCollection collection) {
+        String collectionName = collection.getName();
+
+        if (indexedCollections.contains(collectionName)) {
+            return;
+        }
+        for (DBObject keys : getDeclaredIndexes(collectionName)) {
+            collection.ensureIndex(keys, new BasicDBObject("background", true));
+        }
+        indexedCollections.add(collectionName);
+    }
+
+    /**
+     * Forgets that a collection was indexed, to be called when it is dropped so a collection later created with the
+     * same name gets its indexes again.  The index cache of the driver is reset as well.
+     *
+     * @param collectionName the collection name
+     */
+    public void forget(String collectionName) {
+        indexedCollections.remove(collectionName);
+        messageDatastore.getDB().getCollection(collectionName).resetIndexCache();
+    }
+
+    /**
+     * Ensures the declared indexes of every existing per-account collection.
+     *
+     * @return the number of collections
+     */
+    @ManagedOperation(description = "Ensures the declared indexes of every per-account collection")
+    public int ensureAllIndexes() {
+        List<String> collectionNames = getManagedCollectionNames();
+
+        for (String collectionName : collectionNames) {
+            forget(collectionName);
+            ensureIndexes(collectionName);
+        }
+        logger.info("[INDEX MANAGER] Ensured the indexes of " + collectionNames.size() + " collections");
+        return collectionNames.size();
+    }
+
+    /**
+     * Returns the number of collections indexed since startup.
+     *
+     * @return the number of collections
+     */
+    @ManagedAttribute(description = "The number of collections indexed since startup")
+    public int getIndexedCollectionCount() {
+        return indexedCollections.size();
+    }
+
+    /**
+     * Returns the report of the indexes of the existing per-account collections, one line per collection and index
+     * missing or not declared.  Mongo keeps no usage statistics of indexes, so an undeclared index is reported as
+     * a candidate for removal rather than as unused.
+     *
+     * @return the report
+     */
+    @ManagedOperation(description = "Reports the declared indexes missing from the per-account collections and " +
+            "the indexes that are not declared")
+    public String getIndexReport() {
+        List<String> report = createIndexReport();
+        StringBuilder text = new StringBuilder();
+
+        for (String line : report) {
+            text.append(line).append('\n');
+        }
+        return report.isEmpty() ? "The per-account collections have the declared indexes" : text.toString();
+    }
+
+    List<String> createIndexReport() {
+        DB db = messageDatastore.getDB();
+        List<String> report = new ArrayList<>();
+
+        for (String collectionName : getManagedCollectionNames()) {
+            Set<String> declared = new LinkedHashSet<>();
+            Set<String> existing = new LinkedHashSet<>();
+
+            for (DBObject keys : getDeclaredIndexes(collectionName)) {
+                declared.add(describe(keys));
+            }
+            for (DBObject index : db.getCollection(collectionName).getIndexInfo()) {
+                existing.add(describe((DBObject) index.get("key")));
+            }
+            existing.remove(describe(new BasicDBObject("_id", 1)));
+
+            for (String keys : declared) {
+                if (!existing.contains(keys)) {
+                    report.add(collectionName + ": missing index " + keys);
+                }
+            }
+            for (String keys : existing) {
+                if (!declared.contains(keys)) {
+                    report.add(collectionName + ": undeclared index " + keys);
+                }
+            }
+        }
+        return report;
+    }
+
+    private List<String> getManagedCollectionNames() {
+        List<String> collectionNames = new ArrayList<>();
+
+        for (String collectionName : messageDatastore.getDB().getCollectionNames()) {
+            if (!getDeclaredIndexes(collectionName).isEmpty()) {
+                collectionNames.add(collectionName);
+            }
+        }
+        return collectionNames;
+    }
+
+    /**
+     * Describes index keys in their order, the directions read back from Mongo being doubles.
+     */
+    private static String describe(DBObject keys) {
+        StringBuilder description = new StringBuilder("{");
+
+        for (String field : keys.keySet()) {
+            Object direction = keys.get(field);
+
+            if (description.length() > 1) {
+                description.append(", ");
+            }
+            description.append(field).append(": ")
+                       .append(direction instanceof Number ? ((Number) direction).intValue() : direction);
+        }
+        return description.append('}').toString();
+    }
+
+}
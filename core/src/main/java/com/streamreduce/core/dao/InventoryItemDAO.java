@@ -17,6 +17,7 @@
 package com.streamreduce.core.dao;
 
 import com.google.code.morphia.Datastore;
+import com.google.code.morphia.mapping.Mapper;
 import com.google.code.morphia.query.Query;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -31,6 +32,7 @@ import com.streamreduce.core.model.SobaObject;
 import com.streamreduce.core.model.User;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -100,6 +102,63 @@ public class InventoryItemDAO extends SobaObjectDAO<InventoryItem> {
         return query.get();
     }
 
+    /**
+     * Returns all inventory items for the given connection, those marked as deleted included, in a single query.
+     *
+     * @param connection the connection whose inventory items we're interested in
+     * @return the list of inventory items or an empty list if there are none
+     * @throws IllegalArgumentException if connection is null
+     */
+    public List<InventoryItem> getAllInventoryItems(Connection connection) {
+        Preconditions.checkNotNull(connection, "connection cannot be null.");
+
+        Query<InventoryItem> query = createQuery();
+
+        query.field("connection").equal(connection);
+
+        return query.asList();
+    }
+
+    /**
+     * Marks the given inventory items as deleted in a single update.  Like saving each of them would, see the
+     * <code>@PrePersist</code> methods of {@link com.streamreduce.core.model.ObjectWithId}, the update sets their
+     * modification time to now and increments their version, and the given items are changed to match.
+     *
+     * @param inventoryItems the inventory items
+     * @return the number of inventory items updated
+     * @throws IllegalArgumentException if inventoryItems is null
+     */
+    public int markDeleted(Collection<InventoryItem> inventoryItems) {
+        Preconditions.checkNotNull(inventoryItems, "inventoryItems cannot be null.");
+
+        if (inventoryItems.isEmpty()) {
+            return 0;
+        }
+
+        long modified = System.currentTimeMillis();
+        List<ObjectId> inventoryItemIds = new ArrayList<>(inventoryItems.size());
+
+        for (InventoryItem inventoryItem : inventoryItems) {
+            inventoryItemIds.add(inventoryItem.getId());
+        }
+
+        Query<InventoryItem> query = createQuery();
+
+        query.field(Mapper.ID_KEY).in(inventoryItemIds);
+
+        int updated = update(query, createUpdateOperations().set("deleted", true)
+                                                            .set("modified", modified)
+                                                            .inc("version")).getUpdatedCount();
+
+        for (InventoryItem inventoryItem : inventoryItems) {
+            inventoryItem.setDeleted(true);
+            inventoryItem.setModified(modified);
+            inventoryItem.setVersion(inventoryItem.getVersion() + 1);
+        }
+
+        return updated;
+    }
+
     /**
      * Returns the inventory items for the given connection id.
      *
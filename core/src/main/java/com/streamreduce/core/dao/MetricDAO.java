@@ -23,12 +23,16 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
+import com.streamreduce.Constants;
 import com.streamreduce.core.model.Metric;
+import com.streamreduce.util.MetricBucketUtils;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Repository;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -37,6 +41,9 @@ public class MetricDAO extends ValidatingDAO<Metric> {
 
     private Datastore messageDatastore;
 
+    @Autowired
+    private IndexManager indexManager;
+
     @Autowired
     protected MetricDAO(@Qualifier(value = "messageDBDatastore") Datastore datastore) {
         super(datastore);
@@ -44,7 +51,8 @@ public class MetricDAO extends ValidatingDAO<Metric> {
     }
 
     /**
-     * Returns a list of metrics.
+     * Returns a list of metrics, latest first.  The metrics are unpacked from their time buckets, see
+     * {@link MetricBucketUtils}, along with those written one document per metric before buckets.
      *
      * @param accountId the account the metrics should be queried from
      * @param metricName the metric name
@@ -59,12 +67,11 @@ public class MetricDAO extends ValidatingDAO<Metric> {
      */
     public List<DBObject> getMetrics(String accountId, String metricName, Map<String, List<String>> criteria,
                                      Long granularity, Long startTime, Long endTime, int pageNum, int pageSize) {
-        DB db = messageDatastore.getDB();
-        DBCollection collection = db.getCollection("Metric_" + accountId);
+        DBCollection collection = getCollection(accountId);
         BasicDBObject query = new BasicDBObject();
 
         query.put("metricName", metricName);
-        query.put("granularity", granularity);
+        query.put("metricGranularity", granularity);
 
         for (Map.Entry<String, List<String>> criteriaEntry : criteria.entrySet()) {
             String criteriaName = criteriaEntry.getKey();
@@ -87,45 +94,79 @@ public class MetricDAO extends ValidatingDAO<Metric> {
             }
         }
 
-        if (startTime != null || endTime != null) {
-            BasicDBObject timestampQuery = new BasicDBObject();
+        // The latest metrics up to the end of the page are read, those of the previous pages are skipped
+        int skip = (pageNum - 1) * pageSize;
+        BasicDBObject bucketQuery = new BasicDBObject(query);
 
-            if (startTime != null) {
-                timestampQuery.put("$gte", startTime);
-            }
+        MetricBucketUtils.addBucketRange(bucketQuery, startTime, endTime);
 
-            if (endTime != null) {
-                timestampQuery.put("$lte", endTime);
-            }
+        List<DBObject> metrics = MetricBucketUtils.getLatestSamples(
+                collection.find(bucketQuery).sort(new BasicDBObject(MetricBucketUtils.BUCKET_END, -1)),
+                startTime, endTime, skip + pageSize);
+
+        // Metrics written before buckets
+        BasicDBObject timestampQuery = new BasicDBObject();
 
-            query.put("metricTimestamp", timestampQuery);
+        if (startTime != null) {
+            timestampQuery.put("$gte", startTime);
         }
+        if (endTime != null) {
+            timestampQuery.put("$lte", endTime);
+        }
+        if (timestampQuery.isEmpty()) {
+            timestampQuery.put("$exists", true);
+        }
+        query.put(MetricBucketUtils.METRIC_TIMESTAMP, timestampQuery);
+
+        metrics.addAll(collection.find(query)
+                                 .sort(new BasicDBObject(MetricBucketUtils.METRIC_TIMESTAMP, -1))
+                                 .limit(skip + pageSize)
+                                 .toArray());
+        MetricBucketUtils.sortLatestFirst(metrics);
 
-        return collection.find(query)
-                         .sort(new BasicDBObject("metricTimestamp", -1))
-                         .skip((pageNum - 1) * pageSize)
-                         .limit(pageSize)
-                         .toArray();
+        return new ArrayList<>(metrics.subList(Math.min(skip, metrics.size()),
+                                               Math.min(skip + pageSize, metrics.size())));
     }
 
+    /**
+     * Pushes the metric into its time bucket, see {@link MetricBucketUtils}.  The key returned is that of the bucket,
+     * metrics have no id of their own.
+     *
+     * @param entity the metric
+     * @return the key of the bucket
+     */
     @Override
     public Key<Metric> save(Metric entity) {
-        DBCollection collection = getCollection(entity.getAccountId());
-        DBObject dbObject = entity.toDBObject();
-        collection.save(dbObject);
-        entity.setId((ObjectId) dbObject.get("_id"));
-        return new Key<>(Metric.class, entity.getId());
+        return save(entity, getCollection(entity.getAccountId()).getWriteConcern());
     }
 
+    /**
+     * Pushes the metric into its time bucket, see {@link #save(Metric)}.
+     *
+     * @param entity the metric
+     * @param wc the write concern to upsert with
+     * @return the key of the bucket
+     */
     @Override
-        public Key<Metric> save(Metric entity, WriteConcern wc) {
+    public Key<Metric> save(Metric entity, WriteConcern wc) {
         DBCollection collection = getCollection(entity.getAccountId());
-        DBObject dbObject = entity.toDBObject();
-        collection.save(dbObject, wc);
-        entity.setId((ObjectId) dbObject.get("_id"));
-        return new Key<>(Metric.class, entity.getId());
+        String bucketId = null;
+
+        for (Map.Entry<String, DBObject> bucketUpdate :
+                MetricBucketUtils.createBucketUpdates(Collections.singletonList(entity.toDBObject())).entrySet()) {
+            bucketId = bucketUpdate.getKey();
+            collection.update(new BasicDBObject("_id", bucketId), bucketUpdate.getValue(), true, false, wc);
+        }
+        return new Key<>(Metric.class, bucketId);
     }
 
+    /**
+     * Returns a metric written one document per metric, before buckets.
+     *
+     * @param id the metric document id
+     * @param accountId the metric account
+     * @return the metric
+     */
     public Metric get(ObjectId id, String accountId) {
         DBCollection collection = getCollection(accountId);
         BasicDBObject result = (BasicDBObject) collection.findOne(new BasicDBObject("_id", id));
@@ -134,7 +175,10 @@ public class MetricDAO extends ValidatingDAO<Metric> {
 
     private DBCollection getCollection(String accountId) {
         DB db = getDatastore().getDB();
-        return db.getCollection("Metric_" + accountId);
+        DBCollection collection = db.getCollection(Constants.METRIC_COLLECTION_PREFIX + accountId);
+
+        indexManager.ensureIndexes(collection);
+        return collection;
     }
 
 }
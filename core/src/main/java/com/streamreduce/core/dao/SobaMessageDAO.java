@@ -45,6 +45,9 @@ public class SobaMessageDAO extends ValidatingDAO<SobaMessage> {
 
     protected transient Logger logger = LoggerFactory.getLogger(getClass());
 
+    @Autowired
+    private IndexManager indexManager;
+
     @Autowired
     protected SobaMessageDAO(@Qualifier(value = "messageDBDatastore") AdvancedDatastore datastore) {
         super(datastore);
@@ -55,7 +58,7 @@ public class SobaMessageDAO extends ValidatingDAO<SobaMessage> {
      */
     public List<SobaMessage> getMessagesFromInbox(User user, Long after, Long before, int limit, boolean ascending, String search, List<String> hashtags, String sender, boolean excludeNodebellies) {
 
-        Query<SobaMessage> query = ((AdvancedDatastore) getDatastore()).find(MessageUtils.getInboxPath(user), entityClazz);
+        Query<SobaMessage> query = ((AdvancedDatastore) getDatastore()).find(getInbox(user.getAccount()), entityClazz);
         query.and(
                 query.or(
                         query.and(
@@ -135,7 +138,7 @@ public class SobaMessageDAO extends ValidatingDAO<SobaMessage> {
 
     public void saveToInbox(Account account, SobaMessage message) {
         logger.debug("[SOBA MESSAGE DAO] saving new message: " + message.getTransformedMessage());
-        ((AdvancedDatastore) getDatastore()).save(MessageUtils.getMessageInboxPath(account), message);
+        ((AdvancedDatastore) getDatastore()).save(getInbox(account), message);
     }
 
     public void saveToInboxes(List<Account> accounts, SobaMessage message) {
@@ -168,15 +171,26 @@ public class SobaMessageDAO extends ValidatingDAO<SobaMessage> {
 
     public void removeInbox(Account account) {
         getDatastore().delete(MessageUtils.getMessageInboxPath(account));
+        indexManager.forget(MessageUtils.getMessageInboxPath(account));
     }
 
     public void removeMessagesFromConnection(Account account, ObjectId connectionId) {
         // What is the syntax to do this with .delete()?????
-        Query<SobaMessage> query = ((AdvancedDatastore) getDatastore()).find(MessageUtils.getMessageInboxPath(account), entityClazz);
+        Query<SobaMessage> query = ((AdvancedDatastore) getDatastore()).find(getInbox(account), entityClazz);
         query.criteria("connectionId").equal(connectionId);
         List<SobaMessage> sobaMessages = query.asList();
         for (SobaMessage sobaMessage : sobaMessages) {
             deleteFromInbox(account, sobaMessage.getId());
         }
     }
+
+    /**
+     * Returns the inbox collection of an account, its indexes ensured.
+     */
+    private String getInbox(Account account) {
+        String collectionName = MessageUtils.getMessageInboxPath(account);
+
+        indexManager.ensureIndexes(collectionName);
+        return collectionName;
+    }
 }
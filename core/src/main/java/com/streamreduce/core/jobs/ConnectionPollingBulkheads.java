@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.jobs;
+
+import com.streamreduce.util.TokenBucket;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-provider thread pools the connections are polled in, see {@link ConnectionPollingJob}.
+ * <p/>
+ * Each provider gets a pool of its own, so a provider slow to answer or refusing requests only holds up the polling
+ * of its own connections.  The polls of a provider are also rate limited by a {@link TokenBucket}, which is drained
+ * when the provider says its rate limit is exceeded.  The pools are configured by
+ * <code>connection.polling.bulkheads</code>, a comma separated list of <code>providerId:threads:polls per
+ * minute</code>, 0 polls per minute for no rate limit.  Its <code>default</code> entry applies to the providers not
+ * listed.
+ * <p/>
+ * The queue depth and the time the polls wait, queued or rate limited, are reported per provider as the
+ * <code>connection-polling-queue-depth</code> gauges and <code>connection-polling-queue-wait</code> timers.
+ */
+@Component
+@ManagedResource(objectName="com.streamreduce.core.jobs:type=ConnectionPollingBulkheads,name=polling-bulkheads-mgmt",
+                 currencyTimeLimit = 15)
+public class ConnectionPollingBulkheads implements InitializingBean, DisposableBean {
+
+    private static final String DEFAULT_PROVIDER_ID = "default";
+
+    private transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    // the pools by provider id, created on first use for the providers not configured
+    private final Map<String, Bulkhead> bulkheads = new TreeMap<>();
+
+    @Value("${connection.polling.bulkheads}")
+    private String bulkheadConfiguration;
+
+    private int defaultThreads = 10;
+    private double defaultPermitsPerMinute;
+
+    /**
+     * Creates the pools configured.
+     */
+    @Override
+    public synchronized void afterPropertiesSet() {
+        for (String entry : bulkheadConfiguration.split(",")) {
+            String[] fields = entry.trim().split(":");
+
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("Invalid connection.polling.bulkheads entry, expected " +
+                                                           "providerId:threads:polls per minute: " + entry);
+            }
+
+            String providerId = fields[0];
+            int threads = Integer.parseInt(fields[1]);
+            double permitsPerMinute = Double.parseDouble(fields[2]);
+
+            if (providerId.equals(DEFAULT_PROVIDER_ID)) {
+                defaultThreads = threads;
+                defaultPermitsPerMinute = permitsPerMinute;
+            } else {
+                bulkheads.put(providerId, new Bulkhead(providerId, threads, permitsPerMinute));
+            }
+        }
+    }
+
+    /**
+     * Shuts the pools down, interrupting the polls in progress.
+     */
+    @Override
+    public synchronized void destroy() {
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs a poll in the pool of its provider, once it gets a permit from the provider's rate limiter.
+     *
+     * @param providerId the provider id of the connection polled
+     * @param poll       the poll
+     */
+    public void execute(String providerId, final Runnable poll) {
+        final Bulkhead bulkhead = getBulkhead(providerId);
+        final long queueTime = System.currentTimeMillis();
+
+        bulkhead.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long wait = bulkhead.rateLimiter.reserve(System.currentTimeMillis());
+
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        // shutting down, the poll still runs to release its connection
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                bulkhead.waitTimer.update(System.currentTimeMillis() - queueTime, TimeUnit.MILLISECONDS);
+                poll.run();
+            }
+        });
+    }
+
+    /**
+     * Returns whether the pool of a provider can take another poll without it waiting in the queue for more than
+     * one poll per thread.
+     *
+     * @param providerId the provider id
+     * @return true if the pool has the capacity
+     */
+    public boolean hasCapacity(String providerId) {
+        Bulkhead bulkhead = getBulkhead(providerId);
+
+        return bulkhead.executor.getQueue().size() < bulkhead.executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Slows down the polls of a provider which said its rate limit is exceeded, the next polls waiting for new
+     * permits.
+     *
+     * @param providerId the provider id
+     */
+    public void rateLimited(String providerId) {
+        getBulkhead(providerId).rateLimiter.drain(System.currentTimeMillis());
+    }
+
+    @ManagedAttribute(description = "Queued Poll Count")
+    public synchronized int getQueuedPollCount() {
+        int count = 0;
+
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            count += bulkhead.executor.getQueue().size();
+        }
+        return count;
+    }
+
+    @ManagedAttribute(description = "Active Poll Count")
+    public synchronized int getActivePollCount() {
+        int count = 0;
+
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            count += bulkhead.executor.getActiveCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the state of the pool of every provider, one line per provider.
+     *
+     * @return the report
+     */
+    @ManagedOperation(description = "Reports the threads, queue and rate limit of every provider pool")
+    public synchronized String getBulkheadReport() {
+        StringBuilder report = new StringBuilder();
+        long now = System.currentTimeMillis();
+
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            report.append(bulkhead.providerId).append(": ")
+                  .append(bulkhead.executor.getActiveCount()).append('/')
+                  .append(bulkhead.executor.getMaximumPoolSize()).append(" threads active, ")
+                  .append(bulkhead.executor.getQueue().size()).append(" queued, ")
+                  .append(bulkhead.executor.getCompletedTaskCount()).append(" completed");
+            if (!bulkhead.rateLimiter.isUnlimited()) {
+                report.append(", ").append(String.format("%.1f", bulkhead.rateLimiter.getTokens(now)))
+                      .append(" permits left");
+            }
+            report.append('\n');
+        }
+        return report.toString();
+    }
+
+    private synchronized Bulkhead getBulkhead(String providerId) {
+        Bulkhead bulkhead = bulkheads.get(providerId);
+
+        if (bulkhead == null) {
+            logger.info("[JOB] No polling pool configured for provider " + providerId + ", using the default one");
+            bulkhead = new Bulkhead(providerId, defaultThreads, defaultPermitsPerMinute);
+            bulkheads.put(providerId, bulkhead);
+        }
+        return bulkhead;
+    }
+
+    /**
+     * The pool and rate limiter of a provider.
+     */
+    private static class Bulkhead {
+
+        private final String providerId;
+        private final ThreadPoolExecutor executor;
+        private final TokenBucket rateLimiter;
+        private final Timer waitTimer;
+
+        private Bulkhead(String providerId, int threads, double permitsPerMinute) {
+            this.providerId = providerId;
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                   new LinkedBlockingQueue<Runnable>(),
+                                                   new CustomizableThreadFactory("connection-polling-" + providerId +
+                                                                                         "-thread-"));
+            this.executor.allowCoreThreadTimeOut(true);
+            // a burst of one poll per thread
+            this.rateLimiter = new TokenBucket(permitsPerMinute, threads, System.currentTimeMillis());
+            this.waitTimer = Metrics.newTimer(ConnectionPollingBulkheads.class, "connection-polling-queue-wait",
+                                              providerId, TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+            Metrics.newGauge(ConnectionPollingBulkheads.class, "connection-polling-queue-depth", providerId,
+                             new Gauge<Integer>() {
+                                 @Override
+                                 public Integer value() {
+                                     return executor.getQueue().size();
+                                 }
+                             });
+        }
+
+    }
+
+}
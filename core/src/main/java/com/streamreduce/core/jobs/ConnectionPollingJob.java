@@ -16,7 +16,6 @@
 
 package com.streamreduce.core.jobs;
 
-import com.google.code.morphia.mapping.Mapper;
 import com.google.code.morphia.query.Query;
 import com.google.code.morphia.query.UpdateOperations;
 import com.streamreduce.connections.CloudProvider;
@@ -31,8 +30,10 @@ import com.streamreduce.core.model.Connection;
 import com.streamreduce.core.service.ConnectionService;
 import com.streamreduce.core.service.EmailService;
 import com.streamreduce.core.service.exception.InvalidCredentialsException;
+import com.streamreduce.core.service.exception.RateLimitedException;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Timer;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -41,12 +42,15 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 @Component
@@ -77,12 +81,25 @@ public class ConnectionPollingJob {
     private long pollingJobBrokenSleepTime;
     @Value("${connection.polling.job.bootstrap.batch.size}")
     private long pollingJobBootstrapBatchSize;
+    @Value("${connection.polling.job.resync.interval}")
+    private long pollingJobResyncInterval;
+    @Value("${connection.polling.job.jitter}")
+    private double pollingJobJitter;
+    @Value("${connection.polling.job.lease.time}")
+    private long pollingJobLeaseTime;
     @Value("${nodeable.polling.enabled}")
     private boolean pollingEnabled;
 
+    private volatile long lastResyncTime;
+    // the id this node claims connections with, and the connections it is polling
+    private final String pollingNodeId = ManagementFactory.getRuntimeMXBean().getName() + "/" + new ObjectId();
+    private final Map<ObjectId, Connection> activePolls = new ConcurrentHashMap<>();
+    // the threads polling the active connections, interrupted and removed when their lease is lost
+    private final Map<ObjectId, Thread> pollingThreads = new HashMap<>();
+
 
     @Autowired
-    private ThreadPoolTaskExecutor executor;
+    private ConnectionPollingBulkheads bulkheads;
     @Autowired
     private ConnectionProviderFactory connectionProviderFactory;
     @Autowired
@@ -91,46 +108,154 @@ public class ConnectionPollingJob {
     private ConnectionDAO connectionDAO;
     @Autowired
     private EmailService emailService;
+    @Autowired
+    private ConnectionPollingSchedule pollingSchedule;
 
     /**
      * Refreshes the inventory cache for appropriate connection objects.
+     * <p/>
+     * The connections are taken from the {@link ConnectionPollingSchedule}, earliest due first, which is kept up to
+     * date with the changes the connection service reports.  All the connections are read again only once every
+     * <code>connection.polling.job.resync.interval</code>, to pick up the changes made by other means.
+     * <p/>
+     * Every node of the cluster runs the job over all the connections, so each connection due is claimed first, see
+     * {@link ConnectionDAO#claimPolling}: the node gets a lease on it for <code>connection.polling.job.lease.time</code>
+     * and renews it every run until the polling is done.  The connections claimed by other nodes are left to them, and
+     * those of a node gone down are claimed by another once their leases expire.
+     * <p/>
+     * The connections are polled in the pools of their providers, see {@link ConnectionPollingBulkheads}.  Those of a
+     * provider whose pool is backed up are not claimed, and those refused by a provider for exceeding its rate limit
+     * are polled again once it says to retry, without counting as failed.
      */
     @Scheduled(fixedRate = 30000)
     @ManagedOperation(description = "Refreshes the inventory cache for appropriate connection objects")
-    public void execute() {
+    public synchronized void execute() {
 
         if (!pollingEnabled) {
             return;
         }
 
         long now = System.currentTimeMillis();
-        List<Connection> connectionsNeedingPolling = new ArrayList<>();
-        List<Connection> allConnections = connectionService.getConnections(null);
-        for (Connection connection : allConnections) {
-            if (connectionProviderFactory.pushConnectionProviderFromId(connection.getProviderId()) != null  || connection.isDisabled()) {
-                continue;
-            }
-            long interval = getPollingIntervalForConnection(connection);
-            long elapsedTimeSinceLastRun = now - connection.getPollingLastExecutionTime();
-            boolean pollingNeeded = !connection.isPollingInProgress() && (connection.getPollingFailedCount() <= pollingJobMaxFailedCount) && (elapsedTimeSinceLastRun > interval);
-            boolean pollingTakingTooLong = connection.isPollingInProgress() && (elapsedTimeSinceLastRun > (5 * interval));
-            boolean pollingPastSleepingPeriod = !connection.isPollingInProgress() && (connection.getPollingFailedCount() > pollingJobMaxFailedCount) && (elapsedTimeSinceLastRun > pollingJobBrokenSleepTime);
-            if (pollingNeeded || pollingTakingTooLong || pollingPastSleepingPeriod) {
-                connectionsNeedingPolling.add(connection);
-                if (connectionsNeedingPolling.size() == pollingJobBootstrapBatchSize) {
-                    break;
+        if (now - lastResyncTime > pollingJobResyncInterval) {
+            resync(now);
+        } else {
+            for (ConnectionPollingSchedule.Change change : pollingSchedule.takeChanges()) {
+                if (change.getConnection() == null) {
+                    pollingSchedule.unschedule(change.getConnectionId());
+                } else {
+                    schedule(change.getConnection());
                 }
             }
         }
-        for (final Connection connection : connectionsNeedingPolling) {
-            logger.info("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] last polled at " + new Date(connection.getPollingLastExecutionTime()) + ", refreshing");
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    refresh(connection);
+
+        renewPollingLeases(now);
+
+        // connections claimed by other nodes are skipped until the batch is full or none is due
+        int claimedCount = 0;
+        List<ConnectionPollingSchedule.Entry> due;
+        while (claimedCount < pollingJobBootstrapBatchSize &&
+                !(due = pollingSchedule.takeDue(now, pollingJobBootstrapBatchSize - claimedCount)).isEmpty()) {
+            for (ConnectionPollingSchedule.Entry entry : due) {
+                // the schedule may be behind the connection, polled or changed since
+                final Connection connection = connectionDAO.get(entry.getConnectionId());
+                if (connection == null || activePolls.containsKey(connection.getId())) {
+                    continue;
+                }
+                Long dueTime = getDueTime(connection);
+                if (dueTime == null) {
+                    continue;
+                }
+                if (dueTime > now) {
+                    pollingSchedule.schedule(connection.getId(), connection.getType(), dueTime);
+                    continue;
+                }
+                if (!bulkheads.hasCapacity(connection.getProviderId())) {
+                    // the pool of the provider is backed up, the connection is left to the next run or another node
+                    pollingSchedule.schedule(connection.getId(), connection.getType(), now + 1);
+                    continue;
+                }
+                if (!connectionDAO.claimPolling(connection.getId(), pollingNodeId, now, pollingJobLeaseTime)) {
+                    // claimed by another node in the meantime, due again once its lease would have expired
+                    pollingSchedule.schedule(connection.getId(), connection.getType(), now + pollingJobLeaseTime);
+                    continue;
                 }
-            });
+                Metrics.newTimer(ConnectionPollingJob.class, "connection-polling-schedule-lag", connection.getType(),
+                                 TimeUnit.MILLISECONDS, TimeUnit.MINUTES).update(now - entry.getDueTime(),
+                                                                                 TimeUnit.MILLISECONDS);
+                activePolls.put(connection.getId(), connection);
+                claimedCount++;
+
+                logger.info("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] last polled at " + new Date(connection.getPollingLastExecutionTime()) + ", refreshing");
+                final long claimTime = now;
+                bulkheads.execute(connection.getProviderId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(connection, claimTime);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Reschedules every connection from its current state.
+     */
+    private void resync(long now) {
+        pollingSchedule.clear();
+        List<Connection> allConnections = connectionService.getConnections(null);
+        for (Connection connection : allConnections) {
+            schedule(connection);
+        }
+        lastResyncTime = now;
+        logger.info("[JOB] " + pollingSchedule.size() + " of " + allConnections.size() + " connections scheduled for polling");
+    }
+
+    private void schedule(Connection connection) {
+        Long dueTime = getDueTime(connection);
+        if (dueTime != null) {
+            pollingSchedule.schedule(connection.getId(), connection.getType(), dueTime);
+        } else {
+            pollingSchedule.unschedule(connection.getId());
+        }
+    }
+
+    /**
+     * Returns the time a connection is due for polling: its polling interval after it was last polled, five intervals
+     * if that polling is still in progress, the lease expiry if it is in progress on a node holding a lease, the
+     * interval doubled for every failure in a row up to the broken sleep
+     * time, and the broken sleep time once the failures exceed the maximum.  A jitter of up to
+     * <code>connection.polling.job.jitter</code> intervals, fixed for a given last polling, spreads out the
+     * connections created or polled together.
+     *
+     * @param connection the connection
+     * @return the due time, or null for connections that are not polled
+     */
+    private Long getDueTime(Connection connection) {
+        if (connectionProviderFactory.pushConnectionProviderFromId(connection.getProviderId()) != null  || connection.isDisabled()) {
+            return null;
+        }
+        long interval = getPollingIntervalForConnection(connection);
+        if (interval == Long.MAX_VALUE) {
+            return null;
+        }
+        if (connection.isPollingInProgress() && connection.getPollingLeaseOwner() != null) {
+            // polled by the node holding the lease, anyone's once the lease expires
+            return connection.getPollingLeaseExpiry();
+        }
+        long failedCount = connection.getPollingFailedCount();
+        long delay;
+        if (connection.isPollingInProgress()) {
+            delay = 5 * interval;
+        } else if (failedCount > pollingJobMaxFailedCount) {
+            delay = pollingJobBrokenSleepTime;
+        } else if (failedCount > 0) {
+            delay = Math.max(interval, Math.min(interval << Math.min(failedCount, 20), pollingJobBrokenSleepTime));
+        } else {
+            delay = interval;
         }
+        long lastExecutionTime = connection.getPollingLastExecutionTime();
+        double jitter = new Random(31L * connection.getId().hashCode() + lastExecutionTime).nextDouble();
+        return lastExecutionTime + delay + (long) (jitter * pollingJobJitter * interval);
     }
 
     private long getPollingIntervalForConnection(Connection connection) {
@@ -155,34 +280,118 @@ public class ConnectionPollingJob {
         return interval;
     }
 
-    private void refresh(Connection connection) {
-        long now = System.currentTimeMillis();
+    /**
+     * Polls a connection claimed by this node, see {@link ConnectionDAO#claimPolling}.  The polling is skipped if the
+     * lease was lost while the connection waited for a thread, and interrupted if it is lost meanwhile, see
+     * {@link #renewPollingLeases}.  The connection is only saved and the outcome only recorded while the node holds
+     * the lease, which it renews every run until the polling is done.
+     */
+    private void refresh(Connection connection, long now) {
+        Query<Connection> updateQuery = connectionDAO.createPollingLeaseQuery(connection.getId(), pollingNodeId);
+        long retryTime = 0;
+        synchronized (pollingThreads) {
+            pollingThreads.put(connection.getId(), Thread.currentThread());
+        }
         try {
+            if (!connectionDAO.renewPollingLease(connection.getId(), pollingNodeId, System.currentTimeMillis(),
+                                                 pollingJobLeaseTime)) {
+                logger.warn("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] polling lease lost to another node before the polling job started, skipped");
+                return;
+            }
             logger.info("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] polling job started");
-            Query<Connection> updateQuery = connectionDAO.createQuery().field(Mapper.ID_KEY).equal(connection.getId());
-            UpdateOperations<Connection> ops = connectionDAO.createUpdateOperations().set("pollingInProgress", true).set("pollingLastExecutionTime", now);
-            connectionDAO.update(updateQuery, ops);
-            // connection fields have to be updated because connection is saved again in the inventory refresh process
+            // connection fields have to be updated because connection is saved again in the inventory refresh process,
+            // only as long as this node holds the lease, see ConnectionDAO#save
             connection.setPollingInProgress(true);
             connection.setPollingLastExecutionTime(now);
+            connection.setPollingNodeId(pollingNodeId);
             connectionService.fireOneTimeHighPriorityJobForConnection(connection);
             logger.info("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] " + connection.getType() + " polling job finished (" + (System.currentTimeMillis() - now) + " ms)");
-            ops = connectionDAO.createUpdateOperations().set("pollingInProgress", false).unset("pollingFailedCount");
-            connectionDAO.update(updateQuery, ops);
+            UpdateOperations<Connection> ops = createReleaseOperations().unset("pollingFailedCount");
+            updateWithLease(connection, updateQuery, ops);
+            connection.setPollingFailedCount(0);
         } catch (InvalidCredentialsException e) {
             logger.error("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] authentication failure in polling job, set as broken", e);
-            Query<Connection> updateQuery = connectionDAO.createQuery().field(Mapper.ID_KEY).equal(connection.getId());
-            UpdateOperations<Connection> ops = connectionDAO.createUpdateOperations().set("pollingInProgress", false).set("broken", true).set("lastErrorMessage", e.getMessage());
-            connectionDAO.update(updateQuery, ops);
-            emailService.sendConnectionBrokenEmail(connection);
+            UpdateOperations<Connection> ops = createReleaseOperations().set("broken", true).set("lastErrorMessage", e.getMessage());
+            if (updateWithLease(connection, updateQuery, ops)) {
+                emailService.sendConnectionBrokenEmail(connection);
+            }
         } catch (Exception e) {
-            logger.error("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] " + connection.getType() + " polling job borked (" + (System.currentTimeMillis() - now) + " ms)", e);
-            Query<Connection> updateQuery = connectionDAO.createQuery().field(Mapper.ID_KEY).equal(connection.getId());
-            UpdateOperations<Connection> ops = connectionDAO.createUpdateOperations().set("pollingInProgress", false).inc("pollingFailedCount");
-            connectionDAO.update(updateQuery, ops);
-            long failedCount = connection.getPollingFailedCount() + 1;
-            if (failedCount > pollingJobMaxFailedCount) {
-                logger.error("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] failed count exceeded maximum value " + pollingJobMaxFailedCount + ", sleeping");
+            RateLimitedException rateLimited = getRateLimitedCause(e);
+            if (rateLimited != null) {
+                // not a failure, the provider is asked less often and the connection polled once allowed again
+                logger.warn("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] " + connection.getType() + " polling job rate limited, retrying in " + rateLimited.getRetryAfter() + " ms");
+                updateWithLease(connection, updateQuery, createReleaseOperations());
+                bulkheads.rateLimited(connection.getProviderId());
+                retryTime = System.currentTimeMillis() + rateLimited.getRetryAfter();
+            } else {
+                logger.error("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] " + connection.getType() + " polling job borked (" + (System.currentTimeMillis() - now) + " ms)", e);
+                UpdateOperations<Connection> ops = createReleaseOperations().inc("pollingFailedCount");
+                updateWithLease(connection, updateQuery, ops);
+                long failedCount = connection.getPollingFailedCount() + 1;
+                if (failedCount > pollingJobMaxFailedCount) {
+                    logger.error("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] failed count exceeded maximum value " + pollingJobMaxFailedCount + ", sleeping");
+                }
+                connection.setPollingFailedCount(failedCount);
+            }
+        } finally {
+            synchronized (pollingThreads) {
+                if (pollingThreads.remove(connection.getId()) == null) {
+                    // interrupted for losing the lease, the pool thread goes on with a clear status
+                    Thread.interrupted();
+                }
+            }
+            // reschedule from the outcome
+            activePolls.remove(connection.getId());
+            connection.setPollingInProgress(false);
+            connection.setPollingLastExecutionTime(now);
+            connection.setPollingNodeId(null);
+            if (retryTime > 0) {
+                pollingSchedule.schedule(connection.getId(), connection.getType(), retryTime);
+            } else {
+                pollingSchedule.connectionChanged(connection);
+            }
+        }
+    }
+
+    /**
+     * Returns the rate limit refusal a polling failed with, the clients wrapping the exceptions of their requests.
+     */
+    private RateLimitedException getRateLimitedCause(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RateLimitedException) {
+                return (RateLimitedException) cause;
+            }
+        }
+        return null;
+    }
+
+    private UpdateOperations<Connection> createReleaseOperations() {
+        return connectionDAO.createUpdateOperations().set("pollingInProgress", false).unset("pollingLeaseOwner").unset("pollingLeaseExpiry");
+    }
+
+    private boolean updateWithLease(Connection connection, Query<Connection> updateQuery, UpdateOperations<Connection> ops) {
+        if (connectionDAO.update(updateQuery, ops).getUpdatedCount() == 0) {
+            logger.warn("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] polling lease lost to another node, outcome not recorded");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Extends the leases of the connections this node is polling.  The polling of a connection whose lease expired and
+     * was claimed by another node is interrupted, to stop its side effects as soon as the clients of the provider
+     * notice; whatever it still does, it no longer saves the connection nor records its outcome.
+     */
+    private void renewPollingLeases(long now) {
+        for (Connection connection : activePolls.values()) {
+            if (!connectionDAO.renewPollingLease(connection.getId(), pollingNodeId, now, pollingJobLeaseTime)) {
+                logger.warn("[JOB] Connection " + connection.getId() + " [" + connection.getAlias() + "] polling lease expired and claimed by another node, interrupting the polling job");
+                synchronized (pollingThreads) {
+                    Thread pollingThread = pollingThreads.remove(connection.getId());
+                    if (pollingThread != null) {
+                        pollingThread.interrupt();
+                    }
+                }
             }
         }
     }
@@ -276,4 +485,59 @@ public class ConnectionPollingJob {
     public void setPollingJobBootstrapBatchSize(long pollingJobBootstrapBatchSize) {
         this.pollingJobBootstrapBatchSize = pollingJobBootstrapBatchSize;
     }
+
+    @ManagedAttribute(description = "Polling Job Resync Interval")
+    public long getPollingJobResyncInterval() {
+        return pollingJobResyncInterval;
+    }
+
+    @ManagedAttribute(description = "Polling Job Resync Interval")
+    public void setPollingJobResyncInterval(long pollingJobResyncInterval) {
+        this.pollingJobResyncInterval = pollingJobResyncInterval;
+    }
+
+    @ManagedAttribute(description = "Polling Job Jitter")
+    public double getPollingJobJitter() {
+        return pollingJobJitter;
+    }
+
+    @ManagedAttribute(description = "Polling Job Jitter")
+    public void setPollingJobJitter(double pollingJobJitter) {
+        this.pollingJobJitter = pollingJobJitter;
+    }
+
+    @ManagedAttribute(description = "Scheduled Connection Count")
+    public int getScheduledConnectionCount() {
+        return pollingSchedule.size();
+    }
+
+    @ManagedAttribute(description = "Due Connection Count")
+    public int getDueConnectionCount() {
+        return pollingSchedule.countDue(System.currentTimeMillis());
+    }
+
+    @ManagedOperation(description = "Reschedules every connection from its current state on the next run")
+    public void resync() {
+        lastResyncTime = 0;
+    }
+
+    @ManagedAttribute(description = "Polling Job Lease Time")
+    public long getPollingJobLeaseTime() {
+        return pollingJobLeaseTime;
+    }
+
+    @ManagedAttribute(description = "Polling Job Lease Time")
+    public void setPollingJobLeaseTime(long pollingJobLeaseTime) {
+        this.pollingJobLeaseTime = pollingJobLeaseTime;
+    }
+
+    @ManagedAttribute(description = "Polling Node Id")
+    public String getPollingNodeId() {
+        return pollingNodeId;
+    }
+
+    @ManagedAttribute(description = "Active Poll Count")
+    public int getActivePollCount() {
+        return activePolls.size();
+    }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.jobs;
+
+import com.streamreduce.core.model.Connection;
+import org.bson.types.ObjectId;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The connections to poll, earliest due first, see {@link ConnectionPollingJob}.
+ * <p/>
+ * The schedule is a min-heap of due times, so the polling job only looks at the connections that are due instead of
+ * scanning them all.  Rescheduling a connection leaves its previous entry in the heap, skipped once it surfaces.
+ * <p/>
+ * The connection service reports the connections created, updated and deleted, from any thread, with
+ * {@link #connectionChanged(Connection)} and {@link #connectionRemoved(ObjectId)}.  The changes are queued until the
+ * polling job takes them, as it computes the due times.
+ */
+@Component
+public class ConnectionPollingSchedule {
+
+    private static final Comparator<Entry> EARLIEST_DUE_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.dueTime < b.dueTime ? -1 : (a.dueTime == b.dueTime ? 0 : 1);
+        }
+    };
+
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>(1024, EARLIEST_DUE_FIRST);
+    private final Map<ObjectId, Entry> entries = new HashMap<>();
+
+    /**
+     * Reports a connection created or updated, to be rescheduled from its current state.
+     *
+     * @param connection the connection
+     */
+    public void connectionChanged(Connection connection) {
+        if (connection.getId() != null) {
+            changes.add(new Change(connection.getId(), connection));
+        }
+    }
+
+    /**
+     * Reports a connection deleted, to be unscheduled.
+     *
+     * @param connectionId the connection id
+     */
+    public void connectionRemoved(ObjectId connectionId) {
+        changes.add(new Change(connectionId, null));
+    }
+
+    /**
+     * Takes the changes reported since the last call, in the order reported.
+     *
+     * @return the changes
+     */
+    public List<Change> takeChanges() {
+        List<Change> taken = new ArrayList<>();
+        Change change;
+
+        while ((change = changes.poll()) != null) {
+            taken.add(change);
+        }
+        return taken;
+    }
+
+    /**
+     * Schedules a connection, replacing its previous schedule.
+     *
+     * @param connectionId the connection id
+     * @param type         the connection type
+     * @param dueTime      the time the connection is due
+     */
+    public synchronized void schedule(ObjectId connectionId, String type, long dueTime) {
+        Entry entry = new Entry(connectionId, type, dueTime);
+
+        entries.put(connectionId, entry);
+        heap.add(entry);
+    }
+
+    /**
+     * Unschedules a connection.
+     *
+     * @param connectionId the connection id
+     */
+    public synchronized void unschedule(ObjectId connectionId) {
+        entries.remove(connectionId);
+    }
+
+    /**
+     * Unschedules every connection, the changes reported included.
+     */
+    public synchronized void clear() {
+        changes.clear();
+        entries.clear();
+        heap.clear();
+    }
+
+    /**
+     * Takes the connections due, earliest due first.  They are unscheduled until scheduled again.
+     *
+     * @param now the current time
+     * @param max the maximum number of connections to take
+     * @return the connections due
+     */
+    public synchronized List<Entry> takeDue(long now, long max) {
+        List<Entry> due = new ArrayList<>();
+
+        while (due.size() < max && !heap.isEmpty() && heap.peek().dueTime <= now) {
+            Entry entry = heap.poll();
+
+            if (entries.get(entry.connectionId) == entry) {
+                entries.remove(entry.connectionId);
+                due.add(entry);
+            }
+        }
+        compact();
+        return due;
+    }
+
+    /**
+     * Returns the number of connections scheduled.
+     *
+     * @return the number of connections
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of connections due.
+     *
+     * @param now the current time
+     * @return the number of connections
+     */
+    public synchronized int countDue(long now) {
+        int count = 0;
+
+        for (Entry entry : entries.values()) {
+            if (entry.dueTime <= now) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rebuilds the heap once the replaced entries outnumber the scheduled ones.
+     */
+    private void compact() {
+        if (heap.size() > 2 * entries.size() + 1024) {
+            heap.clear();
+            heap.addAll(entries.values());
+        }
+    }
+
+    /**
+     * A connection scheduled.
+     */
+    public static class Entry {
+
+        private final ObjectId connectionId;
+        private final String type;
+        private final long dueTime;
+
+        private Entry(ObjectId connectionId, String type, long dueTime) {
+            this.connectionId = connectionId;
+            this.type = type;
+            this.dueTime = dueTime;
+        }
+
+        public ObjectId getConnectionId() {
+            return connectionId;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getDueTime() {
+            return dueTime;
+        }
+
+    }
+
+    /**
+     * A connection reported created, updated or deleted.
+     */
+    public static class Change {
+
+        private final ObjectId connectionId;
+        private final Connection connection;
+
+        private Change(ObjectId connectionId, Connection connection) {
+            this.connectionId = connectionId;
+            this.connection = connection;
+        }
+
+        public ObjectId getConnectionId() {
+            return connectionId;
+        }
+
+        /**
+         * Returns the connection as reported.
+         *
+         * @return the connection, null if deleted
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+    }
+
+}
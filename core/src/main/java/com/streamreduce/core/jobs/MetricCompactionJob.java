@@ -0,0 +1,452 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.jobs;
+
+import com.google.code.morphia.Datastore;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.streamreduce.Constants;
+import com.streamreduce.util.MetricBucketUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Removes the expired samples of the fine granularities from the account metric collections, which the Juggaloader
+ * and the metric queue write to forever.
+ * <p/>
+ * Each of the second, minute and hour granularities has a retention (days, 0 keeping the samples forever); the
+ * coarser granularities are always kept.  The buckets of a granularity that ended before the retention, and the
+ * documents written one per sample before buckets, are removed only once the next coarser granularity of their stream
+ * has samples from then on, so a stream never loses its history when its rollups are missing or behind.
+ * <p/>
+ * The removals are acknowledged and bounded: at most <code>metric.compaction.batch.size</code> documents at once, the
+ * batch halved and followed by a pause as long as the removal whenever a removal takes longer than
+ * <code>metric.compaction.target.latency</code>, and grown back while removals are fast.  The bytes reclaimed are
+ * estimated from the average document size of each collection, Mongo reusing the space rather than releasing it.
+ * <p/>
+ * Runs hourly on the task executor, so the scheduler thread stays free for the other jobs, once enabled with
+ * <code>metric.compaction.enabled</code> (off by default) or through JMX.
+ */
+@Component
+@ManagedResource(objectName="com.streamreduce.core.jobs:type=MetricCompactionJob,name=metric-compaction-job-mgmt",
+                 currencyTimeLimit = 15)
+public class MetricCompactionJob {
+
+    private static final int MIN_BATCH_SIZE = 10;
+
+    private transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${metric.compaction.enabled}")
+    private boolean compactionEnabled;
+    @Value("${metric.compaction.retention.second}")
+    private long secondRetentionDays;
+    @Value("${metric.compaction.retention.minute}")
+    private long minuteRetentionDays;
+    @Value("${metric.compaction.retention.hour}")
+    private long hourRetentionDays;
+    @Value("${metric.compaction.batch.size}")
+    private int maxBatchSize;
+    @Value("${metric.compaction.target.latency}")
+    private long targetLatency;
+
+    @Autowired
+    private ThreadPoolTaskExecutor executor;
+    @Autowired
+    @Qualifier(value = "messageDBDatastore")
+    private Datastore messageDatastore;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile long lastRunTime;
+    private volatile long lastRunDuration;
+    private volatile long lastRunDocumentsRemoved;
+    private volatile long lastRunDocumentsKept;
+    private volatile long lastRunBytesReclaimed;
+    private volatile long totalDocumentsRemoved;
+    private volatile long totalBytesReclaimed;
+
+    /**
+     * Starts a compaction on the task executor unless one is running.
+     */
+    @Scheduled(fixedDelay = 3600000)
+    @ManagedOperation(description = "Removes the expired metric samples of the fine granularities")
+    public void execute() {
+        if (!compactionEnabled || running.get()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Removes the expired samples of every account metric collection, unless a compaction is running.
+     */
+    public void compact() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        CompactionRun run = new CompactionRun();
+
+        try {
+            Map<Long, Long> retentions = getRetentions();
+
+            for (String collectionName : messageDatastore.getDB().getCollectionNames()) {
+                if (!retentions.isEmpty() && collectionName.startsWith(Constants.METRIC_COLLECTION_PREFIX)) {
+                    compact(messageDatastore.getDB().getCollection(collectionName), retentions, start, run);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("[METRIC COMPACTION] Compaction failed after removing " + run.removed + " documents", e);
+        } finally {
+            lastRunTime = start;
+            lastRunDuration = System.currentTimeMillis() - start;
+            lastRunDocumentsRemoved = run.removed;
+            lastRunDocumentsKept = run.kept;
+            lastRunBytesReclaimed = run.bytesReclaimed;
+            totalDocumentsRemoved += run.removed;
+            totalBytesReclaimed += run.bytesReclaimed;
+            running.set(false);
+        }
+
+        logger.info("[METRIC COMPACTION] Removed " + run.removed + " documents (about " + run.bytesReclaimed +
+                            " bytes) in " + lastRunDuration + " ms, kept " + run.kept +
+                            " expired documents lacking coarser samples");
+    }
+
+    /**
+     * Removes the expired documents of a collection by batches of ids, reading the collection once for all the
+     * granularities compacted.
+     */
+    private void compact(DBCollection collection, Map<Long, Long> retentions, long now, CompactionRun run)
+            throws InterruptedException {
+        BasicDBList expired = new BasicDBList();
+
+        for (Map.Entry<Long, Long> retention : retentions.entrySet()) {
+            long expiredBefore = now - retention.getValue();
+
+            expired.add(new BasicDBObject("metricGranularity", retention.getKey())
+                                .append(MetricBucketUtils.BUCKET_END, new BasicDBObject("$lte", expiredBefore)));
+            expired.add(new BasicDBObject("metricGranularity", retention.getKey())
+                                .append(MetricBucketUtils.BUCKET_END, new BasicDBObject("$exists", false))
+                                .append(MetricBucketUtils.METRIC_TIMESTAMP, new BasicDBObject("$lt", expiredBefore)));
+        }
+
+        DBObject fields = new BasicDBObject("metricName", 1).append("metricCriteria", 1)
+                                                            .append("metricGranularity", 1)
+                                                            .append(MetricBucketUtils.BUCKET_END, 1)
+                                                            .append(MetricBucketUtils.METRIC_TIMESTAMP, 1);
+        DBCursor cursor = collection.find(new BasicDBObject("$or", expired), fields);
+        Map<String, Coverage> coverages = new HashMap<>();
+        List<Object> batch = new ArrayList<>();
+        long averageSize = 0;
+
+        try {
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+
+                if (averageSize == 0) {
+                    averageSize = getAverageSize(collection);
+                }
+                if (!isCovered(collection, document, coverages)) {
+                    run.kept++;
+                    continue;
+                }
+                batch.add(document.get("_id"));
+                if (batch.size() >= run.batchSize) {
+                    remove(collection, batch, averageSize, run);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!batch.isEmpty()) {
+            remove(collection, batch, averageSize, run);
+        }
+    }
+
+    /**
+     * Removes a batch of documents and adapts the batch size to the time the removal took.
+     */
+    private void remove(DBCollection collection, List<Object> batch, long averageSize, CompactionRun run)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        int removed = collection.remove(new BasicDBObject("_id", new BasicDBObject("$in", batch)),
+                                        WriteConcern.SAFE).getN();
+        long latency = System.currentTimeMillis() - start;
+
+        run.removed += removed;
+        run.bytesReclaimed += removed * averageSize;
+        batch.clear();
+
+        if (latency > targetLatency) {
+            run.batchSize = Math.max(MIN_BATCH_SIZE, run.batchSize / 2);
+            logger.debug("[METRIC COMPACTION] Removal from " + collection.getName() + " took " + latency +
+                                 " ms, pausing and shrinking batches to " + run.batchSize);
+            Thread.sleep(latency);
+        } else {
+            run.batchSize = Math.min(maxBatchSize, run.batchSize + Math.max(1, run.batchSize / 4));
+        }
+    }
+
+    /**
+     * Returns whether the stream of an expired document has coarser samples from the end of the document on.  The
+     * answers are kept per stream, the documents of a stream mostly being read in time order.
+     */
+    private boolean isCovered(DBCollection collection, DBObject document, Map<String, Coverage> coverages) {
+        long coarserGranularity = getCoarserGranularity(((Number) document.get("metricGranularity")).longValue());
+        String metricName = (String) document.get("metricName");
+        Map<String, ?> criteria = MetricBucketUtils.getCriteria(document);
+        String coarserStreamId = MetricBucketUtils.getStreamId(metricName, criteria, coarserGranularity);
+        Number bucketEnd = (Number) document.get(MetricBucketUtils.BUCKET_END);
+        long end = bucketEnd != null ?
+                bucketEnd.longValue() :
+                ((Number) document.get(MetricBucketUtils.METRIC_TIMESTAMP)).longValue();
+        Coverage coverage = coverages.get(coarserStreamId);
+
+        if (coverage == null) {
+            coverage = new Coverage();
+            coverages.put(coarserStreamId, coverage);
+        }
+        if (end <= coverage.coveredUntil) {
+            return true;
+        }
+        if (end >= coverage.uncoveredFrom) {
+            return false;
+        }
+
+        // A coarser bucket starting after the end, or a coarser document written before buckets
+        DBObject coarser = collection.findOne(
+                new BasicDBObject("_id", new BasicDBObject("$gte", coarserStreamId)
+                        .append("$lt", coarserStreamId + Character.MAX_VALUE))
+                        .append(MetricBucketUtils.BUCKET_START, new BasicDBObject("$gte", end)),
+                new BasicDBObject(MetricBucketUtils.BUCKET_START, 1));
+        long coarserTime;
+
+        if (coarser != null) {
+            coarserTime = ((Number) coarser.get(MetricBucketUtils.BUCKET_START)).longValue();
+        } else {
+            BasicDBObject legacyQuery = new BasicDBObject("metricName", metricName)
+                    .append("metricGranularity", coarserGranularity)
+                    .append(MetricBucketUtils.METRIC_TIMESTAMP, new BasicDBObject("$gte", end));
+
+            if (criteria != null) {
+                for (Map.Entry<String, ?> criteriaEntry : criteria.entrySet()) {
+                    legacyQuery.put("metricCriteria." + criteriaEntry.getKey(), criteriaEntry.getValue());
+                }
+            }
+            coarser = collection.findOne(legacyQuery, new BasicDBObject(MetricBucketUtils.METRIC_TIMESTAMP, 1));
+            if (coarser == null) {
+                coverage.uncoveredFrom = end;
+                return false;
+            }
+            coarserTime = ((Number) coarser.get(MetricBucketUtils.METRIC_TIMESTAMP)).longValue();
+        }
+        coverage.coveredUntil = Math.max(coverage.coveredUntil, coarserTime);
+        return true;
+    }
+
+    private long getAverageSize(DBCollection collection) {
+        CommandResult stats = collection.getStats();
+        Object averageSize = stats.get("avgObjSize");
+
+        return averageSize instanceof Number ? ((Number) averageSize).longValue() : 0;
+    }
+
+    /**
+     * Returns the retention (ms) of each granularity compacted, finest first.
+     */
+    private Map<Long, Long> getRetentions() {
+        Map<Long, Long> retentions = new LinkedHashMap<>();
+
+        addRetention(retentions, 0L, secondRetentionDays);
+        addRetention(retentions, Constants.PERIOD_MINUTE, minuteRetentionDays);
+        addRetention(retentions, Constants.PERIOD_HOUR, hourRetentionDays);
+        return retentions;
+    }
+
+    private void addRetention(Map<Long, Long> retentions, long granularity, long retentionDays) {
+        if (retentionDays > 0) {
+            retentions.put(granularity, TimeUnit.DAYS.toMillis(retentionDays));
+        }
+    }
+
+    /**
+     * Returns the granularity the samples of a granularity are rolled up into: second into minute, minute into hour
+     * and hour into day.
+     */
+    static long getCoarserGranularity(long granularity) {
+        if (granularity < Constants.PERIOD_MINUTE) {
+            return Constants.PERIOD_MINUTE;
+        }
+        if (granularity < Constants.PERIOD_HOUR) {
+            return Constants.PERIOD_HOUR;
+        }
+        return Constants.PERIOD_DAY;
+    }
+
+    @ManagedAttribute(description = "Metric Compaction Enabled")
+    public boolean isCompactionEnabled() {
+        return compactionEnabled;
+    }
+
+    @ManagedAttribute(description = "Metric Compaction Enabled")
+    public void setCompactionEnabled(boolean compactionEnabled) {
+        this.compactionEnabled = compactionEnabled;
+    }
+
+    @ManagedAttribute(description = "Second Granularity Retention (days)")
+    public long getSecondRetentionDays() {
+        return secondRetentionDays;
+    }
+
+    @ManagedAttribute(description = "Second Granularity Retention (days)")
+    public void setSecondRetentionDays(long secondRetentionDays) {
+        this.secondRetentionDays = secondRetentionDays;
+    }
+
+    @ManagedAttribute(description = "Minute Granularity Retention (days)")
+    public long getMinuteRetentionDays() {
+        return minuteRetentionDays;
+    }
+
+    @ManagedAttribute(description = "Minute Granularity Retention (days)")
+    public void setMinuteRetentionDays(long minuteRetentionDays) {
+        this.minuteRetentionDays = minuteRetentionDays;
+    }
+
+    @ManagedAttribute(description = "Hour Granularity Retention (days)")
+    public long getHourRetentionDays() {
+        return hourRetentionDays;
+    }
+
+    @ManagedAttribute(description = "Hour Granularity Retention (days)")
+    public void setHourRetentionDays(long hourRetentionDays) {
+        this.hourRetentionDays = hourRetentionDays;
+    }
+
+    @ManagedAttribute(description = "Maximum Batch Size")
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @ManagedAttribute(description = "Maximum Batch Size")
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @ManagedAttribute(description = "Target Removal Latency (ms)")
+    public long getTargetLatency() {
+        return targetLatency;
+    }
+
+    @ManagedAttribute(description = "Target Removal Latency (ms)")
+    public void setTargetLatency(long targetLatency) {
+        this.targetLatency = targetLatency;
+    }
+
+    @ManagedAttribute(description = "Compaction Running")
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @ManagedAttribute(description = "Last Run Time")
+    public long getLastRunTime() {
+        return lastRunTime;
+    }
+
+    @ManagedAttribute(description = "Last Run Duration (ms)")
+    public long getLastRunDuration() {
+        return lastRunDuration;
+    }
+
+    @ManagedAttribute(description = "Last Run Documents Removed")
+    public long getLastRunDocumentsRemoved() {
+        return lastRunDocumentsRemoved;
+    }
+
+    @ManagedAttribute(description = "Last Run Expired Documents Kept For Lack Of Coarser Samples")
+    public long getLastRunDocumentsKept() {
+        return lastRunDocumentsKept;
+    }
+
+    @ManagedAttribute(description = "Last Run Bytes Reclaimed (estimate)")
+    public long getLastRunBytesReclaimed() {
+        return lastRunBytesReclaimed;
+    }
+
+    @ManagedAttribute(description = "Total Documents Removed")
+    public long getTotalDocumentsRemoved() {
+        return totalDocumentsRemoved;
+    }
+
+    @ManagedAttribute(description = "Total Bytes Reclaimed (estimate)")
+    public long getTotalBytesReclaimed() {
+        return totalBytesReclaimed;
+    }
+
+    /**
+     * The counts and current batch size of a compaction.
+     */
+    private class CompactionRun {
+
+        private long removed;
+        private long kept;
+        private long bytesReclaimed;
+        private int batchSize = maxBatchSize;
+
+    }
+
+    /**
+     * What is known of the coarser samples of a stream: there are some from <code>coveredUntil</code> on, and none
+     * from <code>uncoveredFrom</code> on.
+     */
+    private static class Coverage {
+
+        private long coveredUntil = Long.MIN_VALUE;
+        private long uncoveredFrom = Long.MAX_VALUE;
+
+    }
+
+}
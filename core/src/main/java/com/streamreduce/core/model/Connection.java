@@ -20,6 +20,7 @@ import com.google.code.morphia.annotations.Embedded;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.PostLoad;
 import com.google.code.morphia.annotations.PrePersist;
+import com.google.code.morphia.annotations.Transient;
 import com.google.common.collect.Sets;
 import com.streamreduce.ProviderIdConstants;
 import com.streamreduce.connections.AuthType;
@@ -65,6 +66,11 @@ public class Connection extends AbstractActivityPollingSobaObject {
     private boolean pollingInProgress;
     private long pollingLastExecutionTime;
     private long pollingFailedCount;
+    private String pollingLeaseOwner;
+    private long pollingLeaseExpiry;
+    // the node polling this copy of the connection, which is saved only while the node holds the lease
+    @Transient
+    private String pollingNodeId;
     private boolean disabled = false;
 //    @Embedded
 //    private APIAuthenticationToken authenticationToken; // TODO: for IMG?
@@ -228,6 +234,30 @@ public class Connection extends AbstractActivityPollingSobaObject {
         this.pollingFailedCount = pollingFailedCount;
     }
 
+    public String getPollingLeaseOwner() {
+        return pollingLeaseOwner;
+    }
+
+    public void setPollingLeaseOwner(String pollingLeaseOwner) {
+        this.pollingLeaseOwner = pollingLeaseOwner;
+    }
+
+    public long getPollingLeaseExpiry() {
+        return pollingLeaseExpiry;
+    }
+
+    public void setPollingLeaseExpiry(long pollingLeaseExpiry) {
+        this.pollingLeaseExpiry = pollingLeaseExpiry;
+    }
+
+    public String getPollingNodeId() {
+        return pollingNodeId;
+    }
+
+    public void setPollingNodeId(String pollingNodeId) {
+        this.pollingNodeId = pollingNodeId;
+    }
+
 
     /**
      * Merges the following properties from a JSON object in to the Connection object:
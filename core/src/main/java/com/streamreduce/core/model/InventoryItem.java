@@ -40,6 +40,8 @@ public class InventoryItem extends SobaObject {
     private String type;
     @NotNull
     private ObjectId metadataId;
+    // hash of the external representation last applied, see InventoryService#refreshInventoryItemCache
+    private String metadataHash;
 
     public boolean isDeleted() {
         return deleted;
@@ -73,6 +75,14 @@ public class InventoryItem extends SobaObject {
         this.metadataId = metadataId;
     }
 
+    public String getMetadataHash() {
+        return metadataHash;
+    }
+
+    public void setMetadataHash(String metadataHash) {
+        this.metadataHash = metadataHash;
+    }
+
     @SuppressWarnings("rawtypes")
     public static class Builder extends SobaObject.Builder<InventoryItem, Builder> {
 
@@ -27,6 +27,7 @@ import com.streamreduce.connections.ExternalIntegrationConnectionProvider;
 import com.streamreduce.connections.OAuthEnabledConnectionProvider;
 import com.streamreduce.core.dao.ConnectionDAO;
 import com.streamreduce.core.event.EventId;
+import com.streamreduce.core.jobs.ConnectionPollingSchedule;
 import com.streamreduce.core.model.Account;
 import com.streamreduce.core.model.Connection;
 import com.streamreduce.core.model.ConnectionCredentials;
@@ -85,6 +86,8 @@ public class ConnectionServiceImpl implements ConnectionService {
     private EventService eventService;
     @Autowired
     private OAuthTokenCacheService cacheService;
+    @Autowired
+    private ConnectionPollingSchedule connectionPollingSchedule;
 
     /**
      * {@inheritDoc}
@@ -105,6 +108,7 @@ public class ConnectionServiceImpl implements ConnectionService {
         connection.addHashtag(providerId);
 
         connectionDAO.save(connection);
+        connectionPollingSchedule.connectionChanged(connection);
 
         decryptCredentials(connection);
 
@@ -272,6 +276,7 @@ public class ConnectionServiceImpl implements ConnectionService {
         }
 
         connectionDAO.save(connection);
+        connectionPollingSchedule.connectionChanged(connection);
 
         decryptCredentials(connection);
 
@@ -337,6 +342,7 @@ public class ConnectionServiceImpl implements ConnectionService {
         messageService.sendConnectionMessage(event, connection);
 
         connectionDAO.delete(connection);
+        connectionPollingSchedule.connectionRemoved(connection.getId());
     }
 
     /**
@@ -178,7 +178,9 @@ public interface InventoryService extends TaggableService<InventoryItem> {
     InventoryItem getInventoryItem(ObjectId objectId) throws InventoryItemNotFoundException;
 
     /**
-     * Refreshes the internal inventory item cache from the external inventory representation.
+     * Refreshes the internal inventory item cache from the external inventory representation.  The external
+     * inventory is diffed against the inventory items of the connection, loaded at once, and the inventory items whose
+     * external representation did not change since their last update are left as they are.
      *
      * @param connection the connection whose inventory we want to refresh
      *
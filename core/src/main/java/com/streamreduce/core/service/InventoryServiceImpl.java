@@ -16,12 +16,12 @@
 
 package com.streamreduce.core.service;
 
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
@@ -47,6 +47,7 @@ import com.streamreduce.core.model.messages.details.twitter.TwitterActivityDetai
 import com.streamreduce.core.service.exception.InvalidCredentialsException;
 import com.streamreduce.core.service.exception.InventoryItemNotFoundException;
 import com.streamreduce.util.AWSClient;
+import com.streamreduce.util.AWSRequestPipeline;
 import com.streamreduce.util.ExternalIntegrationClient;
 import com.streamreduce.util.FeedClient;
 import com.streamreduce.util.GitHubClient;
@@ -62,10 +63,12 @@ import com.sun.syndication.feed.synd.SyndEntry;
 import com.sun.syndication.feed.synd.SyndFeed;
 import com.sun.syndication.io.SyndFeedInput;
 import com.sun.syndication.io.XmlReader;
+import com.yammer.metrics.Metrics;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.apache.abdera.model.Element;
 import org.apache.abdera.model.Entry;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.bson.types.ObjectId;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.jclouds.aws.ec2.domain.Tag;
@@ -82,7 +85,10 @@ import org.jclouds.rest.RestContext;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
@@ -90,6 +96,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
@@ -100,18 +107,37 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import javax.xml.namespace.QName;
 
 /**
  * Implementation of {@link InventoryService}.
  */
 @Service("inventoryService")
-public class InventoryServiceImpl implements InventoryService {
+public class InventoryServiceImpl implements InventoryService, InitializingBean, DisposableBean {
 
     protected transient Logger logger = LoggerFactory.getLogger(getClass());
 
-    private Map<String, Unit> ec2CloudWatchMetricNames = null;
+    // The key of the EC2 tags added to the external representation of the instances
+    private static final String EC2_TAGS_KEY = "ec2Tags";
+    // Right now our CloudWatch usage is pretty specific in that we're not exactly pulling all available AWS EC2
+    // CloudWatch metrics and instead of relying on specific units for each metric name.  Eventually we could/should
+    // just pull down everything available and go from there.
+    private static final Map<String, Unit> EC2_CLOUDWATCH_METRIC_NAMES = ImmutableMap.<String, Unit>builder()
+            .put(EC2Constants.MetricName.CPU_UTILIZATION, Unit.PERCENT)
+            .put(EC2Constants.MetricName.DISK_READ_BYTES, Unit.BYTES)
+            .put(EC2Constants.MetricName.DISK_READ_OPS, Unit.COUNT)
+            .put(EC2Constants.MetricName.DISK_WRITE_BYTES, Unit.BYTES)
+            .put(EC2Constants.MetricName.DISK_WRITE_OPS, Unit.COUNT)
+            .put(EC2Constants.MetricName.NETWORK_IN, Unit.BYTES)
+            .put(EC2Constants.MetricName.NETWORK_OUT, Unit.BYTES)
+            .build();
+
     private Set<Statistics> ec2CloudWatchStatisticsSet = ImmutableSet.of(
             Statistics.AVERAGE,
             Statistics.MINIMUM,
@@ -134,6 +160,19 @@ public class InventoryServiceImpl implements InventoryService {
                                 }
                             }
                         }).build();
+    // The region ids of the EC2 instances by metadata id
+    private final Cache<ObjectId, String> ec2RegionIdCache =
+            CacheBuilder.newBuilder()
+                        .maximumSize(10000)
+                        .expireAfterAccess(1, TimeUnit.DAYS)
+                        .build();
+
+    @Value("${aws.cloudwatch.threads}")
+    private int cloudWatchThreads;
+    @Value("${aws.cloudwatch.region.parallelism}")
+    private int cloudWatchRegionParallelism;
+    // the CloudWatch requests of all the AWS connections polled, see pullEC2CloudWatchMetrics
+    private AWSRequestPipeline cloudWatchRequestPipeline;
 
     @Autowired
     InventoryItemDAO inventoryItemDAO;
@@ -150,6 +189,22 @@ public class InventoryServiceImpl implements InventoryService {
     @Autowired
     ConnectionProviderFactory connectionProviderFactory;
 
+    /**
+     * Starts the threads the CloudWatch requests run in.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        cloudWatchRequestPipeline = new AWSRequestPipeline(cloudWatchThreads, cloudWatchRegionParallelism);
+    }
+
+    /**
+     * Stops the threads the CloudWatch requests run in, interrupting the requests in progress.
+     */
+    @Override
+    public void destroy() {
+        cloudWatchRequestPipeline.shutdown();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -207,6 +262,7 @@ public class InventoryServiceImpl implements InventoryService {
                                                            json.toString());
 
         inventoryItem.setMetadataId((ObjectId)metadataEntry.get("_id"));
+        inventoryItem.setMetadataHash(DigestUtils.md5Hex(json.toString()));
 
         // Persist the inventory item
         inventoryItemDAO.save(inventoryItem);
@@ -229,6 +285,31 @@ public class InventoryServiceImpl implements InventoryService {
         Preconditions.checkNotNull(inventoryItem, "inventoryItem cannot be null.");
         Preconditions.checkNotNull(json, "json cannot be null.");
 
+        InventoryItem oldInventoryItem;
+
+        try {
+            oldInventoryItem = getInventoryItem(inventoryItem.getId());
+        } catch (InventoryItemNotFoundException e) {
+            // Should never happen but just in case
+            oldInventoryItem = null;
+        }
+
+        return updateInventoryItem(inventoryItem, json,
+                                   oldInventoryItem != null ? getVisibleProperties(oldInventoryItem) : null);
+    }
+
+    /**
+     * Updates the inventory item from its external representation.  The update is silent if the properties visible
+     * to the users are those of the inventory item before, see {@link #getVisibleProperties(InventoryItem)}.
+     *
+     * @param inventoryItem the inventory item
+     * @param json the external representation
+     * @param oldVisibleProperties the visible properties of the inventory item before, null if unknown
+     * @return the inventory item
+     */
+    private InventoryItem updateInventoryItem(InventoryItem inventoryItem, JSONObject json,
+                                              @Nullable List<Object> oldVisibleProperties)
+            throws ConnectionNotFoundException, InvalidCredentialsException, IOException {
         Connection connection = inventoryItem.getConnection();
         String providerId = connection.getProviderId();
 
@@ -262,31 +343,29 @@ public class InventoryServiceImpl implements InventoryService {
             // Should never happen
             logger.error("Error updating project hosting inventory item cache: " + inventoryItem.getId(), e);
         }
-
-        // Send a silent update if none of our internal properties have changed
-        boolean silentUpdate = false;
-        InventoryItem oldInventoryItem;
-
-        try {
-            oldInventoryItem = getInventoryItem(inventoryItem.getId());
-        } catch (InventoryItemNotFoundException e) {
-            // Should never happen but just in case
-            oldInventoryItem = null;
-        }
+        inventoryItem.setMetadataHash(DigestUtils.md5Hex(json.toString()));
 
         // Be silent unless alias, description, hashtags or visibility are different.  (None of the other properties
         // should be changeable externally or via our exposed APIs.)
-        if (oldInventoryItem != null) {
-            silentUpdate = (Objects.equal(oldInventoryItem.getAlias(), inventoryItem.getAlias()) &&
-                    Objects.equal(oldInventoryItem.getDescription(), inventoryItem.getDescription()) &&
-                    Objects.equal(oldInventoryItem.getHashtags(), inventoryItem.getHashtags()) &&
-                    Objects.equal(oldInventoryItem.getVisibility(), inventoryItem.getVisibility()));
-        }
+        boolean silentUpdate = oldVisibleProperties != null &&
+                oldVisibleProperties.equals(getVisibleProperties(inventoryItem));
 
         // Persist the inventory item
         return updateInventoryItem(inventoryItem, silentUpdate);
     }
 
+    /**
+     * Returns the properties of an inventory item the users see: its alias, description, hashtags and visibility.
+     * The hashtags are copied, as the item's own set is changed by the updates.
+     */
+    private List<Object> getVisibleProperties(InventoryItem inventoryItem) {
+        Set<String> hashtags = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+        hashtags.addAll(inventoryItem.getHashtags());
+        return Arrays.<Object>asList(inventoryItem.getAlias(), inventoryItem.getDescription(), hashtags,
+                                     inventoryItem.getVisibility());
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -460,7 +539,7 @@ public class InventoryServiceImpl implements InventoryService {
         logger.debug("Updating inventory item cache for connection [" + connection.getId() + "]: " +
                              connection.getAlias());
 
-        List<String> processedKeys = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
         List<JSONObject> externalInventoryItems;
         ExternalIntegrationClient client = getClient(connection);
 
@@ -468,8 +547,9 @@ public class InventoryServiceImpl implements InventoryService {
             AWSClient awsClient = null;
             try {
                 awsClient = new AWSClient(connection);
-                // Get the EC2 inventory items
+                // Get the EC2 inventory items, along with their tags
                 externalInventoryItems = (awsClient.getEC2Instances());
+                addEC2InstanceTags(awsClient, externalInventoryItems);
                 // Get the S3 inventory items
                 externalInventoryItems.addAll(awsClient.getS3BucketsAsJson());
             } finally {
@@ -496,8 +576,24 @@ public class InventoryServiceImpl implements InventoryService {
         logger.debug("  Provider id: " + connection.getProviderId());
         logger.debug("  Inventory items found: " + externalInventoryItems.size());
 
+        // The current inventory items by external id, loaded at once, live ones over those marked as deleted
+        List<InventoryItem> inventoryItems = inventoryItemDAO.getAllInventoryItems(connection);
+        Map<String, InventoryItem> inventoryItemMap = new HashMap<>();
+
+        for (InventoryItem inventoryItem : inventoryItems) {
+            InventoryItem other = inventoryItemMap.get(inventoryItem.getExternalId());
+
+            if (other == null || other.isDeleted()) {
+                inventoryItemMap.put(inventoryItem.getExternalId(), inventoryItem);
+            }
+        }
+
+        Set<String> processedKeys = new HashSet<>();
+        int createdCount = 0;
+        int updatedCount = 0;
+        int unchangedCount = 0;
+
         for (JSONObject json : externalInventoryItems) {
-            InventoryItem inventoryItem = null;
             JSONObject externalInventoryItemAsJSON;
             String externalId;
 
@@ -509,18 +605,22 @@ public class InventoryServiceImpl implements InventoryService {
                 } else {
                     externalId = json.getString("name");
                 }
-                externalInventoryItemAsJSON = json;
             } else if (client instanceof GitHubClient) {
                 externalId = json.getJSONObject("owner").getString("login") + "/" + json.getString("name");
-                externalInventoryItemAsJSON = json;
             } else if (client instanceof PingdomClient) {
                 externalId = json.getString("id");
-                externalInventoryItemAsJSON = json;
             } else if (client instanceof GoogleAnalyticsClient) {
                 externalId = json.getString("id");
-                externalInventoryItemAsJSON = json;
             } else {
                 externalId = json.getString("key");
+            }
+
+            if (!processedKeys.add(externalId)) {
+                // Listed more than once
+                continue;
+            }
+
+            if (client instanceof JiraClient) {
                 try {
                     externalInventoryItemAsJSON = ((JiraClient)client).getProjectDetails(externalId);
                 } catch (InvalidCredentialsException | IOException e) {
@@ -528,13 +628,11 @@ public class InventoryServiceImpl implements InventoryService {
                     logger.warn("Unable to get the Jira project details for " + externalId + ": " + e.getMessage());
                     return;
                 }
+            } else {
+                externalInventoryItemAsJSON = json;
             }
 
-            try {
-                inventoryItem = getInventoryItemForExternalId(connection, externalId);
-            } catch (InventoryItemNotFoundException e) {
-                // This is more than possible and is handled below
-            }
+            InventoryItem inventoryItem = inventoryItemMap.get(externalId);
 
             if (inventoryItem == null || inventoryItem.isDeleted()) {
                 if (inventoryItem != null && inventoryItem.isDeleted()) {
@@ -545,29 +643,99 @@ public class InventoryServiceImpl implements InventoryService {
                 }
 
                 createInventoryItem(connection, externalInventoryItemAsJSON);
-            } else if (!processedKeys.contains(externalId)) {
-                updateInventoryItem(inventoryItem, externalInventoryItemAsJSON);
+                createdCount++;
+            } else if (isDerivedFromExternalRepresentation(connection, externalInventoryItemAsJSON) &&
+                    DigestUtils.md5Hex(externalInventoryItemAsJSON.toString()).equals(
+                            inventoryItem.getMetadataHash())) {
+                // Nothing changed externally since the last update
+                unchangedCount++;
+            } else {
+                updateInventoryItem(inventoryItem, externalInventoryItemAsJSON,
+                                    getVisibleProperties(inventoryItem));
+                updatedCount++;
             }
-
-            processedKeys.add(externalId);
         }
 
-        // Handle inventory items deleted externally
-        List<InventoryItem> inventoryItems = getInventoryItems(connection);
+        // Handle inventory items deleted externally.  Just mark the items as deleted, future polling jobs will remove
+        // the inventory items marked as deleted when appropriate.
+        List<InventoryItem> deletedInventoryItems = new ArrayList<>();
 
         for (InventoryItem inventoryItem : inventoryItems) {
-            if (processedKeys.contains(inventoryItem.getExternalId())) {
+            if (!inventoryItem.isDeleted() && !processedKeys.contains(inventoryItem.getExternalId())) {
+                deletedInventoryItems.add(inventoryItem);
+            }
+        }
+
+        inventoryItemDAO.markDeleted(deletedInventoryItems);
+
+        for (InventoryItem inventoryItem : deletedInventoryItems) {
+            // Create the event
+            Event event = eventService.createEvent(EventId.DELETE, inventoryItem, null);
+
+            // Create the message
+            messageService.sendInventoryMessage(event, inventoryItem);
+        }
+
+        long duration = System.currentTimeMillis() - startTime;
+
+        Metrics.newTimer(InventoryServiceImpl.class, "inventory-refresh", connection.getProviderId(),
+                         TimeUnit.MILLISECONDS, TimeUnit.MINUTES).update(duration, TimeUnit.MILLISECONDS);
+        logger.info("Refreshed the inventory item cache for connection [" + connection.getId() + "] in " +
+                            duration + " ms: " + createdCount + " created, " + updatedCount + " updated, " +
+                            unchangedCount + " unchanged, " + deletedInventoryItems.size() + " deleted");
+    }
+
+    /**
+     * Adds the tags of the EC2 instances to their external representation, as an <code>ec2Tags</code> object, with
+     * a single request per region instead of one per instance.
+     */
+    private void addEC2InstanceTags(AWSClient client, List<JSONObject> instances) throws InvalidCredentialsException {
+        Map<String, Map<String, Set<Tag>>> tagsByRegionId = new HashMap<>();
+
+        for (JSONObject instance : instances) {
+            Location region = getLocationByScope(instance, LocationScope.REGION);
+
+            if (region == null) {
                 continue;
             }
 
-            // Just mark the item as deleted.  Future polling jobs will remove the inventory item marked as deleted
-            // when appropriate.
-            if (!inventoryItem.isDeleted()) {
-                markInventoryItemDeleted(inventoryItem);
+            Map<String, Set<Tag>> tagsByInstanceId = tagsByRegionId.get(region.getId());
+
+            if (tagsByInstanceId == null) {
+                tagsByInstanceId = client.getEC2InstanceTagsInRegion(region.getId());
+                tagsByRegionId.put(region.getId(), tagsByInstanceId);
             }
+
+            Set<Tag> tags = tagsByInstanceId.get(instance.getString("providerId"));
+            // sorted, so the metadata hash of an instance does not change with the order of its tags
+            Map<String, String> ec2Tags = new TreeMap<>();
+
+            if (tags != null) {
+                for (Tag tag : tags) {
+                    ec2Tags.put(tag.getKey(), tag.getValue());
+                }
+            }
+
+            instance.put(EC2_TAGS_KEY, JSONObject.fromObject(ec2Tags));
         }
     }
 
+    /**
+     * Returns whether an inventory item is derived from its external representation alone, so an unchanged
+     * representation needs no update.  Jira projects get their visibility, and EC2 instances their tags unless
+     * fetched with the instances, from further requests which are not part of the representation.
+     */
+    private boolean isDerivedFromExternalRepresentation(Connection connection, JSONObject json) {
+        String providerId = connection.getProviderId();
+
+        if (providerId.equals(ProviderIdConstants.AWS_PROVIDER_ID)) {
+            return !json.getString("type").equals(ComputeType.NODE.toString()) || json.containsKey(EC2_TAGS_KEY);
+        }
+        return providerId.equals(ProviderIdConstants.GITHUB_PROVIDER_ID) ||
+                providerId.equals(ProviderIdConstants.GOOGLE_ANALYTICS_PROVIDER_ID) ||
+                providerId.equals(ProviderIdConstants.PINGDOM_PROVIDER_ID);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -900,27 +1068,41 @@ public class InventoryServiceImpl implements InventoryService {
 
         if (externalType.equals(ComputeType.NODE.toString())) {
             name = json.getString("name");
-            AWSClient client = null;
-            try {
-                client = new AWSClient(inventoryItem.getConnection());
-                Set<Tag> ec2Tags = client.getEC2InstanceTags(externalId);
+            Map<String, String> ec2Tags = new TreeMap<>();
 
-                // Handle adding new hashtags based on the EC2 tags and the instance name
-                for (Tag tag : ec2Tags) {
-                    String key = tag.getKey();
-                    String value = tag.getValue();
+            if (json.containsKey(EC2_TAGS_KEY)) {
+                // Fetched along with the other instances of the region, see refreshInventoryItemCache
+                JSONObject ec2TagsObject = json.getJSONObject(EC2_TAGS_KEY);
 
-                    if (key.equals("Name")) {
-                        if (value.length() > 0) {
-                            name = value;
-                        }
-                    } else {
-                        inventoryItem.addHashtag(key + "=" + value);
+                for (Object key : ec2TagsObject.keySet()) {
+                    ec2Tags.put(key.toString(), ec2TagsObject.getString(key.toString()));
+                }
+            } else {
+                AWSClient client = null;
+                try {
+                    client = new AWSClient(inventoryItem.getConnection());
+
+                    for (Tag tag : client.getEC2InstanceTags(externalId)) {
+                        ec2Tags.put(tag.getKey(), tag.getValue());
+                    }
+                } finally {
+                    if (client != null) {
+                        client.cleanUp();
                     }
                 }
-            } finally {
-                if (client != null) {
-                    client.cleanUp();
+            }
+
+            // Handle adding new hashtags based on the EC2 tags and the instance name
+            for (Map.Entry<String, String> tag : ec2Tags.entrySet()) {
+                String key = tag.getKey();
+                String value = tag.getValue();
+
+                if (key.equals("Name")) {
+                    if (value.length() > 0) {
+                        name = value;
+                    }
+                } else {
+                    inventoryItem.addHashtag(key + "=" + value);
                 }
             }
 
@@ -1165,21 +1347,6 @@ public class InventoryServiceImpl implements InventoryService {
 
     private void pullEC2CloudWatchMetrics(Connection connection)
             throws ConnectionNotFoundException, InvalidCredentialsException {
-        // Right now our CloudWatch usage is pretty specific in that we're not exactly pulling all available AWS EC2
-        // CloudWatch metrics and instead of relying on specific units for each metric name.  Eventually we could/should
-        // just pull down everything available and go from there.
-        if (ec2CloudWatchMetricNames == null) {
-            ec2CloudWatchMetricNames = new HashMap<>();
-
-            ec2CloudWatchMetricNames.put(EC2Constants.MetricName.CPU_UTILIZATION, Unit.PERCENT);
-            ec2CloudWatchMetricNames.put(EC2Constants.MetricName.DISK_READ_BYTES, Unit.BYTES);
-            ec2CloudWatchMetricNames.put(EC2Constants.MetricName.DISK_READ_OPS, Unit.COUNT);
-            ec2CloudWatchMetricNames.put(EC2Constants.MetricName.DISK_WRITE_BYTES, Unit.BYTES);
-            ec2CloudWatchMetricNames.put(EC2Constants.MetricName.DISK_WRITE_OPS, Unit.COUNT);
-            ec2CloudWatchMetricNames.put(EC2Constants.MetricName.NETWORK_IN, Unit.BYTES);
-            ec2CloudWatchMetricNames.put(EC2Constants.MetricName.NETWORK_OUT, Unit.BYTES);
-        }
-
         try (RestContext<CloudWatchApi, CloudWatchAsyncApi> context = new AWSClient(connection).getCloudWatchServiceContext()) {
             CloudWatchApi cloudWatchClient = context.getApi();
             List<InventoryItem> inventoryItems = getInventoryItems(connection);
@@ -1192,57 +1359,109 @@ public class InventoryServiceImpl implements InventoryService {
 
             startTime = cal.getTime();
 
-            for (InventoryItem inventoryItem : inventoryItems) {
-                if (!inventoryItem.getType().equals(Constants.COMPUTE_INSTANCE_TYPE)) {
-                    continue;
-                }
+            // The requests are sent concurrently, a bounded number at a time per region, and their responses turned
+            // into events in the order of the inventory items
+            List<InventoryItem> polledItems = new ArrayList<>();
+            List<Map<String, Future<GetMetricStatisticsResponse>>> polledItemResponses = new ArrayList<>();
+
+            try {
+                for (InventoryItem inventoryItem : inventoryItems) {
+                    if (!inventoryItem.getType().equals(Constants.COMPUTE_INSTANCE_TYPE)) {
+                        continue;
+                    }
 
-                Map<String, JSONObject> metrics = new HashMap<>();
-                String nodeId = inventoryItem.getExternalId();
-                Location region = getLocationByScope(inventoryItem, LocationScope.REGION);
+                    String nodeId = inventoryItem.getExternalId();
+                    String regionId = getEC2RegionId(inventoryItem);
 
-                if (region == null) {
-                    continue;
-                }
+                    if (regionId == null) {
+                        continue;
+                    }
 
-                String regionId = region.getId();
-                Dimension dimension = new Dimension(EC2Constants.Dimension.INSTANCE_ID, nodeId);
-
-                for (Map.Entry<String, Unit> ec2MetricEntry : ec2CloudWatchMetricNames.entrySet()) {
-                    String metricName = ec2MetricEntry.getKey();
-                    Unit metricUnit = ec2MetricEntry.getValue();
-                    MetricApi metricClient = cloudWatchClient.getMetricApiForRegion(regionId);
-                    GetMetricStatistics requestOptions = GetMetricStatistics.builder()
-                            .namespace(metricNamespace)
-                            .metricName(metricName)
-                            .dimension(dimension)
-                            .period(60)
-                            .statistics(ec2CloudWatchStatisticsSet)
-                            .startTime(startTime)
-                            .endTime(endTime)
-                            .unit(metricUnit)
-                            .build();
-                    GetMetricStatisticsResponse response = metricClient.getMetricStatistics(requestOptions);
-
-                    // Per Gustavo's code, we're only adding the last metric
-                    if (response != null && response.size() > 0) {
-                        metrics.put(metricName, JSONObject.fromObject(response.iterator().next()));
+                    final MetricApi metricClient = cloudWatchClient.getMetricApiForRegion(regionId);
+                    Dimension dimension = new Dimension(EC2Constants.Dimension.INSTANCE_ID, nodeId);
+                    Map<String, Future<GetMetricStatisticsResponse>> responses = new HashMap<>();
+
+                    for (Map.Entry<String, Unit> ec2MetricEntry : EC2_CLOUDWATCH_METRIC_NAMES.entrySet()) {
+                        String metricName = ec2MetricEntry.getKey();
+                        Unit metricUnit = ec2MetricEntry.getValue();
+                        final GetMetricStatistics requestOptions = GetMetricStatistics.builder()
+                                .namespace(metricNamespace)
+                                .metricName(metricName)
+                                .dimension(dimension)
+                                .period(60)
+                                .statistics(ec2CloudWatchStatisticsSet)
+                                .startTime(startTime)
+                                .endTime(endTime)
+                                .unit(metricUnit)
+                                .build();
+
+                        Callable<GetMetricStatisticsResponse> request = new Callable<GetMetricStatisticsResponse>() {
+                            @Override
+                            public GetMetricStatisticsResponse call() {
+                                return metricClient.getMetricStatistics(requestOptions);
+                            }
+                        };
+
+                        responses.put(metricName, cloudWatchRequestPipeline.submit(regionId, request));
                     }
+
+                    polledItems.add(inventoryItem);
+                    polledItemResponses.add(responses);
                 }
 
-                if (!metrics.isEmpty()) {
-                    Map<String, Object> eventContext = new HashMap<>();
+                for (int i = 0; i < polledItems.size(); i++) {
+                    Map<String, JSONObject> metrics = new HashMap<>();
 
-                    eventContext.put("payload", metrics);
-                    eventContext.put("isAgentActivity", false);
+                    for (Map.Entry<String, Future<GetMetricStatisticsResponse>> responseEntry :
+                            polledItemResponses.get(i).entrySet()) {
+                        GetMetricStatisticsResponse response = AWSRequestPipeline.getResult(responseEntry.getValue());
 
-                    eventService.createEvent(EventId.ACTIVITY,
-                            inventoryItem, eventContext);
+                        // Per Gustavo's code, we're only adding the last metric
+                        if (response != null && response.size() > 0) {
+                            metrics.put(responseEntry.getKey(), JSONObject.fromObject(response.iterator().next()));
+                        }
+                    }
+
+                    if (!metrics.isEmpty()) {
+                        Map<String, Object> eventContext = new HashMap<>();
+
+                        eventContext.put("payload", metrics);
+                        eventContext.put("isAgentActivity", false);
+
+                        eventService.createEvent(EventId.ACTIVITY,
+                                polledItems.get(i), eventContext);
+                    }
+                }
+            } finally {
+                // the requests left when giving up on the connection don't hold up those of the others
+                for (Map<String, Future<GetMetricStatisticsResponse>> responses : polledItemResponses) {
+                    AWSRequestPipeline.cancel(responses.values());
                 }
             }
         }
     }
 
+    /**
+     * Returns the id of the region of an EC2 instance, cached as the region of an instance never changes.
+     */
+    @Nullable
+    private String getEC2RegionId(InventoryItem inventoryItem) {
+        String regionId = ec2RegionIdCache.getIfPresent(inventoryItem.getMetadataId());
+
+        if (regionId == null) {
+            Location region = getLocationByScope(inventoryItem, LocationScope.REGION);
+
+            if (region == null) {
+                return null;
+            }
+
+            regionId = region.getId();
+            ec2RegionIdCache.put(inventoryItem.getMetadataId(), regionId);
+        }
+
+        return regionId;
+    }
+
     private void pullGitHubActivity(Connection connection)
             throws ConnectionNotFoundException, InvalidCredentialsException, IOException {
         GitHubClient client = (GitHubClient)getClient(connection);
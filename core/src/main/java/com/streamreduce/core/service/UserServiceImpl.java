@@ -27,6 +27,7 @@ import com.streamreduce.core.dao.AccountDAO;
 import com.streamreduce.core.dao.DAODatasourceType;
 import com.streamreduce.core.dao.EventLogDAO;
 import com.streamreduce.core.dao.GenericCollectionDAO;
+import com.streamreduce.core.dao.IndexManager;
 import com.streamreduce.core.dao.RoleDAO;
 import com.streamreduce.core.dao.UserDAO;
 import com.streamreduce.core.event.EventId;
@@ -69,6 +70,8 @@ public class UserServiceImpl extends AbstractService implements UserService {
     @Autowired
     private GenericCollectionDAO genericCollectionDAO;
     @Autowired
+    private IndexManager indexManager;
+    @Autowired
     private SearchService searchService;
     @Autowired
     private EventService eventService;
@@ -491,8 +494,7 @@ public class UserServiceImpl extends AbstractService implements UserService {
         collection.insert(dummyObj);
 
         // add indexes
-        collection.ensureIndex("metricGranularity");
-        collection.ensureIndex("metricName");
+        indexManager.ensureIndexes(collection);
 
         // remove bogus object
         collection.remove(dummyObj);
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.service.exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a remote service refuses a request because its rate limit is exceeded, with the time it said to retry
+ * after.
+ */
+public class RateLimitedException extends IOException {
+
+    private static final long serialVersionUID = 2937816484523394781L;
+
+    private final long retryAfter;
+
+    public RateLimitedException(String msg, long retryAfter) {
+        super(msg);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the time to wait before retrying.
+     *
+     * @return the time in milliseconds
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+}
@@ -160,6 +160,34 @@ public class AWSClient extends ExternalIntegrationClient {
                                                               .resourceId(nodeId).build());
     }
 
+    /**
+     * Return the {@link Tag}s currently applied to all the EC2 instances of a region, fetched in a single request.
+     *
+     * @param regionId the region id
+     *
+     * @return map of the tag objects by instance id, without the instances having no tag
+     *
+     * @throws InvalidCredentialsException if the connection's credentials are invalid
+     */
+    public Map<String, Set<Tag>> getEC2InstanceTagsInRegion(String regionId) throws InvalidCredentialsException {
+        AWSEC2Client ec2Client = AWSEC2Client.class.cast(getComputeServiceContext()
+                                                                 .unwrap(AWSEC2ApiMetadata.CONTEXT_TOKEN).getApi());
+        TagFilters filters = TagFilters.filters().resourceType(TagFilters.ResourceType.INSTANCE);
+        Map<String, Set<Tag>> tagsByInstanceId = new HashMap<>();
+
+        for (Tag tag : ec2Client.getTagServices().describeTagsInRegion(regionId, filters.build())) {
+            Set<Tag> tags = tagsByInstanceId.get(tag.getResourceId());
+
+            if (tags == null) {
+                tags = new HashSet<>();
+                tagsByInstanceId.put(tag.getResourceId(), tags);
+            }
+            tags.add(tag);
+        }
+
+        return tagsByInstanceId;
+    }
+
     /**
      * Returns a list of JSONObjects representing the compute nodes available to this AWS connection.
      *
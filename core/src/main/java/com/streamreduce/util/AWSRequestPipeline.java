@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.util;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs requests against AWS concurrently, with a bounded parallelism per region, so the instances of a large region
+ * neither exceed the request rate AWS allows there nor hold up the requests to the other regions.
+ * <p/>
+ * A pipeline is shared by the fetches of a service: the requests run in a fixed pool of threads, started once and
+ * stopped by {@link #shutdown()}.  The requests of a region wait in its own queue while the parallelism of the region
+ * is reached, so they never hold a thread of the pool.
+ */
+public class AWSRequestPipeline {
+
+    private final int parallelism;
+    private final ExecutorService executor;
+    private final Map<String, Region> regions = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param threads     the number of threads running requests, for all regions
+     * @param parallelism the maximum number of requests in progress per region
+     */
+    public AWSRequestPipeline(int threads, int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads),
+                                                     new CustomizableThreadFactory("aws-request-"));
+    }
+
+    /**
+     * Submits a request, run once fewer requests than the parallelism are in progress in its region.
+     *
+     * @param regionId the region the request is sent to
+     * @param request  the request
+     * @return the future result of the request, see {@link #getResult(Future)}
+     * @throws RejectedExecutionException if the pipeline was shut down
+     */
+    public synchronized <T> Future<T> submit(String regionId, Callable<T> request) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("The AWS request pipeline is shut down");
+        }
+
+        FutureTask<T> task = new FutureTask<>(request);
+        Region region = regions.get(regionId);
+
+        if (region == null) {
+            region = new Region();
+            regions.put(regionId, region);
+        }
+        region.pending.add(task);
+        dispatch(region);
+        return task;
+    }
+
+    /**
+     * Stops the threads of the pipeline, interrupting the requests still in progress and cancelling those waiting.
+     */
+    public synchronized void shutdown() {
+        executor.shutdownNow();
+        for (Region region : regions.values()) {
+            for (FutureTask<?> task : region.pending) {
+                task.cancel(false);
+            }
+        }
+        regions.clear();
+    }
+
+    /**
+     * Cancels requests, interrupting them if in progress, for a fetch that gave up on their results.
+     *
+     * @param futures the future results of the requests
+     */
+    public static void cancel(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Starts the pending requests of a region while its parallelism allows, with the lock held.  A request cancelled
+     * while pending completes at once.
+     */
+    private void dispatch(final Region region) {
+        while (region.inProgress < parallelism && !region.pending.isEmpty()) {
+            final FutureTask<?> task = region.pending.poll();
+
+            region.inProgress++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        completed(region);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void completed(Region region) {
+        region.inProgress--;
+        if (!executor.isShutdown()) {
+            dispatch(region);
+        }
+    }
+
+    private static class Region {
+
+        private final Queue<FutureTask<?>> pending = new ArrayDeque<>();
+        private int inProgress;
+
+    }
+
+    /**
+     * Waits for the result of a request, rethrowing the runtime exception it failed with as if it was sent by the
+     * calling thread.
+     *
+     * @param future the future result of the request
+     * @return the result
+     */
+    public static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an AWS request", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("AWS request failed: " + cause.getMessage(), cause);
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ package com.streamreduce.util;
 import com.streamreduce.Constants;
 import com.streamreduce.core.model.ConnectionCredentials;
 import com.streamreduce.core.service.exception.InvalidCredentialsException;
+import com.streamreduce.core.service.exception.RateLimitedException;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -58,9 +59,13 @@ import org.springframework.util.StringUtils;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 
@@ -71,6 +76,9 @@ public final class HTTPUtils {
 
     public static Logger LOGGER = LoggerFactory.getLogger(HTTPUtils.class);
 
+    // The time to wait when a rate limited response does not say when to retry
+    private static final long DEFAULT_RETRY_AFTER = 60000;
+
     private static HttpClient httpClient;
     static {
         PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
@@ -115,8 +123,12 @@ public final class HTTPUtils {
         oAuthService.signRequest(token, request);
 
         Response response = request.send();
+        Long retryAfter = getRetryAfter(response.getCode(), response.getHeaders(), System.currentTimeMillis());
 
-        if (response.getCode() == 401 || response.getCode() == 403) {
+        if (retryAfter != null) {
+            throw new RateLimitedException("Rate limit exceeded for a " + method + " request to " + url +
+                                                   ", retry after " + retryAfter + " ms", retryAfter);
+        } else if (response.getCode() == 401 || response.getCode() == 403) {
             throw new InvalidCredentialsException("The OAuth Token is invalid, or has been revoked");
         } else if (response.getCode() != 200) {
             throw new IOException("Unexpected status code of " + response.getCode() + ": " + response.getBody() +
@@ -218,7 +230,12 @@ public final class HTTPUtils {
                 response = EntityUtils.toString(entity);
             }
             int responseCode = httpResponse.getStatusLine().getStatusCode();
-            if (responseCode == 401 || responseCode == 403) {
+            Long retryAfter = getRetryAfter(responseCode, toHeaderMap(httpResponse.getAllHeaders()),
+                                            System.currentTimeMillis());
+            if (retryAfter != null) {
+                throw new RateLimitedException("Rate limit exceeded for a " + method + " request to " + url +
+                                                       ", retry after " + retryAfter + " ms", retryAfter);
+            } else if (responseCode == 401 || responseCode == 403) {
                 throw new InvalidCredentialsException("The connection credentials are invalid.");
             } else if (responseCode < 200 || responseCode > 299) {
                 throw new IOException("Unexpected status code of " + responseCode + " for a " + method + " request to " + url);
@@ -235,4 +252,69 @@ public final class HTTPUtils {
         return response;
     }
 
+    /**
+     * Returns the time to wait before retrying a request refused for exceeding a rate limit.  The time is read from
+     * the <code>Retry-After</code> header, in seconds or as a date, or else from the reset time of the rate limit
+     * headers of GitHub and Twitter (<code>X-RateLimit-*</code> and <code>X-Rate-Limit-*</code>).  The refusals are
+     * the 429 and 420 (Twitter) responses, the 403 responses once no request remains (GitHub) and the 503 responses
+     * saying when to retry.
+     *
+     * @param responseCode the response status code
+     * @param headers      the response headers, by name
+     * @param now          the current time
+     * @return the time to wait in milliseconds, null if the request was not refused for exceeding a rate limit
+     */
+    public static Long getRetryAfter(int responseCode, @Nullable Map<String, String> headers, long now) {
+        Map<String, String> values = new HashMap<>();
+
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey() != null && header.getValue() != null) {
+                    values.put(header.getKey().toLowerCase(Locale.US), header.getValue().trim());
+                }
+            }
+        }
+
+        String retryAfter = values.get("retry-after");
+        String remaining = values.containsKey("x-ratelimit-remaining") ? values.get("x-ratelimit-remaining")
+                                                                       : values.get("x-rate-limit-remaining");
+        String reset = values.containsKey("x-ratelimit-reset") ? values.get("x-ratelimit-reset")
+                                                               : values.get("x-rate-limit-reset");
+        boolean exhausted = "0".equals(remaining);
+
+        if (!(responseCode == 429 || responseCode == 420 || (responseCode == 403 && exhausted) ||
+                (responseCode == 503 && retryAfter != null))) {
+            return null;
+        }
+
+        Long retryTime = null;
+
+        if (retryAfter != null) {
+            if (retryAfter.matches("\\d+")) {
+                retryTime = now + Long.parseLong(retryAfter) * 1000;
+            } else {
+                try {
+                    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                    retryTime = format.parse(retryAfter).getTime();
+                } catch (ParseException e) {
+                    LOGGER.debug("Unable to parse the Retry-After header: " + retryAfter);
+                }
+            }
+        }
+        if (retryTime == null && exhausted && reset != null && reset.matches("\\d+")) {
+            // seconds since the epoch
+            retryTime = Long.parseLong(reset) * 1000;
+        }
+        return retryTime == null ? DEFAULT_RETRY_AFTER : Math.max(retryTime - now, 0);
+    }
+
+    private static Map<String, String> toHeaderMap(Header[] headers) {
+        Map<String, String> headerMap = new HashMap<>();
+
+        for (Header header : headers) {
+            headerMap.put(header.getName(), header.getValue());
+        }
+        return headerMap;
+    }
+
 }
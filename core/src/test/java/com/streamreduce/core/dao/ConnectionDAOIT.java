@@ -1,6 +1,7 @@
 package com.streamreduce.core.dao;
 
 
+import com.mongodb.BasicDBObject;
 import com.streamreduce.AbstractDAOTest;
 import com.streamreduce.core.model.Account;
 import com.streamreduce.core.model.Connection;
@@ -10,6 +11,10 @@ import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ConnectionDAOIT extends AbstractDAOTest {
 
@@ -23,6 +28,7 @@ public class ConnectionDAOIT extends AbstractDAOTest {
     private UserDAO userDAO;
 
     private Account testAccount;
+    private Connection testConnection;
 
     @Before
     public void setUp() {
@@ -32,6 +38,7 @@ public class ConnectionDAOIT extends AbstractDAOTest {
         accountDAO.save(testAccount);
         userDAO.save(c.getUser());
         connectionDAO.save(c);
+        testConnection = c;
     }
 
     @Test
@@ -54,4 +61,97 @@ public class ConnectionDAOIT extends AbstractDAOTest {
         assertEquals(0, connectionDAO.getByExternalId(null).size());
     }
 
+    @Test
+    public void testClaimPolling() {
+        long now = System.currentTimeMillis();
+
+        assertTrue(connectionDAO.claimPolling(testConnection.getId(), "node-a", now, 1000));
+        assertFalse(connectionDAO.claimPolling(testConnection.getId(), "node-b", now + 500, 1000));
+
+        Connection claimed = connectionDAO.get(testConnection.getId());
+        assertEquals("node-a", claimed.getPollingLeaseOwner());
+        assertEquals(now + 1000, claimed.getPollingLeaseExpiry());
+        assertTrue(claimed.isPollingInProgress());
+        assertEquals(now, claimed.getPollingLastExecutionTime());
+
+        // Only the owner renews, and an expired lease goes to the next node claiming it
+        assertFalse(connectionDAO.renewPollingLease(testConnection.getId(), "node-b", now + 500, 1000));
+        assertTrue(connectionDAO.renewPollingLease(testConnection.getId(), "node-a", now + 500, 1000));
+        assertFalse(connectionDAO.claimPolling(testConnection.getId(), "node-b", now + 1200, 1000));
+        assertTrue(connectionDAO.claimPolling(testConnection.getId(), "node-b", now + 1600, 1000));
+        assertFalse(connectionDAO.renewPollingLease(testConnection.getId(), "node-a", now + 1600, 1000));
+        assertEquals("node-b", connectionDAO.get(testConnection.getId()).getPollingLeaseOwner());
+    }
+
+    @Test
+    public void testReleasePollingLease() {
+        long now = System.currentTimeMillis();
+
+        assertTrue(connectionDAO.claimPolling(testConnection.getId(), "node-a", now, 1000));
+        connectionDAO.update(connectionDAO.createPollingLeaseQuery(testConnection.getId(), "node-a"),
+                             connectionDAO.createUpdateOperations().set("pollingInProgress", false)
+                                          .unset("pollingLeaseOwner").unset("pollingLeaseExpiry"));
+
+        Connection released = connectionDAO.get(testConnection.getId());
+        assertFalse(released.isPollingInProgress());
+        assertNull(released.getPollingLeaseOwner());
+        assertTrue(connectionDAO.claimPolling(testConnection.getId(), "node-b", now + 1, 1000));
+    }
+
+    @Test
+    public void testSaveLeavesThePollingLeaseAlone() {
+        long now = System.currentTimeMillis();
+        Connection stale = connectionDAO.get(testConnection.getId());
+
+        assertTrue(connectionDAO.claimPolling(testConnection.getId(), "node-a", now, 1000));
+
+        // A copy read before the claim doesn't hand the lease back
+        stale.setDescription("Saved while polled");
+        stale.setPollingLeaseOwner("node-b");
+        connectionDAO.save(stale);
+
+        Connection saved = connectionDAO.get(testConnection.getId());
+        assertEquals("Saved while polled", saved.getDescription());
+        assertEquals("node-a", saved.getPollingLeaseOwner());
+        assertEquals(now + 1000, saved.getPollingLeaseExpiry());
+    }
+
+    @Test
+    public void testPolledCopyIsOnlySavedUnderTheLease() {
+        long now = System.currentTimeMillis();
+        Connection polled = connectionDAO.get(testConnection.getId());
+
+        assertTrue(connectionDAO.claimPolling(testConnection.getId(), "node-a", now, 1000));
+        polled.setPollingNodeId("node-a");
+        polled.setDescription("Saved by node-a");
+        connectionDAO.save(polled);
+        assertEquals("Saved by node-a", connectionDAO.get(testConnection.getId()).getDescription());
+
+        // The lease expired and node-b claimed it, the copy of node-a is no longer saved
+        assertTrue(connectionDAO.claimPolling(testConnection.getId(), "node-b", now + 1600, 1000));
+        polled.setDescription("Saved by node-a after losing the lease");
+        try {
+            connectionDAO.save(polled);
+            fail("Saved without the lease");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("Saved by node-a", connectionDAO.get(testConnection.getId()).getDescription());
+    }
+
+    @Test
+    public void testSaveOfARemovedConnectionRunsPrePersistOnce() {
+        Connection removed = connectionDAO.get(testConnection.getId());
+        int version = removed.getVersion();
+
+        connectionDAO.getCollection().remove(new BasicDBObject("_id", testConnection.getId()));
+        removed.setPollingLeaseOwner("node-a");
+        connectionDAO.save(removed);
+
+        Connection saved = connectionDAO.get(testConnection.getId());
+        assertEquals(version + 1, removed.getVersion());
+        assertEquals(version + 1, saved.getVersion());
+        assertNull(saved.getPollingLeaseOwner());
+    }
+
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.dao;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.streamreduce.AbstractDAOTest;
+import com.streamreduce.Constants;
+import com.streamreduce.util.MetricBucketUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class used to test that {@link IndexManager} works as expected.
+ */
+public class IndexManagerIT extends AbstractDAOTest {
+
+    @Autowired
+    private IndexManager indexManager;
+
+    @Test
+    public void testEnsureIndexesOfMetricCollection() throws Exception {
+        DBCollection collection = messageDBDatastore.getDB().getCollection(Constants.METRIC_COLLECTION_PREFIX +
+                                                                                   "IndexManagerIT");
+
+        collection.insert(new BasicDBObject("metricName", "TEST"));
+        collection.ensureIndex(new BasicDBObject("metricName", 1));
+
+        int indexedCollectionCount = indexManager.getIndexedCollectionCount();
+
+        Assert.assertEquals(2, getReport(collection).size());
+        Assert.assertTrue(getReport(collection).contains(collection.getName() + ": missing index {metricName: 1, " +
+                                                                 "metricGranularity: 1, bucketEnd: -1}"));
+        Assert.assertTrue(getReport(collection).contains(collection.getName() + ": undeclared index {metricName: 1}"));
+
+        indexManager.ensureIndexes(collection.getName());
+
+        Assert.assertTrue(hasIndex(collection, MetricBucketUtils.getBucketIndex()));
+        Assert.assertEquals(indexedCollectionCount + 1, indexManager.getIndexedCollectionCount());
+        Assert.assertEquals(1, getReport(collection).size());
+    }
+
+    @Test
+    public void testEnsureIndexesIsCached() throws Exception {
+        DBCollection collection = messageDBDatastore.getDB().getCollection(Constants.INBOX_COLLECTION_PREFIX +
+                                                                                   "IndexManagerIT");
+
+        // The collection is only indexed once, even when its indexes were dropped in between
+        indexManager.ensureIndexes(collection);
+        collection.dropIndexes();
+        indexManager.ensureIndexes(collection);
+
+        Assert.assertFalse(hasIndex(collection, new BasicDBObject("connectionId", 1)));
+
+        Assert.assertEquals(3, getReport(collection).size());
+
+        Assert.assertTrue(indexManager.ensureAllIndexes() >= 1);
+        Assert.assertTrue(hasIndex(collection, new BasicDBObject("visibility", 1).append("modified", -1)));
+        Assert.assertTrue(hasIndex(collection, new BasicDBObject("connectionId", 1)));
+        Assert.assertTrue(getReport(collection).isEmpty());
+    }
+
+    @Test
+    public void testOtherCollectionsAreIgnored() throws Exception {
+        Assert.assertTrue(indexManager.getDeclaredIndexes("eventStream").isEmpty());
+        Assert.assertEquals(3, indexManager.getDeclaredIndexes(Constants.INBOX_COLLECTION_PREFIX + "account").size());
+    }
+
+    private boolean hasIndex(DBCollection collection, DBObject keys) {
+        for (DBObject index : collection.getIndexInfo()) {
+            DBObject indexKeys = (DBObject) index.get("key");
+
+            if (new ArrayList<>(indexKeys.keySet()).equals(new ArrayList<>(keys.keySet()))) {
+                boolean sameDirections = true;
+
+                for (String field : keys.keySet()) {
+                    sameDirections &= ((Number) indexKeys.get(field)).intValue() ==
+                            ((Number) keys.get(field)).intValue();
+                }
+                if (sameDirections) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<String> getReport(DBCollection collection) {
+        List<String> report = new ArrayList<>();
+
+        for (String line : indexManager.createIndexReport()) {
+            if (line.startsWith(collection.getName() + ":")) {
+                report.add(line);
+            }
+        }
+        return report;
+    }
+
+}
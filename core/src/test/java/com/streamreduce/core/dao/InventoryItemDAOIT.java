@@ -12,9 +12,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class InventoryItemDAOIT extends AbstractDAOTest {
 
@@ -75,4 +78,35 @@ public class InventoryItemDAOIT extends AbstractDAOTest {
 
 
     }
+
+    @Test
+    public void testGetAllInventoryItems() throws Exception {
+        InventoryItem deletedItem = inventoryService.createInventoryItem(testConnection,
+                new JSONObjectBuilder().add("inventoryItemId", "DELETED").build());
+        inventoryService.markInventoryItemDeleted(deletedItem);
+
+        assertEquals(1, inventoryItemDAO.getInventoryItems(testConnection, null).size());
+        assertEquals(2, inventoryItemDAO.getAllInventoryItems(testConnection).size());
+    }
+
+    @Test
+    public void testMarkDeleted() throws Exception {
+        InventoryItem otherItem = inventoryService.createInventoryItem(testConnection,
+                new JSONObjectBuilder().add("inventoryItemId", "OTHER").build());
+
+        int version = otherItem.getVersion();
+        long beforeUpdate = System.currentTimeMillis();
+
+        assertEquals(0, inventoryItemDAO.markDeleted(Collections.<InventoryItem>emptyList()));
+        assertEquals(1, inventoryItemDAO.markDeleted(Arrays.asList(otherItem)));
+
+        InventoryItem deletedItem = inventoryItemDAO.get(otherItem.getId());
+        assertTrue(deletedItem.isDeleted());
+        assertEquals(version + 1, deletedItem.getVersion());
+        assertTrue(deletedItem.getModified() >= beforeUpdate);
+        assertEquals(deletedItem.getModified(), otherItem.getModified());
+        assertEquals(deletedItem.getVersion(), otherItem.getVersion());
+        assertEquals(1, inventoryItemDAO.getInventoryItems(testConnection, null).size());
+    }
+
 }
@@ -17,14 +17,22 @@
 package com.streamreduce.core.dao;
 
 import com.google.code.morphia.Key;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import com.streamreduce.AbstractDAOTest;
 import com.streamreduce.analytics.MetricName;
 import com.streamreduce.core.metric.MetricModeType;
 import com.streamreduce.core.model.Metric;
-import org.bson.types.ObjectId;
+import com.streamreduce.util.MetricBucketUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>Author: Nick Heudecker</p>
@@ -33,17 +41,61 @@ import org.junit.Test;
 public class MetricDAOIT extends AbstractDAOTest {
 
     public static final String ACCOUNT_ID = "MetricDAOITtestSave";
-    public ObjectId objectId;
+    public static final long TS = 1350000000000L;
+    public Key<Metric> key;
+
+    @Autowired
+    private MetricDAO metricDao;
 
     @Before
     public void setUp() throws Exception {
-        MetricDAO metricDao = new MetricDAO(messageDBDatastore);
-        Key<Metric> key = metricDao.save(new Metric()
+        key = metricDao.save(createMetric(TS, 48.12f));
+    }
+
+    @Test
+    public void testGetMetrics() throws Exception {
+        Assert.assertNotNull(key.getId());
+        List<DBObject> metrics = metricDao.getMetrics(ACCOUNT_ID, MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString(),
+                                                      getCriteria(), 6000L, null, null, 1, 10);
+
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertEquals(TS, ((Number) metrics.get(0).get("metricTimestamp")).longValue());
+        Assert.assertEquals(48.12f, ((Number) metrics.get(0).get("metricValue")).floatValue(), 0.001f);
+        Assert.assertEquals("DiskReadOps", ((DBObject) metrics.get(0).get("metricCriteria")).get("RESOURCE_ID"));
+        Assert.assertEquals(1, messageDBDatastore.getDB().getCollection("Metric_" + ACCOUNT_ID).count());
+    }
+
+    @Test
+    public void testGetMetricsPagesBucketsAndOlderDocuments() throws Exception {
+        // A bucket of the previous hour and one document per metric written before buckets
+        metricDao.save(createMetric(TS - 3600000L, 47f));
+        metricDao.save(createMetric(TS + 6000L, 49f));
+        messageDBDatastore.getDB().getCollection("Metric_" + ACCOUNT_ID).insert(
+                createMetric(TS - 6000L, 46f).toDBObject());
+
+        List<DBObject> firstPage = metricDao.getMetrics(ACCOUNT_ID,
+                                                        MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString(),
+                                                        getCriteria(), 6000L, null, null, 1, 2);
+        List<DBObject> secondPage = metricDao.getMetrics(ACCOUNT_ID,
+                                                         MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString(),
+                                                         getCriteria(), 6000L, null, null, 2, 2);
+        List<DBObject> range = metricDao.getMetrics(ACCOUNT_ID, MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString(),
+                                                    getCriteria(), 6000L, TS - 6000L, TS, 1, 10);
+
+        Assert.assertEquals(Arrays.asList(TS + 6000L, TS), getTimestamps(firstPage));
+        Assert.assertEquals(Arrays.asList(TS - 6000L, TS - 3600000L), getTimestamps(secondPage));
+        Assert.assertEquals(Arrays.asList(TS, TS - 6000L), getTimestamps(range));
+        Assert.assertEquals(1, messageDBDatastore.getDB().getCollection("Metric_" + ACCOUNT_ID).count(
+                new BasicDBObject(MetricBucketUtils.BUCKET_START, MetricBucketUtils.getBucketStart(TS, 6000L))));
+    }
+
+    private Metric createMetric(long ts, float value) {
+        return new Metric()
                 .setAccountId(ACCOUNT_ID)
                 .setName(MetricName.INVENTORY_ITEM_RESOURCE_USAGE.toString())
                 .setType(MetricModeType.ABSOLUTE.toString())
-                .setTs(System.currentTimeMillis())
-                .setValue(48.12f)
+                .setTs(ts)
+                .setValue(value)
                 .setGranularity(6000)
                 .setAgv(30.00f)
                 .setStddev(20.0f)
@@ -53,17 +105,20 @@ public class MetricDAOIT extends AbstractDAOTest {
                 .setAnomaly(false)
                 .addCriteria("OBJECT_ID", "504e4807fa5a8e3ab7791ef5")
                 .addCriteria("RESOURCE_ID", "DiskReadOps")
-                .addCriteria("METRIC_ID", "average"));
-        objectId = (ObjectId) key.getId();
+                .addCriteria("METRIC_ID", "average");
     }
 
-    @Test
-    public void testGet() throws Exception {
-        Assert.assertNotNull(objectId);
-        MetricDAO metricDao = new MetricDAO(messageDBDatastore);
-        Metric metric = metricDao.get(objectId, ACCOUNT_ID);
-        Assert.assertNotNull(metric);
-        Assert.assertEquals(metric.getId(), objectId);
+    private Map<String, List<String>> getCriteria() {
+        return Collections.singletonMap("OBJECT_ID", Collections.singletonList("504e4807fa5a8e3ab7791ef5"));
+    }
+
+    private List<Long> getTimestamps(List<DBObject> metrics) {
+        Long[] timestamps = new Long[metrics.size()];
+
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = ((Number) metrics.get(i).get("metricTimestamp")).longValue();
+        }
+        return Arrays.asList(timestamps);
     }
 
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.jobs;
+
+import com.streamreduce.core.model.Connection;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Class used to test that {@link ConnectionPollingSchedule} works as expected.
+ */
+public class ConnectionPollingScheduleTest {
+
+    private final ConnectionPollingSchedule schedule = new ConnectionPollingSchedule();
+
+    @Test
+    public void testTakeDueEarliestFirst() {
+        ObjectId first = new ObjectId();
+        ObjectId second = new ObjectId();
+        ObjectId third = new ObjectId();
+        ObjectId later = new ObjectId();
+
+        schedule.schedule(third, "cloud", 30);
+        schedule.schedule(first, "feed", 10);
+        schedule.schedule(later, "feed", 100);
+        schedule.schedule(second, "cloud", 20);
+
+        Assert.assertEquals(3, schedule.countDue(50));
+        Assert.assertEquals(Arrays.asList(first, second), getIds(schedule.takeDue(50, 2)));
+        Assert.assertEquals(Arrays.asList(third), getIds(schedule.takeDue(50, 2)));
+        Assert.assertTrue(schedule.takeDue(50, 2).isEmpty());
+        Assert.assertEquals(1, schedule.size());
+        Assert.assertEquals(Arrays.asList(later), getIds(schedule.takeDue(100, 2)));
+        Assert.assertEquals(0, schedule.size());
+    }
+
+    @Test
+    public void testRescheduleReplacesPreviousSchedule() {
+        ObjectId rescheduled = new ObjectId();
+        ObjectId unscheduled = new ObjectId();
+
+        schedule.schedule(rescheduled, "cloud", 10);
+        schedule.schedule(unscheduled, "cloud", 10);
+        schedule.schedule(rescheduled, "cloud", 50);
+        schedule.unschedule(unscheduled);
+
+        Assert.assertEquals(1, schedule.size());
+        Assert.assertTrue(schedule.takeDue(20, 10).isEmpty());
+
+        List<ConnectionPollingSchedule.Entry> due = schedule.takeDue(60, 10);
+
+        Assert.assertEquals(Arrays.asList(rescheduled), getIds(due));
+        Assert.assertEquals(50, due.get(0).getDueTime());
+        Assert.assertEquals("cloud", due.get(0).getType());
+    }
+
+    @Test
+    public void testChangesAreTakenInOrder() {
+        Connection connection = mock(Connection.class);
+        ObjectId connectionId = new ObjectId();
+
+        when(connection.getId()).thenReturn(connectionId);
+
+        schedule.connectionChanged(connection);
+        schedule.connectionRemoved(connectionId);
+
+        List<ConnectionPollingSchedule.Change> changes = schedule.takeChanges();
+
+        Assert.assertEquals(2, changes.size());
+        Assert.assertSame(connection, changes.get(0).getConnection());
+        Assert.assertEquals(connectionId, changes.get(1).getConnectionId());
+        Assert.assertNull(changes.get(1).getConnection());
+        Assert.assertTrue(schedule.takeChanges().isEmpty());
+    }
+
+    private List<ObjectId> getIds(List<ConnectionPollingSchedule.Entry> entries) {
+        List<ObjectId> ids = new ArrayList<>();
+
+        for (ConnectionPollingSchedule.Entry entry : entries) {
+            ids.add(entry.getConnectionId());
+        }
+        return ids;
+    }
+
+}
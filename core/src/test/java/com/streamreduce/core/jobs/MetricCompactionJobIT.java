@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.core.jobs;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.streamreduce.AbstractDAOTest;
+import com.streamreduce.Constants;
+import com.streamreduce.core.dao.MetricDAO;
+import com.streamreduce.core.metric.MetricModeType;
+import com.streamreduce.core.model.Metric;
+import com.streamreduce.util.MetricBucketUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class used to test that {@link MetricCompactionJob} works as expected.
+ */
+public class MetricCompactionJobIT extends AbstractDAOTest {
+
+    public static final String ACCOUNT_ID = "MetricCompactionJobIT";
+    public static final long NOW = System.currentTimeMillis();
+    public static final long EXPIRED = NOW - TimeUnit.DAYS.toMillis(30);
+
+    @Autowired
+    private MetricCompactionJob metricCompactionJob;
+    @Autowired
+    private MetricDAO metricDao;
+
+    @Test
+    public void testCompactRemovesExpiredSamplesOfRolledUpStreams() throws Exception {
+        DBCollection collection = messageDBDatastore.getDB().getCollection(Constants.METRIC_COLLECTION_PREFIX +
+                                                                                   ACCOUNT_ID);
+
+        // Stream A is rolled up into hours, stream B is not
+        metricDao.save(createMetric("A", EXPIRED, Constants.PERIOD_MINUTE));
+        metricDao.save(createMetric("A", NOW, Constants.PERIOD_MINUTE));
+        metricDao.save(createMetric("A", EXPIRED + TimeUnit.DAYS.toMillis(2), Constants.PERIOD_HOUR));
+        metricDao.save(createMetric("B", EXPIRED, Constants.PERIOD_MINUTE));
+        // A sample of stream A written before buckets
+        collection.insert(createMetric("A", EXPIRED - Constants.PERIOD_HOUR, Constants.PERIOD_MINUTE).toDBObject());
+
+        // The compaction the scheduler starts with the context may still be running
+        while (metricCompactionJob.isRunning()) {
+            Thread.sleep(10);
+        }
+        metricCompactionJob.compact();
+
+        Assert.assertEquals(2, metricCompactionJob.getLastRunDocumentsRemoved());
+        Assert.assertEquals(1, metricCompactionJob.getLastRunDocumentsKept());
+        Assert.assertTrue(metricCompactionJob.getLastRunBytesReclaimed() > 0);
+        Assert.assertEquals(3, collection.count());
+        Assert.assertEquals(0, collection.count(new BasicDBObject("metricName", "A")
+                                                        .append("metricGranularity", Constants.PERIOD_MINUTE)
+                                                        .append(MetricBucketUtils.BUCKET_END,
+                                                                new BasicDBObject("$lte", NOW))));
+        Assert.assertEquals(0, collection.count(new BasicDBObject(MetricBucketUtils.BUCKET_END,
+                                                                  new BasicDBObject("$exists", false))));
+        Assert.assertEquals(1, collection.count(new BasicDBObject("metricName", "B")));
+    }
+
+    @Test
+    public void testCompactKeepsSamplesOfUnlimitedRetention() throws Exception {
+        metricDao.save(createMetric("A", EXPIRED, Constants.PERIOD_MINUTE));
+        metricDao.save(createMetric("A", NOW, Constants.PERIOD_HOUR));
+
+        while (metricCompactionJob.isRunning()) {
+            Thread.sleep(10);
+        }
+        metricCompactionJob.setMinuteRetentionDays(0);
+        metricCompactionJob.compact();
+
+        Assert.assertEquals(0, metricCompactionJob.getLastRunDocumentsRemoved());
+        Assert.assertEquals(2, messageDBDatastore.getDB().getCollection(Constants.METRIC_COLLECTION_PREFIX +
+                                                                                ACCOUNT_ID).count());
+    }
+
+    @Test
+    public void testCoarserGranularities() throws Exception {
+        Assert.assertEquals(Constants.PERIOD_MINUTE, MetricCompactionJob.getCoarserGranularity(0));
+        Assert.assertEquals(Constants.PERIOD_HOUR, MetricCompactionJob.getCoarserGranularity(Constants.PERIOD_MINUTE));
+        Assert.assertEquals(Constants.PERIOD_DAY, MetricCompactionJob.getCoarserGranularity(Constants.PERIOD_HOUR));
+    }
+
+    private Metric createMetric(String name, long ts, long granularity) {
+        return new Metric()
+                .setAccountId(ACCOUNT_ID)
+                .setName(name)
+                .setType(MetricModeType.ABSOLUTE.toString())
+                .setTs(ts)
+                .setValue(1f)
+                .setGranularity(granularity)
+                .setAgv(1f)
+                .setStddev(0f)
+                .setDiff(0f)
+                .setMin(1f)
+                .setMax(1f)
+                .setAnomaly(false)
+                .addCriteria("OBJECT_ID", "504e4807fa5a8e3ab7791ef5");
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class used to test that {@link AWSRequestPipeline} works as expected.
+ */
+public class AWSRequestPipelineTest {
+
+    private AWSRequestPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new AWSRequestPipeline(4, 2);
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void testParallelismIsBoundedPerRegion() throws Exception {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        List<Future<String>> requests = new ArrayList<>();
+
+        for (int i = 0; i < 5; i++) {
+            final String instanceId = "i-" + i;
+
+            requests.add(pipeline.submit("us-east-1", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    int count = inProgress.incrementAndGet();
+
+                    synchronized (maxInProgress) {
+                        maxInProgress.set(Math.max(maxInProgress.get(), count));
+                    }
+                    started.countDown();
+                    release.await();
+                    inProgress.decrementAndGet();
+                    return instanceId;
+                }
+            }));
+        }
+
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The requests to another region are not held up by those in progress
+        Future<String> otherRegion = pipeline.submit("eu-west-1", new Callable<String>() {
+            @Override
+            public String call() {
+                return "i-other";
+            }
+        });
+        Assert.assertEquals("i-other", otherRegion.get(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        for (int i = 0; i < requests.size(); i++) {
+            Assert.assertEquals("i-" + i, AWSRequestPipeline.getResult(requests.get(i)));
+        }
+        Assert.assertEquals(2, maxInProgress.get());
+    }
+
+    @Test
+    public void testCancelledRequestsFreeTheirRegion() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> inProgress = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            inProgress.add(pipeline.submit("us-east-1", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    release.await();
+                    return "i-done";
+                }
+            }));
+        }
+
+        Future<String> pending = pipeline.submit("us-east-1", new Callable<String>() {
+            @Override
+            public String call() {
+                return "i-pending";
+            }
+        });
+
+        // A fetch giving up cancels its requests, those in progress are interrupted and the pending one never runs
+        AWSRequestPipeline.cancel(Arrays.asList(inProgress.get(0), inProgress.get(1), pending));
+
+        Future<String> next = pipeline.submit("us-east-1", new Callable<String>() {
+            @Override
+            public String call() {
+                return "i-next";
+            }
+        });
+        Assert.assertEquals("i-next", next.get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(pending.isCancelled());
+        release.countDown();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testSubmitAfterShutdownIsRejected() {
+        pipeline.shutdown();
+        pipeline.submit("us-east-1", new Callable<String>() {
+            @Override
+            public String call() {
+                return "i-late";
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResultRethrowsTheRequestFailure() {
+        Future<String> request = pipeline.submit("us-east-1", new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalArgumentException("Unknown instance");
+            }
+        });
+
+        AWSRequestPipeline.getResult(request);
+    }
+
+}
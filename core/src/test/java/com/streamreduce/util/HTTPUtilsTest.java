@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Nodeable Inc
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.streamreduce.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class used to test that {@link HTTPUtils} works as expected.
+ */
+public class HTTPUtilsTest {
+
+    // Thu, 11 Oct 2012 23:20:00 GMT
+    private static final long NOW = 1349997600000L;
+
+    @Test
+    public void testRetryAfterHeader() {
+        Assert.assertEquals(Long.valueOf(120000), HTTPUtils.getRetryAfter(429, headers("Retry-After", "120"), NOW));
+        Assert.assertEquals(Long.valueOf(60000), HTTPUtils.getRetryAfter(
+                503, headers("retry-after", "Thu, 11 Oct 2012 23:21:00 GMT"), NOW));
+        // No Retry-After, the default wait
+        Assert.assertEquals(Long.valueOf(60000), HTTPUtils.getRetryAfter(420, null, NOW));
+        Assert.assertNull(HTTPUtils.getRetryAfter(503, null, NOW));
+        Assert.assertNull(HTTPUtils.getRetryAfter(200, headers("Retry-After", "120"), NOW));
+    }
+
+    @Test
+    public void testRateLimitHeaders() {
+        Map<String, String> exhausted = headers("X-RateLimit-Remaining", "0");
+        exhausted.put("X-RateLimit-Reset", String.valueOf(NOW / 1000 + 900));
+
+        Assert.assertEquals(Long.valueOf(900000), HTTPUtils.getRetryAfter(403, exhausted, NOW));
+        Assert.assertEquals(Long.valueOf(0), HTTPUtils.getRetryAfter(403, exhausted, NOW + 1000000));
+        // A 403 with requests remaining is an authorization failure
+        Assert.assertNull(HTTPUtils.getRetryAfter(403, headers("X-RateLimit-Remaining", "4999"), NOW));
+        Assert.assertNull(HTTPUtils.getRetryAfter(403, null, NOW));
+    }
+
+    private Map<String, String> headers(String name, String value) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(name, value);
+        return headers;
+    }
+
+}